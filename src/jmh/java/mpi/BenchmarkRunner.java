@@ -0,0 +1,232 @@
+package mpi;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Runs {@link OsuBenchmarks} the way a user runs a job: it starts local
+ * {@code smpd} daemons, launches every benchmark through {@code mpiexec} at
+ * each rank count, and writes the results as JSON in JMH's result format, so
+ * runs of different builds can be compared with the usual JMH tooling.
+ *
+ * Settings (system properties, or {@code -P} options of {@code ./gradlew jmh}):
+ * <ul>
+ * <li>{@code bench.benchmarks}: benchmarks to run (default all: latency,bw,bibw,mr,barrier,bcast,reduce).</li>
+ * <li>{@code bench.ranks}: rank counts (default 2,4).</li>
+ * <li>{@code bench.options}: options passed to every benchmark, e.g. "iterations=500 sizes=8,1024".</li>
+ * <li>{@code bench.smpds}: daemons the ranks are spread over (default 2), on ports from {@code bench.port}
+ * (default 5101).</li>
+ * <li>{@code bench.threads}: "true" to run the ranks as threads of mpiexec instead (no daemons).</li>
+ * <li>{@code bench.out}: the results file (default bench-results.json).</li>
+ * <li>{@code bench.baseline}: results of an earlier run, to print the change of every score against.</li>
+ * </ul>
+ */
+public class BenchmarkRunner {
+    private static final String ALL = "latency,bw,bibw,mr,barrier,bcast,reduce";
+    // How long a daemon may take to start listening
+    private static final long SMPD_START_TIMEOUT_MS = 10000;
+    // Two-sided 99.9% Student t quantiles for 1..10 degrees of freedom, as JMH reports score errors
+    private static final double[] T_999 = { 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781,
+            4.587 };
+    private static final Pattern RESULT = Pattern.compile("\"benchmark\":\"([^\"]+)\".*\"params\":\\{\"ranks\":\""
+            + "(\\d+)\",\"size\":\"(\\d+)\"\\},\"primaryMetric\":\\{\"score\":([^,]+),");
+
+    private static final String JAVA = ProcessHandle.current().info().command().orElse("java");
+    private static final String CLASSPATH = System.getProperty("java.class.path");
+
+    public static void main(String[] args) throws Exception {
+        List<String> benchmarks = Arrays.asList(System.getProperty("bench.benchmarks", ALL).split(","));
+        int[] rankCounts = Arrays.stream(System.getProperty("bench.ranks", "2,4").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        String options = System.getProperty("bench.options", "").trim();
+        boolean threads = Boolean.parseBoolean(System.getProperty("bench.threads", "false"));
+        int smpds = Integer.parseInt(System.getProperty("bench.smpds", "2"));
+        int basePort = Integer.parseInt(System.getProperty("bench.port", "5101"));
+        File out = new File(System.getProperty("bench.out", "bench-results.json"));
+        String baseline = System.getProperty("bench.baseline");
+
+        Map<String, Double> baselineScores = baseline != null ? readScores(new File(baseline)) : Map.of();
+        List<String> results = new ArrayList<>();
+        List<Process> daemons = new ArrayList<>();
+        boolean failed = false;
+        try {
+            for (int i = 0; i < smpds && !threads; i++) {
+                daemons.add(startSmpd(basePort + i));
+            }
+            for (String benchmark : benchmarks) {
+                for (int ranks : rankCounts) {
+                    if (ranks < 2 && !benchmark.equals("barrier") && !benchmark.equals("bcast")
+                            && !benchmark.equals("reduce")) {
+                        continue;
+                    }
+                    List<String> command = mpiexec(threads, ranks, smpds, basePort);
+                    command.addAll(List.of(JAVA, "-cp", CLASSPATH, OsuBenchmarks.class.getName(), benchmark));
+                    if (!options.isEmpty()) {
+                        command.addAll(Arrays.asList(options.split("\\s+")));
+                    }
+                    System.out.println("# " + benchmark + ", " + ranks + " ranks");
+                    failed |= !run(command, results, baselineScores);
+                }
+            }
+        } finally {
+            for (Process daemon : daemons) {
+                daemon.destroyForcibly();
+            }
+        }
+
+        File dir = out.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        Files.writeString(out.toPath(), "[\n" + String.join(",\n", results) + "\n]\n", StandardCharsets.UTF_8);
+        System.out.println("Results written to " + out);
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static Process startSmpd(int port) throws IOException, InterruptedException {
+        Process daemon = new ProcessBuilder(JAVA, "-cp", CLASSPATH, "mpi.smpd", String.valueOf(port))
+                .redirectErrorStream(true).start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(daemon.getInputStream()));
+        Object listening = new Object();
+        boolean[] up = new boolean[1];
+        Thread drain = new Thread(() -> {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("smpd listening")) {
+                        synchronized (listening) {
+                            up[0] = true;
+                            listening.notifyAll();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The daemon is gone
+            }
+        }, "smpd-" + port);
+        drain.setDaemon(true);
+        drain.start();
+        long deadline = System.currentTimeMillis() + SMPD_START_TIMEOUT_MS;
+        synchronized (listening) {
+            while (!up[0] && daemon.isAlive() && System.currentTimeMillis() < deadline) {
+                listening.wait(100);
+            }
+            if (!up[0]) {
+                daemon.destroyForcibly();
+                throw new IOException("smpd did not start on port " + port);
+            }
+        }
+        return daemon;
+    }
+
+    // mpiexec with the job's ranks spread evenly over the daemons
+    private static List<String> mpiexec(boolean threads, int ranks, int smpds, int basePort) {
+        List<String> command = new ArrayList<>(List.of(JAVA, "-cp", CLASSPATH, "mpi.mpiexec"));
+        if (threads) {
+            command.addAll(List.of("-threads", String.valueOf(ranks)));
+            return command;
+        }
+        int nodes = Math.min(ranks, smpds);
+        command.addAll(List.of("-processes", String.valueOf(nodes)));
+        for (int i = 0; i < nodes; i++) {
+            command.add(String.valueOf(basePort + i));
+            command.add(String.valueOf(ranks / nodes + (i < ranks % nodes ? 1 : 0)));
+        }
+        return command;
+    }
+
+    // Runs one job, adding a JMH result for every line rank 0 reported; false if the job failed
+    private static boolean run(List<String> command, List<String> results, Map<String, Double> baseline)
+            throws IOException, InterruptedException {
+        Process job = new ProcessBuilder(command).redirectErrorStream(true).start();
+        StringBuilder log = new StringBuilder();
+        int reported = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(job.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                log.append(line).append('\n');
+                int at = line.indexOf(OsuBenchmarks.PREFIX + "{");
+                if (at >= 0) {
+                    results.add(toJmh(line.substring(at + OsuBenchmarks.PREFIX.length()), baseline));
+                    reported++;
+                }
+            }
+        }
+        int status = job.waitFor();
+        if (status != 0 || reported == 0) {
+            System.out.println("Job failed with exit code " + status + ":\n" + log);
+            return false;
+        }
+        return true;
+    }
+
+    // One line of OsuBenchmarks output as an entry of a JMH result file
+    private static String toJmh(String line, Map<String, Double> baseline) {
+        String benchmark = field(line, "benchmark");
+        String ranks = field(line, "ranks");
+        String size = field(line, "size");
+        String unit = field(line, "unit");
+        String rawList = line.substring(line.indexOf("\"raw\":[") + 7, line.lastIndexOf(']'));
+        double[] raw = Arrays.stream(rawList.split(",")).mapToDouble(Double::parseDouble).toArray();
+
+        double mean = Arrays.stream(raw).average().orElse(Double.NaN);
+        double error = Double.NaN;
+        if (raw.length > 1) {
+            double squares = 0;
+            for (double v : raw) {
+                squares += (v - mean) * (v - mean);
+            }
+            int df = raw.length - 1;
+            double t = df <= T_999.length ? T_999[df - 1] : 3.291 + 11.0 / df;
+            error = t * Math.sqrt(squares / df) / Math.sqrt(raw.length);
+        }
+        boolean time = unit.equals("us");
+        String name = OsuBenchmarks.class.getName() + "." + benchmark;
+        String scoreUnit = time ? "us/op" : unit.equals("msgs/s") ? "ops/s" : unit;
+
+        Double before = baseline.get(name + "|" + ranks + "|" + size);
+        String change = "";
+        if (before != null && before != 0) {
+            change = String.format(Locale.ROOT, "  (%+.1f%% vs baseline)", (mean - before) / before * 100);
+        }
+        System.out.printf(Locale.ROOT, "%-8s ranks=%-3s size=%-8s %12.3f +- %.3f %s%s%n", benchmark, ranks, size,
+                mean, Double.isNaN(error) ? 0 : error, scoreUnit, change);
+
+        return String.format(Locale.ROOT, "{\"benchmark\":\"%s\",\"mode\":\"%s\",\"threads\":1,\"forks\":1,"
+                + "\"measurementIterations\":%d,\"params\":{\"ranks\":\"%s\",\"size\":\"%s\"},"
+                + "\"primaryMetric\":{\"score\":%s,\"scoreError\":%s,\"scoreConfidence\":[%s,%s],"
+                + "\"scoreUnit\":\"%s\",\"rawData\":[[%s]]},\"secondaryMetrics\":{}}",
+                name, time ? "avgt" : "thrpt", raw.length, ranks, size, number(mean), number(error),
+                number(mean - error), number(mean + error), scoreUnit, rawList);
+    }
+
+    private static String field(String json, String name) {
+        Matcher m = Pattern.compile("\"" + name + "\":\"?([^\",}]*)").matcher(json);
+        if (!m.find()) {
+            throw new IllegalArgumentException("No " + name + " in " + json);
+        }
+        return m.group(1);
+    }
+
+    // JSON has no NaN; JMH writes it as a string
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    // Scores of a results file written by this runner, by benchmark, ranks and size
+    private static Map<String, Double> readScores(File file) throws IOException {
+        Map<String, Double> scores = new HashMap<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            Matcher m = RESULT.matcher(line);
+            if (m.find()) {
+                scores.put(m.group(1) + "|" + m.group(2) + "|" + m.group(3), Double.parseDouble(m.group(4)));
+            }
+        }
+        return scores;
+    }
+}
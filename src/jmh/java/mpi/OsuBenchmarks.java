@@ -0,0 +1,229 @@
+package mpi;
+
+import java.util.*;
+
+/**
+ * OSU-style micro-benchmarks, run as an MPI program:
+ * {@code mpiexec ... java -cp CP mpi.OsuBenchmarks <benchmark> [key=value ...]}.
+ *
+ * <ul>
+ * <li>{@code latency}: ping-pong between ranks 0 and 1, half the round trip in us.</li>
+ * <li>{@code bw}: rank 0 streams windows of messages to rank 1, MB/s.</li>
+ * <li>{@code bibw}: ranks 0 and 1 stream windows at each other at once, MB/s both ways.</li>
+ * <li>{@code mr}: rank i streams to rank i + size/2 for every i below size/2, messages per second of all
+ * pairs together.</li>
+ * <li>{@code barrier}, {@code bcast}, {@code reduce}: time per operation in us, averaged over the ranks. Each
+ * operation is timed on its own, with a barrier between them.</li>
+ * </ul>
+ *
+ * Options: {@code sizes} (message sizes in bytes, comma separated), {@code iterations} (timed iterations for
+ * sizes up to 8 KB; larger sizes do a tenth of them), {@code warmup} (untimed iterations before each
+ * measurement), {@code repetitions} (measurements per size) and {@code window} (messages in flight for the
+ * streaming benchmarks). Rank 0 prints one line per size, {@code OSU <json>}, with the measurement of every
+ * repetition; {@link BenchmarkRunner} collects them.
+ */
+public class OsuBenchmarks {
+    static final String PREFIX = "OSU ";
+
+    private static final int LARGE_MESSAGE = 8192;
+    private static final int TAG = 1;
+    private static final int ACK_TAG = 2;
+
+    private static int rank;
+    private static int size;
+    private static int iterations = 1000;
+    private static int warmup = 100;
+    private static int repetitions = 5;
+    private static int window = 64;
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: OsuBenchmarks latency|bw|bibw|mr|barrier|bcast|reduce [key=value ...]");
+            return;
+        }
+        MPI.init();
+        rank = MPI.comm_rank();
+        size = MPI.comm_size();
+        String benchmark = args[0];
+        int[] sizes = { 1, 8, 64, 512, 4096, 32768, 262144, 1048576 };
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            switch (option[0]) {
+                case "sizes":
+                    sizes = Arrays.stream(option[1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "iterations":
+                    iterations = Integer.parseInt(option[1]);
+                    break;
+                case "warmup":
+                    warmup = Integer.parseInt(option[1]);
+                    break;
+                case "repetitions":
+                    repetitions = Integer.parseInt(option[1]);
+                    break;
+                case "window":
+                    window = Integer.parseInt(option[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        if (benchmark.equals("barrier")) {
+            sizes = new int[] { 0 };
+        } else if (!benchmark.equals("bcast") && !benchmark.equals("reduce") && size < 2) {
+            throw new IllegalArgumentException(benchmark + " needs at least 2 ranks");
+        }
+        for (int bytes : sizes) {
+            double[] raw = new double[repetitions];
+            for (int r = 0; r < repetitions; r++) {
+                MPI.barrier();
+                raw[r] = run(benchmark, bytes);
+            }
+            if (rank == 0) {
+                System.out.println(PREFIX + result(benchmark, bytes, raw));
+            }
+        }
+        MPI.finalize_mpi();
+    }
+
+    private static double run(String benchmark, int bytes) {
+        switch (benchmark) {
+            case "latency":
+                return latency(bytes);
+            case "bw":
+                return bandwidth(bytes, false);
+            case "bibw":
+                return bandwidth(bytes, true);
+            case "mr":
+                return messageRate(bytes);
+            case "barrier":
+            case "bcast":
+            case "reduce":
+                return collective(benchmark, bytes);
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+        }
+    }
+
+    private static int iterations(int bytes) {
+        return bytes > LARGE_MESSAGE ? Math.max(1, iterations / 10) : iterations;
+    }
+
+    // Half the mean round trip between ranks 0 and 1, in us
+    private static double latency(int bytes) {
+        byte[] buf = new byte[bytes];
+        int n = iterations(bytes);
+        long start = 0;
+        for (int i = 0; i < warmup + n; i++) {
+            if (i == warmup) {
+                start = System.nanoTime();
+            }
+            if (rank == 0) {
+                MPI.send(1, TAG, buf, 0, bytes);
+                MPI.receive(1, TAG, buf, 0, bytes);
+            } else if (rank == 1) {
+                MPI.receive(0, TAG, buf, 0, bytes);
+                MPI.send(0, TAG, buf, 0, bytes);
+            }
+        }
+        return (System.nanoTime() - start) / 1e3 / n / 2;
+    }
+
+    // MB/s from rank 0 to rank 1, or both ways added up
+    private static double bandwidth(int bytes, boolean both) {
+        int loops = Math.max(1, iterations(bytes) / 10);
+        double seconds = stream(rank == 0 ? 1 : rank == 1 ? 0 : -1, bytes, loops, both);
+        return (both ? 2.0 : 1.0) * bytes * window * loops / seconds / 1e6;
+    }
+
+    // Messages per second of all sender/receiver pairs
+    private static double messageRate(int bytes) {
+        int pairs = size / 2;
+        int loops = Math.max(1, iterations(bytes) / 10);
+        int peer = rank < pairs ? rank + pairs : rank < 2 * pairs ? rank - pairs : -1;
+        double seconds = stream(peer, bytes, loops, false);
+        double[] rate = { rank < pairs ? window * loops / seconds : 0 };
+        MPI.reduce(0, rate, Op.SUM);
+        return rate[0];
+    }
+
+    /**
+     * Streams {@code loops} windows of messages between this rank and {@code peer}, the lower rank of the two
+     * sending (or both if {@code both}), and returns the seconds it took; every window is acknowledged.
+     */
+    private static double stream(int peer, int bytes, int loops, boolean both) {
+        if (peer < 0) {
+            return 1;
+        }
+        boolean sender = rank < peer;
+        byte[] out = new byte[bytes];
+        byte[] in = new byte[bytes];
+        byte[] ack = new byte[4];
+        Request[] requests = new Request[both ? 2 * window : window];
+        int warmupLoops = Math.max(1, warmup / 10);
+        long start = 0;
+        for (int i = 0; i < warmupLoops + loops; i++) {
+            if (i == warmupLoops) {
+                start = System.nanoTime();
+            }
+            int next = 0;
+            if (both || !sender) {
+                for (int w = 0; w < window; w++) {
+                    requests[next++] = MPI.irecv(peer, TAG, in, 0, bytes);
+                }
+            }
+            if (both || sender) {
+                for (int w = 0; w < window; w++) {
+                    requests[next++] = MPI.isend(peer, TAG, out, 0, bytes);
+                }
+            }
+            Request.waitAll(requests);
+            if (sender) {
+                MPI.receive(peer, ACK_TAG, ack, 0, ack.length);
+            } else {
+                MPI.send(peer, ACK_TAG, ack, 0, ack.length);
+            }
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    // Mean time of one operation in us, averaged over the ranks
+    private static double collective(String benchmark, int bytes) {
+        byte[] buf = new byte[bytes];
+        double[] values = new double[Math.max(1, bytes / 8)];
+        int n = iterations(bytes);
+        long total = 0;
+        for (int i = 0; i < warmup + n; i++) {
+            long start = System.nanoTime();
+            if (benchmark.equals("barrier")) {
+                MPI.barrier();
+            } else if (benchmark.equals("bcast")) {
+                MPI.bcast(0, buf, 0, bytes);
+            } else {
+                MPI.reduce(0, values, Op.SUM);
+            }
+            if (i >= warmup) {
+                total += System.nanoTime() - start;
+            }
+            if (!benchmark.equals("barrier")) {
+                MPI.barrier();
+            }
+        }
+        double[] mean = { total / 1e3 / n };
+        MPI.reduce(0, mean, Op.SUM);
+        return mean[0] / size;
+    }
+
+    private static String result(String benchmark, int bytes, double[] raw) {
+        String unit = benchmark.equals("mr") ? "msgs/s" : benchmark.endsWith("bw") ? "MB/s" : "us";
+        StringBuilder json = new StringBuilder();
+        json.append("{\"benchmark\":\"").append(benchmark).append("\",\"ranks\":").append(size)
+                .append(",\"size\":").append(bytes).append(",\"iterations\":").append(iterations(bytes))
+                .append(",\"unit\":\"").append(unit).append("\",\"raw\":[");
+        for (int r = 0; r < raw.length; r++) {
+            json.append(r == 0 ? "" : ",").append(String.format(Locale.ROOT, "%.3f", raw[r]));
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,159 @@
+package mpi;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Packing of small messages to the same peer into one frame, on with
+ * {@code MPI_AGGREGATE=1} or per communicator with
+ * {@link Communicator#setAggregation}.
+ *
+ * A message of at most {@code MPI_AGGREGATE_MAX} bytes (default 1 KB) is
+ * copied into its link's batch instead of being written, and the send
+ * completes right away, as a buffered send would. The batch goes out as one
+ * frame, one write and one relay by the router, when the next message would
+ * not fit in {@code MPI_AGGREGATE_SIZE} bytes (default 64 KB), when its first
+ * message has waited {@code MPI_AGGREGATE_DELAY_US} microseconds (default
+ * 200), on {@link MPI#flush(int)}, and before anything else is sent to that
+ * peer. Every batch is also flushed whenever this rank is about to block
+ * (a receive, wait, probe or barrier), since the peer may be waiting on it.
+ *
+ * A batch carries the envelope flag (see {@link MPI}) and the payload
+ * [BATCH] followed by [match word][length][bytes] per message. The receiver
+ * delivers the messages one by one, in order, before it reads the next frame,
+ * so receives cannot tell the difference and need no setting. Ranks of an
+ * in-process job never batch: their frames are not written anywhere.
+ */
+final class Aggregation {
+    static final int BATCH = -2;
+    // Match word and length in front of each message
+    static final int MESSAGE_HEADER = 8;
+
+    static final boolean DEFAULT = "1".equals(MPI.setting("MPI_AGGREGATE", "0"));
+    static final int MAX_MESSAGE = Math.max(0, MPI.intSetting("MPI_AGGREGATE_MAX", 1024));
+    static final int SIZE = Math.max(Integer.BYTES + MESSAGE_HEADER + MAX_MESSAGE,
+            MPI.intSetting("MPI_AGGREGATE_SIZE", 64 << 10));
+    static final long DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(MPI.intSetting("MPI_AGGREGATE_DELAY_US", 200));
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread t = new Thread(task, "mpi-aggregate");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Aggregation() {
+    }
+
+    /** Runs {@code flush} once the batch just started has waited its deadline. */
+    static void schedule(Runnable flush) {
+        timer.schedule(flush, DELAY_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Calls {@code sink} for each message of the batch {@code frame}, in
+     * the order they were sent. Each gets an array of its own.
+     */
+    static void unpack(int src, byte[] frame, MessageSink sink) {
+        ByteBuffer in = ByteBuffer.wrap(frame, Integer.BYTES, frame.length - Integer.BYTES);
+        while (in.hasRemaining()) {
+            int match = in.getInt();
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IllegalStateException("Corrupt batch from rank " + src);
+            }
+            byte[] data = Arrays.copyOfRange(frame, in.position(), in.position() + length);
+            in.position(in.position() + length);
+            sink.accept(src, match, data);
+        }
+    }
+
+    interface MessageSink {
+        void accept(int src, int match, byte[] data);
+    }
+
+    /**
+     * The messages waiting to go to one peer. Guarded by itself: whoever
+     * drains it submits the frame before letting go, so batches and the
+     * frames sent after them stay in order.
+     */
+    static final class Batch {
+        private byte[] buffer; // allocated on first use
+        // Scratch for payload writers, as PeerLink.staging is only safe under the link's lock
+        ByteBuffer staging;
+        private int filled;
+        private int messages;
+        // Bumped on every drain, so a deadline set for an earlier batch is ignored
+        private long generation;
+        private final DataOutputStream out = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                buffer[filled++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                System.arraycopy(b, off, buffer, filled, len);
+                filled += len;
+            }
+        });
+
+        boolean isEmpty() {
+            return messages == 0;
+        }
+
+        long generation() {
+            return generation;
+        }
+
+        /** Whether a message of {@code length} bytes still fits. */
+        boolean fits(int length) {
+            return filled + MESSAGE_HEADER + length <= SIZE;
+        }
+
+        /**
+         * Starts the next message and returns the stream its {@code length}
+         * bytes must be written to. Check {@link #fits} first.
+         */
+        DataOutputStream add(int match, int length) throws IOException {
+            if (buffer == null) {
+                buffer = new byte[SIZE];
+                staging = ByteBuffer.allocate(Math.max(Long.BYTES, MAX_MESSAGE));
+            }
+            if (messages == 0) {
+                filled = 0;
+                out.writeInt(BATCH);
+            }
+            out.writeInt(match);
+            out.writeInt(length);
+            messages++;
+            return out;
+        }
+
+        /** Drops a message started by {@link #add} whose bytes could not be written. */
+        void abandon(int start) {
+            filled = start;
+            if (--messages == 0) {
+                filled = 0;
+            }
+        }
+
+        int position() {
+            return filled;
+        }
+
+        int messages() {
+            return messages;
+        }
+
+        /** Hands out the batch as a frame payload and empties it. */
+        byte[] drain() {
+            byte[] frame = Arrays.copyOf(buffer, filled);
+            filled = 0;
+            messages = 0;
+            generation++;
+            return frame;
+        }
+    }
+}
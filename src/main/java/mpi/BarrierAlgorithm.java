@@ -0,0 +1,23 @@
+package mpi;
+
+/**
+ * How {@link MPI#barrier(BarrierAlgorithm)} synchronizes. All ranks must use
+ * the same algorithm for a given barrier. The default comes from the
+ * MPI_BARRIER setting (central, dissemination, tree or hierarchical; hierarchical if unset).
+ */
+public enum BarrierAlgorithm {
+    /**
+     * Every rank checks in with the router, which releases them all. Two hops, but serialized at the router.
+     * The router only knows the whole job, so other communicators use DISSEMINATION instead.
+     */
+    CENTRAL,
+    /** ceil(log2 N) rounds; in round k each rank signals rank + 2^k and waits for rank - 2^k. */
+    DISSEMINATION,
+    /** Binomial fan-in to rank 0, then binomial fan-out: 2 log2(N) steps with N - 1 messages each way. */
+    TREE,
+    /**
+     * TREE within each node and DISSEMINATION among one leader per node, so only the leaders talk across nodes.
+     * DISSEMINATION when the ranks are not spread over nodes that way (see {@code MPI_NODES}).
+     */
+    HIERARCHICAL
+}
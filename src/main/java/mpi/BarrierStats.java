@@ -0,0 +1,58 @@
+package mpi;
+
+/**
+ * How long this rank has spent inside {@link MPI#barrier}, as a snapshot.
+ *
+ * A rank's wait is the time from entering a barrier until it is released.
+ * The last rank to arrive waits only for the synchronization itself, so
+ * across ranks the smallest wait for a barrier approximates its cost, and
+ * what the other ranks wait beyond that is load imbalance. Reduce
+ * {@link #getTotalWaitNanos()} with MAX and MIN over all ranks to compare.
+ */
+public final class BarrierStats {
+    private final long count;
+    private final long totalNanos;
+    private final long minNanos;
+    private final long maxNanos;
+    private final long lastNanos;
+
+    BarrierStats(long count, long totalNanos, long minNanos, long maxNanos, long lastNanos) {
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.minNanos = minNanos;
+        this.maxNanos = maxNanos;
+        this.lastNanos = lastNanos;
+    }
+
+    /** Number of barriers completed. */
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalWaitNanos() {
+        return totalNanos;
+    }
+
+    /** Shortest single wait, or 0 if there were no barriers. */
+    public long getMinWaitNanos() {
+        return count == 0 ? 0 : minNanos;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxNanos;
+    }
+
+    public long getLastWaitNanos() {
+        return lastNanos;
+    }
+
+    public double getMeanWaitNanos() {
+        return count == 0 ? 0 : (double) totalNanos / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BarrierStats[count=%d, mean=%.1f us, min=%.1f us, max=%.1f us, total=%.3f ms]",
+                count, getMeanWaitNanos() / 1e3, getMinWaitNanos() / 1e3, maxNanos / 1e3, totalNanos / 1e6);
+    }
+}
@@ -0,0 +1,43 @@
+package mpi;
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+/**
+ * Heap buffers kept for reuse, so that encoding a message allocates nothing
+ * once the pool is warm. A buffer that turns out too small is replaced by
+ * one twice its size, and the larger one is what goes back to the pool;
+ * buffers above MAX_POOLED bytes are left to the garbage collector.
+ */
+final class BufferPool {
+    private static final int MAX_POOLED = 16 << 20;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private final BlockingQueue<ByteBuffer> idle;
+    private final int initialCapacity;
+
+    BufferPool(int buffers, int initialCapacity) {
+        this.idle = new ArrayBlockingQueue<>(buffers);
+        this.initialCapacity = initialCapacity;
+    }
+
+    /** An empty buffer, from the pool if one is idle. */
+    ByteBuffer acquire() {
+        ByteBuffer buf = idle.poll();
+        return buf != null ? buf.clear() : ByteBuffer.allocate(initialCapacity);
+    }
+
+    /** An empty buffer twice the size of {@code buf}, which is dropped. */
+    ByteBuffer grow(ByteBuffer buf) {
+        if (buf.capacity() >= MAX_CAPACITY) {
+            throw new IllegalArgumentException("Value does not fit in " + MAX_CAPACITY + " bytes");
+        }
+        return ByteBuffer.allocate((int) Math.min(MAX_CAPACITY, 2L * buf.capacity()));
+    }
+
+    void release(ByteBuffer buf) {
+        if (buf.capacity() <= MAX_POOLED) {
+            idle.offer(buf);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package mpi;
+
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The predefined {@link Codec}s. Arrays and strings are written behind an int
+ * length, -1 for null; array elements are big-endian, like the typed sends.
+ * Elements are put one at a time rather than through a view buffer, which
+ * would be an allocation per message.
+ */
+final class BuiltinCodec {
+    private BuiltinCodec() {
+    }
+
+    static final Codec<byte[]> BYTES = new Codec<>() {
+        @Override
+        public void encode(byte[] value, ByteBuffer out) {
+            if (putLength(value == null ? -1 : value.length, out)) {
+                out.put(value);
+            }
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] value = new byte[length];
+            in.get(value);
+            return value;
+        }
+    };
+
+    static final Codec<int[]> INTS = new Codec<>() {
+        @Override
+        public void encode(int[] value, ByteBuffer out) {
+            if (putLength(value == null ? -1 : value.length, out)) {
+                for (int i = 0; i < value.length; i++) {
+                    out.putInt(value[i]);
+                }
+            }
+        }
+
+        @Override
+        public int[] decode(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            int[] value = new int[length];
+            for (int i = 0; i < length; i++) {
+                value[i] = in.getInt();
+            }
+            return value;
+        }
+    };
+
+    static final Codec<long[]> LONGS = new Codec<>() {
+        @Override
+        public void encode(long[] value, ByteBuffer out) {
+            if (putLength(value == null ? -1 : value.length, out)) {
+                for (int i = 0; i < value.length; i++) {
+                    out.putLong(value[i]);
+                }
+            }
+        }
+
+        @Override
+        public long[] decode(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            long[] value = new long[length];
+            for (int i = 0; i < length; i++) {
+                value[i] = in.getLong();
+            }
+            return value;
+        }
+    };
+
+    static final Codec<double[]> DOUBLES = new Codec<>() {
+        @Override
+        public void encode(double[] value, ByteBuffer out) {
+            if (putLength(value == null ? -1 : value.length, out)) {
+                for (int i = 0; i < value.length; i++) {
+                    out.putDouble(value[i]);
+                }
+            }
+        }
+
+        @Override
+        public double[] decode(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            double[] value = new double[length];
+            for (int i = 0; i < length; i++) {
+                value[i] = in.getDouble();
+            }
+            return value;
+        }
+    };
+
+    // Encodes UTF-8 char by char, so no byte[] is made; unpaired surrogates become '?' as in String.getBytes
+    static final Codec<String> STRING = new Codec<>() {
+        @Override
+        public void encode(String value, ByteBuffer out) {
+            if (value == null) {
+                out.putInt(-1);
+                return;
+            }
+            int start = out.position();
+            out.putInt(0);
+            for (int i = 0, n = value.length(); i < n; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    out.put((byte) c);
+                } else if (c < 0x800) {
+                    out.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    out.put((byte) (0xf0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3f))
+                            .put((byte) (0x80 | cp >> 6 & 0x3f)).put((byte) (0x80 | cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    out.put((byte) '?');
+                } else {
+                    out.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f))
+                            .put((byte) (0x80 | c & 0x3f));
+                }
+            }
+            out.putInt(start, out.position() - start - Integer.BYTES);
+        }
+
+        @Override
+        public String decode(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            String value;
+            if (in.hasArray()) {
+                value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+    };
+
+    // Writes the length; true if elements follow
+    private static boolean putLength(int length, ByteBuffer out) {
+        out.putInt(length);
+        return length >= 0;
+    }
+}
@@ -0,0 +1,177 @@
+package mpi;
+
+/**
+ * The predefined reduction operators. Each loop works directly on the
+ * primitive arrays, so reductions never box.
+ */
+enum BuiltinOp implements Op {
+    SUM {
+        @Override
+        public void apply(int[] in, int i, int[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] += in[i + k];
+        }
+
+        @Override
+        public void apply(long[] in, int i, long[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] += in[i + k];
+        }
+
+        @Override
+        public void apply(double[] in, int i, double[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] += in[i + k];
+        }
+    },
+    PROD {
+        @Override
+        public void apply(int[] in, int i, int[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] *= in[i + k];
+        }
+
+        @Override
+        public void apply(long[] in, int i, long[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] *= in[i + k];
+        }
+
+        @Override
+        public void apply(double[] in, int i, double[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] *= in[i + k];
+        }
+    },
+    MIN {
+        @Override
+        public void apply(int[] in, int i, int[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] = Math.min(in[i + k], io[j + k]);
+        }
+
+        @Override
+        public void apply(long[] in, int i, long[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] = Math.min(in[i + k], io[j + k]);
+        }
+
+        @Override
+        public void apply(double[] in, int i, double[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] = Math.min(in[i + k], io[j + k]);
+        }
+    },
+    MAX {
+        @Override
+        public void apply(int[] in, int i, int[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] = Math.max(in[i + k], io[j + k]);
+        }
+
+        @Override
+        public void apply(long[] in, int i, long[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] = Math.max(in[i + k], io[j + k]);
+        }
+
+        @Override
+        public void apply(double[] in, int i, double[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] = Math.max(in[i + k], io[j + k]);
+        }
+    },
+    BAND {
+        @Override
+        public void apply(int[] in, int i, int[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] &= in[i + k];
+        }
+
+        @Override
+        public void apply(long[] in, int i, long[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] &= in[i + k];
+        }
+    },
+    BOR {
+        @Override
+        public void apply(int[] in, int i, int[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] |= in[i + k];
+        }
+
+        @Override
+        public void apply(long[] in, int i, long[] io, int j, int n) {
+            for (int k = 0; k < n; k++)
+                io[j + k] |= in[i + k];
+        }
+    },
+    MINLOC(true) {
+        @Override
+        public void apply(int[] in, int i, int[] io, int j, int n) {
+            for (int k = 0; k < n; k += 2)
+                if (in[i + k] < io[j + k] || (in[i + k] == io[j + k] && in[i + k + 1] < io[j + k + 1])) {
+                    io[j + k] = in[i + k];
+                    io[j + k + 1] = in[i + k + 1];
+                }
+        }
+
+        @Override
+        public void apply(long[] in, int i, long[] io, int j, int n) {
+            for (int k = 0; k < n; k += 2)
+                if (in[i + k] < io[j + k] || (in[i + k] == io[j + k] && in[i + k + 1] < io[j + k + 1])) {
+                    io[j + k] = in[i + k];
+                    io[j + k + 1] = in[i + k + 1];
+                }
+        }
+
+        @Override
+        public void apply(double[] in, int i, double[] io, int j, int n) {
+            for (int k = 0; k < n; k += 2)
+                if (in[i + k] < io[j + k] || (in[i + k] == io[j + k] && in[i + k + 1] < io[j + k + 1])) {
+                    io[j + k] = in[i + k];
+                    io[j + k + 1] = in[i + k + 1];
+                }
+        }
+    },
+    MAXLOC(true) {
+        @Override
+        public void apply(int[] in, int i, int[] io, int j, int n) {
+            for (int k = 0; k < n; k += 2)
+                if (in[i + k] > io[j + k] || (in[i + k] == io[j + k] && in[i + k + 1] < io[j + k + 1])) {
+                    io[j + k] = in[i + k];
+                    io[j + k + 1] = in[i + k + 1];
+                }
+        }
+
+        @Override
+        public void apply(long[] in, int i, long[] io, int j, int n) {
+            for (int k = 0; k < n; k += 2)
+                if (in[i + k] > io[j + k] || (in[i + k] == io[j + k] && in[i + k + 1] < io[j + k + 1])) {
+                    io[j + k] = in[i + k];
+                    io[j + k + 1] = in[i + k + 1];
+                }
+        }
+
+        @Override
+        public void apply(double[] in, int i, double[] io, int j, int n) {
+            for (int k = 0; k < n; k += 2)
+                if (in[i + k] > io[j + k] || (in[i + k] == io[j + k] && in[i + k + 1] < io[j + k + 1])) {
+                    io[j + k] = in[i + k];
+                    io[j + k + 1] = in[i + k + 1];
+                }
+        }
+    };
+
+    /** Operates on (value, index) pairs, so vectors must not be split mid-pair. */
+    final boolean pairs;
+
+    BuiltinOp() {
+        this(false);
+    }
+
+    BuiltinOp(boolean pairs) {
+        this.pairs = pairs;
+    }
+}
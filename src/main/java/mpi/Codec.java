@@ -0,0 +1,45 @@
+package mpi;
+
+import java.nio.*;
+
+/**
+ * Converts values of type {@code T} to and from message bytes, for
+ * {@link MPI#send(int, int, Object, Codec)} and
+ * {@link MPI#receive(int, int, Codec)}.
+ *
+ * {@link #encode} writes straight into a pooled buffer at its position. A
+ * codec need not know the encoded size: if the buffer fills up, the put that
+ * overflows throws {@link BufferOverflowException} and the send encodes the
+ * value again into a buffer twice as large, which is then kept for later
+ * sends. {@link #decode} reads from the received bytes in place and must
+ * consume exactly what encode wrote. Both ends must use the same codec.
+ *
+ * The built-in codecs handle primitive arrays and strings (null allowed), and
+ * {@link #record} builds one for a record class, so structured data travels
+ * without {@code java.io.Serializable} or intermediate arrays.
+ */
+public interface Codec<T> {
+    Codec<byte[]> BYTES = BuiltinCodec.BYTES;
+    Codec<int[]> INTS = BuiltinCodec.INTS;
+    Codec<long[]> LONGS = BuiltinCodec.LONGS;
+    Codec<double[]> DOUBLES = BuiltinCodec.DOUBLES;
+    /** UTF-8, as {@link MPI#send(int, String)} sends strings, behind a length. */
+    Codec<String> STRING = BuiltinCodec.STRING;
+
+    /** Writes {@code value} at {@code out}'s position, advancing it. */
+    void encode(T value, ByteBuffer out);
+
+    /** Reads a value written by {@link #encode}, advancing {@code in}. */
+    T decode(ByteBuffer in);
+
+    /**
+     * A codec for records of {@code type}, writing the components in
+     * declaration order. Components may be primitives, strings, primitive
+     * arrays, enums or records of the same kinds; reference components may be
+     * null. The codec is built once per class with method handles, so
+     * encoding neither boxes nor reflects.
+     */
+    static <R extends Record> Codec<R> record(Class<R> type) {
+        return RecordCodec.of(type);
+    }
+}
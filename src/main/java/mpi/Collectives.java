@@ -0,0 +1,809 @@
+package mpi;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Collective algorithms, built on MPI's internal tagged point-to-point
+ * transport. Ranks are renumbered relative to the root ("virtual rank"
+ * {@code vr}), so any root uses the same communication pattern as rank 0.
+ *
+ * All ranks make the same algorithm choice because it depends only on
+ * arguments every rank agrees on (message size, rank count) and the node map.
+ *
+ * When a communicator spans several nodes with more than one rank on some of
+ * them (see {@link Topology}), bcast, reduce, allreduce and the hierarchical
+ * barrier run in three phases: within each node through its leader, among the
+ * node leaders only, and within each node again. Traffic between nodes then
+ * grows with the node count rather than the rank count. MPI_HIERARCHICAL=0
+ * turns this off.
+ */
+final class Collectives {
+    // Reserved tags (user traffic is tag >= 0)
+    static final int TAG_BCAST = -1;
+    static final int TAG_BCAST_SCATTER = -2;
+    static final int TAG_BCAST_ALLGATHER = -3;
+    static final int TAG_REDUCE = -4;
+    static final int TAG_ALLREDUCE = -5;
+    static final int TAG_BARRIER = -6;
+    static final int TAG_BARRIER_ARRIVE = -7;
+    static final int TAG_BARRIER_RELEASE = -8;
+    static final int TAG_SCATTER = -9;
+    static final int TAG_GATHER = -10;
+    static final int TAG_ALLGATHER = -11;
+    static final int TAG_ALLTOALL = -12;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Below either threshold the binomial tree wins; above both, scatter + allgather
+    private static final int BCAST_SHORT_MSG = MPI.intSetting("MPI_BCAST_SHORT_MSG", 12 * 1024);
+    private static final int BCAST_MIN_PROCS = MPI.intSetting("MPI_BCAST_MIN_PROCS", 8);
+
+    // Vectors of at least this many bytes reduce with reduce-scatter (Rabenseifner)
+    private static final int REDUCE_SHORT_MSG = MPI.intSetting("MPI_REDUCE_SHORT_MSG", 2048);
+
+    // Whether collectives go through node leaders when the node map allows (see Topology)
+    private static final boolean HIERARCHICAL = !"0".equals(MPI.setting("MPI_HIERARCHICAL", "1"));
+
+    private Collectives() {
+    }
+
+    // Node groups of comm, or null for the flat algorithms; collective on first use
+    static Topology topology(Communicator comm) {
+        return HIERARCHICAL ? comm.topology() : null;
+    }
+
+    // ---- Broadcast ----
+
+    /**
+     * Broadcast where only the root knows the length. A header carrying the
+     * length (and, for short messages, the payload) goes down the binomial
+     * tree; long payloads then follow via scatter + allgather.
+     */
+    static byte[] bcast(Communicator comm, int root, byte[] data) {
+        int rank = comm.rank();
+        int size = comm.size();
+        if (size == 1) {
+            return data;
+        }
+        Topology topology = topology(comm);
+        if (topology != null) {
+            // The root's node first, then the leaders, then every other node from its leader
+            boolean rootNode = topology.local(root, rank);
+            if (rootNode) {
+                data = bcast(topology.local, topology.local.groupRank(comm.worldRank(root)), data);
+            }
+            if (topology.leaders != null) {
+                data = bcast(topology.leaders, topology.leaderRank(root), data);
+            }
+            if (!rootNode) {
+                data = bcast(topology.local, 0, data);
+            }
+            return data;
+        }
+
+        byte[] header = null;
+        if (rank == root) {
+            boolean inline = useBinomial(data.length, size);
+            header = new byte[Integer.BYTES + (inline ? data.length : 0)];
+            ByteBuffer h = ByteBuffer.wrap(header).putInt(data.length);
+            if (inline) {
+                h.put(data);
+            }
+        }
+        header = binomial(comm, root, header, TAG_BCAST);
+
+        int length = ByteBuffer.wrap(header).getInt();
+        if (rank == root) {
+            if (header.length == Integer.BYTES + length) {
+                return data;
+            }
+        } else {
+            if (header.length == Integer.BYTES + length) {
+                return Arrays.copyOfRange(header, Integer.BYTES, header.length);
+            }
+            data = new byte[length];
+        }
+        scatterAllgather(comm, root, Datatype.BYTE, data, 0, length);
+        return data;
+    }
+
+    /**
+     * In-place broadcast of {@code buf[offset..offset+count)}, which all ranks
+     * size identically. Elements go straight from and into the caller's array,
+     * so no rank builds a byte[] copy of the whole buffer.
+     */
+    static void bcast(Communicator comm, int root, Datatype type, Object buf, int offset, int count) {
+        int size = comm.size();
+        if (size == 1 || count == 0) {
+            return;
+        }
+        Topology topology = topology(comm);
+        if (topology != null) {
+            boolean rootNode = topology.local(root, comm.rank());
+            if (rootNode) {
+                bcast(topology.local, topology.local.groupRank(comm.worldRank(root)), type, buf, offset, count);
+            }
+            if (topology.leaders != null) {
+                bcast(topology.leaders, topology.leaderRank(root), type, buf, offset, count);
+            }
+            if (!rootNode) {
+                bcast(topology.local, 0, type, buf, offset, count);
+            }
+            return;
+        }
+        if (useBinomial((long) count * type.size, size)) {
+            binomial(comm, root, type, buf, offset, count);
+        } else {
+            scatterAllgather(comm, root, type, buf, offset, count);
+        }
+    }
+
+    private static boolean useBinomial(long length, int size) {
+        return length < BCAST_SHORT_MSG || size < BCAST_MIN_PROCS;
+    }
+
+    /**
+     * Binomial tree: receive from the parent (vr with its lowest set bit
+     * cleared), then forward to children vr + 2^k for each 2^k below that bit,
+     * largest subtree first. log2(N) rounds; the root sends log2(N) copies.
+     */
+    private static byte[] binomial(Communicator comm, int root, byte[] data, int tag) {
+        int rank = comm.rank();
+        int size = comm.size();
+        int vr = relative(rank, root, size);
+
+        int mask = 1;
+        while (mask < size) {
+            if ((vr & mask) != 0) {
+                data = MPI.receiveInternal(comm, absolute(vr - mask, root, size), tag);
+                break;
+            }
+            mask <<= 1;
+        }
+        mask >>= 1;
+        while (mask > 0) {
+            if (vr + mask < size) {
+                MPI.sendInternal(comm, absolute(vr + mask, root, size), tag, data, 0, data.length);
+            }
+            mask >>= 1;
+        }
+        return data;
+    }
+
+    /** The binomial tree above, receiving into and forwarding out of the caller's array. */
+    private static void binomial(Communicator comm, int root, Datatype type, Object buf, int offset, int count) {
+        int rank = comm.rank();
+        int size = comm.size();
+        int vr = relative(rank, root, size);
+
+        int mask = 1;
+        while (mask < size) {
+            if ((vr & mask) != 0) {
+                receiveSlice(comm, absolute(vr - mask, root, size), TAG_BCAST, type, buf, offset);
+                break;
+            }
+            mask <<= 1;
+        }
+        mask >>= 1;
+        while (mask > 0) {
+            if (vr + mask < size) {
+                sendSlice(comm, absolute(vr + mask, root, size), TAG_BCAST, type, buf, offset, count);
+            }
+            mask >>= 1;
+        }
+    }
+
+    /**
+     * Van de Geijn long-message broadcast: the root scatters N pieces down a
+     * binomial tree, then a ring allgather reassembles them everywhere. Each
+     * rank moves about 2x the message instead of the root sending log2(N) full
+     * copies.
+     */
+    private static void scatterAllgather(Communicator comm, int root, Datatype type, Object buf, int offset,
+            int length) {
+        int rank = comm.rank();
+        int size = comm.size();
+        int vr = relative(rank, root, size);
+        int piece = (int) (((long) length + size - 1) / size);
+
+        // Binomial scatter: vr ends up holding pieces [vr, vr + subtree size)
+        int held = rank == root ? length : 0;
+        int mask = 1;
+        while (mask < size) {
+            if ((vr & mask) != 0) {
+                if (pieceStart(vr, piece, length) < length) {
+                    held = receiveSlice(comm, absolute(vr - mask, root, size), TAG_BCAST_SCATTER, type, buf,
+                            offset + pieceStart(vr, piece, length));
+                }
+                break;
+            }
+            mask <<= 1;
+        }
+        mask >>= 1;
+        while (mask > 0) {
+            if (vr + mask < size) {
+                int send = held - (int) Math.min((long) piece * mask, held);
+                if (send > 0) {
+                    sendSlice(comm, absolute(vr + mask, root, size), TAG_BCAST_SCATTER, type, buf,
+                            offset + pieceStart(vr + mask, piece, length), send);
+                    held -= send;
+                }
+            }
+            mask >>= 1;
+        }
+
+        // Ring allgather: pass pieces to the right, N-1 steps
+        int right = absolute((vr + 1) % size, root, size);
+        int left = absolute((vr - 1 + size) % size, root, size);
+        int outgoing = vr;
+        for (int step = 1; step < size; step++) {
+            int incoming = (outgoing - 1 + size) % size;
+            int start = pieceStart(outgoing, piece, length);
+            sendSlice(comm, right, TAG_BCAST_ALLGATHER, type, buf, offset + start, pieceLength(start, piece, length));
+            receiveSlice(comm, left, TAG_BCAST_ALLGATHER, type, buf, offset + pieceStart(incoming, piece, length));
+            outgoing = incoming;
+        }
+    }
+
+    private static int pieceStart(int index, int piece, int length) {
+        return (int) Math.min((long) index * piece, length);
+    }
+
+    private static int pieceLength(int start, int piece, int length) {
+        return Math.min(piece, length - start);
+    }
+
+    // ---- Reduce / Allreduce ----
+    //
+    // Both work on a private copy of the caller's vector (`acc`) plus one
+    // scratch vector of the same length; partial results are combined into
+    // `acc` in place by the operator.
+
+    static void reduce(Communicator comm, int root, Object buf, int offset, int count, Op op) {
+        int rank = comm.rank();
+        int size = comm.size();
+        Datatype type = Datatype.of(buf);
+        Object acc = copyOf(buf, offset, count);
+        Topology topology = size > 1 ? topology(comm) : null;
+        if (topology != null && op.commutative()) {
+            // Each node's sum at its leader, the leaders' sum at the root's leader, which hands it to the root
+            reduce(topology.local, 0, acc, 0, count, op);
+            if (topology.leaders != null) {
+                reduce(topology.leaders, topology.leaderRank(root), acc, 0, count, op);
+            }
+            int leader = topology.leader(root);
+            if (rank == leader && leader != root) {
+                sendSlice(comm, root, TAG_REDUCE, type, acc, 0, count);
+            } else if (rank == root && leader != root) {
+                receiveSlice(comm, leader, TAG_REDUCE, type, acc, 0);
+            }
+            if (rank == root) {
+                System.arraycopy(acc, 0, buf, offset, count);
+            }
+            return;
+        }
+        Object tmp = copyOf(buf, offset, count);
+
+        if (size > 1) {
+            if (useReduceScatter(type, count, op, size)) {
+                // Reduce-scatter, then every block owner hands its block straight to the root
+                int pof2 = Integer.highestOneBit(size);
+                int newrank = fold(comm, acc, tmp, type, count, op, TAG_REDUCE);
+                if (newrank >= 0) {
+                    int[] range = reduceScatter(comm, newrank, pof2, acc, tmp, type, count, op, TAG_REDUCE);
+                    if (rank != root) {
+                        sendSlice(comm, root, TAG_REDUCE, type, acc, range[0], range[1] - range[0]);
+                    }
+                }
+                if (rank == root) {
+                    for (int block = 0; block < pof2; block++) {
+                        int owner = realRank(block, size - pof2);
+                        if (owner != root) {
+                            receiveSlice(comm, owner, TAG_REDUCE, type, acc, blockStart(block, count, pof2));
+                        }
+                    }
+                }
+            } else {
+                binomialReduce(comm, root, acc, tmp, type, count, op);
+            }
+        }
+        if (rank == root) {
+            System.arraycopy(acc, 0, buf, offset, count);
+        }
+    }
+
+    static void allreduce(Communicator comm, Object buf, int offset, int count, Op op) {
+        int size = comm.size();
+        if (size == 1) {
+            return;
+        }
+        Datatype type = Datatype.of(buf);
+        Object acc = copyOf(buf, offset, count);
+        Topology topology = topology(comm);
+        if (topology != null && op.commutative()) {
+            // Each node's sum at its leader, allreduced among the leaders, then spread within each node
+            reduce(topology.local, 0, acc, 0, count, op);
+            if (topology.leaders != null) {
+                allreduce(topology.leaders, acc, 0, count, op);
+            }
+            bcast(topology.local, 0, type, acc, 0, count);
+            type.copy(acc, 0, buf, offset, count);
+            return;
+        }
+        Object tmp = copyOf(buf, offset, count);
+        int pof2 = Integer.highestOneBit(size);
+
+        int newrank = fold(comm, acc, tmp, type, count, op, TAG_ALLREDUCE);
+        if (newrank >= 0) {
+            if (useReduceScatter(type, count, op, size)) {
+                int[] range = reduceScatter(comm, newrank, pof2, acc, tmp, type, count, op, TAG_ALLREDUCE);
+                allgatherBlocks(comm, newrank, pof2, range, acc, type, count, TAG_ALLREDUCE);
+            } else {
+                recursiveDoubling(comm, newrank, pof2, acc, tmp, type, count, op);
+            }
+        }
+        unfold(comm, acc, type, count, TAG_ALLREDUCE);
+        System.arraycopy(acc, 0, buf, offset, count);
+    }
+
+    private static boolean useReduceScatter(Datatype type, int count, Op op, int size) {
+        boolean splittable = op.commutative() && !(op instanceof BuiltinOp && ((BuiltinOp) op).pairs);
+        return splittable && (long) count * type.size >= REDUCE_SHORT_MSG && count >= Integer.highestOneBit(size);
+    }
+
+    /**
+     * Binomial-tree reduction towards the root. Commutative operators use
+     * ranks relative to the root; others reduce to rank 0 in rank order and
+     * forward the result, so operands are always combined lowest rank first.
+     */
+    private static void binomialReduce(Communicator comm, int root, Object acc, Object tmp, Datatype type, int count,
+            Op op) {
+        int rank = comm.rank();
+        int size = comm.size();
+        int base = op.commutative() ? root : 0;
+        int vr = relative(rank, base, size);
+
+        for (int mask = 1; mask < size; mask <<= 1) {
+            if ((vr & mask) == 0) {
+                if ((vr | mask) < size) {
+                    // Child holds ranks [vr+mask, vr+2*mask): acc = acc op child
+                    receiveSlice(comm, absolute(vr | mask, base, size), TAG_REDUCE, type, tmp, 0);
+                    combine(op, type, acc, 0, tmp, 0, count);
+                    System.arraycopy(tmp, 0, acc, 0, count);
+                }
+            } else {
+                sendSlice(comm, absolute(vr & ~mask, base, size), TAG_REDUCE, type, acc, 0, count);
+                break;
+            }
+        }
+        if (base != root) {
+            if (rank == base) {
+                sendSlice(comm, root, TAG_REDUCE, type, acc, 0, count);
+            } else if (rank == root) {
+                receiveSlice(comm, base, TAG_REDUCE, type, acc, 0);
+            }
+        }
+    }
+
+    /**
+     * Shrinks the rank count to a power of two: among the first 2*rem ranks
+     * each even rank hands its vector to the odd rank above it and sits out.
+     * Returns this rank's index among the survivors, or -1.
+     */
+    private static int fold(Communicator comm, Object acc, Object tmp, Datatype type, int count, Op op, int tag) {
+        int rank = comm.rank();
+        int rem = comm.size() - Integer.highestOneBit(comm.size());
+        if (rank < 2 * rem) {
+            if (rank % 2 == 0) {
+                sendSlice(comm, rank + 1, tag, type, acc, 0, count);
+                return -1;
+            }
+            receiveSlice(comm, rank - 1, tag, type, tmp, 0);
+            combine(op, type, tmp, 0, acc, 0, count);
+            return rank / 2;
+        }
+        return rank - rem;
+    }
+
+    /** Returns the folded-out even ranks their copy of the result. */
+    private static void unfold(Communicator comm, Object acc, Datatype type, int count, int tag) {
+        int rank = comm.rank();
+        int rem = comm.size() - Integer.highestOneBit(comm.size());
+        if (rank < 2 * rem) {
+            if (rank % 2 == 0) {
+                receiveSlice(comm, rank + 1, tag, type, acc, 0);
+            } else {
+                sendSlice(comm, rank - 1, tag, type, acc, 0, count);
+            }
+        }
+    }
+
+    private static int realRank(int newrank, int rem) {
+        return newrank < rem ? newrank * 2 + 1 : newrank + rem;
+    }
+
+    /** Short-vector allreduce: log2(p) full-vector exchanges, combined in rank order. */
+    private static void recursiveDoubling(Communicator comm, int newrank, int pof2, Object acc, Object tmp,
+            Datatype type, int count, Op op) {
+        int rem = comm.size() - pof2;
+        for (int mask = 1; mask < pof2; mask <<= 1) {
+            int partner = realRank(newrank ^ mask, rem);
+            sendSlice(comm, partner, TAG_ALLREDUCE, type, acc, 0, count);
+            receiveSlice(comm, partner, TAG_ALLREDUCE, type, tmp, 0);
+            if ((newrank & mask) != 0) {
+                combine(op, type, tmp, 0, acc, 0, count); // partner is lower: acc = tmp op acc
+            } else {
+                combine(op, type, acc, 0, tmp, 0, count); // we are lower: acc = acc op tmp
+                System.arraycopy(tmp, 0, acc, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Recursive halving over pof2 blocks: each step swaps half of the current
+     * range with the partner and combines the half kept. Afterwards block
+     * {@code newrank} of {@code acc} is fully reduced. Returns its element
+     * range {start, end}.
+     */
+    private static int[] reduceScatter(Communicator comm, int newrank, int pof2, Object acc, Object tmp, Datatype type,
+            int count, Op op, int tag) {
+        int rem = comm.size() - pof2;
+        int lo = 0;
+        int hi = pof2;
+        for (int mask = pof2 >> 1; mask > 0; mask >>= 1) {
+            int partner = realRank(newrank ^ mask, rem);
+            int mid = lo + (hi - lo) / 2;
+            boolean upper = (newrank & mask) != 0;
+            int sendLo = upper ? lo : mid, sendHi = upper ? mid : hi;
+            int keepLo = upper ? mid : lo, keepHi = upper ? hi : mid;
+
+            int sendStart = blockStart(sendLo, count, pof2);
+            sendSlice(comm, partner, tag, type, acc, sendStart, blockStart(sendHi, count, pof2) - sendStart);
+            int keepStart = blockStart(keepLo, count, pof2);
+            int n = receiveSlice(comm, partner, tag, type, tmp, keepStart);
+            combine(op, type, tmp, keepStart, acc, keepStart, n);
+            lo = keepLo;
+            hi = keepHi;
+        }
+        return new int[] { blockStart(lo, count, pof2), blockStart(hi, count, pof2) };
+    }
+
+    /** Recursive doubling allgather that undoes reduceScatter: ranges double until all of acc is filled. */
+    private static void allgatherBlocks(Communicator comm, int newrank, int pof2, int[] range, Object acc,
+            Datatype type, int count, int tag) {
+        int rem = comm.size() - pof2;
+        int lo = newrank;
+        int hi = newrank + 1;
+        for (int mask = 1; mask < pof2; mask <<= 1) {
+            int partner = realRank(newrank ^ mask, rem);
+            int start = blockStart(lo, count, pof2);
+            sendSlice(comm, partner, tag, type, acc, start, blockStart(hi, count, pof2) - start);
+            if ((newrank & mask) != 0) {
+                lo -= hi - lo;
+                receiveSlice(comm, partner, tag, type, acc, blockStart(lo, count, pof2));
+            } else {
+                receiveSlice(comm, partner, tag, type, acc, blockStart(hi, count, pof2));
+                hi += hi - lo;
+            }
+        }
+    }
+
+    // First element of block b when count elements are split into n near-equal blocks
+    private static int blockStart(int b, int count, int n) {
+        return b * (count / n) + Math.min(b, count % n);
+    }
+
+    private static void sendSlice(Communicator comm, int dest, int tag, Datatype type, Object arr, int offset,
+            int count) {
+        MPI.sendInternal(comm, dest, tag, type, arr, offset, count);
+    }
+
+    // Decodes the next message from src into arr at offset; returns the element count
+    private static int receiveSlice(Communicator comm, int src, int tag, Datatype type, Object arr, int offset) {
+        byte[] bytes = MPI.receiveInternal(comm, src, tag);
+        int n = bytes.length / type.size;
+        type.fromBytes(bytes, 0, arr, offset, n);
+        return n;
+    }
+
+    // Like receiveSlice, but the message must fit `capacity` elements
+    private static void receiveInto(Communicator comm, int src, int tag, Datatype type, Object arr, int offset,
+            int capacity) {
+        byte[] bytes = MPI.receiveInternal(comm, src, tag);
+        int n = bytes.length / type.size;
+        if (n > capacity) {
+            throw new IllegalArgumentException("Message truncated: " + n + " elements from rank " + src
+                    + ", buffer holds " + capacity);
+        }
+        type.fromBytes(bytes, 0, arr, offset, n);
+    }
+
+    private static Object copyOf(Object buf, int offset, int count) {
+        Object copy = java.lang.reflect.Array.newInstance(buf.getClass().getComponentType(), count);
+        System.arraycopy(buf, offset, copy, 0, count);
+        return copy;
+    }
+
+    // inout = in op inout, dispatched on the element type
+    static void combine(Op op, Datatype type, Object in, int inOffset, Object inout, int inoutOffset,
+            int count) {
+        switch (type) {
+            case INT:
+                op.apply((int[]) in, inOffset, (int[]) inout, inoutOffset, count);
+                break;
+            case LONG:
+                op.apply((long[]) in, inOffset, (long[]) inout, inoutOffset, count);
+                break;
+            case DOUBLE:
+                op.apply((double[]) in, inOffset, (double[]) inout, inoutOffset, count);
+                break;
+            default:
+                throw new IllegalArgumentException("Reductions need int[], long[] or double[] buffers");
+        }
+    }
+
+    // ---- Scatter / Gather ----
+    //
+    // Block i of the root's buffer belongs to rank i. The fixed-count forms
+    // use binomial trees, where an inner rank relays its whole subtree's
+    // blocks (in virtual-rank order) as one message; the v forms have the root
+    // exchange with every rank directly, as blocks may be laid out anywhere.
+
+    static void scatter(Communicator comm, int root, Object send, int sendOffset, Object recv, int recvOffset,
+            int count) {
+        int rank = comm.rank();
+        int size = comm.size();
+        Datatype type = Datatype.of(recv);
+        int vr = relative(rank, root, size);
+        int blockBytes = count * type.size;
+
+        // Non-roots receive blocks [vr, vr + subtree) from their parent
+        byte[] held = null;
+        int mask = 1;
+        while (mask < size) {
+            if ((vr & mask) != 0) {
+                held = MPI.receiveInternal(comm, absolute(vr - mask, root, size), TAG_SCATTER);
+                break;
+            }
+            mask <<= 1;
+        }
+        mask >>= 1;
+        while (mask > 0) {
+            int child = vr + mask;
+            if (child < size) {
+                int blocks = Math.min(mask, size - child);
+                int dest = absolute(child, root, size);
+                if (rank == root) {
+                    sendBlocks(comm, dest, TAG_SCATTER, type, send, sendOffset, count, dest, blocks, size);
+                } else {
+                    MPI.sendInternal(comm, dest, TAG_SCATTER, held, (child - vr) * blockBytes, blocks * blockBytes);
+                }
+            }
+            mask >>= 1;
+        }
+        if (rank == root) {
+            type.copy(send, sendOffset + root * count, recv, recvOffset, count);
+        } else {
+            type.fromBytes(held, 0, recv, recvOffset, count);
+        }
+    }
+
+    static void gather(Communicator comm, int root, Object send, int sendOffset, int count, Object recv,
+            int recvOffset) {
+        int rank = comm.rank();
+        int size = comm.size();
+        Datatype type = Datatype.of(send);
+        int vr = relative(rank, root, size);
+        int blockBytes = count * type.size;
+
+        // Inner non-roots collect blocks [vr, vr + subtree) before passing them up
+        int subtree = vr == 0 ? size : Math.min(Integer.lowestOneBit(vr), size - vr);
+        byte[] held = null;
+        if (rank != root && subtree > 1) {
+            held = new byte[subtree * blockBytes];
+            type.encode(send, sendOffset, count, ByteBuffer.wrap(held));
+        }
+        for (int mask = 1; mask < size; mask <<= 1) {
+            if ((vr & mask) != 0) {
+                int parent = absolute(vr - mask, root, size);
+                if (held == null) {
+                    sendSlice(comm, parent, TAG_GATHER, type, send, sendOffset, count);
+                } else {
+                    MPI.sendInternal(comm, parent, TAG_GATHER, held, 0, held.length);
+                }
+                break;
+            }
+            int child = vr + mask;
+            if (child < size) {
+                int src = absolute(child, root, size);
+                byte[] got = MPI.receiveInternal(comm, src, TAG_GATHER);
+                if (rank == root) {
+                    int blocks = Math.min(mask, size - child);
+                    int first = Math.min(blocks, size - src); // Blocks before wrapping past the last rank
+                    type.fromBytes(got, 0, recv, recvOffset + src * count, first * count);
+                    type.fromBytes(got, first * blockBytes, recv, recvOffset, (blocks - first) * count);
+                } else {
+                    System.arraycopy(got, 0, held, (child - vr) * blockBytes, got.length);
+                }
+            }
+        }
+        if (rank == root) {
+            type.copy(send, sendOffset, recv, recvOffset + root * count, count);
+        }
+    }
+
+    // Sends the blocks of `blocks` consecutive ranks from `first` (wrapping past the last rank) as one message
+    private static void sendBlocks(Communicator comm, int dest, int tag, Datatype type, Object buf, int offset,
+            int count, int first, int blocks, int size) {
+        int head = Math.min(blocks, size - first);
+        if (head == blocks) {
+            sendSlice(comm, dest, tag, type, buf, offset + first * count, blocks * count);
+        } else {
+            ByteBuffer bytes = ByteBuffer.allocate(blocks * count * type.size);
+            type.encode(buf, offset + first * count, head * count, bytes);
+            type.encode(buf, offset, (blocks - head) * count, bytes);
+            MPI.sendInternal(comm, dest, tag, bytes.array(), 0, bytes.capacity());
+        }
+    }
+
+    static void scatterv(Communicator comm, int root, Object send, int[] counts, int[] displs, Object recv,
+            int recvOffset, int recvCount) {
+        int rank = comm.rank();
+        Datatype type = Datatype.of(recv);
+        if (rank == root) {
+            for (int i = 0; i < comm.size(); i++) {
+                if (i != root) {
+                    sendSlice(comm, i, TAG_SCATTER, type, send, displs[i], counts[i]);
+                }
+            }
+            type.copy(send, displs[root], recv, recvOffset, counts[root]);
+        } else {
+            receiveInto(comm, root, TAG_SCATTER, type, recv, recvOffset, recvCount);
+        }
+    }
+
+    static void gatherv(Communicator comm, int root, Object send, int sendOffset, int sendCount, Object recv,
+            int[] counts, int[] displs) {
+        int rank = comm.rank();
+        Datatype type = Datatype.of(send);
+        if (rank == root) {
+            type.copy(send, sendOffset, recv, displs[root], sendCount);
+            for (int i = 0; i < comm.size(); i++) {
+                if (i != root) {
+                    receiveInto(comm, i, TAG_GATHER, type, recv, displs[i], counts[i]);
+                }
+            }
+        } else {
+            sendSlice(comm, root, TAG_GATHER, type, send, sendOffset, sendCount);
+        }
+    }
+
+    // ---- Allgather / Alltoall ----
+
+    /**
+     * Ring allgather: in step k each rank passes the block it received in
+     * step k-1 to its right neighbour. N-1 steps, and every link carries
+     * (N-1)/N of the result, which is bandwidth-optimal. Blocks are received
+     * straight into place in {@code recv}.
+     */
+    static void allgatherv(Communicator comm, Object send, int sendOffset, int sendCount, Object recv, int[] counts,
+            int[] displs) {
+        int rank = comm.rank();
+        int size = comm.size();
+        Datatype type = Datatype.of(recv);
+        type.copy(send, sendOffset, recv, displs[rank], sendCount);
+        int right = (rank + 1) % size;
+        int left = (rank - 1 + size) % size;
+        for (int step = 0; step < size - 1; step++) {
+            int outgoing = (rank - step + size) % size;
+            int incoming = (outgoing - 1 + size) % size;
+            sendSlice(comm, right, TAG_ALLGATHER, type, recv, displs[outgoing], counts[outgoing]);
+            receiveInto(comm, left, TAG_ALLGATHER, type, recv, displs[incoming], counts[incoming]);
+        }
+    }
+
+    /**
+     * Pairwise exchange: in step k each rank sends to rank + k and receives
+     * from rank - k, so every rank sends and receives exactly one block per
+     * step and no link is oversubscribed.
+     */
+    static void alltoallv(Communicator comm, Object send, int[] sendCounts, int[] sendDispls, Object recv,
+            int[] recvCounts, int[] recvDispls) {
+        int rank = comm.rank();
+        int size = comm.size();
+        Datatype type = Datatype.of(recv);
+        if (sendCounts[rank] > recvCounts[rank]) {
+            throw new IllegalArgumentException("Message truncated: " + sendCounts[rank]
+                    + " elements to self, buffer holds " + recvCounts[rank]);
+        }
+        type.copy(send, sendDispls[rank], recv, recvDispls[rank], sendCounts[rank]);
+        for (int step = 1; step < size; step++) {
+            int dest = (rank + step) % size;
+            int src = (rank - step + size) % size;
+            sendSlice(comm, dest, TAG_ALLTOALL, type, send, sendDispls[dest], sendCounts[dest]);
+            receiveInto(comm, src, TAG_ALLTOALL, type, recv, recvDispls[src], recvCounts[src]);
+        }
+    }
+
+    /** Layout of N equal blocks of {@code count} elements from {@code offset}, for the fixed-count forms. */
+    static int[][] uniform(int offset, int count, int size) {
+        int[] counts = new int[size];
+        int[] displs = new int[size];
+        for (int i = 0; i < size; i++) {
+            counts[i] = count;
+            displs[i] = offset + i * count;
+        }
+        return new int[][] { counts, displs };
+    }
+
+    // ---- Barrier ----
+
+    /**
+     * Dissemination barrier (Hensgen, Finkel and Manber): in round k every
+     * rank signals rank + 2^k and waits for rank - 2^k. After ceil(log2 N)
+     * rounds each rank has heard, transitively, from every other. The sources
+     * of the rounds are distinct, so one tag serves them all.
+     */
+    static void disseminationBarrier(Communicator comm) {
+        int rank = comm.rank();
+        int size = comm.size();
+        for (int dist = 1; dist < size; dist <<= 1) {
+            MPI.sendInternal(comm, (rank + dist) % size, TAG_BARRIER, EMPTY, 0, 0);
+            MPI.receiveInternal(comm, (rank - dist + size) % size, TAG_BARRIER);
+        }
+    }
+
+    /** Binomial fan-in to rank 0 (children report once their subtree has), then binomial fan-out. */
+    static void treeBarrier(Communicator comm) {
+        if (comm.size() == 1) {
+            return;
+        }
+        fanIn(comm);
+        binomial(comm, 0, EMPTY, TAG_BARRIER_RELEASE);
+    }
+
+    /**
+     * Tree barrier within each node around a dissemination barrier among the
+     * node leaders; a dissemination barrier when the communicator is flat.
+     */
+    static void hierarchicalBarrier(Communicator comm) {
+        Topology topology = comm.size() > 1 ? topology(comm) : null;
+        if (topology == null) {
+            disseminationBarrier(comm);
+            return;
+        }
+        fanIn(topology.local);
+        if (topology.leaders != null) {
+            disseminationBarrier(topology.leaders);
+        }
+        binomial(topology.local, 0, EMPTY, TAG_BARRIER_RELEASE);
+    }
+
+    // Returns at rank 0 once every rank has arrived, elsewhere once this rank's subtree has reported
+    private static void fanIn(Communicator comm) {
+        int rank = comm.rank();
+        int size = comm.size();
+        int mask = 1;
+        while (mask < size) {
+            if ((rank & mask) != 0) {
+                MPI.sendInternal(comm, rank - mask, TAG_BARRIER_ARRIVE, EMPTY, 0, 0);
+                break;
+            }
+            if (rank + mask < size) {
+                MPI.receiveInternal(comm, rank + mask, TAG_BARRIER_ARRIVE);
+            }
+            mask <<= 1;
+        }
+    }
+
+    // ---- Rank arithmetic ----
+
+    static int relative(int rank, int root, int size) {
+        return (rank - root + size) % size;
+    }
+
+    static int absolute(int vr, int root, int size) {
+        return (vr + root) % size;
+    }
+}
@@ -0,0 +1,72 @@
+package mpi;
+
+import jdk.jfr.*;
+
+/**
+ * JFR events for the waits counted in {@link CommMetrics} and for frames the
+ * router relays, in the "MPI" category. They cost next to nothing unless a
+ * recording enables them, e.g. {@code -XX:StartFlightRecording} on the ranks
+ * or on mpiexec.
+ */
+final class CommEvents {
+    private CommEvents() {
+    }
+
+    @Name("mpi.Receive")
+    @Label("MPI Receive")
+    @Description("Time a rank was blocked receiving a message")
+    @Category("MPI")
+    @StackTrace(false)
+    static final class Receive extends Event {
+        @Label("Source")
+        int source;
+        @Label("Tag")
+        int tag;
+        @Label("Length")
+        @DataAmount
+        long length;
+    }
+
+    @Name("mpi.Barrier")
+    @Label("MPI Barrier")
+    @Description("Time a rank spent in a barrier")
+    @Category("MPI")
+    @StackTrace(false)
+    static final class Barrier extends Event {
+        @Label("Algorithm")
+        String algorithm;
+        @Label("Communicator Size")
+        int size;
+    }
+
+    @Name("mpi.Bcast")
+    @Label("MPI Bcast")
+    @Description("Time a rank spent in a broadcast")
+    @Category("MPI")
+    @StackTrace(false)
+    static final class Bcast extends Event {
+        @Label("Root")
+        int root;
+        @Label("Length")
+        @DataAmount
+        long length;
+    }
+
+    @Name("mpi.RouterForward")
+    @Label("MPI Router Forward")
+    @Description("A frame relayed by the router, from fully read to written to its destination")
+    @Category("MPI")
+    @StackTrace(false)
+    static final class RouterForward extends Event {
+        @Label("Source")
+        int source;
+        @Label("Destination")
+        int destination;
+        @Label("Length")
+        @DataAmount
+        long length;
+        @Label("Latency")
+        @Timespan
+        long latency;
+    }
+}
@@ -0,0 +1,277 @@
+package mpi;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Communication counters of this rank, as a snapshot taken by
+ * {@link MPI#metrics()}.
+ *
+ * Traffic is counted per peer (by world rank) in frames and payload bytes as
+ * they go out and come in, so it includes the messages of collectives and
+ * the announcements, credits and chunks of streamed messages. Wait times
+ * are what the calling thread spent blocked in a receive (blocking receive,
+ * receiveBytes or receiveStream), barrier or bcast. Unexpected messages are
+ * those that arrived before a matching receive was posted and were queued
+ * in the inbox.
+ *
+ * With MPI_METRICS set for mpiexec (a file, or "-" for stdout), every rank
+ * reports these at {@link MPI#finalize_mpi()} and mpiexec writes them, with
+ * the router's, as one JSON document at the end of the job.
+ */
+public final class CommMetrics {
+    private final int rank;
+    private final long[] sentMessages;
+    private final long[] sentBytes;
+    private final long[] receivedMessages;
+    private final long[] receivedBytes;
+    private final LatencyHistogram receiveWait;
+    private final LatencyHistogram barrierWait;
+    private final LatencyHistogram bcastWait;
+    private final long unexpectedMessages;
+    private final int unexpectedDepth;
+    private final int unexpectedMaxDepth;
+    private final long compressedMessages;
+    private final long compressionSavedBytes;
+    private final long batches;
+    private final long batchedMessages;
+
+    private CommMetrics(Recorder live, int rank, int unexpectedDepth) {
+        this.rank = rank;
+        this.sentMessages = toArray(live.sentMessages);
+        this.sentBytes = toArray(live.sentBytes);
+        this.receivedMessages = toArray(live.receivedMessages);
+        this.receivedBytes = toArray(live.receivedBytes);
+        this.receiveWait = live.receiveWait.snapshot();
+        this.barrierWait = live.barrierWait.snapshot();
+        this.bcastWait = live.bcastWait.snapshot();
+        this.unexpectedMessages = live.unexpectedMessages.get();
+        this.unexpectedDepth = unexpectedDepth;
+        this.unexpectedMaxDepth = live.unexpectedMaxDepth.get();
+        this.compressedMessages = live.compressedMessages.get();
+        this.compressionSavedBytes = live.compressionSavedBytes.get();
+        this.batches = live.batches.get();
+        this.batchedMessages = live.batchedMessages.get();
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    /** Frames sent to world rank {@code peer}. */
+    public long getSentMessages(int peer) {
+        return sentMessages[peer];
+    }
+
+    /** Payload bytes sent to world rank {@code peer}. */
+    public long getSentBytes(int peer) {
+        return sentBytes[peer];
+    }
+
+    /** Frames received from world rank {@code peer}. */
+    public long getReceivedMessages(int peer) {
+        return receivedMessages[peer];
+    }
+
+    /** Payload bytes received from world rank {@code peer}. */
+    public long getReceivedBytes(int peer) {
+        return receivedBytes[peer];
+    }
+
+    public long getTotalSentMessages() {
+        return sum(sentMessages);
+    }
+
+    public long getTotalSentBytes() {
+        return sum(sentBytes);
+    }
+
+    public long getTotalReceivedMessages() {
+        return sum(receivedMessages);
+    }
+
+    public long getTotalReceivedBytes() {
+        return sum(receivedBytes);
+    }
+
+    /** Time blocked in receives. */
+    public LatencyHistogram getReceiveWait() {
+        return receiveWait;
+    }
+
+    /** Time spent in barriers; the same waits as {@link MPI#barrierStats()}. */
+    public LatencyHistogram getBarrierWait() {
+        return barrierWait;
+    }
+
+    /** Time spent in bcast, root included. */
+    public LatencyHistogram getBcastWait() {
+        return bcastWait;
+    }
+
+    /** Messages that had to be queued because no receive was waiting for them. */
+    public long getUnexpectedMessages() {
+        return unexpectedMessages;
+    }
+
+    /** Messages queued in the inbox when the snapshot was taken. */
+    public int getUnexpectedDepth() {
+        return unexpectedDepth;
+    }
+
+    /** The most messages queued in the inbox at once. */
+    public int getUnexpectedMaxDepth() {
+        return unexpectedMaxDepth;
+    }
+
+    /** Frames sent compressed (see {@link Communicator#setCompression}); counted in the sent frames too. */
+    public long getCompressedMessages() {
+        return compressedMessages;
+    }
+
+    /** Bytes that compression kept off the wire; sent bytes count what went out. */
+    public long getCompressionSavedBytes() {
+        return compressionSavedBytes;
+    }
+
+    /** Frames that carried batched messages (see {@link Communicator#setAggregation}); not counted as sent. */
+    public long getBatches() {
+        return batches;
+    }
+
+    /** Messages that went out in a batch; counted in the sent frames, each on its own. */
+    public long getBatchedMessages() {
+        return batchedMessages;
+    }
+
+    /** These metrics as a JSON object; peers without traffic are left out. */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"rank\":").append(rank)
+                .append(",\"sentMessages\":").append(getTotalSentMessages())
+                .append(",\"sentBytes\":").append(getTotalSentBytes())
+                .append(",\"receivedMessages\":").append(getTotalReceivedMessages())
+                .append(",\"receivedBytes\":").append(getTotalReceivedBytes())
+                .append(",\"peers\":{");
+        boolean first = true;
+        for (int peer = 0; peer < sentMessages.length; peer++) {
+            if (sentMessages[peer] == 0 && receivedMessages[peer] == 0) {
+                continue;
+            }
+            json.append(first ? "" : ",").append('"').append(peer).append("\":{")
+                    .append("\"sentMessages\":").append(sentMessages[peer])
+                    .append(",\"sentBytes\":").append(sentBytes[peer])
+                    .append(",\"receivedMessages\":").append(receivedMessages[peer])
+                    .append(",\"receivedBytes\":").append(receivedBytes[peer]).append('}');
+            first = false;
+        }
+        json.append("},\"receiveWait\":").append(receiveWait.toJson())
+                .append(",\"barrierWait\":").append(barrierWait.toJson())
+                .append(",\"bcastWait\":").append(bcastWait.toJson())
+                .append(",\"unexpectedMessages\":").append(unexpectedMessages)
+                .append(",\"unexpectedDepth\":").append(unexpectedDepth)
+                .append(",\"unexpectedMaxDepth\":").append(unexpectedMaxDepth)
+                .append(",\"compressedMessages\":").append(compressedMessages)
+                .append(",\"compressionSavedBytes\":").append(compressionSavedBytes)
+                .append(",\"batches\":").append(batches)
+                .append(",\"batchedMessages\":").append(batchedMessages).append('}');
+        return json.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CommMetrics[rank=%d, sent=%d msgs/%d bytes, received=%d msgs/%d bytes, "
+                + "unexpected=%d (max depth %d), receive=%s, barrier=%s, bcast=%s]", rank,
+                getTotalSentMessages(), getTotalSentBytes(), getTotalReceivedMessages(), getTotalReceivedBytes(),
+                unexpectedMessages, unexpectedMaxDepth, receiveWait, barrierWait, bcastWait);
+    }
+
+    private static long[] toArray(AtomicLongArray counters) {
+        long[] values = new long[counters.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counters.get(i);
+        }
+        return values;
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long v : values) {
+            total += v;
+        }
+        return total;
+    }
+
+    /** The live counters behind the snapshots; recording costs a few uncontended atomic adds. */
+    static final class Recorder {
+        private final AtomicLongArray sentMessages;
+        private final AtomicLongArray sentBytes;
+        private final AtomicLongArray receivedMessages;
+        private final AtomicLongArray receivedBytes;
+        final LatencyHistogram receiveWait = new LatencyHistogram();
+        final LatencyHistogram barrierWait = new LatencyHistogram();
+        final LatencyHistogram bcastWait = new LatencyHistogram();
+        private final AtomicLong unexpectedMessages = new AtomicLong();
+        private final AtomicInteger unexpectedMaxDepth = new AtomicInteger();
+        private final AtomicLong compressedMessages = new AtomicLong();
+        private final AtomicLong compressionSavedBytes = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong batchedMessages = new AtomicLong();
+
+        Recorder(int size) {
+            sentMessages = new AtomicLongArray(size);
+            sentBytes = new AtomicLongArray(size);
+            receivedMessages = new AtomicLongArray(size);
+            receivedBytes = new AtomicLongArray(size);
+        }
+
+        void sent(int peer, long bytes) {
+            sentMessages.incrementAndGet(peer);
+            sentBytes.addAndGet(peer, bytes);
+        }
+
+        void received(int peer, long bytes) {
+            receivedMessages.incrementAndGet(peer);
+            receivedBytes.addAndGet(peer, bytes);
+        }
+
+        /** A message was queued, leaving {@code depth} in the inbox. */
+        void unexpected(int depth) {
+            unexpectedMessages.incrementAndGet();
+            unexpectedMaxDepth.accumulateAndGet(depth, Math::max);
+        }
+
+        /** A frame went out compressed, {@code saved} bytes shorter. */
+        void compressed(long saved) {
+            compressedMessages.incrementAndGet();
+            compressionSavedBytes.addAndGet(saved);
+        }
+
+        /** A batch of {@code messages} messages went out. */
+        void batched(int messages) {
+            batches.incrementAndGet();
+            batchedMessages.addAndGet(messages);
+        }
+
+        CommMetrics snapshot(int rank, int unexpectedDepth) {
+            return new CommMetrics(this, rank, unexpectedDepth);
+        }
+
+        void reset() {
+            for (int i = 0; i < sentMessages.length(); i++) {
+                sentMessages.set(i, 0);
+                sentBytes.set(i, 0);
+                receivedMessages.set(i, 0);
+                receivedBytes.set(i, 0);
+            }
+            receiveWait.reset();
+            barrierWait.reset();
+            bcastWait.reset();
+            unexpectedMessages.set(0);
+            unexpectedMaxDepth.set(0);
+            compressedMessages.set(0);
+            compressionSavedBytes.set(0);
+            batches.set(0);
+            batchedMessages.set(0);
+        }
+    }
+}
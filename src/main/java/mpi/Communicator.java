@@ -0,0 +1,173 @@
+package mpi;
+
+import java.util.*;
+
+/**
+ * A group of ranks with its own numbering and its own message space. Pass
+ * one as the first argument of any point-to-point or collective call in
+ * {@link MPI}; ranks, roots and message sources are then numbered within
+ * the group, and only members take part. Messages sent in one communicator
+ * are never received in another, even with wildcards, so collectives on
+ * disjoint (or duplicated) communicators can run at the same time.
+ *
+ * {@link MPI#COMM_WORLD} holds every rank; {@link #split} and {@link #dup}
+ * derive new communicators. Both are collective: every member of the parent
+ * must call them, in the same order.
+ */
+public final class Communicator {
+    /** Color for ranks that should not join any group in {@link #split}. */
+    public static final int UNDEFINED = -1;
+
+    final int context;
+    private final int[] members; // group rank -> world rank; null for the world
+    private final int[] groupRanks; // world rank -> group rank, or -1
+    private final int rank;
+    private volatile boolean compression = Compression.DEFAULT;
+    private volatile boolean aggregation = Aggregation.DEFAULT;
+    // Node groups for the hierarchical collectives, set up by the first of them (null when flat)
+    private Topology topology;
+    private boolean topologyKnown;
+
+    Communicator(int context, int[] members) {
+        this.context = context;
+        this.members = members;
+        if (members == null) {
+            this.groupRanks = null;
+            this.rank = -1;
+        } else {
+            this.groupRanks = new int[MPI.comm_size()];
+            Arrays.fill(groupRanks, -1);
+            for (int i = 0; i < members.length; i++) {
+                groupRanks[members[i]] = i;
+            }
+            this.rank = groupRanks[MPI.comm_rank()];
+        }
+    }
+
+    /** This process's rank in the group, from 0 to {@code size() - 1}. */
+    public int rank() {
+        return members == null ? MPI.comm_rank() : rank;
+    }
+
+    public int size() {
+        return members == null ? MPI.comm_size() : members.length;
+    }
+
+    /** The world rank of group rank {@code rank}. */
+    public int worldRank(int rank) {
+        if (members == null) {
+            return rank;
+        }
+        Objects.checkIndex(rank, members.length);
+        return members[rank];
+    }
+
+    // Group rank of a world rank; senders are always members
+    int groupRank(int worldRank) {
+        return groupRanks == null ? worldRank : groupRanks[worldRank];
+    }
+
+    /**
+     * The node mpiexec placed {@code rank} on, numbered from 0 in world rank
+     * order, or -1 when the launch did not say (see {@code MPI_NODES}).
+     */
+    public int node(int rank) {
+        return MPI.nodeOf(worldRank(rank));
+    }
+
+    // Collective on first use: every rank asks from the same collective call
+    Topology topology() {
+        if (!topologyKnown) {
+            topology = Topology.of(this);
+            topologyKnown = true;
+        }
+        return topology;
+    }
+
+    /**
+     * Whether this rank compresses the large messages it sends in this
+     * communicator to ranks on other nodes, when that pays (see
+     * {@code MPI_COMPRESS}). The setting is local to the calling rank, and
+     * receivers need none. New communicators start with MPI_COMPRESS, so
+     * {@code dup()} gives a message space of its own for compressed traffic.
+     */
+    public void setCompression(boolean enabled) {
+        compression = enabled;
+    }
+
+    public boolean getCompression() {
+        return compression;
+    }
+
+    /**
+     * Whether this rank packs the small messages it sends in this
+     * communicator with others to the same rank (see {@code MPI_AGGREGATE}).
+     * Such sends complete once the message is copied, and it goes out at the
+     * latest when this rank next blocks or calls {@link MPI#flush(int)}. The
+     * setting is local to the calling rank; receivers need none.
+     */
+    public void setAggregation(boolean enabled) {
+        aggregation = enabled;
+    }
+
+    public boolean getAggregation() {
+        return aggregation;
+    }
+
+    /**
+     * Partitions the group: ranks passing the same {@code color} form a new
+     * communicator, numbered by ascending {@code key} (ties keep their order
+     * here). Returns null to ranks passing {@link #UNDEFINED}.
+     */
+    public Communicator split(int color, int key) {
+        if (color < 0 && color != UNDEFINED) {
+            throw new IllegalArgumentException("Invalid color " + color + " (colors are >= 0)");
+        }
+        int size = size();
+        int[] all = new int[3 * size];
+        int context = MPI.allocateContext(proposed -> {
+            MPI.allgather(this, new int[] { color, key, proposed }, 0, 3, all, 0);
+            int max = proposed;
+            for (int i = 0; i < size; i++) {
+                max = Math.max(max, all[3 * i + 2]);
+            }
+            return max;
+        });
+        if (color == UNDEFINED) {
+            return null;
+        }
+        List<Integer> group = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (all[3 * i] == color) {
+                group.add(i);
+            }
+        }
+        group.sort(Comparator.comparingInt((Integer i) -> all[3 * i + 1]).thenComparingInt(i -> i));
+        int[] worldRanks = new int[group.size()];
+        for (int i = 0; i < worldRanks.length; i++) {
+            worldRanks[i] = worldRank(group.get(i));
+        }
+        return new Communicator(context, worldRanks);
+    }
+
+    /** Same group and numbering, separate message space (e.g. for a library's internal traffic). */
+    public Communicator dup() {
+        // The allreduce below may build the node groups, which take contexts of their own: before the proposal
+        Collectives.topology(this);
+        int context = MPI.allocateContext(proposed -> {
+            int[] max = { proposed };
+            MPI.allreduce(this, max, Op.MAX);
+            return max[0];
+        });
+        int[] worldRanks = new int[size()];
+        for (int i = 0; i < worldRanks.length; i++) {
+            worldRanks[i] = worldRank(i);
+        }
+        return new Communicator(context, worldRanks);
+    }
+
+    @Override
+    public String toString() {
+        return "Communicator[context=" + context + ", rank=" + rank() + ", size=" + size() + "]";
+    }
+}
@@ -0,0 +1,192 @@
+package mpi;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Deflate compression of large frames sent to ranks on other nodes (over a
+ * direct TCP link or through the router), on with {@code MPI_COMPRESS=1} or
+ * per communicator with {@link Communicator#setCompression}.
+ *
+ * Only frames of {@code MPI_COMPRESS_THRESHOLD} bytes or more (default 32 KB)
+ * are considered, so small-message latency is untouched. A few samples of the
+ * frame are deflated first; unless they shrink to at most 90%, the frame goes
+ * out as is and the link skips the next few large frames (1, 2, 4, ... up to
+ * 64) before it samples again, so incompressible traffic costs next to
+ * nothing. Chunks of rendezvous streams are frames like any other.
+ *
+ * A compressed frame carries the envelope flag (see {@link MPI}) and the
+ * payload [DEFLATED][original length][raw deflate data]. The receiver
+ * inflates it before it is matched, so receives cannot tell the difference
+ * and need no setting. Deflaters and inflaters are pooled along with their
+ * buffers. {@code MPI_COMPRESS_LEVEL} sets the deflate level (default 1,
+ * fastest).
+ */
+final class Compression {
+    static final int DEFLATED = -1;
+    static final int HEADER = 8;
+
+    static final boolean DEFAULT = "1".equals(MPI.setting("MPI_COMPRESS", "0"));
+    static final int THRESHOLD = Math.max(HEADER, MPI.intSetting("MPI_COMPRESS_THRESHOLD", 32 << 10));
+    private static final int LEVEL = MPI.intSetting("MPI_COMPRESS_LEVEL", Deflater.BEST_SPEED);
+
+    private static final int SAMPLE = 4096;
+    private static final int SAMPLES = 4;
+    private static final double MAX_RATIO = 0.9;
+    private static final int MAX_SKIP = 64;
+    // Idle compressors kept for reuse; each holds buffers as large as the largest frame it handled
+    private static final int POOL_SIZE = 4;
+    private static final BlockingQueue<Packer> packers = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private Compression() {
+    }
+
+    /** Takes a compressor from the pool, or a new one; hand it back with {@link #release}. */
+    static Packer acquire() {
+        Packer packer = packers.poll();
+        return packer != null ? packer : new Packer();
+    }
+
+    static void release(Packer packer) {
+        if (!packers.offer(packer)) {
+            packer.deflater.end();
+        }
+    }
+
+    /** Inflates the payload of a compressed frame from rank {@code src}. */
+    static byte[] inflate(int src, byte[] frame) {
+        int length = ((frame[4] & 0xff) << 24) | ((frame[5] & 0xff) << 16) | ((frame[6] & 0xff) << 8)
+                | (frame[7] & 0xff);
+        byte[] data = new byte[length];
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(frame, HEADER, frame.length - HEADER);
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int got = inflater.inflate(data, n, length - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += got;
+            }
+            if (n != length) {
+                throw new IllegalStateException("Compressed frame from rank " + src + " inflated to " + n
+                        + " of " + length + " bytes");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed frame from rank " + src, e);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    /** Decides, per link, when a large frame is worth sampling. */
+    static final class Policy {
+        private int skip;
+        private int backoff;
+
+        synchronized boolean shouldTry() {
+            if (skip > 0) {
+                skip--;
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void outcome(boolean compressed) {
+            backoff = compressed ? 0 : Math.min(MAX_SKIP, Math.max(1, 2 * backoff));
+            skip = backoff;
+        }
+    }
+
+    /** A deflater with a buffer for the raw frame and one for the compressed frame. */
+    static final class Packer {
+        private final Deflater deflater = new Deflater(LEVEL, true);
+        final ByteBuffer staging = ByteBuffer.allocate(MPI.CHUNK_SIZE);
+        byte[] raw = new byte[0];
+        byte[] packed = new byte[0];
+        private final byte[] scratch = new byte[SAMPLE];
+        private int filled;
+        private final DataOutputStream rawOut = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                raw[filled++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                System.arraycopy(b, off, raw, filled, len);
+                filled += len;
+            }
+        });
+
+        /** A stream that writes a raw frame of {@code length} bytes into {@link #raw}. */
+        DataOutputStream fill(int length) {
+            if (raw.length < length) {
+                raw = new byte[length];
+            }
+            filled = 0;
+            return rawOut;
+        }
+
+        /**
+         * Compresses {@code raw[0..length)} into {@link #packed}, header
+         * included, and returns the frame's new length, or -1 if it would not
+         * shrink to at most 90%.
+         */
+        int pack(int length) {
+            if (length >= SAMPLES * SAMPLE && !samplesShrink(length)) {
+                return -1;
+            }
+            int limit = HEADER + (int) (length * MAX_RATIO);
+            if (packed.length < limit) {
+                packed = new byte[limit];
+            }
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            int n = HEADER;
+            while (!deflater.finished() && n < limit) {
+                n += deflater.deflate(packed, n, limit - n);
+            }
+            boolean fits = deflater.finished();
+            deflater.reset();
+            if (!fits) {
+                return -1;
+            }
+            putInt(packed, 0, DEFLATED);
+            putInt(packed, 4, length);
+            return n;
+        }
+
+        // Deflates SAMPLES evenly spread slices of the frame
+        private boolean samplesShrink(int length) {
+            long out = 0;
+            for (int i = 0; i < SAMPLES; i++) {
+                deflater.setInput(raw, (int) ((long) (length - SAMPLE) * i / (SAMPLES - 1)), SAMPLE);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out += deflater.deflate(scratch);
+                }
+                deflater.reset();
+            }
+            return out <= SAMPLES * SAMPLE * MAX_RATIO;
+        }
+
+        private static void putInt(byte[] b, int at, int v) {
+            b[at] = (byte) (v >>> 24);
+            b[at + 1] = (byte) (v >>> 16);
+            b[at + 2] = (byte) (v >>> 8);
+            b[at + 3] = (byte) v;
+        }
+    }
+}
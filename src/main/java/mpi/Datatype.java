@@ -0,0 +1,135 @@
+package mpi;
+
+import java.nio.*;
+
+/**
+ * Element types that can travel in a message, and their conversion to and
+ * from the big-endian wire encoding. Collectives work on byte ranges and use
+ * these to move primitive arrays in and out of them.
+ *
+ * BUFFER stands for a ByteBuffer used as a byte array: offsets are absolute
+ * indices and the buffer's position is never touched.
+ */
+enum Datatype {
+    BYTE(1) {
+        @Override
+        void encode(Object src, int offset, int count, ByteBuffer dst) {
+            dst.put((byte[]) src, offset, count);
+        }
+
+        @Override
+        void decode(ByteBuffer src, Object dst, int offset, int count) {
+            src.get((byte[]) dst, offset, count);
+        }
+    },
+    INT(Integer.BYTES) {
+        @Override
+        void encode(Object src, int offset, int count, ByteBuffer dst) {
+            dst.asIntBuffer().put((int[]) src, offset, count);
+            dst.position(dst.position() + count * size);
+        }
+
+        @Override
+        void decode(ByteBuffer src, Object dst, int offset, int count) {
+            src.asIntBuffer().get((int[]) dst, offset, count);
+            src.position(src.position() + count * size);
+        }
+    },
+    LONG(Long.BYTES) {
+        @Override
+        void encode(Object src, int offset, int count, ByteBuffer dst) {
+            dst.asLongBuffer().put((long[]) src, offset, count);
+            dst.position(dst.position() + count * size);
+        }
+
+        @Override
+        void decode(ByteBuffer src, Object dst, int offset, int count) {
+            src.asLongBuffer().get((long[]) dst, offset, count);
+            src.position(src.position() + count * size);
+        }
+    },
+    DOUBLE(Double.BYTES) {
+        @Override
+        void encode(Object src, int offset, int count, ByteBuffer dst) {
+            dst.asDoubleBuffer().put((double[]) src, offset, count);
+            dst.position(dst.position() + count * size);
+        }
+
+        @Override
+        void decode(ByteBuffer src, Object dst, int offset, int count) {
+            src.asDoubleBuffer().get((double[]) dst, offset, count);
+            src.position(src.position() + count * size);
+        }
+    },
+    BUFFER(1) {
+        @Override
+        void encode(Object src, int offset, int count, ByteBuffer dst) {
+            dst.put(dst.position(), (ByteBuffer) src, offset, count);
+            dst.position(dst.position() + count);
+        }
+
+        @Override
+        void decode(ByteBuffer src, Object dst, int offset, int count) {
+            ((ByteBuffer) dst).put(offset, src, src.position(), count);
+            src.position(src.position() + count);
+        }
+
+        @Override
+        void copy(Object src, int srcOffset, Object dst, int dstOffset, int count) {
+            ((ByteBuffer) dst).put(dstOffset, (ByteBuffer) src, srcOffset, count);
+        }
+
+        @Override
+        int length(Object buf) {
+            return ((ByteBuffer) buf).limit();
+        }
+    };
+
+    final int size;
+
+    Datatype(int size) {
+        this.size = size;
+    }
+
+    /** Writes {@code count} elements of {@code src} starting at {@code offset}, advancing {@code dst}. */
+    abstract void encode(Object src, int offset, int count, ByteBuffer dst);
+
+    /** Reads {@code count} elements into {@code dst} starting at {@code offset}, advancing {@code src}. */
+    abstract void decode(ByteBuffer src, Object dst, int offset, int count);
+
+    /** Copies {@code count} elements between two buffers of this type. */
+    void copy(Object src, int srcOffset, Object dst, int dstOffset, int count) {
+        System.arraycopy(src, srcOffset, dst, dstOffset, count);
+    }
+
+    /** Number of elements the buffer holds. */
+    int length(Object buf) {
+        return java.lang.reflect.Array.getLength(buf);
+    }
+
+    static Datatype of(Object array) {
+        if (array instanceof byte[])
+            return BYTE;
+        if (array instanceof int[])
+            return INT;
+        if (array instanceof long[])
+            return LONG;
+        if (array instanceof double[])
+            return DOUBLE;
+        if (array instanceof ByteBuffer)
+            return BUFFER;
+        throw new IllegalArgumentException("Unsupported buffer type " + array.getClass().getSimpleName());
+    }
+
+    /** Encodes a slice of a primitive array into a fresh byte array. */
+    byte[] toBytes(Object src, int offset, int count) {
+        byte[] bytes = new byte[Math.multiplyExact(count, size)];
+        encode(src, offset, count, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /** Decodes {@code bytes[from..from+count*size)} into a slice of a primitive array. */
+    void fromBytes(byte[] bytes, int from, Object dst, int offset, int count) {
+        decode(ByteBuffer.wrap(bytes, from, count * size), dst, offset, count);
+    }
+}
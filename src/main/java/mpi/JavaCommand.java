@@ -0,0 +1,58 @@
+package mpi;
+
+import java.util.*;
+
+/**
+ * A launch command of the form
+ * {@code java [-Dkey=value...] -cp <classpath> <main class> [args...]},
+ * taken apart for launchers that run the main class in a JVM that is
+ * already up (see WarmPool and ThreadRanks).
+ */
+final class JavaCommand {
+    final String java;
+    final String classpath; // null if not given
+    final Map<String, String> properties;
+    final String mainClass;
+    final List<String> args;
+
+    private JavaCommand(String java, String classpath, Map<String, String> properties, String mainClass,
+            List<String> args) {
+        this.java = java;
+        this.classpath = classpath;
+        this.properties = properties;
+        this.mainClass = mainClass;
+        this.args = args;
+    }
+
+    /** Returns null if the command has JVM options other than -D and -cp, or no main class. */
+    static JavaCommand parse(List<String> command) {
+        if (command.isEmpty()) {
+            return null;
+        }
+        Map<String, String> properties = new LinkedHashMap<>();
+        String classpath = null;
+        int i = 1;
+        for (; i < command.size() && command.get(i).startsWith("-"); i++) {
+            String arg = command.get(i);
+            if (arg.startsWith("-D")) {
+                int eq = arg.indexOf('=');
+                properties.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "" : arg.substring(eq + 1));
+            } else if ((arg.equals("-cp") || arg.equals("-classpath") || arg.equals("--class-path"))
+                    && i + 1 < command.size()) {
+                classpath = command.get(++i);
+            } else {
+                return null;
+            }
+        }
+        if (i >= command.size()) {
+            return null;
+        }
+        return new JavaCommand(command.get(0), classpath, properties, command.get(i),
+                command.subList(i + 1, command.size()));
+    }
+
+    /** Whether the command runs {@code javaBin}, or whatever "java" is on the path. */
+    boolean runs(String javaBin) {
+        return java.equals(javaBin) || java.equals("java");
+    }
+}
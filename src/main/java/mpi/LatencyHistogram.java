@@ -0,0 +1,129 @@
+package mpi;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A distribution of durations in nanoseconds, kept HDR-style: values are
+ * counted in buckets whose width grows with their magnitude, 32 to each
+ * power of two, so every value is resolved to within about 3% at a fixed
+ * size and recording one is a few atomic adds. Percentiles report the upper
+ * end of the bucket they fall in, capped at the largest value recorded.
+ *
+ * The histograms of a {@link CommMetrics} are snapshots.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Enough for every non-negative long
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+    }
+
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /** A copy of the values recorded so far. */
+    LatencyHistogram snapshot() {
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i);
+            if (n != 0) {
+                copy.counts.set(i, n);
+            }
+        }
+        copy.count.set(count.get());
+        copy.total.set(total.get());
+        copy.max.set(max.get());
+        return copy;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return total.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /** The value that {@code percentile} percent of the recorded values do not exceed; 0 if there are none. */
+    public long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile out of range: " + percentile);
+        }
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** This histogram as a JSON object: count, mean, p50, p90, p99 and max. */
+    public String toJson() {
+        return String.format("{\"count\":%d,\"meanNanos\":%.0f,\"p50Nanos\":%d,\"p90Nanos\":%d,\"p99Nanos\":%d,"
+                + "\"maxNanos\":%d}", getCount(), getMeanNanos(), getPercentileNanos(50), getPercentileNanos(90),
+                getPercentileNanos(99), getMaxNanos());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LatencyHistogram[count=%d, mean=%.1f us, p50=%.1f us, p99=%.1f us, max=%.1f us]",
+                getCount(), getMeanNanos() / 1e3, getPercentileNanos(50) / 1e3, getPercentileNanos(99) / 1e3,
+                getMaxNanos() / 1e3);
+    }
+
+    // Values below SUB_COUNT get a bucket each; above, the top SUB_BITS + 1 bits pick the bucket
+    static int bucket(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        return ((magnitude - SUB_BITS + 1) << SUB_BITS) + (int) (value >>> (magnitude - SUB_BITS)) - SUB_COUNT;
+    }
+
+    // Largest value counted in bucket i
+    static long highest(int i) {
+        if (i < SUB_COUNT) {
+            return i;
+        }
+        int shift = (i >> SUB_BITS) - 1;
+        long lowest = (long) (SUB_COUNT + (i & (SUB_COUNT - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,85 @@
+package mpi;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Joins the ranks of an in-process job ({@code mpiexec -threads}), which
+ * run as threads of one JVM, each with its own copy of the library loaded
+ * by its own class loader (see ThreadRanks). This class alone is shared
+ * between them: it hands each rank thread its launch settings and carries
+ * frames from one rank's copy of MPI straight into another's inbox.
+ *
+ * Internal plumbing, public only because each rank's copy of the library
+ * lives in a package of its own at run time.
+ */
+public final class LocalFabric {
+    /** Where frames for one rank are delivered; called on the sending thread. */
+    public interface Endpoint {
+        void deliver(int src, int match, byte[] data);
+    }
+
+    private static final class Binding {
+        final LocalFabric fabric;
+        final int rank;
+        final Map<String, String> settings;
+
+        Binding(LocalFabric fabric, int rank, Map<String, String> settings) {
+            this.fabric = fabric;
+            this.rank = rank;
+            this.settings = settings;
+        }
+    }
+
+    // Threads started by a rank belong to it as well
+    private static final InheritableThreadLocal<Binding> binding = new InheritableThreadLocal<>();
+    private static final long ATTACH_TIMEOUT_MS = 30_000;
+
+    private final List<CompletableFuture<Endpoint>> endpoints = new ArrayList<>();
+
+    LocalFabric(int size) {
+        for (int i = 0; i < size; i++) {
+            endpoints.add(new CompletableFuture<>());
+        }
+    }
+
+    /** Makes the calling thread, and any it starts, rank {@code rank} with the given launch settings. */
+    void bind(int rank, Map<String, String> settings) {
+        binding.set(new Binding(this, rank, Map.copyOf(settings)));
+    }
+
+    /** The rank the calling thread belongs to, or -1 outside an in-process job. */
+    static int boundRank() {
+        Binding b = binding.get();
+        return b == null ? -1 : b.rank;
+    }
+
+    /** Whether the calling thread is a rank of an in-process job. */
+    public static boolean joined() {
+        return binding.get() != null;
+    }
+
+    /** The calling rank's launch setting {@code name}, or null (also outside an in-process job). */
+    public static String setting(String name) {
+        Binding b = binding.get();
+        return b == null ? null : b.settings.get(name);
+    }
+
+    /** Registers the calling rank's inbox. */
+    public static void attach(Endpoint endpoint) {
+        Binding b = binding.get();
+        b.fabric.endpoints.get(b.rank).complete(endpoint);
+    }
+
+    /** The inbox of {@code rank}, once it has attached; null if it does not attach in time. */
+    public static Endpoint endpoint(int rank) {
+        try {
+            return binding.get().fabric.endpoints.get(rank).get(ATTACH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
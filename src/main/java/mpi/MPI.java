@@ -2,8 +2,14 @@ package mpi;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-// unused import removed
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
 
 public class MPI {
     private static int rank;
@@ -14,15 +20,159 @@ public class MPI {
     private static DataInputStream in;
     private static DataOutputStream out;
 
-    // Message Buffer for P2P messages received during collective ops
-    private static Queue<String> messageQueue = new LinkedList<>();
+    // Direct data plane: every rank listens on its own endpoint and peers
+    // connect to it lazily. The router is only asked where a rank lives, and
+    // relays traffic itself only when a direct connection can't be made.
+    private static ServerSocket listener;
+    private static boolean directEnabled;
+    private static final Map<Integer, PeerLink> links = new ConcurrentHashMap<>();
+    // Links whose batch holds messages (see Aggregation)
+    private static final Set<PeerLink> batched = ConcurrentHashMap.newKeySet();
+    private static final Map<Integer, CompletableFuture<String>> addressLookups = new ConcurrentHashMap<>();
+    private static final long LOOKUP_TIMEOUT_MS = 30_000;
+
+    // Intra-node transport: peers on the same node exchange frames through
+    // memory-mapped rings instead of loopback TCP. One poller thread drains
+    // every ring attached to this rank.
+    private static String nodeName;
+    private static String jobId;
+    private static File shmDir;
+    // World rank -> index of the node mpiexec placed it on (see MPI_NODES); null when unknown
+    private static int[] nodeOfRank;
+    private static int shmRingSize;
+    private static final List<ShmRing> attachedRings = new CopyOnWriteArrayList<>();
+    private static final Object pollerLock = new Object();
+    private static boolean pollerStarted = false;
+
+    // Inbox, filled by the reader threads of the router and peer connections.
+    // Guarded by inboxLock; waiters are woken on every arrival.
+    private static final Object inboxLock = new Object();
+    private static final MessageStore inbox = new MessageStore();
+    // Receives posted by irecv (and blocking receives) that no message has matched yet, in post order
+    private static final List<PostedReceive> postedReceives = new ArrayList<>();
+    private static int barrierReleases = 0;
+    private static BarrierAlgorithm defaultBarrier;
+    // Time spent in barrier(), guarded by barrierStatsLock
+    private static final Object barrierStatsLock = new Object();
+    private static long barrierCount, barrierTotalNanos, barrierMaxNanos, barrierLastNanos;
+    private static long barrierMinNanos = Long.MAX_VALUE;
+    private static boolean routerLost = false;
+    // Traffic and wait-time counters (see CommMetrics), created by init()
+    private static CommMetrics.Recorder metrics;
+    private static volatile boolean finalized = false;
+
+    // Buffers that codec sends encode into
+    private static final BufferPool codecBuffers = new BufferPool(4, 4096);
+
+    // Writes queued non-blocking sends (see PeerLink.submit)
+    private static final ExecutorService progress = Executors.newCachedThreadPool(task -> {
+        Thread t = new Thread(task, "mpi-progress");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+    private static final CompletableFuture<Void> COPIED = CompletableFuture.completedFuture(null);
+
+    // Socket tuning for the router connection and direct links: MPI_TCP_NODELAY
+    // (default 1) turns Nagle's algorithm off, MPI_SOCKET_SNDBUF and
+    // MPI_SOCKET_RCVBUF size the kernel buffers in bytes (0 keeps the OS's).
+    static final boolean TCP_NODELAY = !"0".equals(setting("MPI_TCP_NODELAY", "1"));
+    static final int SOCKET_SNDBUF = intSetting("MPI_SOCKET_SNDBUF", 0);
+    static final int SOCKET_RCVBUF = intSetting("MPI_SOCKET_RCVBUF", 0);
+
+    // Rendezvous: messages of MPI_RNDV_THRESHOLD bytes or more are announced
+    // first and follow in MPI_RNDV_CHUNK-byte chunks once the receiver takes
+    // them, at most MPI_RNDV_WINDOW chunks ahead of what it has consumed.
+    static final int RNDV_THRESHOLD = intSetting("MPI_RNDV_THRESHOLD", 4 << 20);
+    static final int RNDV_CHUNK = Math.max(8, intSetting("MPI_RNDV_CHUNK", 256 << 10) & ~7);
+    static final int RNDV_WINDOW = Math.max(1, intSetting("MPI_RNDV_WINDOW", 8));
+    // Chunks and credits of stream `id` travel on internal tags chunkTag(id) and creditTag(id)
+    private static final int STREAM_TAGS = -(1 << 18);
+    private static final int STREAM_ID_MASK = (1 << 17) - 1;
+    private static final AtomicInteger nextStream = new AtomicInteger();
+
+    // Sources are world ranks; context and tag come from the frame's match word.
+    // A rendezvous announcement has no data: the body follows in chunks on
+    // the stream's own tags once the receiver asks for it (see MessageStream).
+    static final class Message {
+        final int src;
+        final int context;
+        final int tag;
+        final byte[] data;
+        final long length;
+        final int stream; // -1 for messages sent eagerly
+        final int chunkSize;
+
+        Message(int src, int context, int tag, byte[] data) {
+            this(src, context, tag, data, data.length, -1, 0);
+        }
+
+        Message(int src, int context, int tag, byte[] data, long length, int stream, int chunkSize) {
+            this.src = src;
+            this.context = context;
+            this.tag = tag;
+            this.data = data;
+            this.length = length;
+            this.stream = stream;
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    private static final class PostedReceive {
+        final int context;
+        final int source;
+        final int tag;
+        final CompletableFuture<Message> match = new CompletableFuture<>();
+
+        PostedReceive(int context, int source, int tag) {
+            this.context = context;
+            this.source = source;
+            this.tag = tag;
+        }
+
+        boolean matches(Message msg) {
+            return context == msg.context && (source == ANY_SOURCE || source == msg.src)
+                    && (tag == ANY_TAG || tag == msg.tag);
+        }
+    }
+
+    // User tags are >= 0 (untagged sends use 0); collectives use negative tags
+    // so the two never mix, and the wildcards only ever match user tags.
+    static final int USER_TAG = 0;
+
+    // Frames carry one 32-bit match word: the communicator's context id in
+    // the top CONTEXT_BITS, then the envelope flag, then the (signed) tag.
+    // The router and the transports never look inside it. The payload of a
+    // flagged frame starts with an int telling what it holds: a stream id
+    // (>= 0) for a rendezvous announcement, Compression.DEFLATED or
+    // Aggregation.BATCH.
+    static final int CONTEXT_BITS = 11;
+    private static final int TAG_BITS = 31 - CONTEXT_BITS;
+    private static final int TAG_MASK = (1 << TAG_BITS) - 1;
+    private static final int ENVELOPE_FLAG = 1 << TAG_BITS;
+    static final int MAX_CONTEXT = (1 << CONTEXT_BITS) - 1;
+    // Lowest context id this rank has not used yet
+    private static final AtomicInteger nextContext = new AtomicInteger(1);
+
+    /** Wildcard source for {@link #receive(int, int)} and {@link #probe}. */
+    public static final int ANY_SOURCE = -1;
+    /** Wildcard tag for {@link #receive(int, int)} and {@link #probe}. */
+    public static final int ANY_TAG = -1;
+    /** Largest user tag. */
+    public static final int TAG_UB = (1 << (TAG_BITS - 1)) - 1;
+
+    /** Every rank of the job, numbered as by {@link #comm_rank()}. */
+    public static final Communicator COMM_WORLD = new Communicator(0, null);
 
     public static void init() {
         try {
-            String rankStr = System.getenv("MPI_RANK");
-            String sizeStr = System.getenv("MPI_SIZE");
-            masterHost = System.getenv("MPI_MASTER_HOST");
-            String portStr = System.getenv("MPI_MASTER_PORT");
+            // Read through setting(): a warm JVM (see WarmWorker) gets its launch environment as properties
+            String rankStr = setting("MPI_RANK", null);
+            String sizeStr = setting("MPI_SIZE", null);
+            masterHost = setting("MPI_MASTER_HOST", null);
+            String portStr = setting("MPI_MASTER_PORT", null);
 
             if (rankStr == null || sizeStr == null || masterHost == null || portStr == null) {
                 System.err.println("MPI Environment variables not set. Are you running under mpiexec?");
@@ -31,23 +181,102 @@ public class MPI {
 
             rank = Integer.parseInt(rankStr);
             size = Integer.parseInt(sizeStr);
+            metrics = new CommMetrics.Recorder(size);
             masterPort = Integer.parseInt(portStr);
+            // A rank of an in-process job (see LocalFabric) reaches its peers in memory
+            boolean inProcess = LocalFabric.joined();
+            directEnabled = !inProcess && !"0".equals(setting("MPI_DIRECT", "1"));
+            jobId = setting("MPI_JOB_ID", portStr);
+            nodeName = setting("MPI_NODE", null);
+            if (nodeName == null) {
+                nodeName = localHostName();
+            }
+            nodeOfRank = parseNodeMap(setting("MPI_NODES", null), size);
+            shmDir = sharedMemoryDir();
+            Tracer.start(jobId, rank, size);
+            shmRingSize = Integer.parseInt(setting("MPI_SHM_RING_SIZE", String.valueOf(1 << 20)));
+            defaultBarrier = BarrierAlgorithm.valueOf(setting("MPI_BARRIER", "hierarchical").toUpperCase(Locale.ROOT));
+
+            if (inProcess) {
+                LocalFabric.attach(MPI::deliver);
+            }
 
             // Connect to Message Router
-            socket = new Socket(masterHost, masterPort);
-            in = new DataInputStream(socket.getInputStream());
-            out = new DataOutputStream(socket.getOutputStream());
+            socket = new Socket();
+            tune(socket);
+            socket.connect(new InetSocketAddress(masterHost, masterPort));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE));
+
+            // Open our endpoint on the interface that reaches the router, so peers can too
+            String endpoint = "";
+            if (directEnabled) {
+                InetAddress local = socket.getLocalAddress();
+                listener = new ServerSocket();
+                if (SOCKET_RCVBUF > 0) {
+                    listener.setReceiveBufferSize(SOCKET_RCVBUF); // Inherited by accepted sockets
+                }
+                listener.bind(new InetSocketAddress(local, 0), 128);
+                endpoint = local.getHostAddress() + ":" + listener.getLocalPort() + "/" + nodeName;
+                startDaemon("mpi-accept", MPI::acceptLoop);
+            }
 
-            // Handshake (Send Rank)
+            // Handshake (Send Rank, then our endpoint for the directory)
+            byte[] endpointBytes = endpoint.getBytes(StandardCharsets.UTF_8);
             out.writeInt(rank);
+            out.writeInt(endpointBytes.length);
+            out.write(endpointBytes);
             out.flush();
 
+            startDaemon("mpi-router-reader", () -> readLoop(in, true));
+
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
+    /**
+     * Looks up a tuning knob: a system property of the same name wins over the
+     * environment (as set for the rank by smpd), which wins over the default.
+     * A rank of an in-process job has launch settings of its own that win over both.
+     */
+    static String setting(String name, String defaultValue) {
+        String value = LocalFabric.setting(name);
+        if (value == null) {
+            value = System.getProperty(name);
+        }
+        if (value == null) {
+            value = System.getenv(name);
+        }
+        return value != null ? value : defaultValue;
+    }
+
+    static int intSetting(String name, int defaultValue) {
+        return Integer.parseInt(setting(name, String.valueOf(defaultValue)));
+    }
+
+    /** Applies the socket settings; buffer sizes must be set before the socket connects to take full effect. */
+    static void tune(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(TCP_NODELAY);
+        if (SOCKET_SNDBUF > 0) {
+            socket.setSendBufferSize(SOCKET_SNDBUF);
+        }
+        if (SOCKET_RCVBUF > 0) {
+            socket.setReceiveBufferSize(SOCKET_RCVBUF);
+        }
+    }
+
+    static void tune(NetworkChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, TCP_NODELAY);
+        if (SOCKET_SNDBUF > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_SNDBUF);
+        }
+        if (SOCKET_RCVBUF > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RCVBUF);
+        }
+    }
+
     public static int comm_size() {
         return size;
     }
@@ -56,111 +285,2272 @@ public class MPI {
         return rank;
     }
 
+    // ---- Point-to-point ----
+    //
+    // Every payload travels as a length-prefixed binary frame,
+    // [CMD=2][src][tag][length][bytes], over a direct link to the destination
+    // (see PeerLink). Strings are sent as UTF-8 and primitive arrays in
+    // big-endian order, so any type can be received as any other as long as
+    // the byte counts line up. Sends without a tag use tag 0. Forms without
+    // a Communicator use COMM_WORLD; with one, ranks are numbered within it.
+
     public static void send(int dest, String message) {
-        try {
-            out.writeInt(1); // CMD=1 (SEND)
-            out.writeInt(dest);
-            out.writeUTF(message);
-            out.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        send(dest, USER_TAG, message);
+    }
+
+    public static void send(int dest, byte[] data) {
+        send(dest, USER_TAG, data);
+    }
+
+    public static void send(int dest, byte[] data, int offset, int length) {
+        send(dest, USER_TAG, data, offset, length);
+    }
+
+    /** Sends the remaining bytes of {@code data}; its position is left unchanged. */
+    public static void send(int dest, ByteBuffer data) {
+        send(dest, USER_TAG, data);
+    }
+
+    public static void send(int dest, int[] data, int offset, int length) {
+        send(dest, USER_TAG, data, offset, length);
+    }
+
+    public static void send(int dest, long[] data, int offset, int length) {
+        send(dest, USER_TAG, data, offset, length);
+    }
+
+    public static void send(int dest, double[] data, int offset, int length) {
+        send(dest, USER_TAG, data, offset, length);
+    }
+
+    public static void send(int dest, int tag, String message) {
+        send(COMM_WORLD, dest, tag, message);
+    }
+
+    public static void send(Communicator comm, int dest, int tag, String message) {
+        send(comm, dest, tag, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void send(int dest, int tag, byte[] data) {
+        send(COMM_WORLD, dest, tag, data);
+    }
+
+    public static void send(Communicator comm, int dest, int tag, byte[] data) {
+        send(comm, dest, tag, data, 0, data.length);
+    }
+
+    public static void send(int dest, int tag, byte[] data, int offset, int length) {
+        send(COMM_WORLD, dest, tag, data, offset, length);
+    }
+
+    public static void send(Communicator comm, int dest, int tag, byte[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        sendFrame(comm, dest, tag, length, bytes(data, offset));
+    }
+
+    /** Sends the remaining bytes of {@code data}; its position is left unchanged. */
+    public static void send(int dest, int tag, ByteBuffer data) {
+        send(COMM_WORLD, dest, tag, data);
+    }
+
+    public static void send(Communicator comm, int dest, int tag, ByteBuffer data) {
+        sendFrame(comm, dest, tag, data.remaining(), buffer(data));
+    }
+
+    public static void send(int dest, int tag, int[] data, int offset, int length) {
+        send(COMM_WORLD, dest, tag, data, offset, length);
+    }
+
+    public static void send(Communicator comm, int dest, int tag, int[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        sendFrame(comm, dest, tag, (long) length * Integer.BYTES, elements(Datatype.INT, data, offset));
+    }
+
+    public static void send(int dest, int tag, long[] data, int offset, int length) {
+        send(COMM_WORLD, dest, tag, data, offset, length);
+    }
+
+    public static void send(Communicator comm, int dest, int tag, long[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        sendFrame(comm, dest, tag, (long) length * Long.BYTES, elements(Datatype.LONG, data, offset));
+    }
+
+    public static void send(int dest, int tag, double[] data, int offset, int length) {
+        send(COMM_WORLD, dest, tag, data, offset, length);
+    }
+
+    public static void send(Communicator comm, int dest, int tag, double[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        sendFrame(comm, dest, tag, (long) length * Double.BYTES, elements(Datatype.DOUBLE, data, offset));
+    }
+
+    /**
+     * Sends the small messages batched for {@code dest} now instead of at
+     * their deadline (see {@code MPI_AGGREGATE}); messages to other ranks
+     * stay batched. A no-op when nothing is batched.
+     */
+    public static void flush(int dest) {
+        flush(COMM_WORLD, dest);
+    }
+
+    public static void flush(Communicator comm, int dest) {
+        if (dest < 0 || dest >= comm.size()) {
+            throw new IllegalArgumentException("Invalid destination rank " + dest + " (size " + comm.size() + ")");
+        }
+        PeerLink link = links.get(comm.worldRank(dest));
+        if (link != null && link.batch != null) {
+            flushBatch(link, true);
         }
     }
 
-    public static String receive() {
-        try {
-            // 1. Check Buffer First
-            if (!messageQueue.isEmpty()) {
-                return messageQueue.poll();
-            }
+    /** Sends every batched message now, whatever its destination. */
+    public static void flush() {
+        flushBatches();
+    }
+
+    // ---- Typed objects ----
+    //
+    // A Codec encodes the value straight into a pooled buffer, which goes out
+    // as one message like any other; the receiver decodes it from the bytes
+    // that arrived, in place. See Codec for the built-in codecs.
+
+    public static <T> void send(int dest, T value, Codec<T> codec) {
+        send(dest, USER_TAG, value, codec);
+    }
+
+    public static <T> void send(int dest, int tag, T value, Codec<T> codec) {
+        send(COMM_WORLD, dest, tag, value, codec);
+    }
 
-            // 2. Read from Socket
+    public static <T> void send(Communicator comm, int dest, int tag, T value, Codec<T> codec) {
+        ByteBuffer buf = codecBuffers.acquire();
+        try {
             while (true) {
-                int cmd = in.readInt();
-                if (cmd == 2) { // CMD=2 (INCOMING MSG)
-                    int src = in.readInt(); // consumed but not used in this simple API
-                    String msg = in.readUTF();
-                    System.out.println("[MPI Debug] Received from " + src);
-                    return msg;
-                } else {
-                    System.err.println("Protocol Error in receive(): Expected MSG (2), got " + cmd);
-                    System.exit(1);
+                try {
+                    codec.encode(value, buf);
+                    break;
+                } catch (BufferOverflowException e) {
+                    buf = codecBuffers.grow(buf);
                 }
             }
+            send(comm, dest, tag, buf.flip());
+        } finally {
+            codecBuffers.release(buf);
+        }
+    }
+
+    public static <T> T receive(Codec<T> codec) {
+        return receive(ANY_SOURCE, ANY_TAG, codec);
+    }
+
+    public static <T> T receive(int source, int tag, Codec<T> codec) {
+        return receive(COMM_WORLD, source, tag, codec);
+    }
+
+    /** Receives the next message from {@code source} with {@code tag} and decodes it with {@code codec}. */
+    public static <T> T receive(Communicator comm, int source, int tag, Codec<T> codec) {
+        byte[] data = receiveBytes(comm, source, tag);
+        if (data == null) {
+            throw new IllegalStateException("Connection to router lost");
+        }
+        ByteBuffer in = ByteBuffer.wrap(data);
+        T value = codec.decode(in);
+        if (in.hasRemaining()) {
+            throw new IllegalStateException(codec + " left " + in.remaining() + " of " + data.length
+                    + " bytes undecoded");
+        }
+        return value;
+    }
+
+    // ---- Non-blocking point-to-point ----
+    //
+    // isend returns as soon as the frame is queued on the link to `dest`;
+    // the progress thread writes it behind anything queued before it, so
+    // blocking and non-blocking sends to one rank still arrive in order.
+    // irecv posts a receive that the connection readers complete when a
+    // matching message arrives, ahead of any receive posted after it.
+
+    public static Request isend(int dest, int tag, byte[] data, int offset, int length) {
+        return isend(COMM_WORLD, dest, tag, data, offset, length);
+    }
+
+    public static Request isend(Communicator comm, int dest, int tag, byte[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        return isendFrame(comm, dest, tag, length, bytes(data, offset));
+    }
+
+    /** Sends the remaining bytes of {@code data}; its position is left unchanged. */
+    public static Request isend(int dest, int tag, ByteBuffer data) {
+        return isend(COMM_WORLD, dest, tag, data);
+    }
+
+    public static Request isend(Communicator comm, int dest, int tag, ByteBuffer data) {
+        return isendFrame(comm, dest, tag, data.remaining(), buffer(data));
+    }
+
+    public static Request isend(int dest, int tag, int[] data, int offset, int length) {
+        return isend(COMM_WORLD, dest, tag, data, offset, length);
+    }
+
+    public static Request isend(Communicator comm, int dest, int tag, int[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        return isendFrame(comm, dest, tag, (long) length * Integer.BYTES, elements(Datatype.INT, data, offset));
+    }
+
+    public static Request isend(int dest, int tag, long[] data, int offset, int length) {
+        return isend(COMM_WORLD, dest, tag, data, offset, length);
+    }
+
+    public static Request isend(Communicator comm, int dest, int tag, long[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        return isendFrame(comm, dest, tag, (long) length * Long.BYTES, elements(Datatype.LONG, data, offset));
+    }
+
+    public static Request isend(int dest, int tag, double[] data, int offset, int length) {
+        return isend(COMM_WORLD, dest, tag, data, offset, length);
+    }
+
+    public static Request isend(Communicator comm, int dest, int tag, double[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        return isendFrame(comm, dest, tag, (long) length * Double.BYTES, elements(Datatype.DOUBLE, data, offset));
+    }
+
+    public static Request irecv(int source, int tag, byte[] buf, int offset, int length) {
+        return irecv(COMM_WORLD, source, tag, buf, offset, length);
+    }
+
+    public static Request irecv(Communicator comm, int source, int tag, byte[] buf, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, buf.length);
+        return receiveInto(comm, source, tag, Datatype.BYTE, buf, offset, length);
+    }
+
+    /** Receives into the remaining space of {@code buf}, advancing its position on completion. */
+    public static Request irecv(int source, int tag, ByteBuffer buf) {
+        return irecv(COMM_WORLD, source, tag, buf);
+    }
+
+    public static Request irecv(Communicator comm, int source, int tag, ByteBuffer buf) {
+        int position = buf.position();
+        int capacity = buf.remaining();
+        return new Request(receiveRequest(comm, source, tag, msg -> {
+            Status status = unpack(comm, msg, Datatype.BUFFER, buf, position, capacity);
+            buf.position(position + status.getLength());
+            return status;
+        }));
+    }
+
+    public static Request irecv(int source, int tag, int[] buf, int offset, int length) {
+        return irecv(COMM_WORLD, source, tag, buf, offset, length);
+    }
+
+    public static Request irecv(Communicator comm, int source, int tag, int[] buf, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, buf.length);
+        return receiveInto(comm, source, tag, Datatype.INT, buf, offset, length);
+    }
+
+    public static Request irecv(int source, int tag, long[] buf, int offset, int length) {
+        return irecv(COMM_WORLD, source, tag, buf, offset, length);
+    }
+
+    public static Request irecv(Communicator comm, int source, int tag, long[] buf, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, buf.length);
+        return receiveInto(comm, source, tag, Datatype.LONG, buf, offset, length);
+    }
+
+    public static Request irecv(int source, int tag, double[] buf, int offset, int length) {
+        return irecv(COMM_WORLD, source, tag, buf, offset, length);
+    }
+
+    public static Request irecv(Communicator comm, int source, int tag, double[] buf, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, buf.length);
+        return receiveInto(comm, source, tag, Datatype.DOUBLE, buf, offset, length);
+    }
+
+    private static Request receiveInto(Communicator comm, int source, int tag, Datatype type, Object buf, int offset,
+            int capacity) {
+        return new Request(receiveRequest(comm, source, tag, msg -> unpack(comm, msg, type, buf, offset, capacity)));
+    }
+
+    // Completes with `unpack` applied to the matching message. Streamed messages
+    // are unpacked on a progress thread: the connection reader that matched one
+    // has to go on to deliver its chunks.
+    private static CompletableFuture<Status> receiveRequest(Communicator comm, int source, int tag,
+            Function<Message, Status> unpack) {
+        return post(comm, source, tag).thenCompose(msg -> msg.stream < 0
+                ? CompletableFuture.completedFuture(unpack.apply(msg))
+                : CompletableFuture.supplyAsync(() -> unpack.apply(msg), progress));
+    }
+
+    // Decodes a matched message into buf[offset..), a chunk at a time if it is streamed
+    private static Status unpack(Communicator comm, Message msg, Datatype type, Object buf, int offset,
+            int capacity) {
+        checkFits(comm, msg, capacity, type.size);
+        try (MessageStream stream = new MessageStream(comm, msg)) {
+            int at = offset;
+            for (ByteBuffer chunk; (chunk = stream.nextChunk()) != null;) {
+                int count = chunk.remaining() / type.size;
+                type.decode(chunk, buf, at, count);
+                at += count;
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            throw new UncheckedIOException(e);
         }
+        return status(comm, msg, type.size);
     }
 
-    public static void barrier() {
-        try {
-            out.writeInt(3); // CMD=3 (BARRIER)
-            out.flush();
+    // Writes the payload bytes of one frame; `staging` is the link's scratch chunk
+    private interface PayloadWriter {
+        void write(DataOutputStream out, ByteBuffer staging) throws IOException;
+    }
 
-            // Wait for RELEASE
-            while (true) {
-                int cmd = in.readInt();
-                if (cmd == 4) { // CMD=4 (BARRIER_RELEASE)
-                    // Consume the rest of the packet sent by sendPacket (int arg1, String arg2)
-                    in.readInt();
-                    in.readUTF();
-                    break;
-                } else if (cmd == 2) { // CMD=2 (INCOMING MSG)
-                    // Unexpected P2P message, Buffer it!
-                    int src = in.readInt();
-                    String msg = in.readUTF();
-                    System.out.println("[MPI Debug] Buffering P2P msg from " + src + " during Barrier");
-                    messageQueue.add(msg);
-                } else {
-                    System.err.println("Protocol Error: Expected Barrier Release (4), got " + cmd);
-                    System.exit(1);
+    // A message body, handed out as the writers of its bytes [position, position + length).
+    // Eager sends take one slice of the whole body, rendezvous sends consecutive chunks.
+    private interface Payload {
+        PayloadWriter slice(long position, int length);
+    }
+
+    private static Payload bytes(byte[] data, int offset) {
+        return (position, length) -> (o, staging) -> o.write(data, offset + (int) position, length);
+    }
+
+    // Reads `src` from its current position on, without moving it
+    private static Payload buffer(ByteBuffer src) {
+        int start = src.position();
+        return (position, length) -> (o, staging) -> {
+            int from = start + (int) position;
+            if (src.hasArray()) {
+                o.write(src.array(), src.arrayOffset() + from, length);
+            } else {
+                byte[] chunk = staging.array();
+                for (int done = 0; done < length;) {
+                    int n = Math.min(chunk.length, length - done);
+                    src.get(from + done, chunk, 0, n);
+                    o.write(chunk, 0, n);
+                    done += n;
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        };
+    }
+
+    // Encodes array elements through the staging chunk, CHUNK_SIZE bytes at a time.
+    // Slices start and end on element boundaries (RNDV_CHUNK is a multiple of 8).
+    private static Payload elements(Datatype type, Object data, int offset) {
+        return (position, length) -> (o, staging) -> {
+            for (int i = offset + (int) (position / type.size), left = length / type.size; left > 0;) {
+                int n = Math.min(left, CHUNK_SIZE / type.size);
+                staging.clear();
+                type.encode(data, i, n, staging);
+                o.write(staging.array(), 0, n * type.size);
+                i += n;
+                left -= n;
+            }
+        };
+    }
+
+    // Reads each slice from `source` as it is taken, into one reused buffer,
+    // so slices must be written before the next is taken (blocking sends only)
+    private static Payload channel(ReadableByteChannel source, long total) {
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(total, RNDV_CHUNK));
+        return (position, length) -> {
+            chunk.clear().limit(length);
+            try {
+                while (chunk.hasRemaining()) {
+                    if (source.read(chunk) < 0) {
+                        throw new EOFException("Channel ended after " + (position + chunk.position()) + " of "
+                                + total + " bytes");
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return (o, staging) -> o.write(chunk.array(), 0, length);
+        };
+    }
+
+    private static void sendFrame(Communicator comm, int dest, int tag, long length, Payload payload) {
+        checkTag(tag);
+        boolean rendezvous = length >= RNDV_THRESHOLD;
+        if (!rendezvous) {
+            // Done once written: the frame's own trace event marks it
+            awaitWritten(transmit(comm, dest, tag, length, payload, false, true));
+            return;
         }
+        Tracer.enter(Tracer.Span.SEND);
+        awaitWritten(transmit(comm, dest, tag, length, payload, true, true));
+        Tracer.exit(Tracer.Span.SEND, dest, tag, length);
     }
 
-    public static String bcast(int root, String data) {
+    private static Request isendFrame(Communicator comm, int dest, int tag, long length, Payload payload) {
+        checkTag(tag);
+        return new Request(transmit(comm, dest, tag, length, payload, length >= RNDV_THRESHOLD, false)
+                .thenApply(v -> new Status(comm.rank(), tag, length, 1)));
+    }
+
+    // Sends one message, either eagerly as a single frame or by rendezvous: a
+    // flagged frame announcing stream `id`, in order with the other sends to
+    // `dest`, then the body in chunks as the receiver grants credit for them.
+    // Blocking sends pump the chunks themselves, non-blocking ones on a
+    // progress thread.
+    private static CompletableFuture<Void> transmit(Communicator comm, int dest, int tag, long length,
+            Payload payload, boolean rendezvous, boolean blocking) {
+        int match = matchWord(comm.context, tag);
+        if (!rendezvous) {
+            try {
+                return submitFrame(comm, dest, match, (int) length, payload.slice(0, (int) length), blocking);
+            } catch (UncheckedIOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        int id = nextStream.getAndIncrement() & STREAM_ID_MASK;
+        byte[] rts = ByteBuffer.allocate(16).putInt(id).putLong(length).putInt(RNDV_CHUNK).array();
+        CompletableFuture<Void> announced = submitFrame(comm, dest, match | ENVELOPE_FLAG, rts.length,
+                (o, staging) -> o.write(rts), blocking);
+        Runnable pump = () -> pump(comm, dest, id, length, payload);
+        return blocking ? announced.thenRun(pump) : announced.thenRunAsync(pump, progress);
+    }
+
+    // Sends the body of stream `id`, one chunk per credit. A negative credit
+    // cancels the rest. An empty chunk ends the stream early, whether it was
+    // cancelled or the payload could not be read.
+    private static void pump(Communicator comm, int dest, int id, long length, Payload payload) {
+        int credits = 0;
         try {
-            if (rank == root) {
-                out.writeInt(5); // CMD=5 (BCAST)
-                out.writeUTF(data);
-                out.flush();
-                return data;
-            } else {
-                // Non-roots wait for payload
-                while (true) {
-                    int cmd = in.readInt();
-                    if (cmd == 6) {
-                        // CMD=6 (BCAST_PAYLOAD)
-                        /* int r = */ in.readInt(); // Root (from Router)
-                        String msg = in.readUTF();
-                        return msg;
-                    } else if (cmd == 2) { // CMD=2 (INCOMING MSG)
-                        // Unexpected P2P message, Buffer it!
-                        int src = in.readInt();
-                        String msg = in.readUTF();
-                        System.out.println("[MPI Debug] Buffering P2P msg from " + src + " during Bcast");
-                        messageQueue.add(msg);
-                    } else {
-                        System.err.println("Protocol Error: Expected Bcast Payload (6), got " + cmd);
-                        System.exit(1);
+            for (long position = 0; position < length;) {
+                while (credits == 0) {
+                    credits = ByteBuffer.wrap(receiveInternal(comm, dest, creditTag(id))).getInt();
+                    if (credits < 0) {
+                        sendInternal(comm, dest, chunkTag(id), EMPTY, 0, 0);
+                        return;
                     }
                 }
+                int n = (int) Math.min(RNDV_CHUNK, length - position);
+                awaitWritten(submitFrame(comm, dest, matchWord(comm.context, chunkTag(id)), n,
+                        payload.slice(position, n), true));
+                position += n;
+                credits--;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+        } catch (UncheckedIOException e) {
+            sendInternal(comm, dest, chunkTag(id), EMPTY, 0, 0);
+            throw e;
         }
     }
 
-    // Optional cleanup
-    public static void finalize_mpi() {
+    static int chunkTag(int stream) {
+        return STREAM_TAGS - stream;
+    }
+
+    static int creditTag(int stream) {
+        return STREAM_TAGS - (STREAM_ID_MASK + 1) - stream;
+    }
+
+    private static CompletableFuture<Void> submitFrame(Communicator comm, int dest, int match, int length,
+            PayloadWriter payload, boolean blocking) {
+        if (dest < 0 || dest >= comm.size()) {
+            throw new IllegalArgumentException("Invalid destination rank " + dest + " (size " + comm.size() + ")");
+        }
+        PeerLink link = linkTo(comm.worldRank(dest));
+        if (link.batch != null) {
+            if (length <= Aggregation.MAX_MESSAGE && comm.getAggregation() && (match & ENVELOPE_FLAG) == 0) {
+                return batch(link, match, length, payload, blocking);
+            }
+            flushBatch(link, blocking); // Ahead of this frame, in order
+        }
+        if (length >= Compression.THRESHOLD && link.remote && comm.getCompression()
+                && (match & ENVELOPE_FLAG) == 0 && link.compression.shouldTry()) {
+            return link.submit(() -> writeCompressed(link, match, length, payload), progress, blocking);
+        }
+        metrics.sent(link.dest, length);
+        return link.submit(() -> {
+            synchronized (link.lock()) {
+                link.beginFrame(rank, match, length);
+                Tracer.sent(link.dest, match & ~ENVELOPE_FLAG, length);
+                payload.write(link.out, link.staging);
+                link.out.flush();
+            }
+        }, progress, blocking);
+    }
+
+    // Copies a small message into the link's batch (see Aggregation); the send is complete once it is there
+    private static CompletableFuture<Void> batch(PeerLink link, int match, int length, PayloadWriter payload,
+            boolean inline) {
+        Aggregation.Batch batch = link.batch;
+        synchronized (batch) {
+            boolean first = batch.isEmpty();
+            int start = batch.position();
+            try {
+                payload.write(batch.add(match, length), batch.staging);
+            } catch (IOException | UncheckedIOException e) {
+                batch.abandon(start);
+                return CompletableFuture.failedFuture(e);
+            }
+            metrics.sent(link.dest, length);
+            if (!batch.fits(Aggregation.MAX_MESSAGE)) {
+                flushBatch(link, inline);
+            } else if (first) {
+                batched.add(link);
+                long generation = batch.generation();
+                Aggregation.schedule(() -> {
+                    synchronized (batch) {
+                        if (batch.generation() == generation) {
+                            flushBatch(link, true);
+                        }
+                    }
+                });
+            }
+        }
+        return COPIED;
+    }
+
+    // Sends what the link's batch holds as one frame, if anything. Sends
+    // that went into it have completed already, so a failed write can only
+    // be reported here.
+    private static void flushBatch(PeerLink link, boolean inline) {
+        Aggregation.Batch batch = link.batch;
+        synchronized (batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            metrics.batched(batch.messages());
+            byte[] frame = batch.drain();
+            batched.remove(link);
+            // Submitted under the batch's lock, so that nothing sent after the batch overtakes it
+            link.submit(() -> {
+                synchronized (link.lock()) {
+                    link.beginFrame(rank, ENVELOPE_FLAG, frame.length);
+                    if (Tracer.ENABLED) {
+                        // One event per message, as the receiver has them
+                        Aggregation.unpack(rank, frame, (from, match, data) -> Tracer.sent(link.dest, match,
+                                data.length));
+                    }
+                    link.out.write(frame);
+                    link.out.flush();
+                }
+            }, progress, inline).whenComplete((v, e) -> {
+                if (e != null) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    /** Sends every batched message; called before this rank blocks, as a peer may be waiting for one. */
+    static void flushBatches() {
+        if (!batched.isEmpty()) {
+            for (PeerLink link : batched) {
+                flushBatch(link, true);
+            }
+        }
+    }
+
+    // Writes the frame deflated if that shrinks it enough, as is otherwise (see Compression)
+    private static void writeCompressed(PeerLink link, int match, int length, PayloadWriter payload)
+            throws IOException {
+        Compression.Packer packer = Compression.acquire();
         try {
-            if (socket != null)
-                socket.close();
+            payload.write(packer.fill(length), packer.staging);
+            int packed = packer.pack(length);
+            link.compression.outcome(packed >= 0);
+            if (packed >= 0) {
+                metrics.compressed(length - packed);
+            }
+            int wireLength = packed >= 0 ? packed : length;
+            metrics.sent(link.dest, wireLength);
+            synchronized (link.lock()) {
+                link.beginFrame(rank, packed >= 0 ? match | ENVELOPE_FLAG : match, wireLength);
+                Tracer.sent(link.dest, match & ~ENVELOPE_FLAG, length);
+                link.out.write(packed >= 0 ? packer.packed : packer.raw, 0, wireLength);
+                link.out.flush();
+            }
+        } finally {
+            Compression.release(packer);
+        }
+    }
+
+    // Blocking sends report write failures rather than throw
+    private static void awaitWritten(CompletableFuture<Void> written) {
+        try {
+            written.get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void checkTag(int tag) {
+        if (tag < 0 || tag > TAG_UB) {
+            throw new IllegalArgumentException("Invalid tag " + tag + " (user tags are 0.." + TAG_UB + ")");
+        }
+    }
+
+    private static int matchWord(int context, int tag) {
+        return context << (TAG_BITS + 1) | tag & TAG_MASK;
+    }
+
+    /**
+     * Reserves a context id for a new communicator. Each member proposes the
+     * lowest id it has not used and {@code agree} returns the largest proposal
+     * across the members, which is then unused on all of them. {@code agree}
+     * must not allocate contexts itself.
+     */
+    static int allocateContext(IntUnaryOperator agree) {
+        int proposed = nextContext.get();
+        int context = agree.applyAsInt(proposed);
+        if (nextContext.get() != proposed) {
+            // Taken meanwhile on this rank, so the agreed id may already be in use
+            throw new IllegalStateException("Context allocated while agreeing on another");
+        }
+        if (context > MAX_CONTEXT) {
+            throw new IllegalStateException("Out of communicator contexts (" + MAX_CONTEXT + ")");
+        }
+        nextContext.accumulateAndGet(context + 1, Math::max);
+        return context;
+    }
+
+    // ---- Connection management ----
+
+    private static PeerLink linkTo(int dest) {
+        PeerLink link = links.get(dest);
+        if (link != null) {
+            return link;
+        }
+        // Connect at most once per peer. A link never changes afterwards, which
+        // keeps messages between a pair of ranks in order.
+        synchronized (links) {
+            link = links.get(dest);
+            if (link == null) {
+                link = openLink(dest);
+                links.put(dest, link);
+            }
+            return link;
+        }
+    }
+
+    private static PeerLink openLink(int dest) {
+        if (LocalFabric.joined()) {
+            LocalFabric.Endpoint peer = LocalFabric.endpoint(dest);
+            if (peer != null) {
+                return PeerLink.inMemory(dest, peer);
+            }
+        }
+        if (directEnabled) {
+            // Directory entries look like "host:port/node"
+            String endpoint = lookup(dest);
+            if (endpoint != null && !endpoint.isEmpty()) {
+                int slash = endpoint.indexOf('/');
+                String address = endpoint.substring(0, slash);
+                String peerNode = endpoint.substring(slash + 1);
+                int colon = address.lastIndexOf(':');
+                PeerLink link;
+                try {
+                    link = PeerLink.connect(dest, rank, address.substring(0, colon),
+                            Integer.parseInt(address.substring(colon + 1)), !peerNode.equals(nodeName));
+                } catch (IOException e) {
+                    System.err.println("[MPI] Direct connection to rank " + dest + " at " + address
+                            + " failed (" + e.getMessage() + "), relaying through router");
+                    return PeerLink.viaRouter(dest, out);
+                }
+                if (shmDir != null && peerNode.equals(nodeName)) {
+                    File file = new File(shmDir, "mpi-" + jobId + "-" + rank + "-" + dest + ".ring");
+                    try {
+                        return PeerLink.overSharedMemory(link, rank, file, shmRingSize);
+                    } catch (IOException e) {
+                        System.err.println("[MPI] Shared memory to rank " + dest + " unavailable ("
+                                + e.getMessage() + "), using TCP");
+                        file.delete();
+                    }
+                }
+                return link;
+            }
+        }
+        return PeerLink.viaRouter(dest, out);
+    }
+
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    static String nodeName() {
+        return nodeName;
+    }
+
+    /** The node mpiexec placed a world rank on, numbered from 0 in rank order, or -1 when not known. */
+    static int nodeOf(int worldRank) {
+        return nodeOfRank == null ? -1 : nodeOfRank[worldRank];
+    }
+
+    // "3,2" -> {0, 0, 0, 1, 1}; null when missing or not adding up to the job size
+    private static int[] parseNodeMap(String counts, int size) {
+        if (counts == null || counts.isEmpty()) {
+            return null;
+        }
+        int[] nodes = new int[size];
+        int next = 0;
+        try {
+            String[] parts = counts.split(",");
+            for (int node = 0; node < parts.length; node++) {
+                int count = Integer.parseInt(parts[node].trim());
+                for (int i = 0; i < count; i++) {
+                    if (next == size) {
+                        return null;
+                    }
+                    nodes[next++] = node;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return next == size ? nodes : null;
+    }
+
+    static String jobId() {
+        return jobId;
+    }
+
+    // Where ring files live; null disables the intra-node transport
+    private static File sharedMemoryDir() {
+        if ("0".equals(setting("MPI_SHM", "1"))) {
+            return null;
+        }
+        File dir = new File(setting("MPI_SHM_DIR", "/dev/shm"));
+        return dir.isDirectory() && dir.canWrite() ? dir : null;
+    }
+
+    /** Where ring and window files go, or null when shared memory is off. */
+    static File sharedMemoryDirectory() {
+        return shmDir;
+    }
+
+    // Maps a ring announced by a co-located peer and starts draining it
+    private static void attachRing(String path) throws IOException {
+        File file = new File(path);
+        ShmRing ring = ShmRing.attach(file);
+        file.delete(); // The mapping outlives the name; nothing is left behind in /dev/shm
+        attachedRings.add(ring);
+        synchronized (pollerLock) {
+            if (!pollerStarted) {
+                pollerStarted = true;
+                startDaemon("mpi-shm-poller", MPI::pollRings);
+            }
+        }
+    }
+
+    private static void pollRings() {
+        int idle = 0;
+        while (!finalized) {
+            boolean progress = false;
+            for (ShmRing ring : attachedRings) {
+                try {
+                    progress |= ring.poll(MPI::deliver);
+                    if (ring.isFinished()) {
+                        attachedRings.remove(ring);
+                    }
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                }
+            }
+            idle = progress ? 0 : ShmRing.backoff(idle);
+        }
+    }
+
+    private static void deliver(int src, int match, byte[] data) {
+        boolean flagged = (match & ENVELOPE_FLAG) != 0;
+        int kind = flagged ? ByteBuffer.wrap(data).getInt() : 0;
+        if (flagged && kind == Aggregation.BATCH) {
+            deliverBatch(src, data);
+            return;
+        }
+        Tracer.arrived(src, match & ~ENVELOPE_FLAG, data.length);
+        metrics.received(src, data.length);
+        int tag = tagOf(match);
+        int context = contextOf(match);
+        Message msg;
+        if (flagged && kind == Compression.DEFLATED) {
+            msg = new Message(src, context, tag, Compression.inflate(src, data));
+        } else if (flagged) {
+            ByteBuffer rts = ByteBuffer.wrap(data);
+            int stream = rts.getInt();
+            msg = new Message(src, context, tag, null, rts.getLong(), stream, rts.getInt());
+        } else {
+            msg = new Message(src, context, tag, data);
+        }
+        PostedReceive matched = null;
+        synchronized (inboxLock) {
+            if (tag >= 0) {
+                matched = matchPosted(msg);
+            }
+            if (matched == null) {
+                inbox.add(msg);
+                metrics.unexpected(inbox.size());
+                inboxLock.notifyAll();
+            }
+        }
+        if (matched != null) {
+            // Outside the lock: completion runs the receive's unpacking on this thread
+            matched.match.complete(msg);
+        }
+    }
+
+    // Delivers the messages of a batch (see Aggregation) in order, under one hold of the inbox lock
+    private static void deliverBatch(int src, byte[] frame) {
+        List<Message> messages = new ArrayList<>();
+        Aggregation.unpack(src, frame, (from, match, data) -> {
+            Tracer.arrived(from, match, data.length);
+            metrics.received(from, data.length);
+            messages.add(new Message(from, contextOf(match), tagOf(match), data));
+        });
+        PostedReceive[] matched = new PostedReceive[messages.size()];
+        synchronized (inboxLock) {
+            for (int i = 0; i < matched.length; i++) {
+                Message msg = messages.get(i);
+                if (msg.tag >= 0) {
+                    matched[i] = matchPosted(msg);
+                }
+                if (matched[i] == null) {
+                    inbox.add(msg);
+                    metrics.unexpected(inbox.size());
+                }
+            }
+            inboxLock.notifyAll();
+        }
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i] != null) {
+                matched[i].match.complete(messages.get(i));
+            }
+        }
+    }
+
+    static int tagOf(int match) {
+        return match << (CONTEXT_BITS + 1) >> (CONTEXT_BITS + 1);
+    }
+
+    static int contextOf(int match) {
+        return match >>> (TAG_BITS + 1);
+    }
+
+    // Removes and returns the oldest posted receive matching the message. Caller holds inboxLock.
+    private static PostedReceive matchPosted(Message msg) {
+        for (Iterator<PostedReceive> it = postedReceives.iterator(); it.hasNext();) {
+            PostedReceive posted = it.next();
+            if (posted.match.isDone()) {
+                it.remove(); // Abandoned by an interrupted receive
+            } else if (posted.matches(msg)) {
+                it.remove();
+                return posted;
+            }
+        }
+        return null;
+    }
+
+    // Takes the earliest matching message already here, or posts a receive for the next one
+    private static CompletableFuture<Message> post(Communicator comm, int source, int tag) {
+        checkMatch(comm, source, tag);
+        int src = source == ANY_SOURCE ? ANY_SOURCE : comm.worldRank(source);
+        synchronized (inboxLock) {
+            Message msg = inbox.poll(comm.context, src, tag);
+            if (msg != null) {
+                return CompletableFuture.completedFuture(msg);
+            }
+            if (routerLost) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Connection to router lost"));
+            }
+            PostedReceive posted = new PostedReceive(comm.context, src, tag);
+            postedReceives.add(posted);
+            return posted.match;
+        }
+    }
+
+    // ---- Internal tagged transport for the collectives ----
+
+    static void sendInternal(Communicator comm, int dest, int tag, byte[] data, int offset, int length) {
+        awaitWritten(submitFrame(comm, dest, matchWord(comm.context, tag), length,
+                bytes(data, offset).slice(0, length), true));
+    }
+
+    /** Sends {@code count} elements of a buffer of type {@code type} without an intermediate byte[]. */
+    static void sendInternal(Communicator comm, int dest, int tag, Datatype type, Object data, int offset, int count) {
+        int length = Math.multiplyExact(count, type.size);
+        Payload payload = type == Datatype.BYTE ? bytes((byte[]) data, offset) : elements(type, data, offset);
+        awaitWritten(submitFrame(comm, dest, matchWord(comm.context, tag), length, payload.slice(0, length), true));
+    }
+
+    /** Blocks for the next message from {@code src} (a rank of {@code comm}) carrying internal tag {@code tag}. */
+    static byte[] receiveInternal(Communicator comm, int src, int tag) {
+        try {
+            Message msg = take(comm.context, comm.worldRank(src), tag);
+            if (msg == null) {
+                throw new IllegalStateException("Connection to router lost");
+            }
+            return msg.data;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for rank " + src, e);
+        }
+    }
+
+    // ---- Request services on a private communicator (see Window) ----
+
+    /** Posts a receive without the debug line of a user receive; cancel the future to withdraw it. */
+    static CompletableFuture<Message> postService(Communicator comm, int source, int tag) {
+        return post(comm, source, tag);
+    }
+
+    /** Waits for a receive posted by {@link #postService} and returns the whole message. */
+    static byte[] awaitService(Communicator comm, CompletableFuture<Message> match) {
+        Message msg = awaitMatch(match);
+        return msg.stream < 0 ? msg.data : readFully(comm, msg);
+    }
+
+    // Blocks for the next message from `src` with internal tag `tag`. Returns
+    // null once the router is gone and nothing matching is left in the inbox.
+    // Matched exactly, as some internal tags equal the wildcard values.
+    private static Message take(int context, int src, int tag) throws InterruptedException {
+        flushBatches();
+        synchronized (inboxLock) {
+            while (true) {
+                Message msg = inbox.pollExact(context, src, tag);
+                if (msg != null || routerLost) {
+                    return msg;
+                }
+                inboxLock.wait();
+            }
+        }
+    }
+
+    // Asks the router's directory for the endpoint of `dest`. Returns null on timeout.
+    private static String lookup(int dest) {
+        CompletableFuture<String> reply = addressLookups.computeIfAbsent(dest, d -> new CompletableFuture<>());
+        try {
+            synchronized (out) {
+                out.writeInt(7); // CMD=7 (LOOKUP)
+                out.writeInt(dest);
+                out.flush();
+            }
+            return reply.get(LOOKUP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            System.err.println("[MPI] Address lookup for rank " + dest + " failed: " + e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            addressLookups.remove(dest);
+        }
+    }
+
+    private static void acceptLoop() {
+        try {
+            while (!listener.isClosed()) {
+                Socket peer = listener.accept();
+                tune(peer);
+                startDaemon("mpi-peer-reader", () -> {
+                    try {
+                        DataInputStream peerIn = new DataInputStream(
+                                new BufferedInputStream(peer.getInputStream(), CHUNK_SIZE));
+                        peerIn.readInt(); // Handshake (peer rank); frames carry their own source
+                        readLoop(peerIn, false);
+                    } catch (IOException e) {
+                        // Peer went away before the handshake
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // Listener closed
+        }
+    }
+
+    // Demultiplexes one incoming stream (router or peer) into the inbox.
+    private static void readLoop(DataInputStream stream, boolean fromRouter) {
+        try {
+            while (true) {
+                int cmd = stream.readInt();
+                if (cmd == 2) { // CMD=2 (INCOMING MSG)
+                    int src = stream.readInt();
+                    int tag = stream.readInt();
+                    deliver(src, tag, readPayload(stream));
+                } else if (cmd == 9 && !fromRouter) { // CMD=9 (SHM_ATTACH)
+                    /* int peer = */ stream.readInt();
+                    attachRing(new String(readPayload(stream), StandardCharsets.UTF_8));
+                } else if (cmd == 4 && fromRouter) { // CMD=4 (BARRIER_RELEASE)
+                    // Consume the rest of the packet sent by sendPacket (int arg1, byte[] payload)
+                    stream.readInt();
+                    readPayload(stream);
+                    synchronized (inboxLock) {
+                        barrierReleases++;
+                        inboxLock.notifyAll();
+                    }
+                } else if (cmd == 8 && fromRouter) { // CMD=8 (ADDRESS)
+                    int peer = stream.readInt();
+                    String address = new String(readPayload(stream), StandardCharsets.UTF_8);
+                    CompletableFuture<String> reply = addressLookups.get(peer);
+                    if (reply != null) {
+                        reply.complete(address);
+                    }
+                } else {
+                    System.err.println("Protocol Error: Unexpected command " + cmd
+                            + (fromRouter ? " from router" : " from peer"));
+                    System.exit(1);
+                }
+            }
+        } catch (IOException e) {
+            if (!finalized && !(e instanceof EOFException)) {
+                e.printStackTrace();
+            }
+            if (fromRouter) {
+                List<PostedReceive> orphaned;
+                synchronized (inboxLock) {
+                    routerLost = true;
+                    inboxLock.notifyAll();
+                    orphaned = new ArrayList<>(postedReceives);
+                    postedReceives.clear();
+                }
+                for (PostedReceive posted : orphaned) {
+                    posted.match.completeExceptionally(new IllegalStateException("Connection to router lost"));
+                }
+            }
+        }
+    }
+
+    private static byte[] readPayload(DataInputStream stream) throws IOException {
+        int length = stream.readInt();
+        byte[] data = new byte[length];
+        stream.readFully(data);
+        return data;
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // ---- Receive ----
+    //
+    // A receive takes the earliest message matching its source and tag, either
+    // of which may be a wildcard (ANY_SOURCE / ANY_TAG). Messages from one
+    // sender that match the same receive arrive in the order they were sent.
+    // The untagged forms receive from anyone with any tag.
+
+    public static String receive() {
+        return receive(ANY_SOURCE, ANY_TAG);
+    }
+
+    public static byte[] receiveBytes() {
+        return receiveBytes(ANY_SOURCE, ANY_TAG);
+    }
+
+    /** Receives into {@code buf[offset..offset+length)} and returns the number of bytes received. */
+    public static int receive(byte[] buf, int offset, int length) {
+        return receive(ANY_SOURCE, ANY_TAG, buf, offset, length).getCount();
+    }
+
+    /** Receives into the remaining space of {@code buf}, advancing its position. Returns the byte count. */
+    public static int receive(ByteBuffer buf) {
+        return receive(ANY_SOURCE, ANY_TAG, buf).getCount();
+    }
+
+    /** Receives into {@code buf[offset..offset+length)} and returns the number of elements received. */
+    public static int receive(int[] buf, int offset, int length) {
+        return receive(ANY_SOURCE, ANY_TAG, buf, offset, length).getCount();
+    }
+
+    /** Receives into {@code buf[offset..offset+length)} and returns the number of elements received. */
+    public static int receive(long[] buf, int offset, int length) {
+        return receive(ANY_SOURCE, ANY_TAG, buf, offset, length).getCount();
+    }
+
+    /** Receives into {@code buf[offset..offset+length)} and returns the number of elements received. */
+    public static int receive(double[] buf, int offset, int length) {
+        return receive(ANY_SOURCE, ANY_TAG, buf, offset, length).getCount();
+    }
+
+    /** Receives the next message from {@code source} with {@code tag} as a UTF-8 string. */
+    public static String receive(int source, int tag) {
+        return receive(COMM_WORLD, source, tag);
+    }
+
+    public static String receive(Communicator comm, int source, int tag) {
+        byte[] data = receiveBytes(comm, source, tag, true);
+        return data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    /** Receives the next message from {@code source} with {@code tag}; null if the router is lost. */
+    public static byte[] receiveBytes(int source, int tag) {
+        return receiveBytes(COMM_WORLD, source, tag);
+    }
+
+    public static byte[] receiveBytes(Communicator comm, int source, int tag) {
+        return receiveBytes(comm, source, tag, false);
+    }
+
+    // Only the original String receive() announces what it got, as it always has
+    private static byte[] receiveBytes(Communicator comm, int source, int tag, boolean announce) {
+        CommEvents.Receive event = new CommEvents.Receive();
+        event.begin();
+        long start = System.nanoTime();
+        Tracer.enter(Tracer.Span.RECEIVE, start);
+        CompletableFuture<Message> match = post(comm, source, tag);
+        try {
+            if (!match.isDone()) {
+                flushBatches();
+            }
+            Message msg = match.get();
+            receiveWaited(event, start, comm.groupRank(msg.src), msg.tag, msg.length);
+            if (announce) {
+                System.out.println("[MPI Debug] Received from " + comm.groupRank(msg.src));
+            }
+            return msg.stream < 0 ? msg.data : readFully(comm, msg);
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            match.cancel(false);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public static Status receive(int source, int tag, byte[] buf, int offset, int length) {
+        return receive(COMM_WORLD, source, tag, buf, offset, length);
+    }
+
+    public static Status receive(Communicator comm, int source, int tag, byte[] buf, int offset, int length) {
+        return received(irecv(comm, source, tag, buf, offset, length));
+    }
+
+    /** Receives into the remaining space of {@code buf}, advancing its position. */
+    public static Status receive(int source, int tag, ByteBuffer buf) {
+        return receive(COMM_WORLD, source, tag, buf);
+    }
+
+    public static Status receive(Communicator comm, int source, int tag, ByteBuffer buf) {
+        return received(irecv(comm, source, tag, buf));
+    }
+
+    public static Status receive(int source, int tag, int[] buf, int offset, int length) {
+        return receive(COMM_WORLD, source, tag, buf, offset, length);
+    }
+
+    public static Status receive(Communicator comm, int source, int tag, int[] buf, int offset, int length) {
+        return received(irecv(comm, source, tag, buf, offset, length));
+    }
+
+    public static Status receive(int source, int tag, long[] buf, int offset, int length) {
+        return receive(COMM_WORLD, source, tag, buf, offset, length);
+    }
+
+    public static Status receive(Communicator comm, int source, int tag, long[] buf, int offset, int length) {
+        return received(irecv(comm, source, tag, buf, offset, length));
+    }
+
+    public static Status receive(int source, int tag, double[] buf, int offset, int length) {
+        return receive(COMM_WORLD, source, tag, buf, offset, length);
+    }
+
+    public static Status receive(Communicator comm, int source, int tag, double[] buf, int offset, int length) {
+        return received(irecv(comm, source, tag, buf, offset, length));
+    }
+
+    /**
+     * Blocks until a message matching {@code source} and {@code tag} is
+     * available and describes it without receiving it, e.g. to size the buffer.
+     * Messages already claimed by a posted irecv are not seen. Returns null if
+     * the router is lost.
+     */
+    public static Status probe(int source, int tag) {
+        return probe(COMM_WORLD, source, tag);
+    }
+
+    public static Status probe(Communicator comm, int source, int tag) {
+        checkMatch(comm, source, tag);
+        int src = source == ANY_SOURCE ? ANY_SOURCE : comm.worldRank(source);
+        flushBatches();
+        Tracer.enter(Tracer.Span.PROBE);
+        try {
+            synchronized (inboxLock) {
+                while (true) {
+                    Message msg = inbox.peek(comm.context, src, tag);
+                    if (msg != null) {
+                        Tracer.exit(Tracer.Span.PROBE, comm.groupRank(msg.src), msg.tag, msg.length);
+                        return status(comm, msg, 1);
+                    }
+                    if (routerLost) {
+                        return null;
+                    }
+                    inboxLock.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /** Like {@link #probe} but returns null right away if nothing matches yet. */
+    public static Status iprobe(int source, int tag) {
+        return iprobe(COMM_WORLD, source, tag);
+    }
+
+    public static Status iprobe(Communicator comm, int source, int tag) {
+        checkMatch(comm, source, tag);
+        int src = source == ANY_SOURCE ? ANY_SOURCE : comm.worldRank(source);
+        synchronized (inboxLock) {
+            Message msg = inbox.peek(comm.context, src, tag);
+            return msg == null ? null : status(comm, msg, 1);
+        }
+    }
+
+    private static Status received(Request request) {
+        CommEvents.Receive event = new CommEvents.Receive();
+        event.begin();
+        long start = System.nanoTime();
+        Tracer.enter(Tracer.Span.RECEIVE, start);
+        Status status = request.await();
+        receiveWaited(event, start, status.getSource(), status.getTag(), status.getLength());
+        return status;
+    }
+
+    // Validates that a message fits `capacity` elements of `elementSize` bytes.
+    // A rejected stream is cancelled, so that its sender does not wait on it.
+    private static void checkFits(Communicator comm, Message msg, int capacity, int elementSize) {
+        long length = msg.length;
+        String error = null;
+        if (length % elementSize != 0) {
+            error = "Message of " + length + " bytes is not a whole number of " + elementSize + "-byte elements";
+        } else if (length / elementSize > capacity) {
+            error = "Message truncated: " + (length / elementSize) + " elements received, buffer holds " + capacity;
+        }
+        if (error != null) {
+            MessageStream.discard(comm, msg);
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    // Collects a streamed message into one array, for the receives that return one
+    private static byte[] readFully(Communicator comm, Message msg) {
+        if (msg.length > Integer.MAX_VALUE - 8) {
+            MessageStream.discard(comm, msg);
+            throw new IllegalArgumentException("Message of " + msg.length
+                    + " bytes does not fit in an array; use receiveStream");
+        }
+        byte[] data = new byte[(int) msg.length];
+        unpack(comm, msg, Datatype.BYTE, data, 0, data.length);
+        return data;
+    }
+
+    private static Status status(Communicator comm, Message msg, int elementSize) {
+        return new Status(comm.groupRank(msg.src), msg.tag, msg.length, elementSize);
+    }
+
+    private static void checkMatch(Communicator comm, int source, int tag) {
+        if (source != ANY_SOURCE && (source < 0 || source >= comm.size())) {
+            throw new IllegalArgumentException("Invalid source rank " + source + " (size " + comm.size() + ")");
+        }
+        if (tag != ANY_TAG) {
+            checkTag(tag);
+        }
+    }
+
+    // ---- Streaming ----
+    //
+    // Messages of MPI_RNDV_THRESHOLD bytes or more (4 MB by default) go by
+    // rendezvous: the sender announces the message, and once a receive takes
+    // it the body follows in chunks of MPI_RNDV_CHUNK bytes (256 KB), at most
+    // MPI_RNDV_WINDOW chunks (8) ahead of what the receiver has consumed.
+    // Sending, relaying and receiving the chunks overlap, and neither end
+    // holds more than a window of them. This is transparent to the receives
+    // above; the forms below also let either end stream a message that is
+    // never in memory as a whole, e.g. to or from a file. A blocking send of
+    // a large message returns once the receiver has taken all of it.
+
+    /**
+     * Sends {@code length} bytes read from {@code source}, a chunk at a time
+     * as the receiver takes them. Throws if the channel fails or ends early;
+     * the receiver's stream then fails as well.
+     */
+    public static void send(int dest, int tag, ReadableByteChannel source, long length) throws IOException {
+        send(COMM_WORLD, dest, tag, source, length);
+    }
+
+    public static void send(Communicator comm, int dest, int tag, ReadableByteChannel source, long length)
+            throws IOException {
+        checkTag(tag);
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length " + length);
+        }
+        CompletableFuture<Void> sent = transmit(comm, dest, tag, length, channel(source, length),
+                length > RNDV_CHUNK, true);
+        try {
+            sent.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending to rank " + dest);
+        }
+    }
+
+    /** Sends {@code length} bytes read from {@code source}; see the channel form. */
+    public static void send(int dest, int tag, InputStream source, long length) throws IOException {
+        send(COMM_WORLD, dest, tag, source, length);
+    }
+
+    public static void send(Communicator comm, int dest, int tag, InputStream source, long length)
+            throws IOException {
+        send(comm, dest, tag, Channels.newChannel(source), length);
+    }
+
+    /**
+     * Takes the next message from {@code source} with {@code tag} and returns
+     * its bytes as a stream, which requests chunks as it is read. Closing the
+     * stream before the end discards the rest of the message. Throws
+     * IllegalStateException if the router is lost.
+     */
+    public static MessageStream receiveStream(int source, int tag) {
+        return receiveStream(COMM_WORLD, source, tag);
+    }
+
+    public static MessageStream receiveStream(Communicator comm, int source, int tag) {
+        CommEvents.Receive event = new CommEvents.Receive();
+        event.begin();
+        long start = System.nanoTime();
+        Message msg = awaitMatch(post(comm, source, tag));
+        receiveWaited(event, start, comm.groupRank(msg.src), msg.tag, msg.length);
+        return new MessageStream(comm, msg);
+    }
+
+    /** Receives the next matching message into {@code file} at {@code position}; returns its length. */
+    public static long receive(int source, int tag, FileChannel file, long position) throws IOException {
+        return receive(COMM_WORLD, source, tag, file, position);
+    }
+
+    public static long receive(Communicator comm, int source, int tag, FileChannel file, long position)
+            throws IOException {
+        try (MessageStream stream = receiveStream(comm, source, tag)) {
+            return stream.writeTo(file, position);
+        }
+    }
+
+    // Accounts the wait of a blocking receive that began at `start` (System.nanoTime())
+    private static void receiveWaited(CommEvents.Receive event, long start, int source, int tag, long length) {
+        long end = System.nanoTime();
+        Tracer.exit(Tracer.Span.RECEIVE, end, source, tag, length);
+        metrics.receiveWait.record(end - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.tag = tag;
+            event.length = length;
+            event.commit();
+        }
+    }
+
+    private static Message awaitMatch(CompletableFuture<Message> match) {
+        if (!match.isDone()) {
+            flushBatches();
+        }
+        try {
+            return match.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            match.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a message", e);
+        }
+    }
+
+    // ---- Barrier ----
+
+    /** Blocks until every rank has entered the barrier, using the MPI_BARRIER algorithm. */
+    public static void barrier() {
+        barrier(COMM_WORLD);
+    }
+
+    public static void barrier(Communicator comm) {
+        barrier(comm, defaultBarrier);
+    }
+
+    /** Like {@link #barrier()} with an explicit algorithm, which every rank must pass alike. */
+    public static void barrier(BarrierAlgorithm algorithm) {
+        barrier(COMM_WORLD, algorithm);
+    }
+
+    public static void barrier(Communicator comm, BarrierAlgorithm algorithm) {
+        CommEvents.Barrier event = new CommEvents.Barrier();
+        event.begin();
+        long start = System.nanoTime();
+        Tracer.enter(Tracer.Span.BARRIER, start);
+        switch (algorithm) {
+            case CENTRAL:
+                if (comm == COMM_WORLD) {
+                    centralBarrier();
+                    break;
+                }
+                // The router only counts the whole job in
+                Collectives.disseminationBarrier(comm);
+                break;
+            case DISSEMINATION:
+                Collectives.disseminationBarrier(comm);
+                break;
+            case TREE:
+                Collectives.treeBarrier(comm);
+                break;
+            case HIERARCHICAL:
+                Collectives.hierarchicalBarrier(comm);
+                break;
+        }
+        long end = System.nanoTime();
+        Tracer.exit(Tracer.Span.BARRIER, end, -1, 0, 0);
+        long waited = end - start;
+        metrics.barrierWait.record(waited);
+        event.end();
+        if (event.shouldCommit()) {
+            event.algorithm = algorithm.name();
+            event.size = comm.size();
+            event.commit();
+        }
+        synchronized (barrierStatsLock) {
+            barrierCount++;
+            barrierTotalNanos += waited;
+            barrierMinNanos = Math.min(barrierMinNanos, waited);
+            barrierMaxNanos = Math.max(barrierMaxNanos, waited);
+            barrierLastNanos = waited;
+        }
+    }
+
+    /** Wait times of the barriers this rank has completed since init (or the last reset). */
+    public static BarrierStats barrierStats() {
+        synchronized (barrierStatsLock) {
+            return new BarrierStats(barrierCount, barrierTotalNanos, barrierMinNanos, barrierMaxNanos,
+                    barrierLastNanos);
+        }
+    }
+
+    public static void resetBarrierStats() {
+        synchronized (barrierStatsLock) {
+            barrierCount = barrierTotalNanos = barrierMaxNanos = barrierLastNanos = 0;
+            barrierMinNanos = Long.MAX_VALUE;
+        }
+    }
+
+    private static void centralBarrier() {
+        flushBatches();
+        try {
+            synchronized (out) {
+                out.writeInt(3); // CMD=3 (BARRIER)
+                out.flush();
+            }
+
+            // Wait for RELEASE; P2P messages arriving meanwhile stay in the inbox
+            synchronized (inboxLock) {
+                while (barrierReleases == 0 && !routerLost) {
+                    inboxLock.wait();
+                }
+                if (barrierReleases > 0) {
+                    barrierReleases--;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---- Broadcast ----
+    //
+    // Ranks forward the payload among themselves (see Collectives): a
+    // binomial tree for short messages, scatter + ring allgather for long
+    // ones. Every rank must call with the same root.
+
+    public static String bcast(int root, String data) {
+        return bcast(COMM_WORLD, root, data);
+    }
+
+    public static String bcast(Communicator comm, int root, String data) {
+        byte[] payload = bcast(comm, root, comm.rank() == root ? data.getBytes(StandardCharsets.UTF_8) : null);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /** Broadcasts {@code data} from {@code root}; non-roots pass anything (ignored) and get the root's bytes. */
+    public static byte[] bcast(int root, byte[] data) {
+        return bcast(COMM_WORLD, root, data);
+    }
+
+    public static byte[] bcast(Communicator comm, int root, byte[] data) {
+        checkRoot(comm, root);
+        CommEvents.Bcast event = new CommEvents.Bcast();
+        event.begin();
+        long start = System.nanoTime();
+        Tracer.enter(Tracer.Span.BCAST, start);
+        byte[] result = Collectives.bcast(comm, root, data);
+        bcastDone(event, start, root, result.length);
+        return result;
+    }
+
+    /** In-place broadcast of {@code buf[offset..offset+length)}; every rank must pass the same length. */
+    public static void bcast(int root, byte[] buf, int offset, int length) {
+        bcast(COMM_WORLD, root, buf, offset, length);
+    }
+
+    public static void bcast(Communicator comm, int root, byte[] buf, int offset, int length) {
+        bcastArray(comm, root, buf, offset, length);
+    }
+
+    public static void bcast(int root, int[] buf, int offset, int length) {
+        bcast(COMM_WORLD, root, buf, offset, length);
+    }
+
+    public static void bcast(Communicator comm, int root, int[] buf, int offset, int length) {
+        bcastArray(comm, root, buf, offset, length);
+    }
+
+    public static void bcast(int root, long[] buf, int offset, int length) {
+        bcast(COMM_WORLD, root, buf, offset, length);
+    }
+
+    public static void bcast(Communicator comm, int root, long[] buf, int offset, int length) {
+        bcastArray(comm, root, buf, offset, length);
+    }
+
+    public static void bcast(int root, double[] buf, int offset, int length) {
+        bcast(COMM_WORLD, root, buf, offset, length);
+    }
+
+    public static void bcast(Communicator comm, int root, double[] buf, int offset, int length) {
+        bcastArray(comm, root, buf, offset, length);
+    }
+
+    private static void bcastArray(Communicator comm, int root, Object buf, int offset, int length) {
+        checkRoot(comm, root);
+        Objects.checkFromIndexSize(offset, length, java.lang.reflect.Array.getLength(buf));
+        Datatype type = Datatype.of(buf);
+        long bytes = (long) length * type.size;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Broadcast of " + bytes + " bytes exceeds the "
+                    + Integer.MAX_VALUE + "-byte message limit");
+        }
+        CommEvents.Bcast event = new CommEvents.Bcast();
+        event.begin();
+        long start = System.nanoTime();
+        Tracer.enter(Tracer.Span.BCAST, start);
+        Collectives.bcast(comm, root, type, buf, offset, length);
+        bcastDone(event, start, root, bytes);
+    }
+
+    private static void bcastDone(CommEvents.Bcast event, long start, int root, long length) {
+        long end = System.nanoTime();
+        Tracer.exit(Tracer.Span.BCAST, end, root, 0, length);
+        metrics.bcastWait.record(end - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.root = root;
+            event.length = length;
+            event.commit();
+        }
+    }
+
+    // ---- Reduce / Allreduce ----
+    //
+    // Combine every rank's vector element-wise with `op`. reduce() leaves the
+    // result in the root's buffer (other ranks' buffers are untouched);
+    // allreduce() leaves it in everyone's. All ranks pass the same count.
+
+    public static void reduce(int root, int[] buf, Op op) {
+        reduce(COMM_WORLD, root, buf, op);
+    }
+
+    public static void reduce(Communicator comm, int root, int[] buf, Op op) {
+        reduce(comm, root, buf, 0, buf.length, op);
+    }
+
+    public static void reduce(int root, long[] buf, Op op) {
+        reduce(COMM_WORLD, root, buf, op);
+    }
+
+    public static void reduce(Communicator comm, int root, long[] buf, Op op) {
+        reduce(comm, root, buf, 0, buf.length, op);
+    }
+
+    public static void reduce(int root, double[] buf, Op op) {
+        reduce(COMM_WORLD, root, buf, op);
+    }
+
+    public static void reduce(Communicator comm, int root, double[] buf, Op op) {
+        reduce(comm, root, buf, 0, buf.length, op);
+    }
+
+    public static void reduce(int root, int[] buf, int offset, int count, Op op) {
+        reduce(COMM_WORLD, root, buf, offset, count, op);
+    }
+
+    public static void reduce(Communicator comm, int root, int[] buf, int offset, int count, Op op) {
+        reduceArray(comm, root, buf, offset, count, op);
+    }
+
+    public static void reduce(int root, long[] buf, int offset, int count, Op op) {
+        reduce(COMM_WORLD, root, buf, offset, count, op);
+    }
+
+    public static void reduce(Communicator comm, int root, long[] buf, int offset, int count, Op op) {
+        reduceArray(comm, root, buf, offset, count, op);
+    }
+
+    public static void reduce(int root, double[] buf, int offset, int count, Op op) {
+        reduce(COMM_WORLD, root, buf, offset, count, op);
+    }
+
+    public static void reduce(Communicator comm, int root, double[] buf, int offset, int count, Op op) {
+        reduceArray(comm, root, buf, offset, count, op);
+    }
+
+    public static void allreduce(int[] buf, Op op) {
+        allreduce(COMM_WORLD, buf, op);
+    }
+
+    public static void allreduce(Communicator comm, int[] buf, Op op) {
+        allreduce(comm, buf, 0, buf.length, op);
+    }
+
+    public static void allreduce(long[] buf, Op op) {
+        allreduce(COMM_WORLD, buf, op);
+    }
+
+    public static void allreduce(Communicator comm, long[] buf, Op op) {
+        allreduce(comm, buf, 0, buf.length, op);
+    }
+
+    public static void allreduce(double[] buf, Op op) {
+        allreduce(COMM_WORLD, buf, op);
+    }
+
+    public static void allreduce(Communicator comm, double[] buf, Op op) {
+        allreduce(comm, buf, 0, buf.length, op);
+    }
+
+    public static void allreduce(int[] buf, int offset, int count, Op op) {
+        allreduce(COMM_WORLD, buf, offset, count, op);
+    }
+
+    public static void allreduce(Communicator comm, int[] buf, int offset, int count, Op op) {
+        allreduceArray(comm, buf, offset, count, op);
+    }
+
+    public static void allreduce(long[] buf, int offset, int count, Op op) {
+        allreduce(COMM_WORLD, buf, offset, count, op);
+    }
+
+    public static void allreduce(Communicator comm, long[] buf, int offset, int count, Op op) {
+        allreduceArray(comm, buf, offset, count, op);
+    }
+
+    public static void allreduce(double[] buf, int offset, int count, Op op) {
+        allreduce(COMM_WORLD, buf, offset, count, op);
+    }
+
+    public static void allreduce(Communicator comm, double[] buf, int offset, int count, Op op) {
+        allreduceArray(comm, buf, offset, count, op);
+    }
+
+    private static void reduceArray(Communicator comm, int root, Object buf, int offset, int count, Op op) {
+        checkRoot(comm, root);
+        Objects.checkFromIndexSize(offset, count, java.lang.reflect.Array.getLength(buf));
+        checkPairs(count, op);
+        Tracer.enter(Tracer.Span.REDUCE);
+        Collectives.reduce(comm, root, buf, offset, count, op);
+        Tracer.exit(Tracer.Span.REDUCE, root, 0, (long) count * Datatype.of(buf).size);
+    }
+
+    private static void allreduceArray(Communicator comm, Object buf, int offset, int count, Op op) {
+        Objects.checkFromIndexSize(offset, count, java.lang.reflect.Array.getLength(buf));
+        checkPairs(count, op);
+        Tracer.enter(Tracer.Span.ALLREDUCE);
+        Collectives.allreduce(comm, buf, offset, count, op);
+        Tracer.exit(Tracer.Span.ALLREDUCE, -1, 0, (long) count * Datatype.of(buf).size);
+    }
+
+    // ---- Scatter / Gather / Allgather / Alltoall ----
+    //
+    // Block i of a distributed buffer belongs to rank i. Offsets, counts and
+    // displacements are in elements; ByteBuffers count bytes from absolute
+    // index 0 and keep their position. Send and receive buffers must have
+    // the same element type. Buffers and layouts only the root reads (the
+    // send side of scatter, the receive side of gather) may be null
+    // elsewhere. Everything is received in place.
+
+    /** Rank i receives block i ({@code count} elements from {@code sendOffset + i * count}) of the root's buffer. */
+    public static void scatter(int root, byte[] sendbuf, int sendOffset, byte[] recvbuf, int recvOffset, int count) {
+        scatter(COMM_WORLD, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void scatter(Communicator comm, int root, byte[] sendbuf, int sendOffset, byte[] recvbuf,
+            int recvOffset, int count) {
+        scatterArray(comm, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void scatter(int root, int[] sendbuf, int sendOffset, int[] recvbuf, int recvOffset, int count) {
+        scatter(COMM_WORLD, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void scatter(Communicator comm, int root, int[] sendbuf, int sendOffset, int[] recvbuf,
+            int recvOffset, int count) {
+        scatterArray(comm, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void scatter(int root, long[] sendbuf, int sendOffset, long[] recvbuf, int recvOffset, int count) {
+        scatter(COMM_WORLD, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void scatter(Communicator comm, int root, long[] sendbuf, int sendOffset, long[] recvbuf,
+            int recvOffset, int count) {
+        scatterArray(comm, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void scatter(int root, double[] sendbuf, int sendOffset, double[] recvbuf, int recvOffset,
+            int count) {
+        scatter(COMM_WORLD, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void scatter(Communicator comm, int root, double[] sendbuf, int sendOffset, double[] recvbuf,
+            int recvOffset, int count) {
+        scatterArray(comm, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void scatter(int root, ByteBuffer sendbuf, int sendOffset, ByteBuffer recvbuf, int recvOffset,
+            int count) {
+        scatter(COMM_WORLD, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void scatter(Communicator comm, int root, ByteBuffer sendbuf, int sendOffset, ByteBuffer recvbuf,
+            int recvOffset, int count) {
+        scatterArray(comm, root, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    /** Rank i receives {@code sendCounts[i]} elements from {@code displs[i]} of the root's buffer. */
+    public static void scatterv(int root, byte[] sendbuf, int[] sendCounts, int[] displs, byte[] recvbuf,
+            int recvOffset, int recvCount) {
+        scatterv(COMM_WORLD, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    public static void scatterv(Communicator comm, int root, byte[] sendbuf, int[] sendCounts, int[] displs,
+            byte[] recvbuf, int recvOffset, int recvCount) {
+        scattervArray(comm, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    public static void scatterv(int root, int[] sendbuf, int[] sendCounts, int[] displs, int[] recvbuf, int recvOffset,
+            int recvCount) {
+        scatterv(COMM_WORLD, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    public static void scatterv(Communicator comm, int root, int[] sendbuf, int[] sendCounts, int[] displs,
+            int[] recvbuf, int recvOffset, int recvCount) {
+        scattervArray(comm, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    public static void scatterv(int root, long[] sendbuf, int[] sendCounts, int[] displs, long[] recvbuf,
+            int recvOffset, int recvCount) {
+        scatterv(COMM_WORLD, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    public static void scatterv(Communicator comm, int root, long[] sendbuf, int[] sendCounts, int[] displs,
+            long[] recvbuf, int recvOffset, int recvCount) {
+        scattervArray(comm, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    public static void scatterv(int root, double[] sendbuf, int[] sendCounts, int[] displs, double[] recvbuf,
+            int recvOffset, int recvCount) {
+        scatterv(COMM_WORLD, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    public static void scatterv(Communicator comm, int root, double[] sendbuf, int[] sendCounts, int[] displs,
+            double[] recvbuf, int recvOffset, int recvCount) {
+        scattervArray(comm, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    public static void scatterv(int root, ByteBuffer sendbuf, int[] sendCounts, int[] displs, ByteBuffer recvbuf,
+            int recvOffset, int recvCount) {
+        scatterv(COMM_WORLD, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    public static void scatterv(Communicator comm, int root, ByteBuffer sendbuf, int[] sendCounts, int[] displs,
+            ByteBuffer recvbuf, int recvOffset, int recvCount) {
+        scattervArray(comm, root, sendbuf, sendCounts, displs, recvbuf, recvOffset, recvCount);
+    }
+
+    /** The root receives every rank's {@code count} elements as block i, at {@code recvOffset + i * count}. */
+    public static void gather(int root, byte[] sendbuf, int sendOffset, int count, byte[] recvbuf, int recvOffset) {
+        gather(COMM_WORLD, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void gather(Communicator comm, int root, byte[] sendbuf, int sendOffset, int count, byte[] recvbuf,
+            int recvOffset) {
+        gatherArray(comm, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void gather(int root, int[] sendbuf, int sendOffset, int count, int[] recvbuf, int recvOffset) {
+        gather(COMM_WORLD, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void gather(Communicator comm, int root, int[] sendbuf, int sendOffset, int count, int[] recvbuf,
+            int recvOffset) {
+        gatherArray(comm, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void gather(int root, long[] sendbuf, int sendOffset, int count, long[] recvbuf, int recvOffset) {
+        gather(COMM_WORLD, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void gather(Communicator comm, int root, long[] sendbuf, int sendOffset, int count, long[] recvbuf,
+            int recvOffset) {
+        gatherArray(comm, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void gather(int root, double[] sendbuf, int sendOffset, int count, double[] recvbuf, int recvOffset) {
+        gather(COMM_WORLD, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void gather(Communicator comm, int root, double[] sendbuf, int sendOffset, int count,
+            double[] recvbuf, int recvOffset) {
+        gatherArray(comm, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void gather(int root, ByteBuffer sendbuf, int sendOffset, int count, ByteBuffer recvbuf,
+            int recvOffset) {
+        gather(COMM_WORLD, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void gather(Communicator comm, int root, ByteBuffer sendbuf, int sendOffset, int count,
+            ByteBuffer recvbuf, int recvOffset) {
+        gatherArray(comm, root, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    /** The root receives rank i's elements at {@code displs[i]}; {@code recvCounts[i]} bounds their number. */
+    public static void gatherv(int root, byte[] sendbuf, int sendOffset, int sendCount, byte[] recvbuf,
+            int[] recvCounts, int[] displs) {
+        gatherv(COMM_WORLD, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void gatherv(Communicator comm, int root, byte[] sendbuf, int sendOffset, int sendCount,
+            byte[] recvbuf, int[] recvCounts, int[] displs) {
+        gathervArray(comm, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void gatherv(int root, int[] sendbuf, int sendOffset, int sendCount, int[] recvbuf, int[] recvCounts,
+            int[] displs) {
+        gatherv(COMM_WORLD, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void gatherv(Communicator comm, int root, int[] sendbuf, int sendOffset, int sendCount, int[] recvbuf,
+            int[] recvCounts, int[] displs) {
+        gathervArray(comm, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void gatherv(int root, long[] sendbuf, int sendOffset, int sendCount, long[] recvbuf,
+            int[] recvCounts, int[] displs) {
+        gatherv(COMM_WORLD, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void gatherv(Communicator comm, int root, long[] sendbuf, int sendOffset, int sendCount,
+            long[] recvbuf, int[] recvCounts, int[] displs) {
+        gathervArray(comm, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void gatherv(int root, double[] sendbuf, int sendOffset, int sendCount, double[] recvbuf,
+            int[] recvCounts, int[] displs) {
+        gatherv(COMM_WORLD, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void gatherv(Communicator comm, int root, double[] sendbuf, int sendOffset, int sendCount,
+            double[] recvbuf, int[] recvCounts, int[] displs) {
+        gathervArray(comm, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void gatherv(int root, ByteBuffer sendbuf, int sendOffset, int sendCount, ByteBuffer recvbuf,
+            int[] recvCounts, int[] displs) {
+        gatherv(COMM_WORLD, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void gatherv(Communicator comm, int root, ByteBuffer sendbuf, int sendOffset, int sendCount,
+            ByteBuffer recvbuf, int[] recvCounts, int[] displs) {
+        gathervArray(comm, root, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    /** Like gather, with every rank receiving all blocks. */
+    public static void allgather(byte[] sendbuf, int sendOffset, int count, byte[] recvbuf, int recvOffset) {
+        allgather(COMM_WORLD, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void allgather(Communicator comm, byte[] sendbuf, int sendOffset, int count, byte[] recvbuf,
+            int recvOffset) {
+        allgatherArray(comm, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void allgather(int[] sendbuf, int sendOffset, int count, int[] recvbuf, int recvOffset) {
+        allgather(COMM_WORLD, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void allgather(Communicator comm, int[] sendbuf, int sendOffset, int count, int[] recvbuf,
+            int recvOffset) {
+        allgatherArray(comm, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void allgather(long[] sendbuf, int sendOffset, int count, long[] recvbuf, int recvOffset) {
+        allgather(COMM_WORLD, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void allgather(Communicator comm, long[] sendbuf, int sendOffset, int count, long[] recvbuf,
+            int recvOffset) {
+        allgatherArray(comm, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void allgather(double[] sendbuf, int sendOffset, int count, double[] recvbuf, int recvOffset) {
+        allgather(COMM_WORLD, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void allgather(Communicator comm, double[] sendbuf, int sendOffset, int count, double[] recvbuf,
+            int recvOffset) {
+        allgatherArray(comm, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void allgather(ByteBuffer sendbuf, int sendOffset, int count, ByteBuffer recvbuf, int recvOffset) {
+        allgather(COMM_WORLD, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    public static void allgather(Communicator comm, ByteBuffer sendbuf, int sendOffset, int count, ByteBuffer recvbuf,
+            int recvOffset) {
+        allgatherArray(comm, sendbuf, sendOffset, count, recvbuf, recvOffset);
+    }
+
+    /** Like gatherv, with every rank receiving all blocks. */
+    public static void allgatherv(byte[] sendbuf, int sendOffset, int sendCount, byte[] recvbuf, int[] recvCounts,
+            int[] displs) {
+        allgatherv(COMM_WORLD, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void allgatherv(Communicator comm, byte[] sendbuf, int sendOffset, int sendCount, byte[] recvbuf,
+            int[] recvCounts, int[] displs) {
+        allgathervArray(comm, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void allgatherv(int[] sendbuf, int sendOffset, int sendCount, int[] recvbuf, int[] recvCounts,
+            int[] displs) {
+        allgatherv(COMM_WORLD, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void allgatherv(Communicator comm, int[] sendbuf, int sendOffset, int sendCount, int[] recvbuf,
+            int[] recvCounts, int[] displs) {
+        allgathervArray(comm, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void allgatherv(long[] sendbuf, int sendOffset, int sendCount, long[] recvbuf, int[] recvCounts,
+            int[] displs) {
+        allgatherv(COMM_WORLD, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void allgatherv(Communicator comm, long[] sendbuf, int sendOffset, int sendCount, long[] recvbuf,
+            int[] recvCounts, int[] displs) {
+        allgathervArray(comm, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void allgatherv(double[] sendbuf, int sendOffset, int sendCount, double[] recvbuf, int[] recvCounts,
+            int[] displs) {
+        allgatherv(COMM_WORLD, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void allgatherv(Communicator comm, double[] sendbuf, int sendOffset, int sendCount, double[] recvbuf,
+            int[] recvCounts, int[] displs) {
+        allgathervArray(comm, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void allgatherv(ByteBuffer sendbuf, int sendOffset, int sendCount, ByteBuffer recvbuf,
+            int[] recvCounts, int[] displs) {
+        allgatherv(COMM_WORLD, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    public static void allgatherv(Communicator comm, ByteBuffer sendbuf, int sendOffset, int sendCount,
+            ByteBuffer recvbuf, int[] recvCounts, int[] displs) {
+        allgathervArray(comm, sendbuf, sendOffset, sendCount, recvbuf, recvCounts, displs);
+    }
+
+    /** Block j of rank i's send buffer becomes block i of rank j's receive buffer; blocks are {@code count} long. */
+    public static void alltoall(byte[] sendbuf, int sendOffset, byte[] recvbuf, int recvOffset, int count) {
+        alltoall(COMM_WORLD, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void alltoall(Communicator comm, byte[] sendbuf, int sendOffset, byte[] recvbuf, int recvOffset,
+            int count) {
+        alltoallArray(comm, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void alltoall(int[] sendbuf, int sendOffset, int[] recvbuf, int recvOffset, int count) {
+        alltoall(COMM_WORLD, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void alltoall(Communicator comm, int[] sendbuf, int sendOffset, int[] recvbuf, int recvOffset,
+            int count) {
+        alltoallArray(comm, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void alltoall(long[] sendbuf, int sendOffset, long[] recvbuf, int recvOffset, int count) {
+        alltoall(COMM_WORLD, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void alltoall(Communicator comm, long[] sendbuf, int sendOffset, long[] recvbuf, int recvOffset,
+            int count) {
+        alltoallArray(comm, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void alltoall(double[] sendbuf, int sendOffset, double[] recvbuf, int recvOffset, int count) {
+        alltoall(COMM_WORLD, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void alltoall(Communicator comm, double[] sendbuf, int sendOffset, double[] recvbuf, int recvOffset,
+            int count) {
+        alltoallArray(comm, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void alltoall(ByteBuffer sendbuf, int sendOffset, ByteBuffer recvbuf, int recvOffset, int count) {
+        alltoall(COMM_WORLD, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    public static void alltoall(Communicator comm, ByteBuffer sendbuf, int sendOffset, ByteBuffer recvbuf,
+            int recvOffset, int count) {
+        alltoallArray(comm, sendbuf, sendOffset, recvbuf, recvOffset, count);
+    }
+
+    /**
+     * Rank i sends {@code sendCounts[j]} elements from {@code sendDispls[j]} to rank j, which receives them at its
+     * {@code recvDispls[i]}.
+     */
+    public static void alltoallv(byte[] sendbuf, int[] sendCounts, int[] sendDispls, byte[] recvbuf, int[] recvCounts,
+            int[] recvDispls) {
+        alltoallv(COMM_WORLD, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    public static void alltoallv(Communicator comm, byte[] sendbuf, int[] sendCounts, int[] sendDispls, byte[] recvbuf,
+            int[] recvCounts, int[] recvDispls) {
+        alltoallvArray(comm, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    public static void alltoallv(int[] sendbuf, int[] sendCounts, int[] sendDispls, int[] recvbuf, int[] recvCounts,
+            int[] recvDispls) {
+        alltoallv(COMM_WORLD, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    public static void alltoallv(Communicator comm, int[] sendbuf, int[] sendCounts, int[] sendDispls, int[] recvbuf,
+            int[] recvCounts, int[] recvDispls) {
+        alltoallvArray(comm, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    public static void alltoallv(long[] sendbuf, int[] sendCounts, int[] sendDispls, long[] recvbuf, int[] recvCounts,
+            int[] recvDispls) {
+        alltoallv(COMM_WORLD, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    public static void alltoallv(Communicator comm, long[] sendbuf, int[] sendCounts, int[] sendDispls, long[] recvbuf,
+            int[] recvCounts, int[] recvDispls) {
+        alltoallvArray(comm, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    public static void alltoallv(double[] sendbuf, int[] sendCounts, int[] sendDispls, double[] recvbuf,
+            int[] recvCounts, int[] recvDispls) {
+        alltoallv(COMM_WORLD, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    public static void alltoallv(Communicator comm, double[] sendbuf, int[] sendCounts, int[] sendDispls,
+            double[] recvbuf, int[] recvCounts, int[] recvDispls) {
+        alltoallvArray(comm, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    public static void alltoallv(ByteBuffer sendbuf, int[] sendCounts, int[] sendDispls, ByteBuffer recvbuf,
+            int[] recvCounts, int[] recvDispls) {
+        alltoallv(COMM_WORLD, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    public static void alltoallv(Communicator comm, ByteBuffer sendbuf, int[] sendCounts, int[] sendDispls,
+            ByteBuffer recvbuf, int[] recvCounts, int[] recvDispls) {
+        alltoallvArray(comm, sendbuf, sendCounts, sendDispls, recvbuf, recvCounts, recvDispls);
+    }
+
+    private static void scatterArray(Communicator comm, int root, Object send, int sendOffset, Object recv,
+            int recvOffset, int count) {
+        checkRoot(comm, root);
+        checkRange(recv, recvOffset, count);
+        if (comm.rank() == root) {
+            checkSameType(send, recv);
+            checkRange(send, sendOffset, (long) comm.size() * count);
+        }
+        Tracer.enter(Tracer.Span.SCATTER);
+        Collectives.scatter(comm, root, send, sendOffset, recv, recvOffset, count);
+        Tracer.exit(Tracer.Span.SCATTER, root, 0, (long) count * Datatype.of(recv).size);
+    }
+
+    private static void scattervArray(Communicator comm, int root, Object send, int[] counts, int[] displs, Object recv,
+            int recvOffset, int recvCount) {
+        checkRoot(comm, root);
+        checkRange(recv, recvOffset, recvCount);
+        if (comm.rank() == root) {
+            checkSameType(send, recv);
+            checkLayout(comm, send, counts, displs);
+            checkFits(counts[root], recvCount);
+        }
+        Tracer.enter(Tracer.Span.SCATTER);
+        Collectives.scatterv(comm, root, send, counts, displs, recv, recvOffset, recvCount);
+        Tracer.exit(Tracer.Span.SCATTER, root, 0, (long) recvCount * Datatype.of(recv).size);
+    }
+
+    private static void gatherArray(Communicator comm, int root, Object send, int sendOffset, int count, Object recv,
+            int recvOffset) {
+        checkRoot(comm, root);
+        checkRange(send, sendOffset, count);
+        if (comm.rank() == root) {
+            checkSameType(send, recv);
+            checkRange(recv, recvOffset, (long) comm.size() * count);
+        }
+        Tracer.enter(Tracer.Span.GATHER);
+        Collectives.gather(comm, root, send, sendOffset, count, recv, recvOffset);
+        Tracer.exit(Tracer.Span.GATHER, root, 0, (long) count * Datatype.of(send).size);
+    }
+
+    private static void gathervArray(Communicator comm, int root, Object send, int sendOffset, int sendCount,
+            Object recv, int[] counts, int[] displs) {
+        checkRoot(comm, root);
+        checkRange(send, sendOffset, sendCount);
+        if (comm.rank() == root) {
+            checkSameType(send, recv);
+            checkLayout(comm, recv, counts, displs);
+            checkFits(sendCount, counts[root]);
+        }
+        Tracer.enter(Tracer.Span.GATHER);
+        Collectives.gatherv(comm, root, send, sendOffset, sendCount, recv, counts, displs);
+        Tracer.exit(Tracer.Span.GATHER, root, 0, (long) sendCount * Datatype.of(send).size);
+    }
+
+    private static void allgatherArray(Communicator comm, Object send, int sendOffset, int count, Object recv,
+            int recvOffset) {
+        int[][] layout = Collectives.uniform(recvOffset, count, comm.size());
+        allgathervArray(comm, send, sendOffset, count, recv, layout[0], layout[1]);
+    }
+
+    private static void allgathervArray(Communicator comm, Object send, int sendOffset, int sendCount, Object recv,
+            int[] counts, int[] displs) {
+        checkSameType(send, recv);
+        checkRange(send, sendOffset, sendCount);
+        checkLayout(comm, recv, counts, displs);
+        checkFits(sendCount, counts[comm.rank()]);
+        Tracer.enter(Tracer.Span.ALLGATHER);
+        Collectives.allgatherv(comm, send, sendOffset, sendCount, recv, counts, displs);
+        Tracer.exit(Tracer.Span.ALLGATHER, -1, 0, (long) sendCount * Datatype.of(send).size);
+    }
+
+    private static void alltoallArray(Communicator comm, Object send, int sendOffset, Object recv, int recvOffset,
+            int count) {
+        int[][] sendLayout = Collectives.uniform(sendOffset, count, comm.size());
+        int[][] recvLayout = Collectives.uniform(recvOffset, count, comm.size());
+        alltoallvArray(comm, send, sendLayout[0], sendLayout[1], recv, recvLayout[0], recvLayout[1]);
+    }
+
+    private static void alltoallvArray(Communicator comm, Object send, int[] sendCounts, int[] sendDispls, Object recv,
+            int[] recvCounts, int[] recvDispls) {
+        checkSameType(send, recv);
+        checkLayout(comm, send, sendCounts, sendDispls);
+        checkLayout(comm, recv, recvCounts, recvDispls);
+        Tracer.enter(Tracer.Span.ALLTOALL);
+        Collectives.alltoallv(comm, send, sendCounts, sendDispls, recv, recvCounts, recvDispls);
+        Tracer.exit(Tracer.Span.ALLTOALL, -1, 0, 0);
+    }
+
+    private static void checkSameType(Object send, Object recv) {
+        if (Datatype.of(send) != Datatype.of(recv)) {
+            throw new IllegalArgumentException("Send and receive buffers differ in type: "
+                    + send.getClass().getSimpleName() + " vs " + recv.getClass().getSimpleName());
+        }
+    }
+
+    private static void checkRange(Object buf, int offset, long count) {
+        Objects.checkFromIndexSize(offset, Math.toIntExact(count), Datatype.of(buf).length(buf));
+    }
+
+    private static void checkLayout(Communicator comm, Object buf, int[] counts, int[] displs) {
+        int size = comm.size();
+        if (counts.length != size || displs.length != size) {
+            throw new IllegalArgumentException("Need one count and displacement per rank (size " + size + ")");
+        }
+        int length = Datatype.of(buf).length(buf);
+        for (int i = 0; i < size; i++) {
+            Objects.checkFromIndexSize(displs[i], counts[i], length);
+        }
+    }
+
+    private static void checkFits(int count, int capacity) {
+        if (count > capacity) {
+            throw new IllegalArgumentException("Message truncated: " + count + " elements, buffer holds " + capacity);
+        }
+    }
+
+    private static void checkRoot(Communicator comm, int root) {
+        if (root < 0 || root >= comm.size()) {
+            throw new IllegalArgumentException("Invalid root rank " + root + " (size " + comm.size() + ")");
+        }
+    }
+
+    private static void checkPairs(int count, Op op) {
+        if (op instanceof BuiltinOp && ((BuiltinOp) op).pairs && count % 2 != 0) {
+            throw new IllegalArgumentException(op + " works on (value, index) pairs, but count is " + count);
+        }
+    }
+
+    // ---- Metrics ----
+
+    /** This rank's traffic and wait times since init (or the last reset); see {@link CommMetrics}. */
+    public static CommMetrics metrics() {
+        synchronized (inboxLock) {
+            return metrics.snapshot(rank, inbox.size());
+        }
+    }
+
+    public static void resetMetrics() {
+        metrics.reset();
+    }
+
+    // Optional cleanup
+    public static void finalize_mpi() {
+        flushBatches();
+        finalized = true;
+        Tracer.dump();
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+        try {
+            if (listener != null)
+                listener.close();
+            if (socket != null) {
+                // mpiexec collects the metrics of every rank for its job summary
+                byte[] report = "1".equals(setting("MPI_METRICS_REPORT", "0"))
+                        ? metrics().toJson().getBytes(StandardCharsets.UTF_8)
+                        : null;
+                synchronized (out) {
+                    if (report != null) {
+                        out.writeInt(10); // CMD=10 (METRICS)
+                        out.writeInt(report.length);
+                        out.write(report);
+                    }
+                    out.flush();
+                }
+                socket.close();
+            }
         } catch (IOException e) {
         }
     }
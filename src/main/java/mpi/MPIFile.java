@@ -0,0 +1,490 @@
+package mpi;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A file every rank of a communicator opens together and reads and writes
+ * in place, in the manner of MPI-IO, so that no rank has to hold or stream
+ * the whole of it. The path must name the same file on every rank: a local
+ * file for ranks on one node, or a shared file system.
+ *
+ * Each rank sees the file through its view: from a displacement on, either
+ * every byte, or {@code block} bytes out of every {@code stride}, so that
+ * ranks can interleave (rank r at displacement r * block with a stride of
+ * size * block). Offsets count the bytes of the view, and elements are
+ * big-endian, as in messages.
+ *
+ * {@link #writeAt}/{@link #readAt} access the file from this rank alone,
+ * through positional channel I/O, or through a mapping that elements are
+ * encoded straight into for ranges of {@code MPI_IO_MAP_THRESHOLD} bytes or
+ * more (default 1 MB) within the file. {@link #writeAtAll}/{@link #readAtAll}
+ * are collective: every rank calls them, each with its own offset and data.
+ * When the ranks' accesses are many small pieces, averaging under
+ * {@code MPI_IO_TWO_PHASE_PIECE} bytes (default 64 KB), they use two-phase
+ * I/O (see {@link TwoPhase}): the pieces are exchanged so that aggregators,
+ * {@code MPI_IO_AGGREGATORS} ranks (default all), each access one contiguous
+ * domain of the file in large runs. {@code MPI_IO_TWO_PHASE=0} or
+ * {@link #setTwoPhase} turns this off. Otherwise a collective write first
+ * extends the file once, so that every rank can map its large ranges.
+ *
+ * As in MPI-IO, what one rank writes is certain to be seen by another's
+ * reads only after both have called {@link #sync}, or once the file was
+ * closed and reopened.
+ */
+public final class MPIFile implements AutoCloseable {
+    public static final int MODE_CREATE = 1;
+    public static final int MODE_RDONLY = 2;
+    public static final int MODE_WRONLY = 4;
+    public static final int MODE_RDWR = 8;
+    public static final int MODE_DELETE_ON_CLOSE = 16;
+    /** With MODE_CREATE: fail if the file already exists. */
+    public static final int MODE_EXCL = 64;
+
+    static final int MAP_THRESHOLD = MPI.intSetting("MPI_IO_MAP_THRESHOLD", 1 << 20);
+    static final int TWO_PHASE_PIECE = MPI.intSetting("MPI_IO_TWO_PHASE_PIECE", 64 << 10);
+    static final boolean TWO_PHASE = !"0".equals(MPI.setting("MPI_IO_TWO_PHASE", "1"));
+    private static final int AGGREGATORS = MPI.intSetting("MPI_IO_AGGREGATORS", 0);
+
+    private final Communicator comm;
+    private final Path path;
+    private final FileChannel channel;
+    private final int mode;
+    private long displacement;
+    private int block; // 0 for a contiguous view
+    private int stride;
+    private volatile boolean twoPhase = TWO_PHASE;
+    private boolean closed;
+
+    private MPIFile(Communicator comm, Path path, FileChannel channel, int mode) {
+        this.comm = comm;
+        this.path = path;
+        this.channel = channel;
+        this.mode = mode;
+    }
+
+    /** Opens {@code path} on every rank of the world; {@code mode} combines the MODE_ constants. */
+    public static MPIFile open(String path, int mode) {
+        return open(MPI.COMM_WORLD, path, mode);
+    }
+
+    /**
+     * Collective: opens {@code path} on every rank of {@code comm}. Rank 0
+     * creates the file if asked to before the others open it; if any rank
+     * fails, every rank throws.
+     */
+    public static MPIFile open(Communicator comm, String path, int mode) {
+        int access = mode & (MODE_RDONLY | MODE_WRONLY | MODE_RDWR);
+        if (Integer.bitCount(access) != 1 || (mode & MODE_CREATE) != 0 && access == MODE_RDONLY) {
+            throw new IllegalArgumentException("Invalid file mode " + mode);
+        }
+        Set<OpenOption> options = new HashSet<>();
+        if (access != MODE_WRONLY) {
+            options.add(StandardOpenOption.READ);
+        }
+        if (access != MODE_RDONLY) {
+            options.add(StandardOpenOption.WRITE);
+        }
+        Path file = Paths.get(path);
+        FileChannel channel = null;
+        String error = "";
+        if (comm.rank() == 0) {
+            Set<OpenOption> create = new HashSet<>(options);
+            if ((mode & MODE_CREATE) != 0) {
+                create.add((mode & MODE_EXCL) != 0 ? StandardOpenOption.CREATE_NEW : StandardOpenOption.CREATE);
+            }
+            try {
+                channel = FileChannel.open(file, create);
+            } catch (IOException e) {
+                error = e.toString();
+            }
+        }
+        error = MPI.bcast(comm, 0, error);
+        if (!error.isEmpty()) {
+            throw new UncheckedIOException(new IOException("Cannot open " + path + ": " + error));
+        }
+        if (comm.rank() != 0) {
+            try {
+                channel = FileChannel.open(file, options);
+            } catch (IOException e) {
+                error = e.toString();
+            }
+        }
+        int[] failed = { error.isEmpty() ? 0 : 1 };
+        MPI.allreduce(comm, failed, Op.SUM);
+        if (failed[0] > 0) {
+            closeQuietly(channel);
+            throw new UncheckedIOException(new IOException("Cannot open " + path + " on " + failed[0] + " rank(s)"
+                    + (error.isEmpty() ? "" : ": " + error)));
+        }
+        return new MPIFile(comm, file, channel, mode);
+    }
+
+    /** Sees the file from byte {@code displacement} on, contiguously. */
+    public void setView(long displacement) {
+        setView(displacement, 0, 0);
+    }
+
+    /**
+     * Sees {@code block} bytes out of every {@code stride} from byte
+     * {@code displacement} on; a block of 0 means contiguous. Local, but
+     * collective accesses assume every rank has set the view it uses.
+     */
+    public void setView(long displacement, int block, int stride) {
+        if (displacement < 0 || block < 0 || block > 0 && stride < block) {
+            throw new IllegalArgumentException("Invalid view: displacement " + displacement + ", block " + block
+                    + ", stride " + stride);
+        }
+        this.displacement = displacement;
+        this.block = block;
+        this.stride = stride;
+    }
+
+    /** Whether collective accesses of small pieces go through aggregators (default {@code MPI_IO_TWO_PHASE}). */
+    public void setTwoPhase(boolean enabled) {
+        twoPhase = enabled;
+    }
+
+    public boolean getTwoPhase() {
+        return twoPhase;
+    }
+
+    public long getSize() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Collective: truncates or extends the file to {@code size} bytes once every rank has called it. */
+    public void setSize(long size) {
+        checkWritable();
+        MPI.barrier(comm);
+        if (comm.rank() == 0) {
+            try {
+                if (channel.size() > size) {
+                    channel.truncate(size);
+                } else {
+                    extend(size);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        MPI.barrier(comm);
+    }
+
+    /** Collective: forces this rank's writes to storage, then waits for the other ranks to have done so. */
+    public void sync() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        MPI.barrier(comm);
+    }
+
+    /** Collective: closes the file on every rank, and deletes it if opened with MODE_DELETE_ON_CLOSE. */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        MPI.barrier(comm);
+        closeQuietly(channel);
+        if ((mode & MODE_DELETE_ON_CLOSE) != 0 && comm.rank() == 0) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // ---- Independent access ----
+
+    public void writeAt(long offset, byte[] data, int dataOffset, int count) {
+        writeAt(offset, Datatype.BYTE, data, dataOffset, count);
+    }
+
+    public void writeAt(long offset, int[] data, int dataOffset, int count) {
+        writeAt(offset, Datatype.INT, data, dataOffset, count);
+    }
+
+    public void writeAt(long offset, long[] data, int dataOffset, int count) {
+        writeAt(offset, Datatype.LONG, data, dataOffset, count);
+    }
+
+    public void writeAt(long offset, double[] data, int dataOffset, int count) {
+        writeAt(offset, Datatype.DOUBLE, data, dataOffset, count);
+    }
+
+    /** Reads {@code count} elements at view offset {@code offset}; returns how many there were before the end. */
+    public int readAt(long offset, byte[] data, int dataOffset, int count) {
+        return readAt(offset, Datatype.BYTE, data, dataOffset, count);
+    }
+
+    public int readAt(long offset, int[] data, int dataOffset, int count) {
+        return readAt(offset, Datatype.INT, data, dataOffset, count);
+    }
+
+    public int readAt(long offset, long[] data, int dataOffset, int count) {
+        return readAt(offset, Datatype.LONG, data, dataOffset, count);
+    }
+
+    public int readAt(long offset, double[] data, int dataOffset, int count) {
+        return readAt(offset, Datatype.DOUBLE, data, dataOffset, count);
+    }
+
+    // ---- Collective access ----
+
+    public void writeAtAll(long offset, byte[] data, int dataOffset, int count) {
+        writeAtAll(offset, Datatype.BYTE, data, dataOffset, count);
+    }
+
+    public void writeAtAll(long offset, int[] data, int dataOffset, int count) {
+        writeAtAll(offset, Datatype.INT, data, dataOffset, count);
+    }
+
+    public void writeAtAll(long offset, long[] data, int dataOffset, int count) {
+        writeAtAll(offset, Datatype.LONG, data, dataOffset, count);
+    }
+
+    public void writeAtAll(long offset, double[] data, int dataOffset, int count) {
+        writeAtAll(offset, Datatype.DOUBLE, data, dataOffset, count);
+    }
+
+    public int readAtAll(long offset, byte[] data, int dataOffset, int count) {
+        return readAtAll(offset, Datatype.BYTE, data, dataOffset, count);
+    }
+
+    public int readAtAll(long offset, int[] data, int dataOffset, int count) {
+        return readAtAll(offset, Datatype.INT, data, dataOffset, count);
+    }
+
+    public int readAtAll(long offset, long[] data, int dataOffset, int count) {
+        return readAtAll(offset, Datatype.LONG, data, dataOffset, count);
+    }
+
+    public int readAtAll(long offset, double[] data, int dataOffset, int count) {
+        return readAtAll(offset, Datatype.DOUBLE, data, dataOffset, count);
+    }
+
+    private void writeAt(long offset, Datatype type, Object data, int dataOffset, int count) {
+        checkWritable();
+        Objects.checkFromIndexSize(dataOffset, count, type.length(data));
+        long[] segs = segments(offset, Math.multiplyExact(count, type.size));
+        try {
+            write(segs, type, data, dataOffset, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int readAt(long offset, Datatype type, Object data, int dataOffset, int count) {
+        checkReadable();
+        Objects.checkFromIndexSize(dataOffset, count, type.length(data));
+        long[] segs = segments(offset, Math.multiplyExact(count, type.size));
+        try {
+            return read(segs, type, data, dataOffset, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeAtAll(long offset, Datatype type, Object data, int dataOffset, int count) {
+        checkWritable();
+        Objects.checkFromIndexSize(dataOffset, count, type.length(data));
+        long[] segs = segments(offset, Math.multiplyExact(count, type.size));
+        long[] access = survey(segs);
+        try {
+            if (access == null) {
+                return;
+            }
+            if (twoPhase(access)) {
+                TwoPhase.write(comm, channel, segs, bytes(type, data, dataOffset, count), access[0], access[1],
+                        aggregators());
+                return;
+            }
+            if (access[2] >= MAP_THRESHOLD) {
+                // One extension up front, as growing a file by mapping past its end races with the other ranks
+                if (comm.rank() == 0) {
+                    extend(access[1]);
+                }
+                MPI.barrier(comm);
+            }
+            write(segs, type, data, dataOffset, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int readAtAll(long offset, Datatype type, Object data, int dataOffset, int count) {
+        checkReadable();
+        Objects.checkFromIndexSize(dataOffset, count, type.length(data));
+        long[] segs = segments(offset, Math.multiplyExact(count, type.size));
+        long[] access = survey(segs);
+        try {
+            if (access == null || !twoPhase(access)) {
+                return read(segs, type, data, dataOffset, count);
+            }
+            byte[] bytes = new byte[count * type.size];
+            TwoPhase.read(comm, channel, segs, bytes, access[0], access[1], aggregators());
+            int available = available(segs, channel.size()) / type.size;
+            type.fromBytes(bytes, 0, data, dataOffset, available);
+            return available;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---- File ranges ----
+
+    // The file ranges behind view bytes [offset, offset + length), in file order, as (position, length) pairs
+    private long[] segments(long offset, int length) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Negative offset " + offset);
+        }
+        if (length == 0) {
+            return new long[0];
+        }
+        if (block == 0) {
+            return new long[] { displacement + offset, length };
+        }
+        int count = (int) ((offset + length - 1) / block - offset / block + 1);
+        long[] segs = new long[2 * count];
+        long at = offset;
+        for (int i = 0; i < segs.length; i += 2) {
+            int within = (int) (at % block);
+            int len = (int) Math.min(block - within, offset + length - at);
+            segs[i] = displacement + at / block * stride + within;
+            segs[i + 1] = len;
+            at += len;
+        }
+        return segs;
+    }
+
+    private void write(long[] segs, Datatype type, Object data, int dataOffset, int count) throws IOException {
+        long size = channel.size();
+        boolean map = (mode & MODE_WRONLY) == 0; // A write-only channel cannot be mapped
+        if (map && segs.length == 2 && segs[1] >= MAP_THRESHOLD && segs[0] + segs[1] <= size) {
+            type.encode(data, dataOffset, count, channel.map(FileChannel.MapMode.READ_WRITE, segs[0], segs[1]));
+            return;
+        }
+        ByteBuffer bytes = bytes(type, data, dataOffset, count);
+        for (int i = 0; i < segs.length; i += 2) {
+            int len = (int) segs[i + 1];
+            ByteBuffer part = bytes.slice(bytes.position(), len);
+            if (map && len >= MAP_THRESHOLD && segs[i] + len <= size) {
+                channel.map(FileChannel.MapMode.READ_WRITE, segs[i], len).put(part);
+            } else {
+                TwoPhase.writeFully(channel, part, segs[i]);
+            }
+            bytes.position(bytes.position() + len);
+        }
+    }
+
+    private int read(long[] segs, Datatype type, Object data, int dataOffset, int count) throws IOException {
+        long size = channel.size();
+        if (segs.length == 2 && segs[1] >= MAP_THRESHOLD && segs[0] + segs[1] <= size) {
+            type.decode(channel.map(FileChannel.MapMode.READ_ONLY, segs[0], segs[1]), data, dataOffset, count);
+            return count;
+        }
+        byte[] bytes = new byte[count * type.size];
+        int done = 0;
+        for (int i = 0; i < segs.length; i += 2) {
+            int len = (int) segs[i + 1];
+            if (len >= MAP_THRESHOLD && segs[i] + len <= size) {
+                channel.map(FileChannel.MapMode.READ_ONLY, segs[i], len).get(bytes, done, len);
+            } else {
+                TwoPhase.readFully(channel, ByteBuffer.wrap(bytes, done, len), segs[i]);
+            }
+            done += len;
+        }
+        int available = available(segs, size) / type.size;
+        type.fromBytes(bytes, 0, data, dataOffset, available);
+        return available;
+    }
+
+    // How many bytes of the ranges, taken in order, lie before the end of a file of `size` bytes
+    private static int available(long[] segs, long size) {
+        int bytes = 0;
+        for (int i = 0; i < segs.length; i += 2) {
+            if (segs[i] + segs[i + 1] > size) {
+                return bytes + (int) Math.max(0, size - segs[i]);
+            }
+            bytes += (int) segs[i + 1];
+        }
+        return bytes;
+    }
+
+    // Collective: [start, end, largest range, ranges, bytes] over every rank's ranges; null if there are none
+    private long[] survey(long[] segs) {
+        long[] mine = { Long.MAX_VALUE, 0, 0, segs.length / 2, 0 };
+        for (int i = 0; i < segs.length; i += 2) {
+            mine[0] = Math.min(mine[0], segs[i]);
+            mine[1] = Math.max(mine[1], segs[i] + segs[i + 1]);
+            mine[2] = Math.max(mine[2], segs[i + 1]);
+            mine[4] += segs[i + 1];
+        }
+        long[] all = new long[mine.length * comm.size()];
+        MPI.allgather(comm, mine, 0, mine.length, all, 0);
+        long[] access = { Long.MAX_VALUE, 0, 0, 0, 0 };
+        for (int i = 0; i < all.length; i += mine.length) {
+            access[0] = Math.min(access[0], all[i]);
+            access[1] = Math.max(access[1], all[i + 1]);
+            access[2] = Math.max(access[2], all[i + 2]);
+            access[3] += all[i + 3];
+            access[4] += all[i + 4];
+        }
+        return access[3] == 0 ? null : access;
+    }
+
+    // Worth aggregating: more ranges than ranks, and small ones. Every rank decides alike from the survey.
+    private boolean twoPhase(long[] access) {
+        return twoPhase && access[3] > comm.size() && access[4] / access[3] < TWO_PHASE_PIECE;
+    }
+
+    private int aggregators() {
+        return AGGREGATORS > 0 ? Math.min(AGGREGATORS, comm.size()) : comm.size();
+    }
+
+    // Grows the file to at least `size` bytes with a positional write, which, unlike truncate, never shrinks it
+    private void extend(long size) throws IOException {
+        if (size > channel.size()) {
+            TwoPhase.writeFully(channel, ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    private static ByteBuffer bytes(Datatype type, Object data, int offset, int count) {
+        return type == Datatype.BYTE ? ByteBuffer.wrap((byte[]) data, offset, count)
+                : ByteBuffer.wrap(type.toBytes(data, offset, count));
+    }
+
+    private void checkWritable() {
+        if ((mode & MODE_RDONLY) != 0) {
+            throw new IllegalStateException(path + " was opened read-only");
+        }
+    }
+
+    private void checkReadable() {
+        if ((mode & MODE_WRONLY) != 0) {
+            throw new IllegalStateException(path + " was opened write-only");
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+}
@@ -0,0 +1,803 @@
+package mpi;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The router inside mpiexec: keeps the endpoint directory, runs the central
+ * barrier, and relays frames for ranks that can't reach each other directly.
+ *
+ * Connections are served by a few selector event loops (MPI_ROUTER_LOOPS,
+ * default up to 4) instead of a thread per rank. This thread only accepts and
+ * hands each new connection to a loop, round-robin. Every rank has an
+ * {@link Outbox}: a queue of pooled direct buffers that any loop may append
+ * to. Small frames are packed into the tail buffer, and the owning loop
+ * drains the queue with gathering writes, so a burst of frames to one rank
+ * goes out in as few syscalls as the socket allows.
+ *
+ * It also counts what it relays, timing each frame from when it has been
+ * read in full until it has been written to its destination, and keeps the
+ * metrics ranks report at finalize for mpiexec's job summary.
+ */
+class MessageRouter extends Thread {
+    // Pooled buffer size; frames larger than this are relayed as a chain of buffers
+    static final int CHUNK = 64 * 1024;
+    private static final int MAX_GATHER = 64;
+    // A sender stops being read while a destination has this much queued, until it drains below LOW_WATER
+    private static final long HIGH_WATER = 16L << 20;
+    private static final long LOW_WATER = 4L << 20;
+
+    private final ServerSocketChannel server;
+    private final int totalRanks;
+    private final EventLoop[] loops;
+    private final BufferPool pool = new BufferPool(256);
+    private final Map<Integer, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    // Directory of direct endpoints; lookups for ranks that haven't connected
+    // yet are parked until they do. Both guarded by directoryLock.
+    private final Map<Integer, byte[]> endpoints = new HashMap<>();
+    private final Map<Integer, List<Integer>> pendingLookups = new HashMap<>();
+    private final Object directoryLock = new Object();
+
+    private int barrierCount = 0;
+    private final Object barrierLock = new Object();
+
+    // Launch metrics: System.nanoTime() of the first and the last rank's handshake
+    private int connected = 0;
+    private long firstConnected;
+    private final Object launchLock = new Object(); // guards both
+    private final CompletableFuture<Long> allConnected = new CompletableFuture<>();
+
+    // Relay counters, and the JSON metrics each rank reports at finalize
+    private final AtomicLong relayedFrames = new AtomicLong();
+    private final AtomicLong relayedBytes = new AtomicLong();
+    private final LatencyHistogram forwardLatency = new LatencyHistogram();
+    private final Map<Integer, String> reports = new ConcurrentHashMap<>();
+
+    public MessageRouter(int totalRanks) throws IOException {
+        this.server = ServerSocketChannel.open();
+        if (MPI.SOCKET_RCVBUF > 0) {
+            this.server.setOption(StandardSocketOptions.SO_RCVBUF, MPI.SOCKET_RCVBUF); // Inherited by clients
+        }
+        this.server.bind(new InetSocketAddress(0)); // Random port
+        this.totalRanks = totalRanks;
+        int loopCount = Math.max(1, MPI.intSetting("MPI_ROUTER_LOOPS",
+                Math.min(4, Runtime.getRuntime().availableProcessors())));
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("mpi-router-loop-" + i);
+            loops[i].start();
+        }
+        setName("mpi-router-accept");
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /** System.nanoTime() when the first rank connected; 0 before that. */
+    long firstConnected() {
+        synchronized (launchLock) {
+            return firstConnected;
+        }
+    }
+
+    /** Completes with System.nanoTime() when the last rank has connected. */
+    CompletableFuture<Long> allConnected() {
+        return allConnected;
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for every rank's metrics report and
+     * returns the reports received, in rank order.
+     */
+    List<String> awaitReports(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (reports) {
+            while (reports.size() < totalRanks && System.currentTimeMillis() < deadline) {
+                reports.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        }
+        return new ArrayList<>(new TreeMap<>(reports).values());
+    }
+
+    /** What the router relayed, as a JSON object. */
+    String metricsJson() {
+        return "{\"relayedFrames\":" + relayedFrames.get() + ",\"relayedBytes\":" + relayedBytes.get()
+                + ",\"forwardLatency\":" + forwardLatency.snapshot().toJson() + "}";
+    }
+
+    private void report(int rank, byte[] json) {
+        synchronized (reports) {
+            reports.put(rank, new String(json, StandardCharsets.UTF_8));
+            reports.notifyAll();
+        }
+    }
+
+    private void rankConnected() {
+        long now = System.nanoTime();
+        synchronized (launchLock) {
+            if (++connected == 1) {
+                firstConnected = now;
+            }
+            if (connected == totalRanks) {
+                allConnected.complete(now);
+            }
+        }
+    }
+
+    public void shutdown() {
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    @Override
+    public void run() {
+        int next = 0;
+        try {
+            while (server.isOpen()) {
+                SocketChannel client = server.accept();
+                client.configureBlocking(false);
+                MPI.tune(client);
+                EventLoop loop = loops[next++ % loops.length];
+                loop.execute(() -> loop.register(client));
+            }
+        } catch (IOException e) {
+            // Server closed
+        }
+    }
+
+    // Frames for a rank may be queued before it connects; they go out once it does
+    private Outbox outbox(int rank) {
+        return outboxes.computeIfAbsent(rank, Outbox::new);
+    }
+
+    private void registerEndpoint(int rank, byte[] endpoint) {
+        List<Integer> waiting;
+        synchronized (directoryLock) {
+            endpoints.put(rank, endpoint);
+            waiting = pendingLookups.remove(rank);
+        }
+        if (waiting != null) {
+            for (int requester : waiting) {
+                sendPacket(requester, 8, rank, endpoint); // CMD=8 (ADDRESS)
+            }
+        }
+    }
+
+    private void handleLookup(int requester, int target) {
+        byte[] endpoint;
+        synchronized (directoryLock) {
+            endpoint = endpoints.get(target);
+            if (endpoint == null) {
+                pendingLookups.computeIfAbsent(target, t -> new ArrayList<>()).add(requester);
+                return;
+            }
+        }
+        sendPacket(requester, 8, target, endpoint); // CMD=8 (ADDRESS)
+    }
+
+    private void handleBarrier() {
+        synchronized (barrierLock) {
+            barrierCount++;
+            if (barrierCount == totalRanks) {
+                // Release all
+                for (int r = 0; r < totalRanks; r++) {
+                    sendPacket(r, 4, 0, new byte[0]); // CMD=4 (BARRIER_RELEASE)
+                }
+                barrierCount = 0;
+            }
+        }
+    }
+
+    private void sendPacket(int dest, int cmd, int arg1, byte[] payload) {
+        outbox(dest).packet(cmd, arg1, payload);
+    }
+
+    /** A selector thread serving a share of the rank connections. */
+    private final class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        /** Runs {@code task} on this loop, after the current round of I/O. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Inbound(this, channel, key));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Inbound conn = (Inbound) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                conn.outbox.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                conn.onReadable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            if (!(e instanceof EOFException) && running) {
+                                System.err.println("Router: connection to rank " + conn.rank + " failed: " + e);
+                            }
+                            conn.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    // Deferred flushes run here, so appends made during this round share one write
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Inbound) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Read side of one rank connection. Only touched by its loop: parses the
+     * handshake and commands out of a pooled read buffer and appends relayed
+     * frames to the destination's outbox.
+     */
+    private final class Inbound {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer readBuf = pool.acquire();
+        private int rank = -1;
+        private Outbox outbox;
+
+        // A SEND whose payload is still arriving; `relayDest` is null when it is being discarded
+        private Outbox relayDest;
+        private int relayTag;
+        private int relayLength;
+        private int relayLeft;
+        private final List<ByteBuffer> relayChunks = new ArrayList<>();
+        // A METRICS report still arriving
+        private int reportLeft;
+        private ByteArrayOutputStream report;
+        private boolean paused = false;
+
+        Inbound(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(readBuf) < 0) {
+                throw new EOFException();
+            }
+            readBuf.flip();
+            try {
+                parse();
+            } finally {
+                readBuf.compact();
+            }
+        }
+
+        // Consumes every complete command in readBuf; stops early if paused
+        private void parse() throws IOException {
+            while (!paused) {
+                if (relayLeft > 0) {
+                    if (!readBuf.hasRemaining()) {
+                        return;
+                    }
+                    accumulate();
+                } else if (report != null) {
+                    int n = Math.min(reportLeft, readBuf.remaining());
+                    byte[] piece = new byte[n];
+                    readBuf.get(piece);
+                    report.write(piece, 0, n);
+                    if ((reportLeft -= n) == 0) {
+                        report(rank, report.toByteArray());
+                        report = null;
+                    } else {
+                        return;
+                    }
+                } else if (rank < 0) {
+                    // Handshake: Rank and its direct endpoint ("host:port/node", empty if none)
+                    if (readBuf.remaining() < 8 || readBuf.remaining() < 8 + readBuf.getInt(readBuf.position() + 4)) {
+                        return;
+                    }
+                    rank = readBuf.getInt();
+                    byte[] endpoint = new byte[readBuf.getInt()];
+                    readBuf.get(endpoint);
+                    outbox = outbox(rank);
+                    outbox.attach(loop, channel, key);
+                    registerEndpoint(rank, endpoint);
+                    System.out.println("Router connected to Rank " + rank);
+                    rankConnected();
+                } else {
+                    // Packet format: [CMD, ...]
+                    if (readBuf.remaining() < 4) {
+                        return;
+                    }
+                    int p = readBuf.position();
+                    int cmd = readBuf.getInt(p);
+                    if (cmd == 1) { // SEND
+                        if (readBuf.remaining() < 16) {
+                            return;
+                        }
+                        readBuf.position(p + 4);
+                        startRelay(readBuf.getInt(), readBuf.getInt(), readBuf.getInt());
+                    } else if (cmd == 3) { // BARRIER
+                        readBuf.position(p + 4);
+                        handleBarrier();
+                    } else if (cmd == 7) { // LOOKUP
+                        if (readBuf.remaining() < 8) {
+                            return;
+                        }
+                        readBuf.position(p + 4);
+                        handleLookup(rank, readBuf.getInt());
+                    } else if (cmd == 10) { // METRICS
+                        if (readBuf.remaining() < 8) {
+                            return;
+                        }
+                        readBuf.position(p + 4);
+                        reportLeft = readBuf.getInt();
+                        report = new ByteArrayOutputStream(reportLeft);
+                    } else {
+                        throw new IOException("Unknown command " + cmd + " from rank " + rank);
+                    }
+                }
+            }
+        }
+
+        private void startRelay(int dest, int tag, int length) {
+            if (dest < 0 || dest >= totalRanks) {
+                System.err.println("Router: Unknown destination rank " + dest);
+                relayDest = null;
+            } else {
+                relayDest = outbox(dest);
+            }
+            relayTag = tag;
+            relayLength = length;
+            relayLeft = length;
+            if (relayDest != null && length <= readBuf.remaining()) {
+                // Whole payload already here: copy it straight into the destination's queue
+                relayDest.frame(rank, tag, readBuf, length);
+                relayLeft = 0;
+                throttle(relayDest);
+            } else if (length == 0) {
+                finishRelay();
+            }
+        }
+
+        // Moves the next piece of a large payload out of readBuf
+        private void accumulate() {
+            int n = Math.min(relayLeft, readBuf.remaining());
+            if (relayDest != null) {
+                ByteBuffer chunk = relayChunks.isEmpty() ? null : relayChunks.get(relayChunks.size() - 1);
+                if (chunk == null || !chunk.hasRemaining()) {
+                    chunk = pool.acquire();
+                    relayChunks.add(chunk);
+                }
+                n = Math.min(n, chunk.remaining());
+                ByteBuffer slice = readBuf.duplicate();
+                slice.limit(slice.position() + n);
+                chunk.put(slice);
+            }
+            readBuf.position(readBuf.position() + n);
+            relayLeft -= n;
+            if (relayLeft == 0) {
+                finishRelay();
+            }
+        }
+
+        private void finishRelay() {
+            if (relayDest != null) {
+                for (ByteBuffer chunk : relayChunks) {
+                    chunk.flip();
+                }
+                relayDest.frame(rank, relayTag, relayLength, relayChunks);
+                relayChunks.clear();
+                throttle(relayDest);
+            }
+        }
+
+        // Stops reading from this rank while `dest` is backed up
+        private void throttle(Outbox dest) {
+            if (dest != outbox && dest.stall(this)) {
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        // Called on our loop once the destination has drained
+        void resume() {
+            if (!paused || !channel.isOpen()) {
+                return;
+            }
+            paused = false;
+            readBuf.flip();
+            try {
+                parse();
+            } catch (IOException e) {
+                System.err.println("Router: " + e.getMessage());
+                close();
+                return;
+            } finally {
+                readBuf.compact();
+            }
+            if (!paused) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            if (outbox != null) {
+                outbox.detach();
+            }
+            for (ByteBuffer chunk : relayChunks) {
+                pool.release(chunk);
+            }
+            relayChunks.clear();
+            if (readBuf != null) {
+                pool.release(readBuf);
+                readBuf = null;
+            }
+        }
+    }
+
+    /**
+     * Write side of one rank: a queue of pooled buffers, appended to by any
+     * loop and drained by the loop that owns the connection. Each buffer is in
+     * read mode, data in [position, limit); the last one still has room past
+     * its limit that small frames are packed into.
+     */
+    private final class Outbox {
+        private final int rank;
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private final List<Inbound> stalled = new ArrayList<>();
+        private long queuedBytes = 0;
+        // Relayed frames not yet fully written, for the forwarding latency:
+        // where each ends in the stream of queued bytes, and when it was queued
+        private final RelayMarks marks = new RelayMarks();
+        private long queuedTotal = 0;
+        private long writtenTotal = 0;
+        private boolean flushScheduled = false;
+        private boolean closed = false;
+        private EventLoop loop; // null until the rank connects
+        private SocketChannel channel;
+        private SelectionKey key;
+
+        Outbox(int rank) {
+            this.rank = rank;
+        }
+
+        synchronized void attach(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            scheduleFlush();
+        }
+
+        synchronized void detach() {
+            closed = true;
+            for (ByteBuffer buf : queue) {
+                pool.release(buf);
+            }
+            queue.clear();
+            queuedBytes = 0;
+            marks.clear();
+            resumeStalled();
+        }
+
+        /** Queues [CMD=2][src][tag][length] plus {@code length} bytes taken from {@code payload}. */
+        synchronized void frame(int src, int tag, ByteBuffer payload, int length) {
+            if (closed) {
+                payload.position(payload.position() + length);
+                return;
+            }
+            ByteBuffer tail = reserve(16 + length);
+            int at = tail.limit();
+            tail.limit(at + 16 + length);
+            tail.putInt(at, 2); // CMD=2 (INCOMING MSG)
+            tail.putInt(at + 4, src);
+            tail.putInt(at + 8, tag);
+            tail.putInt(at + 12, length);
+            tail.put(at + 16, payload, payload.position(), length);
+            payload.position(payload.position() + length);
+            queued(16 + length);
+            relayed(src, length);
+        }
+
+        /** Queues a frame whose payload has been gathered into {@code chunks}, which this outbox takes over. */
+        synchronized void frame(int src, int tag, int length, List<ByteBuffer> chunks) {
+            if (closed) {
+                chunks.forEach(pool::release);
+                return;
+            }
+            ByteBuffer tail = reserve(16);
+            int at = tail.limit();
+            tail.limit(at + 16);
+            tail.putInt(at, 2); // CMD=2 (INCOMING MSG)
+            tail.putInt(at + 4, src);
+            tail.putInt(at + 8, tag);
+            tail.putInt(at + 12, length);
+            queue.addAll(chunks);
+            queued(16 + length);
+            relayed(src, length);
+        }
+
+        synchronized void packet(int cmd, int arg1, byte[] payload) {
+            if (closed) {
+                return;
+            }
+            ByteBuffer tail = reserve(12 + payload.length);
+            int at = tail.limit();
+            tail.limit(at + 12 + payload.length);
+            tail.putInt(at, cmd);
+            tail.putInt(at + 4, arg1);
+            tail.putInt(at + 8, payload.length);
+            tail.put(at + 12, payload);
+            queued(12 + payload.length);
+        }
+
+        // The tail buffer if it has `n` spare bytes, otherwise a fresh one from the pool
+        private ByteBuffer reserve(int n) {
+            ByteBuffer tail = queue.peekLast();
+            if (tail != null && tail.capacity() - tail.limit() >= n) {
+                return tail;
+            }
+            ByteBuffer buf = n <= CHUNK ? pool.acquire() : ByteBuffer.allocateDirect(n);
+            buf.limit(0);
+            queue.add(buf);
+            return buf;
+        }
+
+        private void queued(int n) {
+            queuedBytes += n;
+            queuedTotal += n;
+            scheduleFlush();
+        }
+
+        private void relayed(int src, int length) {
+            relayedFrames.incrementAndGet();
+            relayedBytes.addAndGet(length);
+            marks.add(queuedTotal, System.nanoTime(), src, length);
+        }
+
+        // Times the relayed frames that are now written out in full
+        private void wrote(long n) {
+            writtenTotal += n;
+            if (marks.isEmpty() || marks.end() > writtenTotal) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (; !marks.isEmpty() && marks.end() <= writtenTotal; marks.remove()) {
+                long latency = now - marks.time();
+                forwardLatency.record(latency);
+                Tracer.forwarded(marks.time(), latency, marks.source(), rank, marks.length());
+                CommEvents.RouterForward event = new CommEvents.RouterForward();
+                if (event.shouldCommit()) {
+                    event.source = marks.source();
+                    event.destination = rank;
+                    event.length = marks.length();
+                    event.latency = latency;
+                    event.commit();
+                }
+            }
+        }
+
+        private void scheduleFlush() {
+            if (loop != null && !flushScheduled && !queue.isEmpty()) {
+                flushScheduled = true;
+                loop.execute(this::flush);
+            }
+        }
+
+        /** Returns true (and remembers the sender) if this outbox is over its high-water mark. */
+        synchronized boolean stall(Inbound sender) {
+            if (closed || queuedBytes < HIGH_WATER) {
+                return false;
+            }
+            stalled.add(sender);
+            return true;
+        }
+
+        // Runs on the owning loop
+        synchronized void flush() {
+            flushScheduled = false;
+            if (closed || channel == null) {
+                return;
+            }
+            try {
+                while (!queue.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer buf : queue) {
+                        gather[count++] = buf;
+                        if (count == gather.length) {
+                            break;
+                        }
+                    }
+                    long written = channel.write(gather, 0, count);
+                    queuedBytes -= written;
+                    wrote(written);
+                    while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+                        pool.release(queue.poll());
+                    }
+                    if (written == 0 || (!queue.isEmpty() && count < gather.length)) {
+                        break; // Socket buffer full
+                    }
+                }
+                Arrays.fill(gather, null);
+                if (queue.isEmpty()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+                if (queuedBytes < LOW_WATER) {
+                    resumeStalled();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                System.err.println("Router: write to rank " + rank + " failed: " + e);
+                closed = true;
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void resumeStalled() {
+            for (Inbound sender : stalled) {
+                sender.loop.execute(sender::resume);
+            }
+            stalled.clear();
+        }
+    }
+
+    /** A FIFO of relayed frames in primitive arrays: where each ends, when it was queued, source, length. */
+    private static final class RelayMarks {
+        private long[] ends = new long[16];
+        private long[] times = new long[16];
+        private int[] sources = new int[16];
+        private int[] lengths = new int[16];
+        private int head = 0;
+        private int count = 0;
+
+        void add(long end, long time, int source, int length) {
+            if (count == ends.length) {
+                grow();
+            }
+            int i = (head + count++) & (ends.length - 1);
+            ends[i] = end;
+            times[i] = time;
+            sources[i] = source;
+            lengths[i] = length;
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        long end() {
+            return ends[head];
+        }
+
+        long time() {
+            return times[head];
+        }
+
+        int source() {
+            return sources[head];
+        }
+
+        int length() {
+            return lengths[head];
+        }
+
+        void remove() {
+            head = (head + 1) & (ends.length - 1);
+            count--;
+        }
+
+        void clear() {
+            head = count = 0;
+        }
+
+        private void grow() {
+            int n = ends.length;
+            long[] newEnds = new long[2 * n];
+            long[] newTimes = new long[2 * n];
+            int[] newSources = new int[2 * n];
+            int[] newLengths = new int[2 * n];
+            for (int k = 0; k < count; k++) {
+                int i = (head + k) & (n - 1);
+                newEnds[k] = ends[i];
+                newTimes[k] = times[i];
+                newSources[k] = sources[i];
+                newLengths[k] = lengths[i];
+            }
+            ends = newEnds;
+            times = newTimes;
+            sources = newSources;
+            lengths = newLengths;
+            head = 0;
+        }
+    }
+
+    /** Direct buffers of {@link #CHUNK} bytes, recycled between reads and relays. */
+    private static final class BufferPool {
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+        private final int maxPooled;
+
+        BufferPool(int maxPooled) {
+            this.maxPooled = maxPooled;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buf = free.poll();
+            if (buf == null) {
+                return ByteBuffer.allocateDirect(CHUNK);
+            }
+            pooled.decrementAndGet();
+            return buf.clear();
+        }
+
+        void release(ByteBuffer buf) {
+            if (buf.capacity() == CHUNK && pooled.incrementAndGet() <= maxPooled) {
+                free.add(buf);
+            } else if (buf.capacity() == CHUNK) {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+}
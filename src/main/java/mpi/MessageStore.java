@@ -0,0 +1,129 @@
+package mpi;
+
+import java.util.*;
+
+/**
+ * Unexpected-message store: messages that arrived before anyone asked for
+ * them, indexed so that a receive finds its match in O(1) instead of
+ * scanning the queue.
+ *
+ * Every message is queued under its exact (context, source, tag) key. User
+ * messages (tag >= 0) are also queued per source, per tag and per context,
+ * to serve ANY_TAG / ANY_SOURCE receives; wildcards never reach across
+ * communicators. Each queue is in arrival order, so the head
+ * of whichever queue a receive consults is the earliest match, which keeps
+ * MPI's non-overtaking order. A message taken through one index stays in
+ * the others, marked consumed; those entries are skipped at the head and
+ * swept out once they outnumber the live ones.
+ *
+ * Not thread-safe; MPI guards it with its inbox lock.
+ */
+class MessageStore {
+    private static final class Entry {
+        final MPI.Message msg;
+        boolean consumed;
+
+        Entry(MPI.Message msg) {
+            this.msg = msg;
+        }
+    }
+
+    private final Map<Long, ArrayDeque<Entry>> byKey = new HashMap<>();
+    private final Map<Long, ArrayDeque<Entry>> bySource = new HashMap<>();
+    private final Map<Long, ArrayDeque<Entry>> byTag = new HashMap<>();
+    private final Map<Integer, ArrayDeque<Entry>> byContext = new HashMap<>();
+    private int live = 0;
+    private int consumedSinceSweep = 0;
+
+    void add(MPI.Message msg) {
+        Entry e = new Entry(msg);
+        byKey.computeIfAbsent(key(msg.context, msg.src, msg.tag), k -> new ArrayDeque<>()).add(e);
+        if (msg.tag >= 0) {
+            bySource.computeIfAbsent(key(msg.context, msg.src, MPI.ANY_TAG), k -> new ArrayDeque<>()).add(e);
+            byTag.computeIfAbsent(key(msg.context, MPI.ANY_SOURCE, msg.tag), k -> new ArrayDeque<>()).add(e);
+            byContext.computeIfAbsent(msg.context, k -> new ArrayDeque<>()).add(e);
+        }
+        live++;
+    }
+
+    /** Earliest user message in {@code context} matching (source, tag), either of which may be a wildcard. */
+    MPI.Message peek(int context, int source, int tag) {
+        Entry e = head(queueFor(context, source, tag));
+        return e == null ? null : e.msg;
+    }
+
+    /** Removes and returns the earliest user message in {@code context} matching (source, tag), or null. */
+    MPI.Message poll(int context, int source, int tag) {
+        boolean exact = source != MPI.ANY_SOURCE && tag != MPI.ANY_TAG;
+        return take(queueFor(context, source, tag), exact, context, source, tag);
+    }
+
+    /** Like {@link #poll} without wildcards, for internal (negative) tags that overlap their values. */
+    MPI.Message pollExact(int context, int source, int tag) {
+        return take(byKey.get(key(context, source, tag)), true, context, source, tag);
+    }
+
+    private MPI.Message take(ArrayDeque<Entry> queue, boolean exact, int context, int source, int tag) {
+        Entry e = head(queue);
+        if (e == null) {
+            return null;
+        }
+        queue.poll();
+        e.consumed = true;
+        live--;
+        if (exact && queue.isEmpty()) {
+            byKey.remove(key(context, source, tag));
+        }
+        if (++consumedSinceSweep > live + 64) {
+            sweep();
+        }
+        return e.msg;
+    }
+
+    int size() {
+        return live;
+    }
+
+    private ArrayDeque<Entry> queueFor(int context, int source, int tag) {
+        if (source == MPI.ANY_SOURCE && tag == MPI.ANY_TAG) {
+            return byContext.get(context);
+        } else if (source == MPI.ANY_SOURCE) {
+            return byTag.get(key(context, source, tag));
+        } else if (tag == MPI.ANY_TAG) {
+            return bySource.get(key(context, source, tag));
+        }
+        return byKey.get(key(context, source, tag));
+    }
+
+    // Skips entries already taken through another index
+    private static Entry head(ArrayDeque<Entry> queue) {
+        if (queue == null) {
+            return null;
+        }
+        Entry e;
+        while ((e = queue.peek()) != null && e.consumed) {
+            queue.poll();
+        }
+        return e;
+    }
+
+    private void sweep() {
+        sweep(byKey);
+        sweep(bySource);
+        sweep(byTag);
+        sweep(byContext);
+        consumedSinceSweep = 0;
+    }
+
+    private static <K> void sweep(Map<K, ArrayDeque<Entry>> index) {
+        index.values().removeIf(q -> {
+            q.removeIf(e -> e.consumed);
+            return q.isEmpty();
+        });
+    }
+
+    // Context ids fit in 12 bits and ranks in 20 (ANY_SOURCE keeps its own value)
+    private static long key(int context, int source, int tag) {
+        return ((long) context << 52) | ((source & 0xFFFFFL) << 32) | (tag & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,191 @@
+package mpi;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.Objects;
+
+/**
+ * The bytes of one received message, read as they arrive. Returned by
+ * {@link MPI#receiveStream}; usable as an InputStream or a channel.
+ *
+ * A message sent by rendezvous comes in chunks that the stream asks the
+ * sender for as it is read, a window of them at a time, so only that window
+ * is ever held here. Reading past the end returns -1; if the sender fails
+ * midway, reads throw IOException. Closing the stream before the end
+ * discards the rest of the message. Not safe for use by several threads.
+ */
+public final class MessageStream extends InputStream implements ReadableByteChannel {
+    private final Communicator comm;
+    private final int source;
+    private final int tag;
+    private final long length;
+    private final byte[] data; // the whole body of an eager message
+    private final int stream; // rendezvous stream id, or -1
+    private final long chunks;
+    private long granted;
+    private long received;
+    private ByteBuffer current;
+    private boolean aborted;
+    private boolean open = true;
+
+    MessageStream(Communicator comm, MPI.Message msg) {
+        this.comm = comm;
+        this.source = comm.groupRank(msg.src);
+        this.tag = msg.tag;
+        this.length = msg.length;
+        this.data = msg.data;
+        this.stream = msg.stream;
+        this.chunks = msg.stream < 0 ? 1 : (msg.length + msg.chunkSize - 1) / msg.chunkSize;
+    }
+
+    // Cancels a matched message that will not be read
+    static void discard(Communicator comm, MPI.Message msg) {
+        new MessageStream(comm, msg).close();
+    }
+
+    /** Rank of the sender in the communicator the message was received on. */
+    public int getSource() {
+        return source;
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    /** Total size of the message in bytes. */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns the next chunk of the message, or null past the end. Credit for
+     * the first window is granted on the first call, then one more chunk per
+     * chunk received, so the sender never runs more than a window ahead.
+     */
+    ByteBuffer nextChunk() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (aborted) {
+            throw new IOException("Stream from rank " + source + " was aborted by the sender");
+        }
+        if (received == length) {
+            return null;
+        }
+        if (stream < 0) {
+            received = length;
+            return ByteBuffer.wrap(data);
+        }
+        if (granted == 0) {
+            grant((int) Math.min(MPI.RNDV_WINDOW, chunks));
+        }
+        byte[] chunk = MPI.receiveInternal(comm, source, MPI.chunkTag(stream));
+        if (chunk.length == 0) {
+            aborted = true;
+            throw new IOException("Stream from rank " + source + " ended after " + received + " of " + length
+                    + " bytes");
+        }
+        received += chunk.length;
+        if (granted < chunks) {
+            grant(1);
+        }
+        return ByteBuffer.wrap(chunk);
+    }
+
+    private void grant(int credits) {
+        byte[] credit = ByteBuffer.allocate(Integer.BYTES).putInt(credits).array();
+        MPI.sendInternal(comm, source, MPI.creditTag(stream), credit, 0, credit.length);
+        granted += Math.max(credits, 0);
+    }
+
+    // Makes `current` hold unread bytes; false at the end of the message
+    private boolean fill() throws IOException {
+        while (current == null || !current.hasRemaining()) {
+            current = nextChunk();
+            if (current == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return fill() ? current.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), current.remaining());
+        dst.put(current.slice(current.position(), n));
+        current.position(current.position() + n);
+        return n;
+    }
+
+    /** Bytes readable without waiting for another chunk. */
+    @Override
+    public int available() {
+        return open && current != null ? current.remaining() : 0;
+    }
+
+    /** Writes the rest of the message to {@code file} starting at {@code position}; returns the byte count. */
+    public long writeTo(FileChannel file, long position) throws IOException {
+        long written = 0;
+        while (fill()) {
+            written += file.write(current, position + written);
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Releases the stream. If it was not read to the end, the sender is told
+     * to stop and whatever it already sent is drained.
+     */
+    @Override
+    public void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        current = null;
+        if (stream < 0 || aborted || received == length) {
+            return;
+        }
+        if (granted < chunks) {
+            grant(-1);
+        }
+        while (received < length) {
+            byte[] chunk = MPI.receiveInternal(comm, source, MPI.chunkTag(stream));
+            if (chunk.length == 0) {
+                break;
+            }
+            received += chunk.length;
+        }
+    }
+}
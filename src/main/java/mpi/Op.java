@@ -0,0 +1,43 @@
+package mpi;
+
+/**
+ * Reduction operator for {@link MPI#reduce} and {@link MPI#allreduce}.
+ *
+ * An operator combines two vectors element by element, in place:
+ * {@code inout[i] = in[i] op inout[i]}, where {@code in} holds the
+ * contribution of the lower-ranked side. Implement the overloads for the
+ * element types you reduce; the others throw.
+ *
+ * Operators must be associative. Commutative ones (the default) may be
+ * applied to arbitrary slices of the vector, which lets long vectors use
+ * reduce-scatter; return false from {@link #commutative()} to always combine
+ * whole vectors in rank order.
+ */
+public interface Op {
+    Op SUM = BuiltinOp.SUM;
+    Op PROD = BuiltinOp.PROD;
+    Op MIN = BuiltinOp.MIN;
+    Op MAX = BuiltinOp.MAX;
+    Op BAND = BuiltinOp.BAND;
+    Op BOR = BuiltinOp.BOR;
+    /** Vectors of (value, index) pairs; keeps the smallest value, lowest index on ties. */
+    Op MINLOC = BuiltinOp.MINLOC;
+    /** Vectors of (value, index) pairs; keeps the largest value, lowest index on ties. */
+    Op MAXLOC = BuiltinOp.MAXLOC;
+
+    default void apply(int[] in, int inOffset, int[] inout, int inoutOffset, int count) {
+        throw new UnsupportedOperationException(this + " does not support int[]");
+    }
+
+    default void apply(long[] in, int inOffset, long[] inout, int inoutOffset, int count) {
+        throw new UnsupportedOperationException(this + " does not support long[]");
+    }
+
+    default void apply(double[] in, int inOffset, double[] inout, int inoutOffset, int count) {
+        throw new UnsupportedOperationException(this + " does not support double[]");
+    }
+
+    default boolean commutative() {
+        return true;
+    }
+}
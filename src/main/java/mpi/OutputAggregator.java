@@ -0,0 +1,181 @@
+package mpi;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes the output of every rank for mpiexec.
+ *
+ * The connection readers hand over each chunk as it arrives and go straight
+ * back to reading. One writer thread takes whatever has queued up since its
+ * last pass, prefixes each complete line with "[Rank n]: " and writes the
+ * batch with a single write per console stream. Unfinished lines wait for
+ * the rest of their rank's output, so lines from different ranks never
+ * interleave. With an output directory, each rank's stdout and stderr go
+ * unprefixed to rank-N.out / rank-N.err there instead of the console.
+ */
+class OutputAggregator {
+    // Readers only block once this many chunks are waiting for the writer
+    private static final int QUEUE_CHUNKS = 1024;
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private static final class Chunk {
+        final int rank;
+        final int stream;
+        final byte[] data; // null once the rank's output has ended
+
+        Chunk(int rank, int stream, byte[] data) {
+            this.rank = rank;
+            this.stream = stream;
+            this.data = data;
+        }
+    }
+
+    private static final Chunk CLOSE = new Chunk(-1, 0, null);
+
+    private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private final File dir; // null for the console
+    // Taken at construction, so output can still reach the console if System.out is redirected later
+    private final PrintStream stdout = System.out;
+    private final PrintStream stderr = System.err;
+    private final Thread writer;
+    // Owned by the writer thread; keyed by rank and stream
+    private final Map<Integer, ByteArrayOutputStream> unfinished = new HashMap<>();
+    private final Map<Integer, OutputStream> files = new HashMap<>();
+    private final ByteArrayOutputStream outBatch = new ByteArrayOutputStream(BATCH_BYTES);
+    private final ByteArrayOutputStream errBatch = new ByteArrayOutputStream(BATCH_BYTES);
+
+    OutputAggregator(File dir) {
+        this.dir = dir;
+        this.writer = new Thread(this::run, "mpiexec-output");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Queues output of {@code rank} on {@code stream} (smpd.STDOUT or smpd.STDERR). */
+    void write(int rank, int stream, byte[] data) throws InterruptedException {
+        queue.put(new Chunk(rank, stream, data));
+    }
+
+    /** Marks the end of the rank's output, ending any unfinished line. */
+    void finish(int rank) throws InterruptedException {
+        queue.put(new Chunk(rank, 0, null));
+    }
+
+    /** Writes out everything queued so far and stops the writer. */
+    void close() throws InterruptedException {
+        queue.put(CLOSE);
+        writer.join();
+    }
+
+    private void run() {
+        List<Chunk> batch = new ArrayList<>();
+        boolean closed = false;
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            for (Chunk chunk : batch) {
+                if (chunk == CLOSE) {
+                    closed = true;
+                } else if (chunk.data == null) {
+                    finishRank(chunk.rank);
+                } else if (dir != null) {
+                    writeFile(chunk);
+                } else {
+                    appendLines(chunk);
+                }
+            }
+            batch.clear();
+            writeBatch(stdout, outBatch);
+            writeBatch(stderr, errBatch);
+            for (OutputStream file : files.values()) {
+                try {
+                    file.flush();
+                } catch (IOException e) {
+                    // Reported when the file is closed
+                }
+            }
+        }
+    }
+
+    private static int key(int rank, int stream) {
+        return rank << 1 | (stream == smpd.STDERR ? 1 : 0);
+    }
+
+    private void appendLines(Chunk chunk) {
+        ByteArrayOutputStream sink = chunk.stream == smpd.STDERR ? errBatch : outBatch;
+        ByteArrayOutputStream pending = unfinished.get(key(chunk.rank, chunk.stream));
+        byte[] data = chunk.data;
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                sink.writeBytes(prefix(chunk.rank));
+                if (pending != null) {
+                    sink.writeBytes(pending.toByteArray());
+                    pending.reset();
+                }
+                sink.write(data, start, i + 1 - start);
+                start = i + 1;
+            }
+        }
+        if (start < data.length) {
+            if (pending == null) {
+                pending = new ByteArrayOutputStream();
+                unfinished.put(key(chunk.rank, chunk.stream), pending);
+            }
+            pending.write(data, start, data.length - start);
+        }
+    }
+
+    private void finishRank(int rank) {
+        for (int stream : new int[] { smpd.STDOUT, smpd.STDERR }) {
+            ByteArrayOutputStream pending = unfinished.remove(key(rank, stream));
+            if (pending != null && pending.size() > 0) {
+                ByteArrayOutputStream sink = stream == smpd.STDERR ? errBatch : outBatch;
+                sink.writeBytes(prefix(rank));
+                sink.writeBytes(pending.toByteArray());
+                sink.write('\n');
+            }
+            OutputStream file = files.remove(key(rank, stream));
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    stderr.println("Failed to write output of rank " + rank + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void writeFile(Chunk chunk) {
+        OutputStream file = files.get(key(chunk.rank, chunk.stream));
+        try {
+            if (file == null) {
+                String name = "rank-" + chunk.rank + (chunk.stream == smpd.STDERR ? ".err" : ".out");
+                file = new BufferedOutputStream(new FileOutputStream(new File(dir, name)), BATCH_BYTES);
+                files.put(key(chunk.rank, chunk.stream), file);
+            }
+            file.write(chunk.data);
+        } catch (IOException e) {
+            stderr.println("Failed to write output of rank " + chunk.rank + ": " + e.getMessage());
+        }
+    }
+
+    private static byte[] prefix(int rank) {
+        return ("[Rank " + rank + "]: ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeBatch(PrintStream console, ByteArrayOutputStream batch) {
+        if (batch.size() > 0) {
+            console.write(batch.toByteArray(), 0, batch.size());
+            console.flush();
+            batch.reset();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package mpi;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+/**
+ * Outbound half of a connection to one peer rank.
+ *
+ * A direct link writes INCOMING MSG frames straight into the socket the peer
+ * accepted on its listening endpoint. When both ranks share a node, the
+ * socket only carries a one-time SHM_ATTACH and frames go through a
+ * {@link ShmRing} instead. A relayed link shares the router connection and
+ * wraps each frame in a SEND command. In every case the receiver sees the
+ * same [CMD=2][src][tag][length][bytes] frame. Between ranks of an
+ * in-process job (see {@link LocalFabric}) there is no connection at all:
+ * each frame's payload is copied once into an array of its own and handed
+ * to the peer's inbox on the sending thread.
+ *
+ * Callers must hold {@link #lock()} for the whole frame, since relayed links
+ * to different destinations share one stream. Frames are handed to
+ * {@link #submit} rather than written directly, so that blocking and
+ * non-blocking sends to the same peer go out in the order they were made.
+ */
+class PeerLink {
+    final int dest;
+    final boolean direct;
+    // Whether the peer is on another node (or only reachable through the router), where compression pays
+    final boolean remote;
+    final Compression.Policy compression = new Compression.Policy();
+    // Small messages waiting to go out together (see Aggregation); null for in-memory links
+    final Aggregation.Batch batch;
+    final DataOutputStream out;
+    final ByteBuffer staging = ByteBuffer.allocate(MPI.CHUNK_SIZE);
+    private final Socket socket; // null for relayed links
+    private final ShmRing ring; // null unless the peer shares our node
+    private final LocalFrames local; // null unless the peer runs in this JVM
+    private static final CompletableFuture<Void> WRITTEN = CompletableFuture.completedFuture(null);
+    // Last frame queued by submit(); guarded by `this`
+    private CompletableFuture<Void> tail = WRITTEN;
+
+    interface Frame {
+        void write() throws IOException;
+    }
+
+    private PeerLink(int dest, Socket socket, DataOutputStream out, ShmRing ring, boolean remote) {
+        this(dest, socket, out, ring, null, remote);
+    }
+
+    private PeerLink(int dest, Socket socket, DataOutputStream out, ShmRing ring, LocalFrames local,
+            boolean remote) {
+        this.dest = dest;
+        this.direct = socket != null || local != null;
+        this.remote = remote;
+        this.socket = socket;
+        this.out = out;
+        this.ring = ring;
+        this.local = local;
+        this.batch = local == null ? new Aggregation.Batch() : null;
+    }
+
+    static PeerLink connect(int dest, int selfRank, String host, int port, boolean remote) throws IOException {
+        Socket socket = new Socket();
+        MPI.tune(socket);
+        socket.connect(new InetSocketAddress(host, port));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), MPI.CHUNK_SIZE));
+        // Handshake (Send Rank)
+        out.writeInt(selfRank);
+        out.flush();
+        return new PeerLink(dest, socket, out, null, remote);
+    }
+
+    /**
+     * Switches a freshly connected direct link to shared memory: creates the
+     * ring file and tells the peer to attach to it. Must be called before any
+     * frame is sent on {@code tcp}.
+     */
+    static PeerLink overSharedMemory(PeerLink tcp, int selfRank, File file, int capacity) throws IOException {
+        // The peer unlinks the file once mapped, and mpiexec sweeps any left at job end.
+        // It must outlive us: the peer may attach after we've written and exited.
+        ShmRing ring = ShmRing.create(file, capacity);
+        byte[] path = file.getPath().getBytes(StandardCharsets.UTF_8);
+        tcp.out.writeInt(9); // CMD=9 (SHM_ATTACH)
+        tcp.out.writeInt(selfRank);
+        tcp.out.writeInt(path.length);
+        tcp.out.write(path);
+        tcp.out.flush();
+        // Small writes (frame headers) gather in the buffer; large payloads go straight into the ring
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(ring.output(), 8 * 1024));
+        return new PeerLink(tcp.dest, tcp.socket, out, ring, false);
+    }
+
+    static PeerLink viaRouter(int dest, DataOutputStream routerOut) {
+        return new PeerLink(dest, null, routerOut, null, true);
+    }
+
+    static PeerLink inMemory(int dest, LocalFabric.Endpoint peer) {
+        LocalFrames frames = new LocalFrames(peer);
+        return new PeerLink(dest, null, new DataOutputStream(frames), null, frames, false);
+    }
+
+    /**
+     * Writes {@code frame} once every frame submitted before it is out, on
+     * {@code executor}. With {@code inline} set and nothing queued, writes it
+     * on the calling thread instead. The result completes when it is written.
+     */
+    synchronized CompletableFuture<Void> submit(Frame frame, Executor executor, boolean inline) {
+        if (inline && tail.isDone()) {
+            try {
+                frame.write();
+                return WRITTEN;
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        tail.whenCompleteAsync((v, previousFailure) -> {
+            try {
+                frame.write();
+                written.complete(null);
+            } catch (Throwable e) {
+                written.completeExceptionally(e);
+            }
+        }, executor);
+        tail = written;
+        return written;
+    }
+
+    boolean sharedMemory() {
+        return ring != null;
+    }
+
+    Object lock() {
+        return out;
+    }
+
+    void beginFrame(int srcRank, int tag, int length) throws IOException {
+        if (local != null) {
+            local.begin(srcRank, tag, length);
+            return;
+        }
+        if (direct) {
+            out.writeInt(2); // CMD=2 (INCOMING MSG)
+            out.writeInt(srcRank);
+        } else {
+            out.writeInt(1); // CMD=1 (SEND)
+            out.writeInt(dest);
+        }
+        out.writeInt(tag);
+        out.writeInt(length);
+    }
+
+    /** Writes out any queued frames, then closes the connection. */
+    void close() {
+        CompletableFuture<Void> last;
+        synchronized (this) {
+            last = tail;
+        }
+        last.handle((v, e) -> null).join();
+        if (socket == null) {
+            return;
+        }
+        synchronized (lock()) {
+            try {
+                out.flush();
+                if (ring != null) {
+                    ring.close();
+                }
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // Gathers the payload of the current frame and delivers it once complete
+    private static final class LocalFrames extends OutputStream {
+        private final LocalFabric.Endpoint peer;
+        private int src;
+        private int match;
+        private byte[] data;
+        private int filled;
+
+        LocalFrames(LocalFabric.Endpoint peer) {
+            this.peer = peer;
+        }
+
+        void begin(int src, int match, int length) {
+            this.src = src;
+            this.match = match;
+            data = new byte[length];
+            filled = 0;
+            deliverIfComplete();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkRoom(1);
+            data[filled++] = (byte) b;
+            deliverIfComplete();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return; // The payload of an empty frame, already delivered
+            }
+            checkRoom(len);
+            System.arraycopy(b, off, data, filled, len);
+            filled += len;
+            deliverIfComplete();
+        }
+
+        private void checkRoom(int len) throws IOException {
+            if (data == null || len > data.length - filled) {
+                throw new IOException("Payload longer than its frame");
+            }
+        }
+
+        private void deliverIfComplete() {
+            if (filled == data.length) {
+                byte[] frame = data;
+                data = null;
+                peer.deliver(src, match, frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package mpi;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * The {@link Codec} of one record class (see {@link Codec#record}).
+ *
+ * Encoding is a single method handle that reads each component through its
+ * accessor and puts it into the buffer, in declaration order; decoding one
+ * that reads the components and calls the canonical constructor. Primitive
+ * components stay unboxed all the way. Nested records and enums are preceded
+ * by a presence byte or written as their ordinal (-1 for null); a nested
+ * record's codec is made when first needed, so records may nest themselves.
+ */
+final class RecordCodec<R extends Record> implements Codec<R> {
+    private static final ClassValue<RecordCodec<?>> CODECS = new ClassValue<>() {
+        @Override
+        protected RecordCodec<?> computeValue(Class<?> type) {
+            return new RecordCodec<>(type.asSubclass(Record.class));
+        }
+    };
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final Class<R> type;
+    private final MethodHandle encoder; // (ByteBuffer, Object)void
+    private final MethodHandle decoder; // (ByteBuffer)Object
+
+    @SuppressWarnings("unchecked")
+    static <R extends Record> RecordCodec<R> of(Class<R> type) {
+        if (!type.isRecord()) {
+            throw new IllegalArgumentException(type.getName() + " is not a record");
+        }
+        return (RecordCodec<R>) CODECS.get(type);
+    }
+
+    private RecordCodec(Class<R> type) {
+        this.type = type;
+        RecordComponent[] components = type.getRecordComponents();
+        Class<?>[] types = new Class<?>[components.length];
+        try {
+            // Encode: (ByteBuffer, R)void, each component written before the next
+            MethodHandle encode = MethodHandles.empty(MethodType.methodType(void.class, ByteBuffer.class, type));
+            for (int i = components.length - 1; i >= 0; i--) {
+                types[i] = components[i].getType();
+                Method accessor = components[i].getAccessor();
+                accessor.setAccessible(true);
+                MethodHandle write = MethodHandles.filterArguments(writer(types[i]), 1, LOOKUP.unreflect(accessor));
+                encode = MethodHandles.foldArguments(encode, write);
+            }
+            encoder = encode.asType(MethodType.methodType(void.class, ByteBuffer.class, Object.class));
+
+            // Decode: the constructor with a trailing ByteBuffer, from which each argument is read in turn
+            Constructor<R> constructor = type.getDeclaredConstructor(types);
+            constructor.setAccessible(true);
+            MethodHandle decode = MethodHandles.dropArguments(LOOKUP.unreflectConstructor(constructor),
+                    types.length, ByteBuffer.class);
+            for (int i = types.length - 1; i >= 0; i--) {
+                decode = MethodHandles.foldArguments(decode, i, reader(types[i]));
+            }
+            decoder = decode.asType(MethodType.methodType(Object.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IllegalArgumentException("Cannot make a codec for " + type.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void encode(R value, ByteBuffer out) {
+        try {
+            encoder.invokeExact(out, (Object) value);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public R decode(ByteBuffer in) {
+        try {
+            return type.cast((Object) decoder.invokeExact(in));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RecordCodec[" + type.getName() + "]";
+    }
+
+    // (ByteBuffer, t)void
+    private static MethodHandle writer(Class<?> t) throws ReflectiveOperationException {
+        MethodType put = MethodType.methodType(void.class, ByteBuffer.class, t);
+        if (t.isPrimitive()) {
+            return LOOKUP.findStatic(RecordCodec.class, "put", put);
+        }
+        MethodHandle write = LOOKUP.findStatic(RecordCodec.class, "write",
+                MethodType.methodType(void.class, Codec.class, ByteBuffer.class, Object.class));
+        return MethodHandles.insertArguments(write, 0, codecFor(t)).asType(put);
+    }
+
+    // (ByteBuffer)t
+    private static MethodHandle reader(Class<?> t) throws ReflectiveOperationException {
+        if (t.isPrimitive()) {
+            String name = "get" + Character.toUpperCase(t.getName().charAt(0)) + t.getName().substring(1);
+            return LOOKUP.findStatic(RecordCodec.class, name, MethodType.methodType(t, ByteBuffer.class));
+        }
+        MethodHandle read = LOOKUP.findStatic(RecordCodec.class, "read",
+                MethodType.methodType(Object.class, Codec.class, ByteBuffer.class));
+        return MethodHandles.insertArguments(read, 0, codecFor(t)).asType(MethodType.methodType(t, ByteBuffer.class));
+    }
+
+    private static Codec<?> codecFor(Class<?> t) {
+        if (t == String.class) {
+            return Codec.STRING;
+        } else if (t == byte[].class) {
+            return Codec.BYTES;
+        } else if (t == int[].class) {
+            return Codec.INTS;
+        } else if (t == long[].class) {
+            return Codec.LONGS;
+        } else if (t == double[].class) {
+            return Codec.DOUBLES;
+        } else if (t.isEnum()) {
+            return new EnumCodec(t.getEnumConstants());
+        } else if (t.isRecord()) {
+            return new Nested(t.asSubclass(Record.class));
+        }
+        throw new IllegalArgumentException("unsupported component type " + t.getName());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(Codec<?> codec, ByteBuffer out, Object value) {
+        ((Codec<Object>) codec).encode(value, out);
+    }
+
+    private static Object read(Codec<?> codec, ByteBuffer in) {
+        return codec.decode(in);
+    }
+
+    // Primitive components, by type; booleans take a byte
+
+    private static void put(ByteBuffer out, boolean v) {
+        out.put((byte) (v ? 1 : 0));
+    }
+
+    private static void put(ByteBuffer out, byte v) {
+        out.put(v);
+    }
+
+    private static void put(ByteBuffer out, short v) {
+        out.putShort(v);
+    }
+
+    private static void put(ByteBuffer out, char v) {
+        out.putChar(v);
+    }
+
+    private static void put(ByteBuffer out, int v) {
+        out.putInt(v);
+    }
+
+    private static void put(ByteBuffer out, long v) {
+        out.putLong(v);
+    }
+
+    private static void put(ByteBuffer out, float v) {
+        out.putFloat(v);
+    }
+
+    private static void put(ByteBuffer out, double v) {
+        out.putDouble(v);
+    }
+
+    private static boolean getBoolean(ByteBuffer in) {
+        return in.get() != 0;
+    }
+
+    private static byte getByte(ByteBuffer in) {
+        return in.get();
+    }
+
+    private static short getShort(ByteBuffer in) {
+        return in.getShort();
+    }
+
+    private static char getChar(ByteBuffer in) {
+        return in.getChar();
+    }
+
+    private static int getInt(ByteBuffer in) {
+        return in.getInt();
+    }
+
+    private static long getLong(ByteBuffer in) {
+        return in.getLong();
+    }
+
+    private static float getFloat(ByteBuffer in) {
+        return in.getFloat();
+    }
+
+    private static double getDouble(ByteBuffer in) {
+        return in.getDouble();
+    }
+
+    private static final class EnumCodec implements Codec<Object> {
+        private final Object[] constants;
+
+        EnumCodec(Object[] constants) {
+            this.constants = constants;
+        }
+
+        @Override
+        public void encode(Object value, ByteBuffer out) {
+            out.putInt(value == null ? -1 : ((Enum<?>) value).ordinal());
+        }
+
+        @Override
+        public Object decode(ByteBuffer in) {
+            int ordinal = in.getInt();
+            return ordinal < 0 ? null : constants[ordinal];
+        }
+    }
+
+    // A nested record, or null. Its codec is looked up on first use, as a record may contain itself
+    // (e.g. a list node), whose codec is still being made when its components are.
+    private static final class Nested implements Codec<Object> {
+        private final Class<? extends Record> type;
+        private RecordCodec<?> codec; // Racy, but every thread finds the same one
+
+        Nested(Class<? extends Record> type) {
+            this.type = type;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Codec<Object> codec() {
+            RecordCodec<?> c = codec;
+            if (c == null) {
+                codec = c = of(type);
+            }
+            return (Codec<Object>) (Codec<?>) c;
+        }
+
+        @Override
+        public void encode(Object value, ByteBuffer out) {
+            out.put((byte) (value == null ? 0 : 1));
+            if (value != null) {
+                codec().encode(value, out);
+            }
+        }
+
+        @Override
+        public Object decode(ByteBuffer in) {
+            return in.get() == 0 ? null : codec().decode(in);
+        }
+    }
+}
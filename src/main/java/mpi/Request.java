@@ -0,0 +1,100 @@
+package mpi;
+
+import java.util.concurrent.*;
+
+/**
+ * Handle to a non-blocking {@link MPI#isend} or {@link MPI#irecv}.
+ *
+ * The operation proceeds in the background while the caller computes: the
+ * connection readers complete receives as messages arrive, and a progress
+ * thread writes queued sends. A receive's buffer holds the message once the
+ * request is complete; a send's buffer must not be modified until then.
+ *
+ * The {@link Status} of a receive describes the message received; that of a
+ * send names this rank as the source.
+ */
+public final class Request {
+    private final CompletableFuture<Status> future;
+
+    Request(CompletableFuture<Status> future) {
+        this.future = future;
+    }
+
+    /** Returns true once the operation has completed (or failed); never blocks. */
+    public boolean test() {
+        return future.isDone();
+    }
+
+    /** Blocks until the operation completes. Rethrows what made it fail. */
+    public Status waitFor() {
+        if (future.isDone()) {
+            return await();
+        }
+        Tracer.enter(Tracer.Span.WAIT);
+        try {
+            return await();
+        } finally {
+            Tracer.exit(Tracer.Span.WAIT, -1, 0, 0);
+        }
+    }
+
+    // waitFor() without its trace span, for blocking receives that trace themselves
+    Status await() {
+        if (!future.isDone()) {
+            MPI.flushBatches();
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for request", e);
+        }
+    }
+
+    /** A future that completes with this request; completing it yourself has no effect on the request. */
+    public CompletableFuture<Status> toCompletableFuture() {
+        return future.thenApply(status -> status);
+    }
+
+    /** Blocks until every request completes. */
+    public static void waitAll(Request... requests) {
+        for (Request r : requests) {
+            r.waitFor();
+        }
+    }
+
+    /** Blocks until one of the requests completes and returns its index. */
+    public static int waitAny(Request... requests) {
+        if (requests.length == 0) {
+            throw new IllegalArgumentException("No requests to wait for");
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            futures[i] = requests[i].future;
+        }
+        MPI.flushBatches();
+        Tracer.enter(Tracer.Span.WAIT);
+        try {
+            CompletableFuture.anyOf(futures).get();
+        } catch (ExecutionException e) {
+            // Reported by the failed request's own waitFor()
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for requests", e);
+        } finally {
+            Tracer.exit(Tracer.Span.WAIT, -1, 0, 0);
+        }
+        for (int i = 0; i < requests.length; i++) {
+            if (requests[i].test()) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("No request completed");
+    }
+}
@@ -0,0 +1,201 @@
+package mpi;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * Single-producer/single-consumer byte ring in a memory-mapped file, used as
+ * the data channel between two ranks on the same node.
+ *
+ * Layout: the producer's write position at offset 0 and the consumer's read
+ * position at offset 64 (separate cache lines), a closed flag at 128, and the
+ * data region from {@link #DATA_OFFSET}. Positions only ever grow; the slot
+ * is {@code position & (capacity - 1)}. Each side publishes its position with
+ * release semantics after touching the data, and reads the other's with
+ * acquire semantics, so payload bytes are visible before the index moves.
+ *
+ * The ring carries the same frames as a TCP link ([CMD=2][src][tag][length][bytes]),
+ * streamed through as space frees up, so a message larger than the ring
+ * still costs one copy in and one copy out.
+ */
+class ShmRing {
+    private static final int WRITE_POS = 0;
+    private static final int READ_POS = 64;
+    private static final int CLOSED = 128;
+    static final int DATA_OFFSET = 192;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+
+    // Consumer-side frame assembly state (only touched by the poller thread)
+    private final byte[] header = new byte[16];
+    private int headerFill = 0;
+    private int src;
+    private int tag;
+    private byte[] payload;
+    private int payloadFill;
+
+    private ShmRing(MappedByteBuffer buffer, int capacity) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /** Creates and maps a new ring file of {@code capacity} data bytes (rounded up to a power of two). */
+    static ShmRing create(File file, int capacity) throws IOException {
+        int cap = Integer.highestOneBit(Math.max(capacity - 1, 4096)) << 1;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(DATA_OFFSET + (long) cap);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + (long) cap);
+            return new ShmRing(buffer, cap);
+        }
+    }
+
+    /** Maps an existing ring file created by the producer. */
+    static ShmRing attach(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Shared-memory ring " + file + " is gone");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            return new ShmRing(buffer, (int) (length - DATA_OFFSET));
+        }
+    }
+
+    // ---- Producer ----
+
+    /** Stream that copies bytes into the ring, waiting for the consumer when it is full. */
+    OutputStream output() {
+        return new OutputStream() {
+            private long writePos = (long) LONGS.getAcquire(buffer, WRITE_POS);
+
+            @Override
+            public void write(int b) throws IOException {
+                awaitSpace(1);
+                buffer.put(DATA_OFFSET + (int) (writePos & mask), (byte) b);
+                writePos++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int free = awaitSpace(len);
+                    int slot = (int) (writePos & mask);
+                    int n = Math.min(Math.min(len, free), capacity - slot);
+                    buffer.put(DATA_OFFSET + slot, b, off, n);
+                    writePos += n;
+                    off += n;
+                    len -= n;
+                    // Publish as we go, so the consumer overlaps with large copies
+                    LONGS.setRelease(buffer, WRITE_POS, writePos);
+                }
+            }
+
+            @Override
+            public void flush() {
+                LONGS.setRelease(buffer, WRITE_POS, writePos);
+            }
+
+            // Waits until at least one byte is free and returns how many are
+            private int awaitSpace(int wanted) throws IOException {
+                int idle = 0;
+                while (true) {
+                    long free = capacity - (writePos - (long) LONGS.getAcquire(buffer, READ_POS));
+                    if (free > 0) {
+                        return (int) Math.min(free, wanted);
+                    }
+                    // Let the consumer see what we've written so far before waiting on it
+                    LONGS.setRelease(buffer, WRITE_POS, writePos);
+                    idle = backoff(idle);
+                }
+            }
+        };
+    }
+
+    void close() {
+        INTS.setRelease(buffer, CLOSED, 1);
+    }
+
+    // ---- Consumer ----
+
+    interface Sink {
+        void deliver(int src, int tag, byte[] data);
+    }
+
+    /**
+     * Consumes whatever bytes are available, handing each completed frame to
+     * {@code sink}. Returns false if there was nothing to read.
+     */
+    boolean poll(Sink sink) throws IOException {
+        long readPos = (long) LONGS.get(buffer, READ_POS);
+        long available = (long) LONGS.getAcquire(buffer, WRITE_POS) - readPos;
+        if (available == 0) {
+            return false;
+        }
+        while (available > 0) {
+            int slot = (int) (readPos & mask);
+            int contiguous = (int) Math.min(available, capacity - slot);
+            int n;
+            if (payload == null) {
+                n = Math.min(contiguous, header.length - headerFill);
+                buffer.get(DATA_OFFSET + slot, header, headerFill, n);
+                headerFill += n;
+                if (headerFill == header.length) {
+                    ByteBuffer h = ByteBuffer.wrap(header);
+                    int cmd = h.getInt();
+                    if (cmd != 2) {
+                        throw new IOException("Protocol Error: Unexpected command " + cmd + " in shared-memory ring");
+                    }
+                    src = h.getInt();
+                    tag = h.getInt();
+                    payload = new byte[h.getInt()];
+                    payloadFill = 0;
+                    headerFill = 0;
+                }
+            } else {
+                n = Math.min(contiguous, payload.length - payloadFill);
+                buffer.get(DATA_OFFSET + slot, payload, payloadFill, n);
+                payloadFill += n;
+            }
+            readPos += n;
+            available -= n;
+            if (payload != null && payloadFill == payload.length) {
+                byte[] done = payload;
+                payload = null;
+                sink.deliver(src, tag, done);
+            }
+        }
+        LONGS.setRelease(buffer, READ_POS, readPos);
+        return true;
+    }
+
+    /** True once the producer has closed the ring and everything it wrote was consumed. */
+    boolean isFinished() {
+        return (int) INTS.getAcquire(buffer, CLOSED) != 0
+                && (long) LONGS.getAcquire(buffer, WRITE_POS) == (long) LONGS.get(buffer, READ_POS);
+    }
+
+    // Spinning only pays off when the other side has a core of its own to run on
+    private static final int SPIN_LIMIT = Runtime.getRuntime().availableProcessors() > 1 ? 10_000 : 0;
+
+    /** Spin, then yield, then park: keeps hand-off latency low without burning a core when idle. */
+    static int backoff(int idle) {
+        if (idle < SPIN_LIMIT) {
+            Thread.onSpinWait();
+        } else if (idle < SPIN_LIMIT + 10_000) {
+            Thread.yield();
+        } else {
+            java.util.concurrent.locks.LockSupport.parkNanos(50_000);
+        }
+        return idle + 1;
+    }
+}
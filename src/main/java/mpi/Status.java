@@ -0,0 +1,42 @@
+package mpi;
+
+/**
+ * What was (or, from {@link MPI#probe}, would be) received: the sender, the
+ * tag, and the payload size.
+ */
+public final class Status {
+    private final int source;
+    private final int tag;
+    private final long length;
+    private final int elementSize;
+
+    Status(int source, int tag, long length, int elementSize) {
+        this.source = source;
+        this.tag = tag;
+        this.length = length;
+        this.elementSize = elementSize;
+    }
+
+    public int getSource() {
+        return source;
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    /** Payload size in bytes, or Integer.MAX_VALUE for a larger (streamed) message. */
+    public int getLength() {
+        return (int) Math.min(length, Integer.MAX_VALUE);
+    }
+
+    /** Number of elements received by a typed receive (bytes for byte[]/ByteBuffer/probe). */
+    public int getCount() {
+        return (int) Math.min(length / elementSize, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        return "Status[source=" + source + ", tag=" + tag + ", length=" + length + "]";
+    }
+}
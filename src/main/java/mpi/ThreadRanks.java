@@ -0,0 +1,146 @@
+package mpi;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Runs every rank of a job as a thread of mpiexec's own JVM
+ * ({@code mpiexec -threads N}), for single-node jobs that would rather not
+ * pay for N JVM starts and loopback connections.
+ *
+ * Each rank loads the library and the program through a class loader of its
+ * own, so it has its own copy of every static, just as if it had a JVM to
+ * itself. Only {@link LocalFabric} is shared: it gives each rank thread its
+ * launch settings and carries frames between the ranks' inboxes. The ranks
+ * still register with the router, which serves their control traffic.
+ *
+ * Whatever a rank thread (or any thread it starts) prints is forwarded as
+ * that rank's output. A rank that calls System.exit ends the whole job.
+ */
+final class ThreadRanks {
+    private ThreadRanks() {
+    }
+
+    /** Runs {@code program} as ranks 0..size-1 with the job's environment and returns once every rank has. */
+    static void run(JavaCommand program, int size, Map<String, String> jobEnv, OutputAggregator output)
+            throws IOException, InterruptedException {
+        String classpath = program.classpath != null ? program.classpath : System.getProperty("java.class.path");
+        List<URL> urls = new ArrayList<>();
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (!entry.isEmpty()) {
+                urls.add(new File(entry).toURI().toURL());
+            }
+        }
+        LocalFabric fabric = new LocalFabric(size);
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        System.setOut(new PrintStream(new RankOutput(smpd.STDOUT, stdout, output), true));
+        System.setErr(new PrintStream(new RankOutput(smpd.STDERR, stderr, output), true));
+
+        List<Thread> ranks = new ArrayList<>();
+        List<RankClassLoader> loaders = new ArrayList<>();
+        try {
+            for (int rank = 0; rank < size; rank++) {
+                Map<String, String> settings = new HashMap<>(jobEnv);
+                settings.put("MPI_RANK", String.valueOf(rank));
+                settings.putAll(program.properties);
+                RankClassLoader loader = new RankClassLoader(urls.toArray(new URL[0]));
+                loaders.add(loader);
+                Thread thread = new Thread(() -> runRank(fabric, settings, loader, program, output), "rank-" + rank);
+                thread.setContextClassLoader(loader);
+                ranks.add(thread);
+            }
+            for (Thread thread : ranks) {
+                thread.start();
+            }
+            for (Thread thread : ranks) {
+                thread.join();
+            }
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            for (RankClassLoader loader : loaders) {
+                loader.close();
+            }
+        }
+    }
+
+    private static void runRank(LocalFabric fabric, Map<String, String> settings, ClassLoader loader,
+            JavaCommand program, OutputAggregator output) {
+        int rank = Integer.parseInt(settings.get("MPI_RANK"));
+        fabric.bind(rank, settings);
+        try {
+            Method main = Class.forName(program.mainClass, true, loader).getMethod("main", String[].class);
+            main.invoke(null, (Object) program.args.toArray(new String[0]));
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.err.println("Cannot run " + program.mainClass + ": " + e);
+        } finally {
+            try {
+                output.finish(rank);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Loads everything but LocalFabric afresh for one rank
+    private static final class RankClassLoader extends URLClassLoader {
+        private static final String SHARED = LocalFabric.class.getName();
+
+        RankClassLoader(URL[] urls) {
+            super(urls, ClassLoader.getPlatformClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(SHARED) || name.startsWith(SHARED + "$")) {
+                return LocalFabric.class.getClassLoader().loadClass(name);
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    // Hands what the threads of each rank write to the aggregator; other threads write to the console
+    private static final class RankOutput extends OutputStream {
+        private final int stream;
+        private final PrintStream console;
+        private final OutputAggregator output;
+
+        RankOutput(int stream, PrintStream console, OutputAggregator output) {
+            this.stream = stream;
+            this.console = console;
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int rank = LocalFabric.boundRank();
+            if (rank < 0) {
+                console.write(b, off, len);
+                return;
+            }
+            try {
+                output.write(rank, stream, Arrays.copyOfRange(b, off, off + len));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (LocalFabric.boundRank() < 0) {
+                console.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package mpi;
+
+/**
+ * How a communicator's ranks sit on nodes, for the hierarchical collectives
+ * (see {@link Collectives}): the ranks on this rank's node, and the node
+ * leaders, the lowest rank on each node.
+ *
+ * mpiexec places ranks on nodes in blocks and hands every rank the node map
+ * as MPI_NODES (the rank count of each node, in order), so the ranks work the
+ * groups out alike without a word; only the contexts of the two
+ * communicators are agreed on.
+ */
+final class Topology {
+    /** This node's ranks, in the parent's rank order, so the leader is rank 0. */
+    final Communicator local;
+    /** One rank per node, in the parent's rank order; null on ranks that do not lead their node. */
+    final Communicator leaders;
+    private final int[] leaderOf; // parent rank -> parent rank of its node's leader
+    private final int[] leaderRank; // parent rank -> rank of its node's leader in `leaders`
+
+    private Topology(Communicator local, Communicator leaders, int[] leaderOf, int[] leaderRank) {
+        this.local = local;
+        this.leaders = leaders;
+        this.leaderOf = leaderOf;
+        this.leaderRank = leaderRank;
+    }
+
+    /**
+     * Collective on {@code comm}: its groups, or null, decided without
+     * communicating, when there is nothing to gain: no node map, a single
+     * node, or one rank per node.
+     */
+    static Topology of(Communicator comm) {
+        int size = comm.size();
+        int[] nodes = new int[size];
+        for (int r = 0; r < size; r++) {
+            nodes[r] = comm.node(r);
+            if (nodes[r] < 0) {
+                return null;
+            }
+        }
+        int[] leaderOf = new int[size];
+        int[] leaderRank = new int[size];
+        int[] leaders = new int[size];
+        int count = 0;
+        for (int r = 0; r < size; r++) {
+            int leader = r;
+            for (int l = 0; l < count; l++) {
+                if (nodes[leaders[l]] == nodes[r]) {
+                    leader = leaders[l];
+                    leaderRank[r] = l;
+                    break;
+                }
+            }
+            if (leader == r) {
+                leaderRank[r] = count;
+                leaders[count++] = r;
+            }
+            leaderOf[r] = leader;
+        }
+        if (count == 1 || count == size) {
+            return null;
+        }
+
+        // One context for every node's local group, as they never talk to each other, and one for the leaders
+        int[] proposals = new int[size];
+        int context = MPI.allocateContext(proposed -> {
+            MPI.allgather(comm, new int[] { proposed }, 0, 1, proposals, 0);
+            int max = proposed;
+            for (int p : proposals) {
+                max = Math.max(max, p);
+            }
+            return max;
+        });
+        int leadersContext = MPI.allocateContext(proposed -> context + 1);
+
+        int me = comm.rank();
+        int[] localRanks = new int[size];
+        int locals = 0;
+        for (int r = 0; r < size; r++) {
+            if (leaderOf[r] == leaderOf[me]) {
+                localRanks[locals++] = comm.worldRank(r);
+            }
+        }
+        Communicator leaderComm = null;
+        if (leaderOf[me] == me) {
+            int[] leaderRanks = new int[count];
+            for (int l = 0; l < count; l++) {
+                leaderRanks[l] = comm.worldRank(leaders[l]);
+            }
+            leaderComm = new Communicator(leadersContext, leaderRanks);
+        }
+        return new Topology(new Communicator(context, java.util.Arrays.copyOf(localRanks, locals)), leaderComm,
+                leaderOf, leaderRank);
+    }
+
+    /** The parent rank leading the node of parent rank {@code rank}. */
+    int leader(int rank) {
+        return leaderOf[rank];
+    }
+
+    /** The rank, among the leaders, of the node of parent rank {@code rank}. */
+    int leaderRank(int rank) {
+        return leaderRank[rank];
+    }
+
+    /** Whether parent rank {@code rank} is on this rank's node; {@code me} is this rank's parent rank. */
+    boolean local(int rank, int me) {
+        return leaderOf[rank] == leaderOf[me];
+    }
+}
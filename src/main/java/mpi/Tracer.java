@@ -0,0 +1,284 @@
+package mpi;
+
+import java.io.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Opt-in event trace of a rank (or of mpiexec's router), for seeing which
+ * rank waits on which: calls entered and left, frames sent and frames
+ * arrived. Set MPI_TRACE to a directory to turn it on; {@link tracemerge}
+ * turns the files into a Chrome / Perfetto timeline with an arrow per
+ * message.
+ *
+ * Each thread records into a ring of its own, so recording takes no lock: a
+ * clock read and a few array stores. A ring starts small and grows up to
+ * MPI_TRACE_EVENTS events (default 65536); when it is full the oldest events
+ * make room. A thread that starts takes over the ring of one that has ended,
+ * if any, so short-lived threads cost no more memory than the most there
+ * ever were at once. The rings are written out by {@link #dump()}, at
+ * finalize_mpi() for a rank, as one compact binary file per rank.
+ *
+ * Times are System.nanoTime() values; the file header pairs one with the
+ * wall clock, which is what lines up the files of different hosts. Sent
+ * and arrived frames carry a sequence number per pair of ranks, counted
+ * alike at both ends (one link per pair keeps frames in order), which is
+ * how the merge finds each message's two ends.
+ *
+ * File: magic, version, rank (-1 for the router), job size, wall clock and
+ * nanoTime at start, ring count; per ring its thread name, events lost and
+ * event count, then per event [what][time delta][peer][tag][length]
+ * ([sequence or duration] for frames and forwards), all variable-length.
+ */
+final class Tracer {
+    static final int MAGIC = 0x4d504954; // "MPIT"
+    static final int VERSION = 1;
+
+    // Event kinds (the high bits of `what`; spans keep their Span ordinal in the low byte)
+    static final int ENTER = 1;
+    static final int EXIT = 2;
+    static final int SENT = 3;
+    static final int ARRIVED = 4;
+    static final int FORWARD = 5;
+
+    /** Calls traced as spans: entered, then left with the peer and byte count they involved. */
+    enum Span {
+        SEND, RECEIVE, PROBE, WAIT, BARRIER, BCAST, REDUCE, ALLREDUCE, SCATTER, GATHER, ALLGATHER, ALLTOALL
+    }
+
+    static final String DIRECTORY = MPI.setting("MPI_TRACE", null);
+    static final boolean ENABLED = DIRECTORY != null && !DIRECTORY.isEmpty();
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(16, MPI.intSetting("MPI_TRACE_EVENTS",
+            1 << 16) * 2 - 1)); // Rounded up to a power of two
+    private static final int INITIAL_CAPACITY = Math.min(CAPACITY, 1024);
+    private static final int SLOTS = 5; // time, what, peer << 32 | tag, length, sequence or duration
+
+    private static final List<Ring> rings = new ArrayList<>(); // guarded by itself
+    private static final ThreadLocal<Ring> ring = ThreadLocal.withInitial(Tracer::ringForThisThread);
+    private static String job;
+    private static int owner;
+    private static int size;
+    private static long startEpochNanos;
+    private static long startNanos;
+    // Frames per peer world rank, numbering both ends of each message alike
+    private static AtomicLongArray sentTo;
+    private static AtomicLongArray arrivedFrom;
+    private static volatile boolean started;
+
+    private Tracer() {
+    }
+
+    /** Starts tracing for world rank {@code rank} of {@code size} (-1 for the router), if MPI_TRACE is set. */
+    static void start(String job, int rank, int size) {
+        if (!ENABLED) {
+            return;
+        }
+        Tracer.job = job;
+        Tracer.owner = rank;
+        Tracer.size = size;
+        sentTo = new AtomicLongArray(size);
+        arrivedFrom = new AtomicLongArray(size);
+        Instant now = Instant.now();
+        startNanos = System.nanoTime();
+        startEpochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        started = true;
+    }
+
+    static void enter(Span span) {
+        if (ENABLED && started) {
+            enter(span, System.nanoTime());
+        }
+    }
+
+    /** Enters {@code span} at {@code time}, a System.nanoTime() the caller has read anyway. */
+    static void enter(Span span, long time) {
+        if (ENABLED && started) {
+            ring.get().add(time, ENTER << 8 | span.ordinal(), -1, 0, 0, 0);
+        }
+    }
+
+    /** Leaves {@code span}; {@code peer} is the rank it involved (in the caller's communicator), or -1. */
+    static void exit(Span span, int peer, int tag, long length) {
+        if (ENABLED && started) {
+            exit(span, System.nanoTime(), peer, tag, length);
+        }
+    }
+
+    static void exit(Span span, long time, int peer, int tag, long length) {
+        if (ENABLED && started) {
+            ring.get().add(time, EXIT << 8 | span.ordinal(), peer, tag, length, 0);
+        }
+    }
+
+    /**
+     * A frame to world rank {@code dest}; {@code match} is its context and
+     * tag word. Called as the frame is written, under the link's lock, so
+     * that the numbers follow the order on the wire.
+     */
+    static void sent(int dest, int match, long length) {
+        if (ENABLED && started) {
+            ring.get().add(System.nanoTime(), SENT << 8, dest, match, length, sentTo.getAndIncrement(dest));
+        }
+    }
+
+    /** A frame from world rank {@code src}, in the order the link delivered it. */
+    static void arrived(int src, int match, long length) {
+        if (ENABLED && started) {
+            ring.get().add(System.nanoTime(), ARRIVED << 8, src, match, length, arrivedFrom.getAndIncrement(src));
+        }
+    }
+
+    /** A frame the router relayed, from fully read at {@code start} until written {@code duration} ns later. */
+    static void forwarded(long start, long duration, int src, int dest, long length) {
+        if (ENABLED && started) {
+            ring.get().add(start, FORWARD << 8, src, dest, length, duration);
+        }
+    }
+
+    /** The file this process traces to, or null when tracing is off. */
+    static File file() {
+        return started ? file(new File(DIRECTORY), job, owner) : null;
+    }
+
+    static File file(File directory, String job, int rank) {
+        return new File(directory, job + (rank < 0 ? "-router" : "-rank" + rank) + ".mpitrace");
+    }
+
+    /** Writes every thread's ring to {@link #file()}; recording may go on meanwhile. */
+    static void dump() {
+        if (!started) {
+            return;
+        }
+        File file = file();
+        file.getParentFile().mkdirs();
+        List<Ring> all;
+        synchronized (rings) {
+            all = new ArrayList<>(rings);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(owner);
+            out.writeInt(size);
+            out.writeLong(startEpochNanos);
+            out.writeLong(startNanos);
+            out.writeInt(all.size());
+            for (Ring r : all) {
+                r.writeTo(out);
+            }
+        } catch (IOException e) {
+            System.err.println("[MPI] Cannot write trace " + file + ": " + e.getMessage());
+        }
+    }
+
+    // A ring of an ended thread if there is one, as its owner can no longer write to it; else a new one
+    private static Ring ringForThisThread() {
+        Thread current = Thread.currentThread();
+        synchronized (rings) {
+            for (Ring r : rings) {
+                if (!r.owner.isAlive()) {
+                    r.owner = current; // The ended thread's writes are visible: isAlive() said it ended
+                    r.laterThreads++;
+                    return r;
+                }
+            }
+            Ring r = new Ring(current);
+            rings.add(r);
+            return r;
+        }
+    }
+
+    // One thread's events (then those of the threads that took it over), written by its owner only and
+    // published by the count
+    private static final class Ring {
+        final String thread;
+        Thread owner; // guarded by rings
+        int laterThreads; // guarded by rings
+        // Replaced by a larger copy, before the count covers the events beyond the old one, until full size
+        volatile long[] slots = new long[INITIAL_CAPACITY * SLOTS];
+        private long written; // Owner's copy of `published`
+        final AtomicLong published = new AtomicLong();
+
+        Ring(Thread owner) {
+            this.thread = owner.getName();
+            this.owner = owner;
+        }
+
+        void add(long time, int what, int peer, int tag, long length, long extra) {
+            long[] slots = this.slots;
+            if (written == slots.length / SLOTS && slots.length < CAPACITY * SLOTS) {
+                slots = this.slots = Arrays.copyOf(slots, slots.length * 2); // Never wrapped yet: same places
+            }
+            int at = (int) (written & (slots.length / SLOTS - 1)) * SLOTS;
+            slots[at] = time;
+            slots[at + 1] = what;
+            slots[at + 2] = (long) peer << 32 | (tag & 0xffffffffL);
+            slots[at + 3] = length;
+            slots[at + 4] = extra;
+            published.lazySet(++written);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            long end = published.get();
+            long[] copy = slots.clone();
+            int capacity = copy.length / SLOTS;
+            long first = Math.max(0, end - capacity);
+            if (capacity == CAPACITY) {
+                // Events the owner may have overwritten while we copied are dropped
+                first = Math.max(first, published.get() - capacity + 1);
+            }
+            int later;
+            synchronized (rings) {
+                later = laterThreads;
+            }
+            out.writeUTF(later > 0 ? thread + " and " + later + " later threads" : thread);
+            writeVarLong(out, first);
+            writeVarLong(out, end - first);
+            long previous = startNanos;
+            for (long i = first; i < end; i++) {
+                int at = (int) (i & (capacity - 1)) * SLOTS;
+                int what = (int) copy[at + 1];
+                writeVarLong(out, what);
+                writeVarLong(out, zigzag(copy[at] - previous));
+                previous = copy[at];
+                writeVarLong(out, zigzag((int) (copy[at + 2] >> 32)));
+                writeVarLong(out, zigzag((int) copy[at + 2]));
+                writeVarLong(out, copy[at + 3]);
+                if (what >> 8 >= SENT) {
+                    writeVarLong(out, copy[at + 4]);
+                }
+            }
+        }
+    }
+
+    // ---- Encoding, shared with tracemerge ----
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+    }
+
+    static long zigzag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    static long unzigzag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+}
@@ -0,0 +1,223 @@
+package mpi;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Two-phase collective I/O for {@link MPIFile}: many small, interleaved
+ * pieces become a few large contiguous accesses.
+ *
+ * The extent every rank's pieces span, [start, end), is cut into one domain
+ * per aggregator, spread evenly over the ranks. To write, each rank sends
+ * its pieces, split at domain boundaries, to the aggregator of their domain
+ * in one alltoallv; each aggregator sorts what it got by file position and
+ * writes runs of adjacent pieces of up to {@link #BUFFER} bytes with one call
+ * each. To read, ranks send the positions and lengths they want instead, the
+ * aggregators read the runs those cover, and a second alltoallv returns the
+ * bytes, which arrive in the order the rank asked for them.
+ *
+ * A piece on the wire is [position][length], followed by its bytes for writes.
+ */
+final class TwoPhase {
+    private static final int PIECE_HEADER = Long.BYTES + Integer.BYTES;
+    // Largest run an aggregator assembles before writing it; larger pieces go to the file as they are
+    static final int BUFFER = 8 << 20;
+
+    private TwoPhase() {
+    }
+
+    /** Writes {@code bytes} (from its position) to the file ranges {@code segs}, with every rank of comm. */
+    static void write(Communicator comm, FileChannel channel, long[] segs, ByteBuffer bytes, long start, long end,
+            int aggregators) throws IOException {
+        Domains domains = new Domains(comm.size(), start, end, aggregators);
+        int size = comm.size();
+        int[] sendCounts = new int[size];
+        domains.split(segs, (agg, pos, len) -> sendCounts[agg] += PIECE_HEADER + len);
+        int[] sendDispls = displacements(sendCounts);
+        ByteBuffer out = ByteBuffer.allocate(sendDispls[size - 1] + sendCounts[size - 1]);
+        int from = bytes.position();
+        int[] taken = { 0 };
+        // Domains come in file order, and so do their aggregators' ranks: the buffer fills front to back
+        domains.split(segs, (agg, pos, len) -> {
+            out.putLong(pos).putInt(len).put(bytes.array(), bytes.arrayOffset() + from + taken[0], len);
+            taken[0] += len;
+        });
+
+        int[] recvCounts = new int[size];
+        MPI.alltoall(comm, sendCounts, 0, recvCounts, 0, 1);
+        int[] recvDispls = displacements(recvCounts);
+        byte[] in = new byte[recvDispls[size - 1] + recvCounts[size - 1]];
+        MPI.alltoallv(comm, out.array(), sendCounts, sendDispls, in, recvCounts, recvDispls);
+
+        // Phase two: this aggregator's pieces, sorted by position (stable, so later ranks win overlaps)
+        List<long[]> pieces = new ArrayList<>(); // position, length, index in `in`
+        ByteBuffer received = ByteBuffer.wrap(in);
+        while (received.hasRemaining()) {
+            long pos = received.getLong();
+            int len = received.getInt();
+            pieces.add(new long[] { pos, len, received.position() });
+            received.position(received.position() + len);
+        }
+        pieces.sort(Comparator.comparingLong(piece -> piece[0]));
+        byte[] run = null;
+        long runStart = 0;
+        int runLength = 0;
+        for (long[] piece : pieces) {
+            long pos = piece[0];
+            int len = (int) piece[1];
+            int at = (int) piece[2];
+            if (runLength > 0 && (pos > runStart + runLength || pos + len - runStart > BUFFER)) {
+                writeFully(channel, ByteBuffer.wrap(run, 0, runLength), runStart);
+                runLength = 0;
+            }
+            if (len > BUFFER) {
+                writeFully(channel, ByteBuffer.wrap(in, at, len), pos);
+                continue;
+            }
+            if (runLength == 0) {
+                if (run == null) {
+                    run = new byte[(int) Math.min(BUFFER, domains.length)];
+                }
+                runStart = pos;
+            }
+            System.arraycopy(in, at, run, (int) (pos - runStart), len);
+            runLength = Math.max(runLength, (int) (pos + len - runStart));
+        }
+        if (runLength > 0) {
+            writeFully(channel, ByteBuffer.wrap(run, 0, runLength), runStart);
+        }
+    }
+
+    /**
+     * Reads the file ranges {@code segs} into consecutive bytes of
+     * {@code into}, with every rank of comm. Bytes past the end of the file
+     * read as zeros.
+     */
+    static void read(Communicator comm, FileChannel channel, long[] segs, byte[] into, long start, long end,
+            int aggregators) throws IOException {
+        Domains domains = new Domains(comm.size(), start, end, aggregators);
+        int size = comm.size();
+        int[] askCounts = new int[size];
+        int[] replyCounts = new int[size];
+        domains.split(segs, (agg, pos, len) -> {
+            askCounts[agg] += PIECE_HEADER;
+            replyCounts[agg] += len;
+        });
+        int[] askDispls = displacements(askCounts);
+        ByteBuffer ask = ByteBuffer.allocate(askDispls[size - 1] + askCounts[size - 1]);
+        domains.split(segs, (agg, pos, len) -> ask.putLong(pos).putInt(len));
+
+        int[] askedCounts = new int[size];
+        MPI.alltoall(comm, askCounts, 0, askedCounts, 0, 1);
+        int[] askedDispls = displacements(askedCounts);
+        byte[] asked = new byte[askedDispls[size - 1] + askedCounts[size - 1]];
+        MPI.alltoallv(comm, ask.array(), askCounts, askDispls, asked, askedCounts, askedDispls);
+
+        // Phase two: where each asked-for piece goes in the reply to its rank
+        int[] answerCounts = new int[size];
+        List<long[]> pieces = new ArrayList<>(); // position, length, index in `answer`
+        ByteBuffer requests = ByteBuffer.wrap(asked);
+        for (int r = 0; r < size; r++) {
+            for (int i = 0; i < askedCounts[r]; i += PIECE_HEADER) {
+                long pos = requests.getLong();
+                int len = requests.getInt();
+                pieces.add(new long[] { pos, len, r, answerCounts[r] });
+                answerCounts[r] += len;
+            }
+        }
+        int[] answerDispls = displacements(answerCounts);
+        byte[] answer = new byte[answerDispls[size - 1] + answerCounts[size - 1]];
+        for (long[] piece : pieces) {
+            piece[2] = answerDispls[(int) piece[2]] + piece[3];
+        }
+        pieces.sort(Comparator.comparingLong(piece -> piece[0]));
+        byte[] run = null;
+        for (int first = 0; first < pieces.size();) {
+            long runStart = pieces.get(first)[0];
+            long runEnd = runStart + pieces.get(first)[1];
+            int last = first + 1;
+            while (last < pieces.size() && runEnd - runStart <= BUFFER && pieces.get(last)[0] <= runEnd
+                    && pieces.get(last)[0] + pieces.get(last)[1] - runStart <= BUFFER) {
+                runEnd = Math.max(runEnd, pieces.get(last)[0] + pieces.get(last)[1]);
+                last++;
+            }
+            if (runEnd - runStart > BUFFER) { // A single large piece: straight into the answer
+                long[] piece = pieces.get(first);
+                readFully(channel, ByteBuffer.wrap(answer, (int) piece[2], (int) piece[1]), piece[0]);
+            } else {
+                if (run == null) {
+                    run = new byte[(int) Math.min(BUFFER, domains.length)];
+                }
+                int length = (int) (runEnd - runStart);
+                Arrays.fill(run, 0, length, (byte) 0);
+                readFully(channel, ByteBuffer.wrap(run, 0, length), runStart);
+                for (int i = first; i < last; i++) {
+                    long[] piece = pieces.get(i);
+                    System.arraycopy(run, (int) (piece[0] - runStart), answer, (int) piece[2], (int) piece[1]);
+                }
+            }
+            first = last;
+        }
+
+        // The replies line up with the pieces asked for, aggregator by aggregator, which is view order
+        MPI.alltoallv(comm, answer, answerCounts, answerDispls, into, replyCounts, displacements(replyCounts));
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer bytes, long pos) throws IOException {
+        long at = pos - bytes.position();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, at + bytes.position());
+        }
+    }
+
+    // Stops quietly at the end of the file
+    static void readFully(FileChannel channel, ByteBuffer bytes, long pos) throws IOException {
+        long at = pos - bytes.position();
+        while (bytes.hasRemaining() && channel.read(bytes, at + bytes.position()) >= 0) {
+        }
+    }
+
+    private static int[] displacements(int[] counts) {
+        int[] displs = new int[counts.length];
+        for (int r = 1; r < counts.length; r++) {
+            displs[r] = displs[r - 1] + counts[r - 1];
+        }
+        return displs;
+    }
+
+    // The aggregators' file domains: equal slices of [start, end), aggregator i on rank i * size / count
+    private static final class Domains {
+        final int size;
+        final long start;
+        final long length;
+        final int count;
+
+        Domains(int size, long start, long end, int aggregators) {
+            this.size = size;
+            this.start = start;
+            this.count = Math.max(1, Math.min(size, aggregators));
+            this.length = Math.max(1, (end - start + count - 1) / count);
+        }
+
+        // Calls sink for each part of each range that falls in one domain, in order
+        void split(long[] segs, PieceSink sink) {
+            for (int i = 0; i < segs.length; i += 2) {
+                long pos = segs[i];
+                long left = segs[i + 1];
+                while (left > 0) {
+                    int domain = (int) ((pos - start) / length);
+                    int len = (int) Math.min(left, start + (domain + 1) * length - pos);
+                    sink.accept((int) ((long) domain * size / count), pos, len);
+                    pos += len;
+                    left -= len;
+                }
+            }
+        }
+    }
+
+    private interface PieceSink {
+        void accept(int aggregator, long pos, int len);
+    }
+}
@@ -0,0 +1,103 @@
+package mpi;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Worker JVMs that smpd starts ahead of time (see {@link WarmWorker}), so a
+ * launch only has to hand a main class and environment to one that is
+ * already booted instead of starting a new JVM.
+ *
+ * A launch can use the pool when it runs this java (or plain "java") with
+ * the pool's classpath in the pool's working directory, i.e. looks like
+ * {@code java [-Dkey=value...] -cp <classpath> <main class> [args...]}.
+ * Anything else is left for the caller to start cold. Each worker runs one
+ * rank, and a replacement is started in the background as it is taken.
+ */
+class WarmPool {
+    private final String javaBin;
+    private final String classpath;
+    private final File dir;
+    private final List<String> jvmOptions;
+    private final BlockingQueue<Process> idle = new LinkedBlockingQueue<>();
+    private final ExecutorService starter = Executors.newCachedThreadPool(task -> {
+        Thread t = new Thread(task, "smpd-warm-start");
+        t.setDaemon(true);
+        return t;
+    });
+
+    WarmPool(int size, String javaBin, String classpath, File dir, List<String> jvmOptions) {
+        this.javaBin = javaBin;
+        this.classpath = classpath;
+        this.dir = dir;
+        this.jvmOptions = jvmOptions;
+        for (int i = 0; i < size; i++) {
+            replenish();
+        }
+    }
+
+    /**
+     * Starts {@code command} on an idle worker with {@code env} as its launch
+     * environment. Returns the worker's process, or null if the command does
+     * not fit the pool or no worker is ready yet.
+     */
+    Process launch(List<String> command, Map<String, String> env, File workDir) throws IOException {
+        if (!workDir.getCanonicalFile().equals(dir.getCanonicalFile())) {
+            return null;
+        }
+        JavaCommand java = JavaCommand.parse(command);
+        if (java == null || !java.runs(javaBin) || !classpath.equals(java.classpath)) {
+            return null;
+        }
+        Map<String, String> properties = new LinkedHashMap<>(env);
+        properties.putAll(java.properties);
+        for (Process worker; (worker = idle.poll()) != null;) {
+            replenish();
+            try {
+                DataOutputStream control = new DataOutputStream(new BufferedOutputStream(worker.getOutputStream()));
+                control.writeUTF(java.mainClass);
+                control.writeInt(java.args.size());
+                for (String arg : java.args) {
+                    control.writeUTF(arg);
+                }
+                control.writeInt(properties.size());
+                for (Map.Entry<String, String> p : properties.entrySet()) {
+                    control.writeUTF(p.getKey());
+                    control.writeUTF(p.getValue());
+                }
+                control.flush();
+                return worker;
+            } catch (IOException e) {
+                worker.destroyForcibly(); // Died while idle; try the next one
+            }
+        }
+        return null;
+    }
+
+    private void replenish() {
+        starter.execute(() -> {
+            try {
+                idle.add(start());
+            } catch (IOException e) {
+                System.err.println("Could not start a warm JVM: " + e.getMessage());
+            }
+        });
+    }
+
+    private Process start() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(javaBin);
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(classpath);
+        command.add(WarmWorker.class.getName());
+        Process worker = new ProcessBuilder(command).directory(dir).start();
+        if (worker.getInputStream().read() != WarmWorker.READY) {
+            String error = new String(worker.getErrorStream().readAllBytes()).trim();
+            worker.destroyForcibly();
+            throw new IOException(error.isEmpty() ? "worker exited during startup" : error);
+        }
+        return worker;
+    }
+}
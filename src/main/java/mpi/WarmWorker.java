@@ -0,0 +1,112 @@
+package mpi;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.*;
+
+/**
+ * A JVM that smpd starts ahead of time and keeps idle until a rank is
+ * launched on it (see {@link WarmPool}).
+ *
+ * It loads the library's classes and warms up the JDK networking and
+ * concurrency code every rank uses, writes one READY byte to stdout, then
+ * reads a single launch from stdin: the main class, an int count and that
+ * many arguments, then an int count and that many key/value pairs, strings
+ * in modified UTF-8. The pairs (the launch environment and any -D options)
+ * become system properties, which MPI reads ahead of the environment. The
+ * worker then runs the main method and exits as a new JVM would.
+ */
+public class WarmWorker {
+    static final int READY = 'R';
+
+    public static void main(String[] args) throws Exception {
+        warmUp();
+        System.out.write(READY);
+        System.out.flush();
+
+        DataInputStream control = new DataInputStream(System.in);
+        String mainClass;
+        String[] programArgs;
+        try {
+            mainClass = control.readUTF();
+            programArgs = new String[control.readInt()];
+            for (int i = 0; i < programArgs.length; i++) {
+                programArgs[i] = control.readUTF();
+            }
+            for (int i = control.readInt(); i > 0; i--) {
+                System.setProperty(control.readUTF(), control.readUTF());
+            }
+        } catch (EOFException e) {
+            return; // smpd shut down before using us
+        }
+
+        Method main = Class.forName(mainClass, true, ClassLoader.getSystemClassLoader())
+                .getMethod("main", String[].class);
+        try {
+            main.invoke(null, (Object) programArgs);
+        } catch (InvocationTargetException e) {
+            Thread self = Thread.currentThread();
+            self.getUncaughtExceptionHandler().uncaughtException(self, e.getCause());
+            System.exit(1);
+        }
+    }
+
+    // Loads the library's classes without initializing them, since their
+    // settings must come from the launch, and exercises the JDK code behind
+    // sockets, name lookups and thread pools.
+    private static void warmUp() throws IOException {
+        ClassLoader loader = WarmWorker.class.getClassLoader();
+        for (String name : libraryClasses()) {
+            try {
+                Class.forName(name, false, loader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                // Not loadable on its own; the rank will report it if it matters
+            }
+        }
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                Socket client = new Socket(server.getInetAddress(), server.getLocalPort())) {
+            server.accept().close();
+            client.setTcpNoDelay(true);
+            new DataOutputStream(new BufferedOutputStream(client.getOutputStream())).writeInt(0);
+        }
+        InetAddress.getLocalHost();
+        ExecutorService pool = Executors.newCachedThreadPool();
+        CompletableFuture.supplyAsync(() -> ByteBuffer.allocateDirect(64).putInt(1).flip(), pool)
+                .thenApply(ByteBuffer::getInt).join();
+        pool.shutdown();
+        new ConcurrentHashMap<Integer, Integer>().computeIfAbsent(1, k -> k);
+    }
+
+    // Every class in this class's package, from the directory or jar it was loaded from
+    private static List<String> libraryClasses() throws IOException {
+        List<String> names = new ArrayList<>();
+        String pkg = WarmWorker.class.getPackageName();
+        File root;
+        try {
+            root = new File(WarmWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException | NullPointerException e) {
+            return names;
+        }
+        if (root.isDirectory()) {
+            String[] files = new File(root, pkg.replace('.', '/')).list((d, n) -> n.endsWith(".class"));
+            for (String file : files == null ? new String[0] : files) {
+                names.add(pkg + "." + file.substring(0, file.length() - ".class".length()));
+            }
+        } else {
+            String prefix = pkg.replace('.', '/') + "/";
+            try (JarFile jar = new JarFile(root)) {
+                for (JarEntry entry : Collections.list(jar.entries())) {
+                    String n = entry.getName();
+                    if (n.startsWith(prefix) && n.endsWith(".class") && n.indexOf('/', prefix.length()) < 0) {
+                        names.add(n.substring(0, n.length() - ".class".length()).replace('/', '.'));
+                    }
+                }
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,670 @@
+package mpi;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memory that every rank of a communicator exposes for one-sided
+ * communication: the others read and update it with {@link #put},
+ * {@link #get}, {@link #accumulate}, {@link #fetchAndAdd} and
+ * {@link #compareAndSwap}, without the owner taking part.
+ *
+ * {@link #allocate} makes an off-heap window of the given size on every rank;
+ * {@link #create} exposes memory the rank already has, heap or direct. Both
+ * are collective, as is {@link #free}. Displacements are byte offsets into
+ * the target's window, whose contents are big-endian like messages.
+ *
+ * Puts and accumulates return once the data is copied out, and are complete
+ * at the target after the next {@link #fence}, {@link #unlock} or
+ * {@link #flush} of that target. The other operations return the target's
+ * value. Each element an accumulate, fetch-and-add or compare-and-swap
+ * updates is updated atomically, so concurrent ones are never lost; puts and
+ * gets are not, and conflicting accesses should be in different epochs:
+ * between fences (active target), or under {@link #lock}, {@link #lockShared}
+ * and {@link #unlock} (passive target).
+ *
+ * Every rank runs a service thread that applies the requests for its window
+ * in the order each origin sent them. Ranks on the same node skip it: an
+ * allocated window lives in a file in the shared memory directory (see
+ * {@code MPI_SHM_DIR}) that co-located ranks map and access directly, and
+ * only lock requests still go to the owner.
+ */
+public final class Window implements AutoCloseable {
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle DOUBLES =
+            MethodHandles.byteBufferViewVarHandle(double[].class, ByteOrder.BIG_ENDIAN);
+
+    // Requests go to the owner on tag REQUEST of the window's communicator,
+    // as [kind][origin][reply tag][displacement][datatype][op][count] and
+    // the payload. Each reply comes back on a tag of its own.
+    private static final int REQUEST = 0;
+    private static final int HEADER = 3 + 4 * Integer.BYTES;
+    private static final int REPLY_AT = 1 + Integer.BYTES;
+    private static final byte PUT = 0;
+    private static final byte GET = 1;
+    private static final byte ACCUMULATE = 2;
+    private static final byte FETCH_ADD = 3;
+    private static final byte COMPARE_SWAP = 4;
+    private static final byte FLUSH = 5;
+    private static final byte LOCK = 6;
+    private static final byte LOCK_SHARED = 7;
+    private static final byte UNLOCK = 8;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Communicator comm; // private to the window
+    private final int rank;
+    private final ByteBuffer memory;
+    private final int[] sizes;
+    // Windows this rank reaches directly: its own, and those mapped from co-located ranks; else null
+    private final ByteBuffer[] direct;
+    // Targets sent puts or accumulates not yet known to be applied
+    private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextReply = new AtomicInteger();
+    private final Thread service;
+    private CompletableFuture<MPI.Message> nextRequest; // guarded by this
+    private volatile boolean freed;
+
+    // Lock state of this rank's window, guarded by this: the exclusive holder, the shared holds in all and
+    // per rank, who waits
+    private int exclusiveHolder = -1;
+    private int sharedHolders;
+    private final int[] sharedHolds;
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+    private Window(Communicator parent, ByteBuffer region, int bytes) {
+        comm = parent.dup();
+        rank = comm.rank();
+        int size = comm.size();
+        File file = null;
+        if (region == null) {
+            File dir = MPI.sharedMemoryDirectory();
+            if (dir != null) {
+                // Named like the rings, so mpiexec sweeps it up if this rank dies before deleting it
+                file = new File(dir, "mpi-" + MPI.jobId() + "-win" + comm.context + "-" + rank + ".win");
+                try {
+                    region = map(file, bytes, true);
+                } catch (IOException e) {
+                    file = null;
+                }
+            }
+            if (region == null) {
+                region = ByteBuffer.allocateDirect(bytes);
+            }
+        }
+        memory = region;
+
+        // Everyone learns each window's size, and where to map it when on the same node
+        String[] all = allgather(bytes + "\n" + MPI.nodeName() + "\n" + (file == null ? "" : file.getPath()));
+        sizes = new int[size];
+        direct = new ByteBuffer[size];
+        sharedHolds = new int[size];
+        for (int r = 0; r < size; r++) {
+            String[] fields = all[r].split("\n", 3);
+            sizes[r] = Integer.parseInt(fields[0]);
+            if (r == rank) {
+                direct[r] = memory;
+            } else if (fields[1].equals(MPI.nodeName()) && !fields[2].isEmpty()) {
+                try {
+                    direct[r] = map(new File(fields[2]), sizes[r], false);
+                } catch (IOException e) {
+                    // Served by its owner instead
+                }
+            }
+        }
+        MPI.barrier(comm);
+        if (file != null) {
+            file.delete(); // Mapped by everyone who wants it; the mappings outlive the name
+        }
+        service = new Thread(this::serve, "mpi-window-" + comm.context);
+        service.setDaemon(true);
+        service.start();
+    }
+
+    /** Allocates an off-heap window of {@code bytes} bytes on every rank of the world, zeroed. */
+    public static Window allocate(int bytes) {
+        return allocate(MPI.COMM_WORLD, bytes);
+    }
+
+    public static Window allocate(Communicator comm, int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Negative window size " + bytes);
+        }
+        return new Window(comm, null, bytes);
+    }
+
+    /**
+     * Exposes {@code memory} between its position and limit as this rank's
+     * window. It must start on an 8-byte boundary, as heap and direct buffers
+     * do unless sliced.
+     */
+    public static Window create(ByteBuffer memory) {
+        return create(MPI.COMM_WORLD, memory);
+    }
+
+    public static Window create(Communicator comm, ByteBuffer memory) {
+        ByteBuffer region = memory.slice();
+        if (region.isReadOnly()) {
+            throw new IllegalArgumentException("Window memory must be writable");
+        }
+        if (region.capacity() > 0 && region.alignmentOffset(0, Long.BYTES) != 0) {
+            throw new IllegalArgumentException("Window memory must start on an 8-byte boundary");
+        }
+        return new Window(comm, region, region.capacity());
+    }
+
+    /** This rank's window. Read and write it only in epochs where no other rank accesses the same bytes. */
+    public ByteBuffer memory() {
+        return memory.duplicate();
+    }
+
+    /** Size in bytes of the window of {@code rank}. */
+    public int size(int rank) {
+        return sizes[rank];
+    }
+
+    // ---- Put and get ----
+
+    public void put(int target, int disp, byte[] data, int offset, int count) {
+        put(target, disp, Datatype.BYTE, data, offset, count);
+    }
+
+    public void put(int target, int disp, int[] data, int offset, int count) {
+        put(target, disp, Datatype.INT, data, offset, count);
+    }
+
+    public void put(int target, int disp, long[] data, int offset, int count) {
+        put(target, disp, Datatype.LONG, data, offset, count);
+    }
+
+    public void put(int target, int disp, double[] data, int offset, int count) {
+        put(target, disp, Datatype.DOUBLE, data, offset, count);
+    }
+
+    public void get(int target, int disp, byte[] data, int offset, int count) {
+        get(target, disp, Datatype.BYTE, data, offset, count);
+    }
+
+    public void get(int target, int disp, int[] data, int offset, int count) {
+        get(target, disp, Datatype.INT, data, offset, count);
+    }
+
+    public void get(int target, int disp, long[] data, int offset, int count) {
+        get(target, disp, Datatype.LONG, data, offset, count);
+    }
+
+    public void get(int target, int disp, double[] data, int offset, int count) {
+        get(target, disp, Datatype.DOUBLE, data, offset, count);
+    }
+
+    private void put(int target, int disp, Datatype type, Object data, int offset, int count) {
+        Objects.checkFromIndexSize(offset, count, type.length(data));
+        check(target, disp, type, count, false);
+        if (direct[target] != null) {
+            type.encode(data, offset, count, direct[target].duplicate().position(disp));
+            return;
+        }
+        ByteBuffer request = request(PUT, disp, type, null, count, count * type.size);
+        type.encode(data, offset, count, request);
+        pending.add(target);
+        send(target, request);
+    }
+
+    private void get(int target, int disp, Datatype type, Object data, int offset, int count) {
+        Objects.checkFromIndexSize(offset, count, type.length(data));
+        check(target, disp, type, count, false);
+        if (direct[target] != null) {
+            type.decode(direct[target].duplicate().position(disp), data, offset, count);
+            return;
+        }
+        type.fromBytes(call(target, request(GET, disp, type, null, count, 0)), 0, data, offset, count);
+    }
+
+    // ---- Atomic updates ----
+
+    /**
+     * Combines {@code count} elements into the target's window, element by
+     * element: {@code window[i] = data[i] op window[i]}. Only the predefined
+     * element-wise operators (SUM, PROD, MIN, MAX, BAND, BOR) can be used.
+     */
+    public void accumulate(int target, int disp, int[] data, int offset, int count, Op op) {
+        accumulate(target, disp, Datatype.INT, data, offset, count, op);
+    }
+
+    public void accumulate(int target, int disp, long[] data, int offset, int count, Op op) {
+        accumulate(target, disp, Datatype.LONG, data, offset, count, op);
+    }
+
+    public void accumulate(int target, int disp, double[] data, int offset, int count, Op op) {
+        accumulate(target, disp, Datatype.DOUBLE, data, offset, count, op);
+    }
+
+    /** Adds {@code delta} to the long at {@code disp} in the target's window and returns its previous value. */
+    public long fetchAndAdd(int target, int disp, long delta) {
+        check(target, disp, Datatype.LONG, 1, true);
+        if (direct[target] != null) {
+            return (long) LONGS.getAndAdd(direct[target], disp, delta);
+        }
+        ByteBuffer request = request(FETCH_ADD, disp, Datatype.LONG, null, 1, Long.BYTES).putLong(delta);
+        return ByteBuffer.wrap(call(target, request)).getLong();
+    }
+
+    /**
+     * Stores {@code value} in the long at {@code disp} in the target's window
+     * if it holds {@code expected}; returns what it held, which equals
+     * {@code expected} when the swap happened.
+     */
+    public long compareAndSwap(int target, int disp, long expected, long value) {
+        check(target, disp, Datatype.LONG, 1, true);
+        if (direct[target] != null) {
+            return (long) LONGS.compareAndExchange(direct[target], disp, expected, value);
+        }
+        ByteBuffer request = request(COMPARE_SWAP, disp, Datatype.LONG, null, 2, 2 * Long.BYTES);
+        request.putLong(expected).putLong(value);
+        return ByteBuffer.wrap(call(target, request)).getLong();
+    }
+
+    private void accumulate(int target, int disp, Datatype type, Object data, int offset, int count, Op op) {
+        if (!(op instanceof BuiltinOp) || op == Op.MINLOC || op == Op.MAXLOC) {
+            throw new IllegalArgumentException("Accumulate needs a predefined element-wise operator, not " + op);
+        }
+        Objects.checkFromIndexSize(offset, count, type.length(data));
+        check(target, disp, type, count, true);
+        // An operator that does not take this element type throws here, not on the target's service thread
+        Collectives.combine(op, type, data, offset, array(type, 0), 0, 0);
+        if (direct[target] != null) {
+            combine(direct[target], disp, type, data, offset, count, op);
+            return;
+        }
+        ByteBuffer request = request(ACCUMULATE, disp, type, op, count, count * type.size);
+        type.encode(data, offset, count, request);
+        pending.add(target);
+        send(target, request);
+    }
+
+    // Applies op to each element with a compare-and-set loop, so that concurrent updates are not lost
+    private static void combine(ByteBuffer window, int disp, Datatype type, Object data, int offset, int count,
+            Op op) {
+        switch (type) {
+            case INT: {
+                int[] cell = new int[1];
+                for (int k = 0; k < count; k++) {
+                    int index = disp + k * Integer.BYTES;
+                    int old;
+                    do {
+                        old = (int) INTS.getVolatile(window, index);
+                        cell[0] = old;
+                        op.apply((int[]) data, offset + k, cell, 0, 1);
+                    } while (!INTS.compareAndSet(window, index, old, cell[0]));
+                }
+                break;
+            }
+            case LONG: {
+                long[] cell = new long[1];
+                for (int k = 0; k < count; k++) {
+                    int index = disp + k * Long.BYTES;
+                    long old;
+                    do {
+                        old = (long) LONGS.getVolatile(window, index);
+                        cell[0] = old;
+                        op.apply((long[]) data, offset + k, cell, 0, 1);
+                    } while (!LONGS.compareAndSet(window, index, old, cell[0]));
+                }
+                break;
+            }
+            case DOUBLE: {
+                double[] cell = new double[1];
+                for (int k = 0; k < count; k++) {
+                    int index = disp + k * Double.BYTES;
+                    double old;
+                    do {
+                        old = (double) DOUBLES.getVolatile(window, index);
+                        cell[0] = old;
+                        op.apply((double[]) data, offset + k, cell, 0, 1);
+                    } while (!DOUBLES.compareAndSet(window, index, old, cell[0]));
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Cannot accumulate " + type);
+        }
+    }
+
+    // ---- Epochs ----
+
+    /**
+     * Collective: completes every operation issued on this window, by any
+     * rank, before returning on any of them.
+     */
+    public void fence() {
+        VarHandle.fullFence();
+        List<CompletableFuture<MPI.Message>> replies = new ArrayList<>();
+        for (Integer target : pending.toArray(new Integer[0])) {
+            pending.remove(target);
+            replies.add(begin(target, request(FLUSH, 0, Datatype.BYTE, null, 0, 0)));
+        }
+        for (CompletableFuture<MPI.Message> reply : replies) {
+            MPI.awaitService(comm, reply);
+        }
+        MPI.barrier(comm);
+    }
+
+    /** Returns once the puts and accumulates this rank issued to {@code target} have been applied there. */
+    public void flush(int target) {
+        Objects.checkIndex(target, sizes.length);
+        VarHandle.fullFence();
+        if (pending.remove(target)) {
+            call(target, request(FLUSH, 0, Datatype.BYTE, null, 0, 0));
+        }
+    }
+
+    /** Starts an epoch in which this rank alone accesses the window of {@code target}. */
+    public void lock(int target) {
+        lock(target, true);
+    }
+
+    /** Starts an epoch in which this rank, and others holding it shared, access the window of {@code target}. */
+    public void lockShared(int target) {
+        lock(target, false);
+    }
+
+    /**
+     * Ends the epoch on {@code target}, once everything issued to it in the
+     * epoch has been applied; throws IllegalStateException if this rank does
+     * not hold its lock.
+     */
+    public void unlock(int target) {
+        Objects.checkIndex(target, sizes.length);
+        VarHandle.fullFence();
+        if (target == rank) {
+            grant(release(rank));
+        } else {
+            pending.remove(target);
+            byte[] error = call(target, request(UNLOCK, 0, Datatype.BYTE, null, 0, 0));
+            if (error.length > 0) {
+                throw new IllegalStateException(new String(error, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private void lock(int target, boolean exclusive) {
+        Objects.checkIndex(target, sizes.length);
+        if (target == rank) {
+            Waiter waiter = new Waiter(rank, 0, exclusive, new CompletableFuture<>());
+            if (!acquire(waiter)) {
+                waiter.local.join();
+            }
+        } else {
+            call(target, request(exclusive ? LOCK : LOCK_SHARED, 0, Datatype.BYTE, null, 0, 0));
+        }
+        VarHandle.fullFence();
+    }
+
+    /** Collective: completes all operations, like {@link #fence}, and stops serving the window. */
+    public void free() {
+        if (freed) {
+            return;
+        }
+        fence();
+        synchronized (this) {
+            freed = true;
+            if (nextRequest != null) {
+                nextRequest.cancel(false);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        free();
+    }
+
+    // ---- Requests ----
+
+    private void check(int target, int disp, Datatype type, int count, boolean aligned) {
+        if (freed) {
+            throw new IllegalStateException("Window has been freed");
+        }
+        Objects.checkIndex(target, sizes.length);
+        if (disp < 0 || count < 0 || disp + (long) count * type.size > sizes[target]) {
+            throw new IndexOutOfBoundsException(count + " elements of " + type.size + " bytes at " + disp
+                    + " do not fit in the " + sizes[target] + "-byte window of rank " + target);
+        }
+        if (aligned && disp % type.size != 0) {
+            throw new IllegalArgumentException("Displacement " + disp + " is not a multiple of " + type.size);
+        }
+    }
+
+    private ByteBuffer request(byte kind, int disp, Datatype type, Op op, int count, int payload) {
+        return ByteBuffer.allocate(HEADER + payload).put(kind).putInt(rank).putInt(0).putInt(disp)
+                .put((byte) type.ordinal()).put((byte) (op == null ? -1 : ((BuiltinOp) op).ordinal()))
+                .putInt(count);
+    }
+
+    private void send(int target, ByteBuffer request) {
+        MPI.sendInternal(comm, target, REQUEST, request.array(), 0, request.position());
+    }
+
+    // Sends a request that is answered; the reply is received on a tag of its own
+    private CompletableFuture<MPI.Message> begin(int target, ByteBuffer request) {
+        int tag = 1 + Math.floorMod(nextReply.getAndIncrement(), MPI.TAG_UB);
+        request.putInt(REPLY_AT, tag);
+        CompletableFuture<MPI.Message> reply = MPI.postService(comm, target, tag);
+        send(target, request);
+        return reply;
+    }
+
+    private byte[] call(int target, ByteBuffer request) {
+        return MPI.awaitService(comm, begin(target, request));
+    }
+
+    private void reply(int origin, int tag, byte[] data) {
+        MPI.sendInternal(comm, origin, tag, data, 0, data.length);
+    }
+
+    // The service thread: applies requests to this rank's window one at a time, in arrival order
+    private void serve() {
+        while (true) {
+            CompletableFuture<MPI.Message> next;
+            synchronized (this) {
+                if (freed) {
+                    return;
+                }
+                next = nextRequest = MPI.postService(comm, MPI.ANY_SOURCE, REQUEST);
+            }
+            byte[] request;
+            try {
+                request = MPI.awaitService(comm, next);
+            } catch (IllegalStateException e) {
+                return; // Freed (cancelled), or the job is ending
+            }
+            try {
+                serve(ByteBuffer.wrap(request));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(ByteBuffer in) {
+        byte kind = in.get();
+        int origin = in.getInt();
+        int tag = in.getInt();
+        int disp = in.getInt();
+        Datatype type = Datatype.values()[in.get()];
+        int op = in.get();
+        int count = in.getInt();
+        switch (kind) {
+            case PUT:
+                memory.put(disp, in.array(), in.position(), in.remaining());
+                break;
+            case GET: {
+                byte[] data = new byte[count * type.size];
+                memory.get(disp, data);
+                reply(origin, tag, data);
+                break;
+            }
+            case ACCUMULATE: {
+                Object data = array(type, count);
+                type.decode(in, data, 0, count);
+                combine(memory, disp, type, data, 0, count, BuiltinOp.values()[op]);
+                break;
+            }
+            case FETCH_ADD:
+                reply(origin, tag, longBytes((long) LONGS.getAndAdd(memory, disp, in.getLong())));
+                break;
+            case COMPARE_SWAP: {
+                long expected = in.getLong();
+                reply(origin, tag, longBytes((long) LONGS.compareAndExchange(memory, disp, expected, in.getLong())));
+                break;
+            }
+            case FLUSH:
+                reply(origin, tag, EMPTY); // Everything the origin sent before has been applied
+                break;
+            case LOCK:
+            case LOCK_SHARED:
+                if (acquire(new Waiter(origin, tag, kind == LOCK, null))) {
+                    reply(origin, tag, EMPTY);
+                }
+                break;
+            case UNLOCK: {
+                List<Waiter> granted;
+                try {
+                    granted = release(origin);
+                } catch (IllegalStateException e) {
+                    reply(origin, tag, e.getMessage().getBytes(StandardCharsets.UTF_8)); // Thrown at the origin
+                    break;
+                }
+                reply(origin, tag, EMPTY);
+                grant(granted);
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown window request " + kind + " from rank " + origin);
+        }
+    }
+
+    private static Object array(Datatype type, int count) {
+        switch (type) {
+            case INT:
+                return new int[count];
+            case LONG:
+                return new long[count];
+            case DOUBLE:
+                return new double[count];
+            default:
+                throw new IllegalArgumentException("Cannot accumulate " + type);
+        }
+    }
+
+    private static byte[] longBytes(long value) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+    }
+
+    // ---- Locks on this rank's window ----
+
+    // A rank waiting for the lock: remote ones get a reply, this rank's own threads a future
+    private static final class Waiter {
+        final int origin;
+        final int tag;
+        final boolean exclusive;
+        final CompletableFuture<Void> local;
+
+        Waiter(int origin, int tag, boolean exclusive, CompletableFuture<Void> local) {
+            this.origin = origin;
+            this.tag = tag;
+            this.exclusive = exclusive;
+            this.local = local;
+        }
+    }
+
+    // Grants the lock now if it is free enough and nobody waits ahead; else queues the waiter
+    private synchronized boolean acquire(Waiter waiter) {
+        if (waiters.isEmpty() && grantable(waiter)) {
+            hold(waiter);
+            return true;
+        }
+        waiters.add(waiter);
+        return false;
+    }
+
+    // Releases the lock origin holds and returns the waiters that hold it now, in arrival order
+    private synchronized List<Waiter> release(int origin) {
+        if (exclusiveHolder == origin) {
+            exclusiveHolder = -1;
+        } else if (sharedHolds[origin] > 0) {
+            sharedHolds[origin]--;
+            sharedHolders--;
+        } else {
+            throw new IllegalStateException("Rank " + origin + " unlocked the window of rank " + rank
+                    + " without holding its lock");
+        }
+        List<Waiter> granted = new ArrayList<>();
+        while (!waiters.isEmpty() && grantable(waiters.peek())) {
+            Waiter waiter = waiters.poll();
+            hold(waiter);
+            granted.add(waiter);
+        }
+        return granted;
+    }
+
+    private boolean grantable(Waiter waiter) {
+        return exclusiveHolder < 0 && (!waiter.exclusive || sharedHolders == 0);
+    }
+
+    private void hold(Waiter waiter) {
+        if (waiter.exclusive) {
+            exclusiveHolder = waiter.origin;
+        } else {
+            sharedHolds[waiter.origin]++;
+            sharedHolders++;
+        }
+    }
+
+    private void grant(List<Waiter> granted) {
+        for (Waiter waiter : granted) {
+            if (waiter.local != null) {
+                waiter.local.complete(null);
+            } else {
+                reply(waiter.origin, waiter.tag, EMPTY);
+            }
+        }
+    }
+
+    // ---- Setup ----
+
+    private static MappedByteBuffer map(File file, int bytes, boolean create) throws IOException {
+        Set<StandardOpenOption> options = create
+                ? EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)
+                : EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), options)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+    }
+
+    private String[] allgather(String mine) {
+        byte[] bytes = mine.getBytes(StandardCharsets.UTF_8);
+        int size = comm.size();
+        int[] lengths = new int[size];
+        MPI.allgather(comm, new int[] { bytes.length }, 0, 1, lengths, 0);
+        int[] displs = new int[size];
+        for (int r = 1; r < size; r++) {
+            displs[r] = displs[r - 1] + lengths[r - 1];
+        }
+        byte[] all = new byte[displs[size - 1] + lengths[size - 1]];
+        MPI.allgatherv(comm, bytes, 0, bytes.length, all, lengths, displs);
+        String[] strings = new String[size];
+        for (int r = 0; r < size; r++) {
+            strings[r] = new String(all, displs[r], lengths[r], StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+}
@@ -2,10 +2,13 @@ package mpi;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class mpiexec {
+    // How long to wait at job end for ranks' metrics reports still in flight
+    private static final long METRICS_REPORT_TIMEOUT_MS = 5_000;
 
     // Structure to hold target node info
     static class NodeInfo {
@@ -23,19 +26,30 @@ public class mpiexec {
     public static void main(String[] args) {
         if (args.length < 2) {
             System.out.println("Usage: ");
-            System.out.println("  mpiexec -hosts N IP1 N1 ... program");
-            System.out.println("  mpiexec -processes N port1 N1 ... program");
+            System.out.println("  mpiexec [-output-dir DIR] -hosts N IP1 N1 ... program");
+            System.out.println("  mpiexec [-output-dir DIR] -processes N port1 N1 ... program");
+            System.out.println("  mpiexec [-output-dir DIR] -threads N java [-Dk=v ...] [-cp CP] MainClass [args]");
             return;
         }
 
         List<NodeInfo> nodes = new ArrayList<>();
         int argIndex = 0;
-        String mode = args[argIndex++]; // -hosts or -processes
+        // Per-rank output files instead of the console
+        String outputDir = MPI.setting("MPI_OUTPUT_DIR", null);
+        // Where to write the job's metrics summary ("-" for stdout); none if unset
+        String metricsOut = MPI.setting("MPI_METRICS", null);
+        if (args[argIndex].equals("-output-dir")) {
+            outputDir = args[argIndex + 1];
+            argIndex += 2;
+        }
+        String mode = args[argIndex++]; // -hosts, -processes or -threads
 
         try {
             int numEntries = Integer.parseInt(args[argIndex++]);
+            // -threads takes a rank count rather than host entries
+            int threadRanks = mode.equals("-threads") ? numEntries : 0;
 
-            for (int i = 0; i < numEntries; i++) {
+            for (int i = 0; i < numEntries && threadRanks == 0; i++) {
                 if (mode.equals("-hosts")) {
                     String ip = args[argIndex++];
                     int n = Integer.parseInt(args[argIndex++]);
@@ -60,16 +74,36 @@ public class mpiexec {
                 return;
             }
 
+            JavaCommand inProcess = null;
+            if (threadRanks > 0) {
+                inProcess = JavaCommand.parse(programArgs);
+                if (inProcess == null) {
+                    System.err.println("Error: -threads needs a program of the form "
+                            + "java [-Dkey=value ...] [-cp CP] MainClass [args]");
+                    return;
+                }
+            }
+
             String executable = programArgs.get(0);
             String progArgsStr = String.join(" ", programArgs.subList(1, programArgs.size()));
             String workingDir = System.getProperty("user.dir");
 
             // Calculate totals
-            int totalRanks = 0;
+            int totalRanks = threadRanks;
             for (NodeInfo node : nodes)
                 totalRanks += node.count;
 
-            System.out.println("Launching " + totalRanks + " processes...");
+            System.out.println("Launching " + totalRanks
+                    + (threadRanks > 0 ? " ranks as threads..." : " processes..."));
+
+            File outputFiles = null;
+            if (outputDir != null) {
+                outputFiles = new File(outputDir);
+                if (!outputFiles.isDirectory() && !outputFiles.mkdirs()) {
+                    throw new IOException("Cannot create output directory " + outputDir);
+                }
+            }
+            OutputAggregator output = new OutputAggregator(outputFiles);
 
             // Start Message Router
             MessageRouter router = new MessageRouter(totalRanks);
@@ -79,23 +113,58 @@ public class mpiexec {
             String masterHost = InetAddress.getLocalHost().getHostAddress();
             int masterPort = router.getPort();
 
-            // Launch processes
+            // Environment shared by every rank; smpd (or ThreadRanks) adds MPI_RANK
+            Map<String, String> jobEnv = new LinkedHashMap<>();
+            jobEnv.put("MPI_SIZE", String.valueOf(totalRanks));
+            jobEnv.put("MPI_MASTER_HOST", masterHost);
+            jobEnv.put("MPI_MASTER_PORT", String.valueOf(masterPort));
+            jobEnv.put("MPI_JOB_ID", jobId(masterPort));
+            // Node map for the hierarchical collectives: how many ranks each node runs, in rank order
+            StringJoiner nodeMap = new StringJoiner(",");
+            if (threadRanks > 0) {
+                nodeMap.add(String.valueOf(threadRanks));
+            }
+            for (NodeInfo node : nodes) {
+                nodeMap.add(String.valueOf(node.count));
+            }
+            jobEnv.put("MPI_NODES", nodeMap.toString());
+            if (Tracer.ENABLED) {
+                // Every rank traces into the same directory (on its own host), and so does the router
+                jobEnv.put("MPI_TRACE", new File(Tracer.DIRECTORY).getAbsolutePath());
+                Tracer.start(jobId(masterPort), -1, totalRanks);
+            }
+            if (metricsOut != null) {
+                jobEnv.put("MPI_METRICS_REPORT", "1");
+            }
+
+            // Launch metrics: how long until every rank has reached the router
+            long launchStart = System.nanoTime();
+            router.allConnected().thenAccept(last -> System.out.printf(
+                    "Launch: %d ranks connected in %.1f ms (first after %.1f ms)%n", finalTotalRanks,
+                    (last - launchStart) / 1e6, (router.firstConnected() - launchStart) / 1e6));
+
+            if (inProcess != null) {
+                ThreadRanks.run(inProcess, totalRanks, jobEnv, output);
+                output.close();
+                writeMetrics(metricsOut, router, launchStart);
+                router.shutdown();
+                removeSharedMemoryFiles(jobId(masterPort)); // Windows of ranks that died before deleting theirs
+                writeTrace(jobId(masterPort), totalRanks);
+                return;
+            }
+
+            // Launch processes: one request, and one connection, per node for its whole block of ranks
             ExecutorService executor = Executors.newCachedThreadPool();
             List<Future<?>> futures = new ArrayList<>();
 
-            int currentRank = 0;
+            int firstRank = 0;
             for (NodeInfo node : nodes) {
-                for (int k = 0; k < node.count; k++) {
-                    final int rank = currentRank++;
-                    final String host = node.host;
-                    final int port = node.port;
-
-                    futures.add(executor.submit(() -> {
-                        launchProcess(host, port, rank, finalTotalRanks, masterHost, masterPort,
-                                executable, progArgsStr, workingDir);
-                        return null;
-                    }));
-                }
+                final int first = firstRank;
+                firstRank += node.count;
+                futures.add(executor.submit(() -> {
+                    launchBlock(node, first, jobEnv, executable, progArgsStr, workingDir, output);
+                    return null;
+                }));
             }
 
             // Wait for all to finish
@@ -107,8 +176,12 @@ public class mpiexec {
                 }
             }
 
+            output.close();
+            writeMetrics(metricsOut, router, launchStart);
             router.shutdown();
             executor.shutdown();
+            removeSharedMemoryFiles(jobId(masterPort));
+            writeTrace(jobId(masterPort), totalRanks);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -116,168 +189,127 @@ public class mpiexec {
         }
     }
 
-    private static void launchProcess(String host, int port, int rank, int size,
-            String masterHost, int masterPort,
-            String executable, String args, String dir) {
-        try (Socket socket = new Socket(host, port);
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-            // Protocol:
-            // Line 1: Executable
-            // Line 2: Arguments
-            // Line 3: Env Vars (MPI_RANK=x;MPI_SIZE=y;...)
-            // Line 4: Working Dir
-
-            out.println(executable);
-            out.println(args);
-            out.println("MPI_RANK=" + rank + ";MPI_SIZE=" + size +
-                    ";MPI_MASTER_HOST=" + masterHost + ";MPI_MASTER_PORT=" + masterPort);
-            out.println(dir);
+    private static String jobId(int masterPort) {
+        return ProcessHandle.current().pid() + "-" + masterPort;
+    }
 
-            // Read output
-            String line;
-            while ((line = in.readLine()) != null) {
-                synchronized (System.out) {
-                    System.out.println("[Rank " + rank + "]: " + line);
-                }
+    // Ranks unlink ring files once attached; this catches any whose reader never got to it
+    private static void removeSharedMemoryFiles(String jobId) {
+        String dir = MPI.setting("MPI_SHM_DIR", "/dev/shm"); // Resolved as the ranks resolve it
+        File[] leftovers = new File(dir).listFiles((d, name) -> name.startsWith("mpi-" + jobId + "-"));
+        if (leftovers != null) {
+            for (File f : leftovers) {
+                f.delete();
             }
-
-        } catch (IOException e) {
-            System.err.println("Failed to connect to smpd at " + host + ":" + port);
-            e.printStackTrace();
         }
     }
 
-    static class MessageRouter extends Thread {
-        private ServerSocket server;
-        private int totalRanks;
-        private Map<Integer, Socket> rankSockets = new ConcurrentHashMap<>();
-        private Map<Integer, Object> rankLocks = new ConcurrentHashMap<>();
-
-        private int barrierCount = 0;
-        private Object barrierLock = new Object();
-        private Object bcastLock = new Object();
-
-        public MessageRouter(int totalRanks) throws IOException {
-            this.server = new ServerSocket(0); // Random port
-            this.totalRanks = totalRanks;
-        }
-
-        public int getPort() {
-            return server.getLocalPort();
+    // Writes the router's trace and merges it with the ranks' traces into MPI_TRACE/<job>.json
+    private static void writeTrace(String jobId, int totalRanks) {
+        if (!Tracer.ENABLED) {
+            return;
         }
-
-        public void shutdown() {
-            try {
-                server.close();
-            } catch (IOException e) {
+        Tracer.dump();
+        File dir = new File(Tracer.DIRECTORY);
+        List<File> files = new ArrayList<>();
+        files.add(Tracer.file(dir, jobId, -1));
+        int missing = 0;
+        for (int r = 0; r < totalRanks; r++) {
+            File file = Tracer.file(dir, jobId, r);
+            if (file.exists()) {
+                files.add(file);
+            } else {
+                missing++;
             }
         }
+        File out = new File(dir, jobId + ".json");
+        try {
+            tracemerge.merge(files, out);
+            System.out.println("Trace: " + out + (missing > 0 ? " (no trace from " + missing + " ranks)" : ""));
+        } catch (IOException e) {
+            System.err.println("Cannot merge traces into " + out + ": " + e.getMessage());
+        }
+    }
 
-        @Override
-        public void run() {
-            try {
-                while (!server.isClosed()) {
-                    Socket client = server.accept();
-                    new Thread(() -> handleClient(client)).start();
-                }
-            } catch (IOException e) {
-                // Server closed
+    // Writes the metrics summary: launch times, the router's counters and each rank's report
+    private static void writeMetrics(String destination, MessageRouter router, long launchStart)
+            throws IOException, InterruptedException {
+        if (destination == null) {
+            return;
+        }
+        List<String> ranks = router.awaitReports(METRICS_REPORT_TIMEOUT_MS);
+        Long lastConnected = router.allConnected().getNow(null);
+        String json = "{\"launch\":{\"firstConnectedMs\":" + millisSince(launchStart, router.firstConnected())
+                + ",\"lastConnectedMs\":" + (lastConnected == null ? "null" : millisSince(launchStart, lastConnected))
+                + "},\"router\":" + router.metricsJson()
+                + ",\"ranks\":[" + String.join(",", ranks) + "]}";
+        if (destination.equals("-")) {
+            System.out.println("MPI metrics: " + json);
+        } else {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(destination), StandardCharsets.UTF_8)) {
+                out.write(json);
+                out.write('\n');
             }
         }
+    }
 
-        private void handleClient(Socket socket) {
-            try {
-                DataInputStream in = new DataInputStream(socket.getInputStream());
+    private static String millisSince(long start, long nanoTime) {
+        return nanoTime == 0 ? "null" : String.format(Locale.ROOT, "%.3f", (nanoTime - start) / 1e6);
+    }
 
-                // Handshake: Read Rank
-                int rank = in.readInt();
-                rankSockets.put(rank, socket);
-                rankLocks.put(rank, new Object());
-
-                System.out.println("Router connected to Rank " + rank);
-
-                // Loop for messages
-                while (true) {
-                    // Packet format: [CMD, ...]
-                    int cmd = in.readInt();
-                    if (cmd == 1) { // SEND
-                        int dest = in.readInt();
-                        String msg = in.readUTF();
-                        forwardMessage(dest, rank, msg);
-                    } else if (cmd == 3) { // BARRIER
-                        handleBarrier();
-                    } else if (cmd == 5) { // BCAST
-                        String payload = in.readUTF();
-                        handleBcast(rank, payload);
-                    }
-                }
-            } catch (EOFException e) {
-                // Client disconnected
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    private static void launchBlock(NodeInfo node, int firstRank, Map<String, String> jobEnv,
+            String executable, String args, String dir, OutputAggregator output) throws InterruptedException {
+        Set<Integer> running = new HashSet<>();
+        for (int rank = firstRank; rank < firstRank + node.count; rank++) {
+            running.add(rank);
         }
+        try (Socket socket = new Socket(node.host, node.port);
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
 
-        private void forwardMessage(int dest, int src, String msg) {
-            Socket destSocket = rankSockets.get(dest);
-            Object lock = rankLocks.get(dest);
-
-            if (destSocket != null && lock != null) {
-                synchronized (lock) {
-                    try {
-                        DataOutputStream out = new DataOutputStream(destSocket.getOutputStream());
-                        out.writeInt(2); // CMD=2 (INCOMING MSG)
-                        out.writeInt(src); // FROM
-                        out.writeUTF(msg); // MSG
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            } else {
-                System.err.println("Router: Unknown destination rank " + dest);
-            }
-        }
+            // Protocol:
+            // Line 1: Executable
+            // Line 2: Arguments
+            // Line 3: Env Vars (MPI_SIZE=y;...), MPI_RANK is set by smpd
+            // Line 4: Working Dir
+            // Line 5: First rank and rank count
 
-        private void handleBarrier() {
-            synchronized (barrierLock) {
-                barrierCount++;
-                if (barrierCount == totalRanks) {
-                    // Release all
-                    for (int r : rankSockets.keySet()) {
-                        sendPacket(r, 4, 0, ""); // CMD=4 (BARRIER_RELEASE)
-                    }
-                    barrierCount = 0;
-                }
-            }
-        }
+            out.println(executable);
+            out.println(args);
+            StringJoiner env = new StringJoiner(";");
+            jobEnv.forEach((key, value) -> env.add(key + "=" + value));
+            out.println(env);
+            out.println(dir);
+            out.println(firstRank + " " + node.count);
 
-        private void handleBcast(int senderRank, String payload) {
-            synchronized (bcastLock) {
-                // Flood broadcast to all OTHERS
-                for (int r : rankSockets.keySet()) {
-                    if (r != senderRank) {
-                        sendPacket(r, 6, senderRank, payload); // CMD=6 (BCAST_PAYLOAD)
+            // Output frames ([rank][stream][length][bytes]) and exits ([rank][EXIT][status]) until all have exited
+            while (!running.isEmpty()) {
+                int rank = in.readInt();
+                int stream = in.readInt();
+                if (stream == smpd.EXIT) {
+                    int status = in.readInt();
+                    if (status != 0) {
+                        System.err.println("Rank " + rank + " exited with status " + status);
                     }
+                    running.remove(rank);
+                    output.finish(rank);
+                    continue;
                 }
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                output.write(rank, stream, data);
             }
-        }
 
-        private void sendPacket(int dest, int cmd, int arg1, String arg2) {
-            Socket s = rankSockets.get(dest);
-            Object lock = rankLocks.get(dest);
-            if (s != null && lock != null) {
-                synchronized (lock) {
-                    try {
-                        DataOutputStream out = new DataOutputStream(s.getOutputStream());
-                        out.writeInt(cmd);
-                        out.writeInt(arg1);
-                        out.writeUTF(arg2);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+        } catch (EOFException e) {
+            System.err.println("smpd at " + node.host + ":" + node.port + " closed the connection with ranks "
+                    + running + " still running");
+        } catch (IOException e) {
+            System.err.println("Failed to connect to smpd at " + node.host + ":" + node.port);
+            e.printStackTrace();
+        } finally {
+            for (int rank : running) {
+                output.finish(rank);
             }
         }
     }
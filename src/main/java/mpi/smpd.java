@@ -2,9 +2,25 @@ package mpi;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class smpd {
+    // One launch request starts a block of ranks. Their stdout and stderr go
+    // back to mpiexec as frames [rank][stream][length][bytes] on the launch
+    // connection, followed by [rank][EXIT][status] once the rank has exited.
+    // Frames are gathered in a large buffer that is sent when full or, if
+    // anything is pending, every MPI_OUTPUT_FLUSH_MS milliseconds, rather than
+    // on every read.
+    static final int EXIT = 0;
+    static final int STDOUT = 1;
+    static final int STDERR = 2;
+    private static final int OUTPUT_BUFFER = 64 * 1024;
+    private static final long FLUSH_INTERVAL_MS = Math.max(1, MPI.intSetting("MPI_OUTPUT_FLUSH_MS", 20));
+
+    // Pre-started JVMs for launches that can use them; null unless MPI_WARM_POOL > 0
+    private static WarmPool warmPool;
+
     public static void main(String[] args) {
         if (args.length != 1) {
             System.out.println("Usage: java smpd <port>");
@@ -12,6 +28,12 @@ public class smpd {
         }
 
         int port = Integer.parseInt(args[0]);
+        int warm = MPI.intSetting("MPI_WARM_POOL", 0);
+        if (warm > 0) {
+            warmPool = new WarmPool(warm, ProcessHandle.current().info().command().orElse("java"),
+                    MPI.setting("MPI_WARM_CLASSPATH", System.getProperty("java.class.path")), new File("."),
+                    warmJvmOptions());
+        }
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             System.out.println("smpd listening on port " + port);
 
@@ -24,23 +46,43 @@ public class smpd {
         }
     }
 
+    // MPI_WARM_JVM_OPTS for the pool's JVMs, plus a class-data-sharing
+    // archive at MPI_WARM_CDS (created on first use; needs JDK 19+)
+    private static List<String> warmJvmOptions() {
+        List<String> options = new ArrayList<>();
+        String extra = MPI.setting("MPI_WARM_JVM_OPTS", "").trim();
+        if (!extra.isEmpty()) {
+            options.addAll(Arrays.asList(extra.split("\\s+")));
+        }
+        String archive = MPI.setting("MPI_WARM_CDS", null);
+        if (archive != null) {
+            options.add("-XX:+AutoCreateSharedArchive");
+            options.add("-XX:SharedArchiveFile=" + archive);
+        }
+        return options;
+    }
+
     private static void handleRequest(Socket socket) {
         try (
                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                // We use raw OutputStream to send bytes from process output directly
                 OutputStream out = socket.getOutputStream();) {
             // Protocol:
             // Line 1: Executable
             // Line 2: Arguments (space separated)
-            // Line 3: Env Vars (KEY=VAL;KEY=VAL)
+            // Line 3: Env Vars shared by the block (KEY=VAL;KEY=VAL)
             // Line 4: Working Directory
+            // Line 5: First rank and rank count; each child gets its own MPI_RANK
 
             String executable = in.readLine();
             String argsLine = in.readLine();
             String envLine = in.readLine();
             String dirLine = in.readLine();
+            String[] block = String.valueOf(in.readLine()).trim().split(" ");
+            int firstRank = Integer.parseInt(block[0]);
+            int count = Integer.parseInt(block[1]);
 
-            System.out.println("Received launch request: " + executable + " " + argsLine);
+            System.out.println("Received launch request for ranks " + firstRank + ".." + (firstRank + count - 1)
+                    + ": " + executable + " " + argsLine);
 
             List<String> command = new ArrayList<>();
             command.add(executable);
@@ -51,8 +93,8 @@ public class smpd {
             ProcessBuilder pb = new ProcessBuilder(command);
 
             // Set Env
+            Map<String, String> env = new LinkedHashMap<>();
             if (envLine != null && !envLine.isEmpty()) {
-                Map<String, String> env = pb.environment();
                 for (String entry : envLine.split(";")) {
                     String[] parts = entry.split("=", 2);
                     if (parts.length == 2) {
@@ -60,6 +102,7 @@ public class smpd {
                     }
                 }
             }
+            pb.environment().putAll(env);
 
             // Set Working Directory
             if (dirLine != null && !dirLine.isEmpty()) {
@@ -69,23 +112,23 @@ public class smpd {
                 pb.directory(new File("."));
             }
 
-            // Redirect Error to Output so we only handle one stream
-            pb.redirectErrorStream(true);
-
-            Process process = pb.start();
-
-            // Pipe process stdout to socket
-            InputStream processOut = process.getInputStream();
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = processOut.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-                out.flush();
+            OutputForwarder forwarder = new OutputForwarder(out);
+            for (int rank = firstRank; rank < firstRank + count; rank++) {
+                env.put("MPI_RANK", String.valueOf(rank));
+                pb.environment().put("MPI_RANK", String.valueOf(rank));
+                try {
+                    Process warm = warmPool == null ? null : warmPool.launch(command, env, pb.directory());
+                    if (warm != null) {
+                        System.out.println("Launched rank " + rank + " on warm JVM " + warm.pid());
+                    }
+                    forwarder.forward(rank, warm != null ? warm : pb.start());
+                } catch (IOException e) {
+                    forwarder.notStarted(rank, "smpd could not start rank " + rank + ": " + e.getMessage());
+                }
             }
+            forwarder.forwardUntilDone();
 
-            process.waitFor();
-
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException | InterruptedException | RuntimeException e) {
             e.printStackTrace();
         } finally {
             try {
@@ -95,4 +138,137 @@ public class smpd {
             }
         }
     }
+
+    // Frames the output of a block of children onto their shared launch connection. The launch request's
+    // own thread polls every child's pipes, so a block of ranks costs no further threads.
+    private static final class OutputForwarder {
+        private final DataOutputStream out;
+        private final List<Child> children = new ArrayList<>(); // started, exit not sent yet
+        private final byte[] buf = new byte[16 * 1024];
+        private boolean pending; // frames written since the last flush
+        private boolean failed; // mpiexec went away; output is drained and dropped
+
+        private static final class Child {
+            final int rank;
+            final Process process;
+
+            Child(int rank, Process process) {
+                this.rank = rank;
+                this.process = process;
+            }
+        }
+
+        OutputForwarder(OutputStream sink) {
+            this.out = new DataOutputStream(new BufferedOutputStream(sink, OUTPUT_BUFFER));
+        }
+
+        void forward(int rank, Process process) {
+            children.add(new Child(rank, process));
+        }
+
+        // Reports a child that never started as output on its stderr and exit status 127
+        void notStarted(int rank, String message) {
+            System.err.println(message);
+            byte[] text = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            write(rank, STDERR, text, text.length);
+            exited(rank, 127);
+        }
+
+        /**
+         * Forwards output as it arrives until every child has exited, sending
+         * pending frames every FLUSH_INTERVAL_MS, then sends the rest. When no
+         * child has anything to say, it polls less often, down to once per
+         * flush interval.
+         */
+        void forwardUntilDone() throws InterruptedException {
+            long idleMs = 1;
+            long lastFlush = System.nanoTime();
+            while (!children.isEmpty()) {
+                boolean read = false;
+                for (Iterator<Child> it = children.iterator(); it.hasNext();) {
+                    Child child = it.next();
+                    // Checked first: once it has exited, its pipes hold all it ever wrote
+                    boolean alive = child.process.isAlive();
+                    boolean output = drain(child.rank, STDOUT, child.process.getInputStream())
+                            | drain(child.rank, STDERR, child.process.getErrorStream());
+                    if (!alive && !output) {
+                        exited(child.rank, child.process.exitValue()); // All its output is in; the status follows
+                        it.remove();
+                    }
+                    read |= output;
+                }
+                if (System.nanoTime() - lastFlush >= FLUSH_INTERVAL_MS * 1_000_000) {
+                    flush();
+                    lastFlush = System.nanoTime();
+                }
+                if (read) {
+                    idleMs = 1;
+                } else {
+                    Thread.sleep(idleMs);
+                    idleMs = Math.min(FLUSH_INTERVAL_MS, idleMs * 2);
+                }
+            }
+            pending = true;
+            flush();
+        }
+
+        // Forwards up to a buffer of what `in` holds, without blocking; whether there was any. The child must
+        // never block on a full pipe, so reading goes on if sending fails.
+        private boolean drain(int rank, int stream, InputStream in) {
+            try {
+                int available = in.available();
+                if (available <= 0) {
+                    return false;
+                }
+                int n = in.read(buf, 0, Math.min(buf.length, available));
+                if (n > 0) {
+                    write(rank, stream, buf, n);
+                }
+                return n > 0;
+            } catch (IOException e) {
+                return false; // The child's end of the pipe is gone
+            }
+        }
+
+        // Frame [rank][stream][length][bytes]
+        private void write(int rank, int stream, byte[] data, int length) {
+            if (failed) {
+                return;
+            }
+            try {
+                out.writeInt(rank);
+                out.writeInt(stream);
+                out.writeInt(length);
+                out.write(data, 0, length);
+                pending = true;
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+
+        // Frame [rank][EXIT][status]
+        private void exited(int rank, int status) {
+            if (!failed) {
+                try {
+                    out.writeInt(rank);
+                    out.writeInt(EXIT);
+                    out.writeInt(status);
+                    pending = true;
+                } catch (IOException e) {
+                    failed = true;
+                }
+            }
+        }
+
+        private void flush() {
+            if (pending && !failed) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    failed = true;
+                }
+                pending = false;
+            }
+        }
+    }
 }
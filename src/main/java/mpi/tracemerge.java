@@ -0,0 +1,293 @@
+package mpi;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Merges the trace files of a job (see {@link Tracer}) into one Chrome
+ * trace-event JSON file, for chrome://tracing or ui.perfetto.dev: a process
+ * per rank (and one for the router), a track per thread, a slice per traced
+ * call, and an arrow from each frame's send to its arrival.
+ *
+ * Times are put on one axis through each file's wall clock reference, so
+ * files from different hosts line up only as well as their clocks agree.
+ */
+public class tracemerge {
+    // Frames are instants, but an arrow needs a slice at each end to attach to
+    private static final double FRAME_MICROS = 0.001;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: tracemerge [-o trace.json] DIR|FILE.mpitrace ...");
+            return;
+        }
+        File out = new File("trace.json");
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o")) {
+                out = new File(args[++i]);
+            } else if (new File(args[i]).isDirectory()) {
+                File[] found = new File(args[i]).listFiles((dir, name) -> name.endsWith(".mpitrace"));
+                if (found != null) {
+                    Arrays.sort(found);
+                    files.addAll(Arrays.asList(found));
+                }
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        int events = merge(files, out);
+        System.out.println("Merged " + files.size() + " trace files (" + events + " events) into " + out);
+    }
+
+    /** Writes the Chrome trace of {@code files} to {@code out}; returns the number of events read. */
+    static int merge(List<File> files, File out) throws IOException {
+        List<Trace> traces = new ArrayList<>();
+        for (File file : files) {
+            traces.add(Trace.read(file));
+        }
+        long origin = Long.MAX_VALUE;
+        int routerPid = 0;
+        for (Trace trace : traces) {
+            routerPid = Math.max(routerPid, trace.size);
+            for (Track track : trace.tracks) {
+                if (track.count > 0) {
+                    origin = Math.min(origin, trace.epochOf(track.min));
+                }
+            }
+        }
+
+        // Frames with both ends traced, by (source, destination, sequence), get an arrow each
+        Set<String> sent = new HashSet<>();
+        Set<String> arrived = new HashSet<>();
+        for (Trace trace : traces) {
+            for (Track track : trace.tracks) {
+                for (int i = 0; i < track.count; i++) {
+                    if (track.kind(i) == Tracer.SENT) {
+                        sent.add(frameKey(trace.rank, track.peer[i], track.extra[i]));
+                    } else if (track.kind(i) == Tracer.ARRIVED) {
+                        arrived.add(frameKey(track.peer[i], trace.rank, track.extra[i]));
+                    }
+                }
+            }
+        }
+
+        int events = 0;
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8),
+                1 << 16)) {
+            w.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n");
+            Json json = new Json(w);
+            for (Trace trace : traces) {
+                int pid = trace.rank < 0 ? routerPid : trace.rank;
+                json.begin("M", "process_name", pid, 0).args().put("name", trace.rank < 0 ? "Router"
+                        : "Rank " + trace.rank).end();
+                json.begin("M", "process_sort_index", pid, 0).args().put("sort_index", pid).end();
+                for (int t = 0; t < trace.tracks.size(); t++) {
+                    Track track = trace.tracks.get(t);
+                    int tid = t + 1;
+                    json.begin("M", "thread_name", pid, tid).args().put("name", track.thread
+                            + (track.lost > 0 ? " (" + track.lost + " earlier events lost)" : "")).end();
+                    for (int i = 0; i < track.count; i++) {
+                        double ts = micros(trace.epochOf(track.time[i]) - origin);
+                        String span = track.kind(i) <= Tracer.EXIT
+                                ? Tracer.Span.values()[track.span(i)].name().toLowerCase(Locale.ROOT) : null;
+                        switch (track.kind(i)) {
+                            case Tracer.ENTER:
+                                json.begin("B", span, pid, tid).ts(ts).end();
+                                break;
+                            case Tracer.EXIT:
+                                json.begin("E", span, pid, tid).ts(ts).args();
+                                if (track.peer[i] >= 0) {
+                                    json.put("peer", track.peer[i]);
+                                }
+                                if (track.length[i] > 0) {
+                                    json.put("bytes", track.length[i]);
+                                }
+                                json.end();
+                                break;
+                            case Tracer.SENT: {
+                                json.begin("X", "send to " + track.peer[i], pid, tid).ts(ts).put("dur", FRAME_MICROS);
+                                frameArgs(json, track, i).end();
+                                String key = frameKey(trace.rank, track.peer[i], track.extra[i]);
+                                if (arrived.contains(key)) {
+                                    json.begin("s", "message", pid, tid).ts(ts).put("id", key).end();
+                                }
+                                break;
+                            }
+                            case Tracer.ARRIVED: {
+                                json.begin("X", "arrival from " + track.peer[i], pid, tid).ts(ts)
+                                        .put("dur", FRAME_MICROS);
+                                frameArgs(json, track, i).end();
+                                String key = frameKey(track.peer[i], trace.rank, track.extra[i]);
+                                if (sent.contains(key)) {
+                                    json.begin("f", "message", pid, tid).ts(ts).put("id", key).put("bp", "e").end();
+                                }
+                                break;
+                            }
+                            case Tracer.FORWARD:
+                                json.begin("X", "forward " + track.peer[i] + " to " + track.tag[i], pid, tid)
+                                        .ts(ts).put("dur", micros(track.extra[i])).args()
+                                        .put("bytes", track.length[i]).end();
+                                break;
+                            default:
+                                break;
+                        }
+                        events++;
+                    }
+                }
+            }
+            w.write("\n]}\n");
+        }
+        return events;
+    }
+
+    private static Json frameArgs(Json json, Track track, int i) throws IOException {
+        int match = track.tag[i];
+        return json.args().put("context", MPI.contextOf(match)).put("tag", MPI.tagOf(match))
+                .put("bytes", track.length[i]).put("seq", track.extra[i]);
+    }
+
+    // Also the arrow's id
+    private static String frameKey(int src, int dest, long sequence) {
+        return src + ">" + dest + "#" + sequence;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    // One file: a rank's (or the router's) tracks
+    private static final class Trace {
+        int rank;
+        int size;
+        long epoch;
+        long nanos;
+        final List<Track> tracks = new ArrayList<>();
+
+        long epochOf(long time) {
+            return epoch + (time - nanos);
+        }
+
+        static Trace read(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    1 << 16))) {
+                if (in.readInt() != Tracer.MAGIC || in.readUnsignedByte() != Tracer.VERSION) {
+                    throw new IOException(file + " is not an MPI trace (version " + Tracer.VERSION + ")");
+                }
+                Trace trace = new Trace();
+                trace.rank = in.readInt();
+                trace.size = in.readInt();
+                trace.epoch = in.readLong();
+                trace.nanos = in.readLong();
+                for (int n = in.readInt(); n > 0; n--) {
+                    trace.tracks.add(Track.read(in, trace.nanos));
+                }
+                return trace;
+            }
+        }
+    }
+
+    // One thread's events, in recording order
+    private static final class Track {
+        String thread;
+        long lost;
+        int count;
+        long min = Long.MAX_VALUE;
+        int[] what;
+        long[] time;
+        int[] peer;
+        int[] tag;
+        long[] length;
+        long[] extra;
+
+        int kind(int i) {
+            return what[i] >> 8;
+        }
+
+        int span(int i) {
+            return what[i] & 0xff;
+        }
+
+        static Track read(DataInputStream in, long start) throws IOException {
+            Track track = new Track();
+            track.thread = in.readUTF();
+            track.lost = Tracer.readVarLong(in);
+            track.count = Math.toIntExact(Tracer.readVarLong(in));
+            track.what = new int[track.count];
+            track.time = new long[track.count];
+            track.peer = new int[track.count];
+            track.tag = new int[track.count];
+            track.length = new long[track.count];
+            track.extra = new long[track.count];
+            long previous = start;
+            for (int i = 0; i < track.count; i++) {
+                track.what[i] = (int) Tracer.readVarLong(in);
+                previous += Tracer.unzigzag(Tracer.readVarLong(in));
+                track.time[i] = previous;
+                track.min = Math.min(track.min, previous);
+                track.peer[i] = (int) Tracer.unzigzag(Tracer.readVarLong(in));
+                track.tag[i] = (int) Tracer.unzigzag(Tracer.readVarLong(in));
+                track.length[i] = Tracer.readVarLong(in);
+                if (track.kind(i) >= Tracer.SENT) {
+                    track.extra[i] = Tracer.readVarLong(in);
+                }
+            }
+            return track;
+        }
+    }
+
+    // Writes one trace event object at a time, comma-separated
+    private static final class Json {
+        private final Writer w;
+        private boolean first = true;
+        private boolean inArgs;
+        private boolean firstArg;
+
+        Json(Writer w) {
+            this.w = w;
+        }
+
+        Json begin(String phase, String name, int pid, int tid) throws IOException {
+            w.write(first ? "{" : ",\n{");
+            first = false;
+            inArgs = false;
+            firstArg = false;
+            w.write("\"ph\":\"" + phase + "\",\"pid\":" + pid + ",\"tid\":" + tid);
+            if (name != null) {
+                put("name", name);
+                w.write(",\"cat\":\"mpi\"");
+            }
+            return this;
+        }
+
+        Json ts(double micros) throws IOException {
+            return put("ts", micros);
+        }
+
+        Json args() throws IOException {
+            w.write(",\"args\":{");
+            inArgs = true;
+            firstArg = true;
+            return this;
+        }
+
+        Json put(String key, Object value) throws IOException {
+            if (!firstArg) {
+                w.write(",");
+            }
+            firstArg = false;
+            w.write("\"" + key + "\":");
+            if (value instanceof String) {
+                w.write("\"" + ((String) value).replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+            } else {
+                w.write(String.valueOf(value));
+            }
+            return this;
+        }
+
+        void end() throws IOException {
+            w.write(inArgs ? "}}" : "}");
+        }
+    }
+}
@@ -9,6 +9,8 @@ public class IntegrationTests {
 
     private static List<Process> smpdProcesses = new ArrayList<>();
     private static final int[] PORTS = { 5001, 5002, 5003, 5004, 5005, 5006 };
+    // The first smpds keep warm JVMs, so most jobs mix warm and cold ranks
+    private static final int WARM_SMPDS = 3;
 
     @BeforeAll
     public static void setup() throws IOException, InterruptedException {
@@ -17,10 +19,11 @@ public class IntegrationTests {
         String javaBin = ProcessHandle.current().info().command().orElse("java");
 
         // Start SMPD instances
-        for (int port : PORTS) {
+        for (int i = 0; i < PORTS.length; i++) {
+            int port = PORTS[i];
             System.out.println("Starting SMPD on port " + port);
-            ProcessBuilder pb = new ProcessBuilder(
-                    javaBin, "-cp", classpath, "mpi.smpd", String.valueOf(port));
+            ProcessBuilder pb = new ProcessBuilder(javaBin, "-DMPI_WARM_POOL=" + (i < WARM_SMPDS ? 2 : 0),
+                    "-cp", classpath, "mpi.smpd", String.valueOf(port));
             pb.inheritIO();
             smpdProcesses.add(pb.start());
         }
@@ -66,6 +69,316 @@ public class IntegrationTests {
         Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
     }
 
+    @Test
+    public void testBinaryPayloads() throws Exception {
+        System.out.println("\n=== Running TestBinary ===");
+        String output = runMpiExec("mpi.TestBinary", 2);
+        System.out.println(output);
+        Assertions.assertTrue(output.contains("TEST PASSED: Binary payloads intact"), "Binary payload test failed!");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testDirectExchange() throws Exception {
+        System.out.println("\n=== Running TestDirect ===");
+        String output = runMpiExec("mpi.TestDirect", 4);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: All-pairs exchange").length - 1;
+        Assertions.assertEquals(4, passed, "Every rank should receive one message from each peer");
+        Assertions.assertTrue(output.contains("Ping-pong latency:"), "Ping-pong did not complete");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testBcastAlgorithms() throws Exception {
+        System.out.println("\n=== Running TestBcast ===");
+        String output = runMpiExec("mpi.TestBcast", 5);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Bcast").length - 1;
+        Assertions.assertEquals(5, passed, "Every rank should receive every broadcast intact");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testReduce() throws Exception {
+        System.out.println("\n=== Running TestReduce ===");
+        String output = runMpiExec("mpi.TestReduce", 6);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Reduce").length - 1;
+        Assertions.assertEquals(6, passed, "Every rank should see correct reductions");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testTaggedReceive() throws Exception {
+        System.out.println("\n=== Running TestTagged ===");
+        String output = runMpiExec("mpi.TestTagged", 3);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Tagged receive").length - 1;
+        Assertions.assertEquals(3, passed, "Every rank should match messages by source and tag");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testNonBlocking() throws Exception {
+        System.out.println("\n=== Running TestNonBlocking ===");
+        String output = runMpiExec("mpi.TestNonBlocking", 4);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Non-blocking").length - 1;
+        Assertions.assertEquals(4, passed, "Every rank should complete its requests");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testBarrierAlgorithms() throws Exception {
+        System.out.println("\n=== Running TestBarrier ===");
+        String output = runMpiExec("mpi.TestBarrier", 5);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Barrier").length - 1;
+        Assertions.assertEquals(5, passed, "Every barrier algorithm should hold ranks until all arrive");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testCollectives() throws Exception {
+        System.out.println("\n=== Running TestCollectives ===");
+        String output = runMpiExec("mpi.TestCollectives", 5);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Collectives").length - 1;
+        Assertions.assertEquals(5, passed, "Every rank should see correct scatter/gather/alltoall results");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testCommunicators() throws Exception {
+        System.out.println("\n=== Running TestCommunicator ===");
+        String output = runMpiExec("mpi.TestCommunicator", 6);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Communicators").length - 1;
+        Assertions.assertEquals(6, passed, "Every rank should see its groups' traffic and nothing else");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        System.out.println("\n=== Running TestStream ===");
+        String output = runMpiExec("mpi.TestStream", 3);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Streaming").length - 1;
+        Assertions.assertEquals(3, passed, "Every rank should stream large messages intact");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testOutputForwarding() throws Exception {
+        System.out.println("\n=== Running TestOutput ===");
+        String output = runMpiExec("mpi.TestOutput", 4);
+        int passed = output.split("TEST PASSED: Output").length - 1;
+        Assertions.assertEquals(4, passed, "Every rank should finish");
+        for (int r = 0; r < 4; r++) {
+            for (int i = 0; i < TestOutput.LINES; i += 97) {
+                String line = "[Rank " + r + "]: Chatter " + i + " from rank " + r + "\n";
+                Assertions.assertTrue(output.contains(line), "Missing or garbled line: " + line);
+            }
+            Assertions.assertTrue(output.contains("[Rank " + r + "]: Diagnostic from rank " + r + "\n"),
+                    "stderr of rank " + r + " not forwarded");
+            Assertions.assertTrue(output.contains("[Rank " + r + "]: Unterminated from rank " + r + "\n"),
+                    "Unterminated last line of rank " + r + " lost");
+        }
+        int lines = output.split("\\]: Chatter ").length - 1;
+        Assertions.assertEquals(4 * TestOutput.LINES, lines, "Every line should appear exactly once");
+    }
+
+    @Test
+    public void testWarmLaunch() throws Exception {
+        System.out.println("\n=== Running TestWarm ===");
+        Thread.sleep(2000); // Let the pools refill after earlier tests
+        String output = runMpiExec("mpi.TestWarm", WARM_SMPDS + 1);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Launch").length - 1;
+        Assertions.assertEquals(WARM_SMPDS + 1, passed, "Warm and cold ranks should run alike");
+        Assertions.assertTrue(output.contains("(warm)"), "No rank was launched on a warm JVM");
+        Assertions.assertTrue(output.contains("(cold)"), "The smpd without a pool should start JVMs cold");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testBlockLaunch() throws Exception {
+        System.out.println("\n=== Running TestCollectives in blocks of ranks per smpd ===");
+        String classpath = System.getProperty("java.class.path");
+        String javaBin = ProcessHandle.current().info().command().orElse("java");
+        String output = run(List.of(javaBin, "-cp", classpath, "mpi.mpiexec", "-processes", "2",
+                String.valueOf(PORTS[3]), "3", String.valueOf(PORTS[4]), "2", javaBin, "-cp", classpath,
+                "mpi.TestCollectives"));
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Collectives").length - 1;
+        Assertions.assertEquals(5, passed, "Every rank of both blocks should run");
+        Assertions.assertTrue(output.contains("Launch: 5 ranks connected in "), "Launch time not reported");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testTopology() throws Exception {
+        System.out.println("\n=== Running TestTopology on two nodes ===");
+        String classpath = System.getProperty("java.class.path");
+        String javaBin = ProcessHandle.current().info().command().orElse("java");
+        String output = run(List.of(javaBin, "-cp", classpath, "mpi.mpiexec", "-processes", "2",
+                String.valueOf(PORTS[3]), "3", String.valueOf(PORTS[4]), "2", javaBin, "-cp", classpath,
+                "mpi.TestTopology"));
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Topology").length - 1;
+        Assertions.assertEquals(5, passed, "Every rank should pass");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        System.out.println("\n=== Running TestMetrics ===");
+        File summary = File.createTempFile("mpi-metrics", ".json");
+        try {
+            String classpath = System.getProperty("java.class.path");
+            String javaBin = ProcessHandle.current().info().command().orElse("java");
+            // Relayed, so that the router has frames to time
+            String output = run(List.of(javaBin, "-DMPI_METRICS=" + summary, "-cp", classpath, "mpi.mpiexec",
+                    "-processes", "3", String.valueOf(PORTS[0]), "1", String.valueOf(PORTS[1]), "1",
+                    String.valueOf(PORTS[2]), "1", javaBin, "-DMPI_DIRECT=0", "-cp", classpath, "mpi.TestMetrics"));
+            System.out.println(output);
+            int passed = output.split("TEST PASSED: Metrics").length - 1;
+            Assertions.assertEquals(3, passed, "Every rank should count its traffic and waits");
+            Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+
+            String json = new String(java.nio.file.Files.readAllBytes(summary.toPath()));
+            System.out.println(json);
+            for (int r = 0; r < 3; r++) {
+                Assertions.assertTrue(json.contains("{\"rank\":" + r + ","), "No report from rank " + r);
+            }
+            int bcasts = json.split("\"bcastWait\":\\{\"count\":1,").length - 1;
+            Assertions.assertEquals(3, bcasts, "Reports should be taken at finalize");
+            Assertions.assertTrue(json.contains("\"lastConnectedMs\":"), "Launch time missing");
+            Assertions.assertFalse(json.contains("\"relayedFrames\":0,"), "Router relayed nothing");
+            Assertions.assertTrue(json.contains("\"forwardLatency\":{\"count\":"), "Router latency missing");
+        } finally {
+            summary.delete();
+        }
+    }
+
+    @Test
+    public void testTracing() throws Exception {
+        System.out.println("\n=== Running TestReduce traced ===");
+        File dir = java.nio.file.Files.createTempDirectory("mpi-trace").toFile();
+        try {
+            String classpath = System.getProperty("java.class.path");
+            String javaBin = ProcessHandle.current().info().command().orElse("java");
+            String output = run(List.of(javaBin, "-DMPI_TRACE=" + dir, "-cp", classpath, "mpi.mpiexec",
+                    "-processes", "3", String.valueOf(PORTS[3]), "1", String.valueOf(PORTS[4]), "1",
+                    String.valueOf(PORTS[5]), "1", javaBin, "-cp", classpath, "mpi.TestReduce"));
+            System.out.println(output);
+            Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+            Assertions.assertTrue(output.contains("Trace: "), "No merged trace reported");
+            Assertions.assertFalse(output.contains("no trace from"), "Some ranks wrote no trace");
+
+            File[] merged = dir.listFiles((d, name) -> name.endsWith(".json"));
+            Assertions.assertEquals(1, merged.length, "One merged trace expected");
+            String json = new String(java.nio.file.Files.readAllBytes(merged[0].toPath()));
+            for (int r = 0; r < 3; r++) {
+                Assertions.assertTrue(json.contains("\"name\":\"Rank " + r + "\""), "No track for rank " + r);
+            }
+            Assertions.assertTrue(json.contains("\"name\":\"allreduce\""), "Collectives missing");
+            Assertions.assertTrue(json.contains("\"ph\":\"s\"") && json.contains("\"ph\":\"f\""),
+                    "Message arrows missing");
+            Assertions.assertTrue(json.trim().endsWith("]}"), "Trace not closed");
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        System.out.println("\n=== Running TestCompression ===");
+        String classpath = System.getProperty("java.class.path");
+        String javaBin = ProcessHandle.current().info().command().orElse("java");
+        // Relayed links count as leaving the node, so frames are compressed on the way to the router
+        String output = run(List.of(javaBin, "-cp", classpath, "mpi.mpiexec", "-processes", "3",
+                String.valueOf(PORTS[3]), "1", String.valueOf(PORTS[4]), "1", String.valueOf(PORTS[5]), "1",
+                javaBin, "-DMPI_COMPRESS=1", "-DMPI_DIRECT=0", "-cp", classpath, "mpi.TestCompression"));
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Compression").length - 1;
+        Assertions.assertEquals(3, passed, "Every rank should get its messages back intact, compressed");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testCodecs() throws Exception {
+        System.out.println("\n=== Running TestCodec ===");
+        String output = runMpiExec("mpi.TestCodec", 3);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Codecs").length - 1;
+        Assertions.assertEquals(3, passed, "Every rank should decode what its neighbour encoded");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testAggregation() throws Exception {
+        System.out.println("\n=== Running TestAggregation ===");
+        String classpath = System.getProperty("java.class.path");
+        String javaBin = ProcessHandle.current().info().command().orElse("java");
+        // Relayed, so batches also cross the router in one piece
+        String output = run(List.of(javaBin, "-cp", classpath, "mpi.mpiexec", "-processes", "3",
+                String.valueOf(PORTS[3]), "1", String.valueOf(PORTS[4]), "1", String.valueOf(PORTS[5]), "1",
+                javaBin, "-DMPI_AGGREGATE=1", "-DMPI_DIRECT=0", "-cp", classpath, "mpi.TestAggregation"));
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Aggregation").length - 1;
+        Assertions.assertEquals(3, passed, "Every rank should get the small messages in order, batched");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        System.out.println("\n=== Running TestWindow ===");
+        String classpath = System.getProperty("java.class.path");
+        String javaBin = ProcessHandle.current().info().command().orElse("java");
+        // Without shared memory every access is served by the target (threaded ranks map the windows instead)
+        String output = run(List.of(javaBin, "-cp", classpath, "mpi.mpiexec", "-processes", "3",
+                String.valueOf(PORTS[3]), "1", String.valueOf(PORTS[4]), "1", String.valueOf(PORTS[5]), "1",
+                javaBin, "-DMPI_SHM=0", "-cp", classpath, "mpi.TestWindow"));
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: Windows").length - 1;
+        Assertions.assertEquals(3, passed, "Every rank should see the one-sided operations applied");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testFileIO() throws Exception {
+        System.out.println("\n=== Running TestFileIO ===");
+        String output = runMpiExec("mpi.TestFileIO", 4);
+        System.out.println(output);
+        int passed = output.split("TEST PASSED: File I/O").length - 1;
+        Assertions.assertEquals(4, passed, "Every rank should read back what the ranks wrote");
+        Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+    }
+
+    @Test
+    public void testThreadedRanks() throws Exception {
+        System.out.println("\n=== Running ranks as threads ===");
+        String[][] programs = { { "mpi.TestCollectives", "5", "TEST PASSED: Collectives" },
+                { "mpi.TestCommunicator", "6", "TEST PASSED: Communicators" },
+                { "mpi.TestStream", "3", "TEST PASSED: Streaming" },
+                { "mpi.TestCompression", "3", "TEST PASSED: Compression" },
+                { "mpi.TestAggregation", "3", "TEST PASSED: Aggregation" },
+                { "mpi.TestWindow", "4", "TEST PASSED: Windows" } };
+        for (String[] program : programs) {
+            String output = runThreaded(program[0], Integer.parseInt(program[1]));
+            System.out.println(output);
+            int passed = output.split(program[2]).length - 1;
+            Assertions.assertEquals(Integer.parseInt(program[1]), passed,
+                    program[0] + " should pass on every rank when ranks are threads");
+            Assertions.assertFalse(output.contains("TEST FAILED"), "Test explicitly reported failure");
+        }
+    }
+
     private String runMpiExec(String testClass, int numProcs) throws Exception {
         String classpath = System.getProperty("java.class.path");
         String javaBin = ProcessHandle.current().info().command().orElse("java");
@@ -91,6 +404,18 @@ public class IntegrationTests {
         args.add(classpath);
         args.add(testClass);
 
+        return run(args);
+    }
+
+    // mpiexec -threads N java -cp CP TestClass, all ranks in mpiexec's JVM
+    private String runThreaded(String testClass, int numRanks) throws Exception {
+        String classpath = System.getProperty("java.class.path");
+        String javaBin = ProcessHandle.current().info().command().orElse("java");
+        return run(List.of(javaBin, "-cp", classpath, "mpi.mpiexec", "-threads", String.valueOf(numRanks),
+                javaBin, "-cp", classpath, testClass));
+    }
+
+    private String run(List<String> args) throws Exception {
         ProcessBuilder pb = new ProcessBuilder(args);
         pb.redirectErrorStream(true);
         Process p = pb.start();
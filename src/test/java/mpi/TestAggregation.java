@@ -0,0 +1,114 @@
+package mpi;
+
+public class TestAggregation {
+    private static int rank;
+    private static boolean ok = true;
+
+    public static void main(String[] args) {
+        MPI.init();
+        rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        int next = (rank + 1) % size;
+        int prev = (rank + size - 1) % size;
+        // Ranks running as threads of one JVM hand each other frames directly and never batch
+        boolean batching = MPI.COMM_WORLD.getAggregation() && !LocalFabric.joined();
+
+        // 1. Many tiny messages arrive complete and in order
+        int count = 20_000;
+        long[] value = new long[1];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            value[0] = (long) rank << 32 | i;
+            MPI.send(next, 1, value, 0, 1);
+        }
+        boolean ordered = true;
+        long[] in = new long[1];
+        for (int i = 0; i < count; i++) {
+            MPI.irecv(prev, 1, in, 0, 1).waitFor();
+            ordered &= in[0] == ((long) prev << 32 | i);
+        }
+        long nanos = System.nanoTime() - start;
+        check(ordered, "tiny messages");
+        CommMetrics metrics = MPI.metrics();
+        check(!batching || metrics.getBatchedMessages() >= count && metrics.getBatches() < count / 10,
+                "batch count");
+        if (rank == 0) {
+            System.out.printf("%d 8-byte messages each way in %.1f ms (%.0f msgs/s)%n", count, nanos / 1e6,
+                    count * 1e9 / nanos);
+        }
+
+        // 2. A large message between small ones neither overtakes nor is overtaken
+        MPI.send(next, 2, "before");
+        MPI.send(next, 2, new double[50_000], 0, 50_000);
+        MPI.send(next, 2, "after");
+        check(MPI.receive(prev, 2).equals("before"), "small before large");
+        double[] large = new double[50_000];
+        check(MPI.receive(prev, 2, large, 0, large.length).getCount() == large.length, "large");
+        check(MPI.receive(prev, 2).equals("after"), "small after large");
+
+        // 3. Non-blocking sends and wildcard receives
+        Request[] sends = new Request[100];
+        for (int i = 0; i < sends.length; i++) {
+            sends[i] = MPI.isend(next, 3, new int[] { i }, 0, 1);
+        }
+        Request.waitAll(sends);
+        boolean wildcard = true;
+        int[] n = new int[1];
+        for (int i = 0; i < sends.length; i++) {
+            Status status = MPI.irecv(MPI.ANY_SOURCE, MPI.ANY_TAG, n, 0, 1).waitFor();
+            wildcard &= status.getSource() == prev && status.getTag() == 3 && n[0] == i;
+        }
+        check(wildcard, "wildcard receives");
+
+        // 4. A batch goes out at its deadline while the sender keeps computing
+        MPI.barrier();
+        if (rank == 0) {
+            MPI.send(1, 4, "on time");
+            long until = System.nanoTime() + 200_000_000L;
+            while (System.nanoTime() < until) {
+                Thread.onSpinWait(); // No MPI call that would flush
+            }
+        } else if (rank == 1) {
+            long waited = System.nanoTime();
+            check(MPI.receive(0, 4).equals("on time"), "deadline");
+            check(System.nanoTime() - waited < 150_000_000L, "deadline latency");
+        }
+
+        // 5. An explicit flush
+        long batches = MPI.metrics().getBatches();
+        MPI.send(next, 5, "flushed");
+        MPI.flush(next);
+        check(!batching || MPI.metrics().getBatches() == batches + 1, "flush");
+        check(MPI.receive(prev, 5).equals("flushed"), "flushed message");
+
+        // 6. A communicator with aggregation off sends every message as it is
+        Communicator direct = MPI.COMM_WORLD.dup();
+        direct.setAggregation(false);
+        MPI.flush(); // Whatever dup() left batched
+        long batchedBefore = MPI.metrics().getBatchedMessages();
+        for (int i = 0; i < 10; i++) {
+            MPI.send(direct, next, 6, "unbatched " + i);
+        }
+        boolean unbatched = true;
+        for (int i = 0; i < 10; i++) {
+            unbatched &= MPI.receive(direct, prev, 6).equals("unbatched " + i);
+        }
+        check(unbatched && MPI.metrics().getBatchedMessages() == batchedBefore, "unbatched communicator");
+
+        // 7. Collectives still agree
+        int[] sum = { rank + 1 };
+        MPI.allreduce(sum, Op.SUM);
+        check(sum[0] == size * (size + 1) / 2, "allreduce");
+
+        System.out.println(ok ? "TEST PASSED: Aggregation on rank " + rank
+                : "TEST FAILED: Aggregation on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank + ": " + MPI.metrics());
+        }
+        ok &= condition;
+    }
+}
@@ -0,0 +1,59 @@
+package mpi;
+
+public class TestBarrier {
+    public static void main(String[] args) {
+        MPI.init();
+        int rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        boolean ok = true;
+
+        for (BarrierAlgorithm algorithm : BarrierAlgorithm.values()) {
+            // The last rank arrives late; nobody may leave before it gets there
+            MPI.barrier(algorithm);
+            MPI.resetBarrierStats();
+            if (rank == size - 1) {
+                sleep(300);
+            }
+            MPI.barrier(algorithm);
+            BarrierStats stats = MPI.barrierStats();
+            ok &= stats.getCount() == 1;
+            if (rank != size - 1 && stats.getLastWaitNanos() < 200_000_000L) {
+                System.out.println(algorithm + " released rank " + rank + " after only "
+                        + stats.getLastWaitNanos() / 1_000_000 + " ms");
+                ok = false;
+            }
+
+            // Back-to-back barriers must not mix up their messages
+            for (int i = 0; i < 200; i++) {
+                MPI.barrier(algorithm);
+            }
+            ok &= MPI.barrierStats().getCount() == 201;
+        }
+
+        // Alternating algorithms
+        for (int i = 0; i < 60; i++) {
+            MPI.barrier(BarrierAlgorithm.values()[i % 3]);
+        }
+
+        MPI.resetBarrierStats();
+        long start = System.nanoTime();
+        for (int i = 0; i < 500; i++) {
+            MPI.barrier();
+        }
+        if (rank == 0) {
+            System.out.printf("Barrier latency: %.2f us (%s)%n", (System.nanoTime() - start) / 500 / 1e3,
+                    MPI.barrierStats());
+        }
+
+        System.out.println(ok ? "TEST PASSED: Barrier on rank " + rank : "TEST FAILED: Barrier on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
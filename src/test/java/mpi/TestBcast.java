@@ -0,0 +1,51 @@
+package mpi;
+
+import java.util.Arrays;
+
+public class TestBcast {
+    public static void main(String[] args) {
+        // Force the long-message path for anything over 1 KB, even with few ranks
+        System.setProperty("MPI_BCAST_SHORT_MSG", "1024");
+        System.setProperty("MPI_BCAST_MIN_PROCS", "2");
+
+        MPI.init();
+        int rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        int root = size - 1;
+        boolean ok = true;
+
+        // 1. Short string from a non-zero root (binomial tree)
+        String s = MPI.bcast(root, rank == root ? "from the last rank" : "");
+        ok &= "from the last rank".equals(s);
+
+        // 2. Long in-place double[] (scatter + ring allgather), sized so pieces are uneven
+        int n = 100_003;
+        double[] doubles = new double[n + 2];
+        if (rank == root) {
+            for (int i = 0; i < n; i++) {
+                doubles[1 + i] = i * 1.5;
+            }
+        }
+        MPI.bcast(root, doubles, 1, n);
+        for (int i = 0; i < n && ok; i++) {
+            ok &= doubles[1 + i] == i * 1.5;
+        }
+        ok &= doubles[0] == 0 && doubles[n + 1] == 0;
+
+        // 3. Long byte[] whose length only the root knows
+        byte[] expected = new byte[50_000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) (i * 31);
+        }
+        byte[] got = MPI.bcast(1 % size, rank == 1 % size ? expected : null);
+        ok &= Arrays.equals(expected, got);
+
+        // 4. Short in-place int[] from rank 0
+        int[] ints = rank == 0 ? new int[] { 4, 5, 6 } : new int[3];
+        MPI.bcast(0, ints, 0, 3);
+        ok &= Arrays.equals(new int[] { 4, 5, 6 }, ints);
+
+        System.out.println(ok ? "TEST PASSED: Bcast on rank " + rank : "TEST FAILED: Bcast on rank " + rank);
+        MPI.finalize_mpi();
+    }
+}
@@ -0,0 +1,68 @@
+package mpi;
+
+import java.nio.ByteBuffer;
+
+public class TestBinary {
+    public static void main(String[] args) {
+        MPI.init();
+        int rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+
+        if (size < 2) {
+            System.out.println("Need 2 ranks");
+            MPI.finalize_mpi();
+            return;
+        }
+
+        // Far beyond the old 64 KB writeUTF limit
+        int n = 2_000_000;
+
+        if (rank == 0) {
+            double[] doubles = new double[n];
+            for (int i = 0; i < n; i++) {
+                doubles[i] = i * 0.5;
+            }
+            MPI.send(1, doubles, 0, n);
+
+            long[] longs = { Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE };
+            MPI.send(1, longs, 1, 3);
+
+            int[] ints = { 7, 8, 9 };
+            MPI.send(1, ints, 0, ints.length);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(16);
+            direct.putLong(42).putLong(43).flip();
+            MPI.send(1, direct);
+
+            MPI.send(1, "h\u00e9llo w\u00f6rld");
+        } else if (rank == 1) {
+            boolean ok = true;
+
+            double[] doubles = new double[n + 10];
+            int got = MPI.receive(doubles, 10, n);
+            ok &= got == n;
+            for (int i = 0; i < n && ok; i++) {
+                ok &= doubles[10 + i] == i * 0.5;
+            }
+
+            long[] longs = new long[3];
+            ok &= MPI.receive(longs, 0, 3) == 3;
+            ok &= longs[0] == -1 && longs[1] == 0 && longs[2] == 1;
+
+            int[] ints = new int[8];
+            ok &= MPI.receive(ints, 0, ints.length) == 3;
+            ok &= ints[0] == 7 && ints[1] == 8 && ints[2] == 9;
+
+            ByteBuffer buf = ByteBuffer.allocate(16);
+            ok &= MPI.receive(buf) == 16;
+            buf.flip();
+            ok &= buf.getLong() == 42 && buf.getLong() == 43;
+
+            ok &= "h\u00e9llo w\u00f6rld".equals(MPI.receive());
+
+            System.out.println(ok ? "TEST PASSED: Binary payloads intact" : "TEST FAILED: Binary payload mismatch");
+        }
+
+        MPI.finalize_mpi();
+    }
+}
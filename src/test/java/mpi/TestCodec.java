@@ -0,0 +1,144 @@
+package mpi;
+
+import java.lang.management.*;
+import java.nio.*;
+import java.util.*;
+
+public class TestCodec {
+    enum Kind { ELECTRON, PROTON, NEUTRON }
+
+    record Vec(double x, double y, double z) {
+    }
+
+    record Particle(long id, Kind kind, Vec position, Vec velocity, float charge, boolean alive, char label,
+            short flags, byte spin, String name, int[] neighbours) {
+    }
+
+    record Node(int value, Node next) {
+    }
+
+    // A hand-written codec for a class that is not a record
+    static final class Point {
+        final int x, y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    static final Codec<Point> POINT = new Codec<>() {
+        @Override
+        public void encode(Point value, ByteBuffer out) {
+            out.putInt(value.x).putInt(value.y);
+        }
+
+        @Override
+        public Point decode(ByteBuffer in) {
+            return new Point(in.getInt(), in.getInt());
+        }
+    };
+
+    private static int rank;
+    private static boolean ok = true;
+
+    public static void main(String[] args) {
+        MPI.init();
+        rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        int next = (rank + 1) % size;
+        int prev = (rank + size - 1) % size;
+        Codec<Particle> codec = Codec.record(Particle.class);
+
+        // 1. Records with nested records, enums, arrays and nulls
+        Particle sent = particle(rank);
+        MPI.send(next, 1, sent, codec);
+        MPI.send(next, 1, new Particle(-1, null, null, new Vec(0, 0, 0), 0, false, 'x', (short) 0, (byte) 0,
+                null, null), codec);
+        Particle got = MPI.receive(prev, 1, codec);
+        check(same(got, particle(prev)), "record");
+        Particle empty = MPI.receive(prev, 1, codec);
+        check(empty.id() == -1 && empty.kind() == null && empty.position() == null && empty.name() == null
+                && empty.neighbours() == null && empty.velocity().equals(new Vec(0, 0, 0)), "nulls");
+
+        // 2. Strings, including characters outside the BMP
+        String text = "h\u00e9llo w\u00f6rld \u2211 \uD834\uDD1E from ";
+        MPI.send(next, 2, text + rank, Codec.STRING);
+        check(MPI.receive(prev, 2, Codec.STRING).equals(text + prev), "string");
+        MPI.send(next, 2, (String) null, Codec.STRING);
+        check(MPI.receive(prev, 2, Codec.STRING) == null, "null string");
+
+        // 3. Primitive arrays, larger than the first pooled buffer
+        double[] values = new double[100_000];
+        Arrays.fill(values, rank + 0.5);
+        MPI.send(next, 3, values, Codec.DOUBLES);
+        double[] back = MPI.receive(prev, 3, Codec.DOUBLES);
+        check(back.length == values.length && back[0] == prev + 0.5 && back[back.length - 1] == prev + 0.5,
+                "double array");
+        MPI.send(next, 3, new long[] { rank, Long.MAX_VALUE }, Codec.LONGS);
+        check(Arrays.equals(MPI.receive(prev, 3, Codec.LONGS), new long[] { prev, Long.MAX_VALUE }), "long array");
+        MPI.send(next, 3, new byte[] { 1, 2, (byte) rank }, Codec.BYTES);
+        check(Arrays.equals(MPI.receive(prev, 3, Codec.BYTES), new byte[] { 1, 2, (byte) prev }), "byte array");
+
+        // 4. A user codec, on a communicator
+        Communicator comm = MPI.COMM_WORLD.dup();
+        MPI.send(comm, next, 4, new Point(rank, -rank), POINT);
+        Point p = MPI.receive(comm, prev, 4, POINT);
+        check(p.x == prev && p.y == -prev, "user codec");
+
+        // 5. A codec that reads less than was sent is caught
+        MPI.send(next, 5, new Point(1, 2), POINT);
+        try {
+            MPI.receive(prev, 5, Codec.BYTES);
+            check(false, "length mismatch");
+        } catch (RuntimeException e) {
+            // Expected: 8 bytes are not a byte[] of length 1
+        }
+
+        // 6. Encoding allocates nothing once the buffers are pooled
+        if (rank == 0) {
+            ByteBuffer buf = ByteBuffer.allocate(1024);
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            for (int i = 0; i < 300_000; i++) {
+                buf.clear();
+                codec.encode(sent, buf);
+            }
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 100_000; i++) {
+                buf.clear();
+                codec.encode(sent, buf);
+            }
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+            check(allocated < 100_000, "allocation-free encoding (" + allocated + " bytes)");
+        }
+
+        // 7. A record that contains itself: a linked list
+        MPI.send(next, 7, new Node(rank, new Node(1, new Node(2, null))), Codec.record(Node.class));
+        Node list = MPI.receive(prev, 7, Codec.record(Node.class));
+        check(list.equals(new Node(prev, new Node(1, new Node(2, null)))), "recursive record");
+
+        System.out.println(ok ? "TEST PASSED: Codecs on rank " + rank : "TEST FAILED: Codecs on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static Particle particle(int r) {
+        return new Particle(1000L + r, Kind.values()[r % 3], new Vec(r, r * 2.0, -r), new Vec(0.5, 0.25, r),
+                1.5f * r, r % 2 == 0, (char) ('A' + r), (short) (r * 300), (byte) -r, "particle-" + r,
+                new int[] { r, r + 1, r + 2 });
+    }
+
+    private static boolean same(Particle a, Particle b) {
+        return a.id() == b.id() && a.kind() == b.kind() && a.position().equals(b.position())
+                && a.velocity().equals(b.velocity()) && a.charge() == b.charge() && a.alive() == b.alive()
+                && a.label() == b.label() && a.flags() == b.flags() && a.spin() == b.spin()
+                && a.name().equals(b.name()) && Arrays.equals(a.neighbours(), b.neighbours());
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank);
+        }
+        ok &= condition;
+    }
+}
@@ -0,0 +1,215 @@
+package mpi;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class TestCollectives {
+    private static int rank;
+    private static int size;
+    private static boolean ok = true;
+
+    public static void main(String[] args) {
+        MPI.init();
+        rank = MPI.comm_rank();
+        size = MPI.comm_size();
+
+        for (int root : new int[] { 0, size - 1, 2 % size }) {
+            scatterGather(root);
+            scattervGatherv(root);
+        }
+        allgather();
+        alltoall();
+        buffers();
+
+        System.out.println(ok ? "TEST PASSED: Collectives on rank " + rank
+                : "TEST FAILED: Collectives on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static void scatterGather(int root) {
+        int count = 3;
+        int[] send = null;
+        if (rank == root) {
+            send = new int[1 + size * count];
+            for (int i = 0; i < size * count; i++) {
+                send[1 + i] = i * 7;
+            }
+        }
+        int[] part = new int[count + 2];
+        MPI.scatter(root, send, 1, part, 2, count);
+        for (int i = 0; i < count; i++) {
+            check(part[2 + i] == (rank * count + i) * 7, "int scatter from " + root);
+        }
+
+        long[] mine = new long[count];
+        for (int i = 0; i < count; i++) {
+            mine[i] = rank * 1000L + i;
+        }
+        long[] all = rank == root ? new long[size * count] : null;
+        MPI.gather(root, mine, 0, count, all, 0);
+        if (rank == root) {
+            for (int r = 0; r < size; r++) {
+                for (int i = 0; i < count; i++) {
+                    check(all[r * count + i] == r * 1000L + i, "long gather to " + root);
+                }
+            }
+        }
+
+        // Large enough that inner tree ranks relay several blocks
+        double[] big = rank == root ? new double[size * 5000] : null;
+        if (big != null) {
+            for (int i = 0; i < big.length; i++) {
+                big[i] = i * 0.5;
+            }
+        }
+        double[] chunk = new double[5000];
+        MPI.scatter(root, big, 0, chunk, 0, 5000);
+        check(chunk[0] == rank * 5000 * 0.5 && chunk[4999] == (rank * 5000 + 4999) * 0.5, "double scatter");
+        double[] back = rank == root ? new double[size * 5000] : null;
+        MPI.gather(root, chunk, 0, 5000, back, 0);
+        if (rank == root) {
+            check(Arrays.equals(big, back), "double round trip");
+        }
+    }
+
+    private static void scattervGatherv(int root) {
+        // Rank i owns i + 1 bytes, laid out back to front
+        int[] counts = new int[size];
+        int[] displs = new int[size];
+        int total = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            counts[i] = i + 1;
+            displs[i] = total;
+            total += counts[i];
+        }
+        byte[] send = null;
+        if (rank == root) {
+            send = new byte[total];
+            for (int i = 0; i < size; i++) {
+                Arrays.fill(send, displs[i], displs[i] + counts[i], (byte) (i + 10));
+            }
+        }
+        byte[] part = new byte[size + 1];
+        MPI.scatterv(root, send, counts, displs, part, 0, part.length);
+        for (int i = 0; i <= rank; i++) {
+            check(part[i] == rank + 10, "byte scatterv from " + root);
+        }
+        check(part[rank + 1] == 0, "byte scatterv overrun");
+
+        byte[] back = rank == root ? new byte[total] : null;
+        MPI.gatherv(root, part, 0, rank + 1, back, counts, displs);
+        if (rank == root) {
+            check(Arrays.equals(send, back), "byte gatherv to " + root);
+        }
+    }
+
+    private static void allgather() {
+        long[] mine = { rank, -rank };
+        long[] all = new long[2 * size];
+        MPI.allgather(mine, 0, 2, all, 0);
+        for (int r = 0; r < size; r++) {
+            check(all[2 * r] == r && all[2 * r + 1] == -r, "long allgather");
+        }
+
+        // Uneven blocks with gaps between them
+        int[] counts = new int[size];
+        int[] displs = new int[size];
+        for (int i = 0; i < size; i++) {
+            counts[i] = 2 * i;
+            displs[i] = i * (2 * size + 1);
+        }
+        double[] send = new double[counts[rank]];
+        Arrays.fill(send, rank + 0.25);
+        double[] recv = new double[size * (2 * size + 1)];
+        Arrays.fill(recv, -1);
+        MPI.allgatherv(send, 0, send.length, recv, counts, displs);
+        for (int r = 0; r < size; r++) {
+            for (int i = 0; i < 2 * size + 1; i++) {
+                double expected = i < counts[r] ? r + 0.25 : -1;
+                check(recv[displs[r] + i] == expected, "double allgatherv");
+            }
+        }
+    }
+
+    private static void alltoall() {
+        int[] send = new int[size * 2];
+        for (int j = 0; j < size; j++) {
+            send[2 * j] = rank * 100 + j;
+            send[2 * j + 1] = -(rank * 100 + j);
+        }
+        int[] recv = new int[size * 2];
+        MPI.alltoall(send, 0, recv, 0, 2);
+        for (int i = 0; i < size; i++) {
+            check(recv[2 * i] == i * 100 + rank && recv[2 * i + 1] == -(i * 100 + rank), "int alltoall");
+        }
+
+        // Rank i sends j + 1 elements to rank j
+        int[] sendCounts = new int[size];
+        int[] sendDispls = new int[size];
+        int[] recvCounts = new int[size];
+        int[] recvDispls = new int[size];
+        int sendTotal = 0;
+        int recvTotal = 0;
+        for (int j = 0; j < size; j++) {
+            sendCounts[j] = j + 1;
+            sendDispls[j] = sendTotal;
+            sendTotal += j + 1;
+            recvCounts[j] = rank + 1;
+            recvDispls[j] = recvTotal;
+            recvTotal += rank + 1;
+        }
+        long[] vsend = new long[sendTotal];
+        for (int j = 0; j < size; j++) {
+            Arrays.fill(vsend, sendDispls[j], sendDispls[j] + sendCounts[j], rank * 10L + j);
+        }
+        long[] vrecv = new long[recvTotal];
+        MPI.alltoallv(vsend, sendCounts, sendDispls, vrecv, recvCounts, recvDispls);
+        for (int i = 0; i < size; i++) {
+            for (int k = 0; k < rank + 1; k++) {
+                check(vrecv[recvDispls[i] + k] == i * 10L + rank, "long alltoallv");
+            }
+        }
+    }
+
+    private static void buffers() {
+        int block = 64;
+        ByteBuffer send = ByteBuffer.allocateDirect(block * size);
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < block; i++) {
+                send.put(j * block + i, (byte) (rank * 31 + j + i));
+            }
+        }
+        send.position(5);
+        ByteBuffer recv = ByteBuffer.allocate(block * size);
+        MPI.alltoall(send, 0, recv, 0, block);
+        for (int i = 0; i < size; i++) {
+            for (int k = 0; k < block; k++) {
+                check(recv.get(i * block + k) == (byte) (i * 31 + rank + k), "buffer alltoall");
+            }
+        }
+        check(send.position() == 5 && recv.position() == 0, "buffer positions moved");
+
+        ByteBuffer mine = ByteBuffer.allocate(block);
+        for (int i = 0; i < block; i++) {
+            mine.put(i, (byte) (rank ^ i));
+        }
+        ByteBuffer all = ByteBuffer.allocateDirect(block * size);
+        MPI.allgather(mine, 0, block, all, 0);
+        for (int r = 0; r < size; r++) {
+            for (int i = 0; i < block; i++) {
+                check(all.get(r * block + i) == (byte) (r ^ i), "buffer allgather");
+            }
+        }
+
+        ByteBuffer part = ByteBuffer.allocate(block);
+        MPI.scatter(1 % size, rank == 1 % size ? all : null, 0, part, 0, block);
+        check(part.equals(mine), "buffer scatter");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank);
+        }
+        ok &= condition;
+    }
+}
@@ -0,0 +1,108 @@
+package mpi;
+
+public class TestCommunicator {
+    private static int rank;
+    private static boolean ok = true;
+
+    public static void main(String[] args) throws InterruptedException {
+        MPI.init();
+        rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+
+        // 2-D grid, three ranks per row
+        int cols = 3;
+        int row = rank / cols;
+        int col = rank % cols;
+        Communicator rowComm = MPI.COMM_WORLD.split(row, col);
+        Communicator colComm = MPI.COMM_WORLD.split(col, rank);
+        check(rowComm.rank() == col && rowComm.size() == Math.min(cols, size - row * cols), "row numbering");
+        check(colComm.rank() == row && colComm.worldRank(colComm.rank()) == rank, "column numbering");
+
+        int[] sum = { rank };
+        MPI.allreduce(rowComm, sum, Op.SUM);
+        int expected = 0;
+        for (int i = 0; i < rowComm.size(); i++) {
+            expected += rowComm.worldRank(i);
+        }
+        check(sum[0] == expected, "row allreduce");
+
+        byte[] fromLast = MPI.bcast(colComm, colComm.size() - 1,
+                colComm.rank() == colComm.size() - 1 ? ("col " + col).getBytes() : null);
+        check(new String(fromLast).equals("col " + col), "column bcast");
+
+        // Same sender, same tag, different communicators: wildcards stay inside their own
+        if (rowComm.size() > 1) {
+            if (rowComm.rank() == 0) {
+                MPI.send(rowComm.worldRank(1), 5, "world");
+                MPI.send(rowComm, 1, 5, "row");
+            } else if (rowComm.rank() == 1) {
+                byte[] buf = new byte[16];
+                Status status = MPI.receive(rowComm, MPI.ANY_SOURCE, MPI.ANY_TAG, buf, 0, buf.length);
+                check(new String(buf, 0, status.getLength()).equals("row") && status.getSource() == 0,
+                        "row message");
+                check(MPI.receive(MPI.ANY_SOURCE, 5).equals("world"), "world message");
+            }
+        }
+
+        // A duplicate has the same ranks but its own messages
+        Communicator dup = rowComm.dup();
+        check(dup.rank() == rowComm.rank() && dup.size() == rowComm.size(), "dup numbering");
+        if (dup.size() > 1) {
+            int right = (dup.rank() + 1) % dup.size();
+            int left = (dup.rank() - 1 + dup.size()) % dup.size();
+            MPI.send(dup, right, 0, new int[] { rank }, 0, 1);
+            MPI.barrier(dup);
+            check(MPI.iprobe(rowComm, MPI.ANY_SOURCE, MPI.ANY_TAG) == null, "dup message visible in original");
+            int[] got = new int[1];
+            MPI.receive(dup, left, 0, got, 0, 1);
+            check(got[0] == dup.worldRank(left), "dup ring");
+        }
+
+        // Ranks that opt out get no communicator; key order reverses the rest
+        Communicator evens = MPI.COMM_WORLD.split(rank % 2 == 0 ? 0 : Communicator.UNDEFINED, -rank);
+        if (rank % 2 == 0) {
+            int n = (size + 1) / 2;
+            check(evens.size() == n && evens.rank() == n - 1 - rank / 2, "evens numbering");
+            MPI.barrier(evens, BarrierAlgorithm.CENTRAL);
+            long[] ranks = new long[n];
+            MPI.allgather(evens, new long[] { rank }, 0, 1, ranks, 0);
+            for (int i = 0; i < n; i++) {
+                check(ranks[i] == evens.worldRank(i), "evens allgather");
+            }
+        } else {
+            check(evens == null, "odd ranks excluded");
+        }
+
+        // Row and column collectives in flight at the same time, from two threads
+        Communicator rowDup = rowComm.dup();
+        int[] rowSums = new int[1];
+        int[] colSums = new int[1];
+        Thread rows = new Thread(() -> {
+            for (int i = 0; i < 100; i++) {
+                int[] v = { 1 };
+                MPI.allreduce(rowDup, v, Op.SUM);
+                rowSums[0] += v[0];
+            }
+        });
+        rows.start();
+        for (int i = 0; i < 100; i++) {
+            int[] v = { 1 };
+            MPI.allreduce(colComm, v, Op.SUM);
+            colSums[0] += v[0];
+        }
+        rows.join();
+        check(rowSums[0] == 100 * rowDup.size() && colSums[0] == 100 * colComm.size(), "concurrent collectives");
+
+        MPI.barrier();
+        System.out.println(ok ? "TEST PASSED: Communicators on rank " + rank
+                : "TEST FAILED: Communicators on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank);
+        }
+        ok &= condition;
+    }
+}
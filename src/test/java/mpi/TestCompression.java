@@ -0,0 +1,100 @@
+package mpi;
+
+import java.util.*;
+
+public class TestCompression {
+    private static int rank;
+    private static boolean ok = true;
+
+    public static void main(String[] args) {
+        MPI.init();
+        rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        int next = (rank + 1) % size;
+        int prev = (rank + size - 1) % size;
+        boolean compressing = MPI.COMM_WORLD.getCompression();
+
+        // 1. Repetitive text, well above the threshold
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 200_000) {
+            text.append("rank ").append(rank).append(" says hello to rank ").append(next).append('\n');
+        }
+        MPI.send(next, 1, text.toString());
+        String got = MPI.receive(prev, 1);
+        check(got.startsWith("rank " + prev + " says hello to rank " + rank) && got.length() == text.length(),
+                "text");
+
+        // 2. A sparse int array, non-blocking
+        int[] sparse = new int[100_000];
+        for (int i = 0; i < sparse.length; i += 97) {
+            sparse[i] = i * (rank + 1);
+        }
+        int[] sparseIn = new int[sparse.length];
+        Request receiving = MPI.irecv(prev, 2, sparseIn, 0, sparseIn.length);
+        MPI.isend(next, 2, sparse, 0, sparse.length).waitFor();
+        receiving.waitFor();
+        boolean sparseOk = true;
+        for (int i = 0; i < sparseIn.length; i++) {
+            sparseOk &= sparseIn[i] == (i % 97 == 0 ? i * (prev + 1) : 0);
+        }
+        check(sparseOk, "sparse array");
+
+        CommMetrics before = MPI.metrics();
+        check(!compressing || before.getCompressedMessages() >= 2 && before.getCompressionSavedBytes() > 200_000,
+                "compressed count");
+
+        // 3. Random bytes don't compress; they go out as they are
+        byte[] noise = new byte[100_000];
+        new Random(rank).nextBytes(noise);
+        MPI.send(next, 3, noise);
+        byte[] noiseIn = new byte[noise.length];
+        MPI.receive(prev, 3, noiseIn, 0, noiseIn.length);
+        byte[] expected = new byte[noise.length];
+        new Random(prev).nextBytes(expected);
+        check(Arrays.equals(noiseIn, expected), "random bytes");
+        check(MPI.metrics().getCompressedMessages() == before.getCompressedMessages(), "incompressible sent raw");
+
+        // 4. A rendezvous message: its chunks are compressed one by one
+        double[] big = new double[800_000];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = i % 1000 + rank;
+        }
+        double[] bigIn = new double[big.length];
+        receiving = MPI.irecv(prev, 4, bigIn, 0, bigIn.length);
+        MPI.send(next, 4, big, 0, big.length);
+        receiving.waitFor();
+        boolean bigOk = true;
+        for (int i = 0; i < bigIn.length; i++) {
+            bigOk &= bigIn[i] == i % 1000 + prev;
+        }
+        check(bigOk, "rendezvous message");
+        check(!compressing || MPI.metrics().getCompressedMessages() > before.getCompressedMessages() + 10,
+                "compressed chunks");
+
+        // 5. Small messages and a communicator with compression off go out raw
+        long compressed = MPI.metrics().getCompressedMessages();
+        Communicator raw = MPI.COMM_WORLD.dup();
+        raw.setCompression(false);
+        MPI.send(raw, next, 5, text.toString());
+        check(MPI.receive(raw, prev, 5).length() == text.length(), "uncompressed communicator");
+        MPI.send(next, 6, "small");
+        check(MPI.receive(prev, 6).equals("small"), "small message");
+        check(MPI.metrics().getCompressedMessages() == compressed, "raw sends");
+
+        // 6. Collectives compress too
+        byte[] block = text.toString().getBytes();
+        MPI.bcast(0, block, 0, block.length);
+        check(new String(block).startsWith("rank 0 says hello"), "bcast");
+
+        System.out.println(ok ? "TEST PASSED: Compression on rank " + rank
+                : "TEST FAILED: Compression on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank + ": " + MPI.metrics());
+        }
+        ok &= condition;
+    }
+}
@@ -0,0 +1,49 @@
+package mpi;
+
+public class TestDirect {
+    public static void main(String[] args) {
+        MPI.init();
+        int rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+
+        // 1. Every rank sends to every other rank; the links are opened lazily
+        for (int dest = 0; dest < size; dest++) {
+            if (dest != rank) {
+                MPI.send(dest, new int[] { rank, dest }, 0, 2);
+            }
+        }
+
+        boolean ok = true;
+        boolean[] seen = new boolean[size];
+        int[] pair = new int[2];
+        for (int i = 0; i < size - 1; i++) {
+            MPI.receive(pair, 0, 2);
+            ok &= pair[1] == rank && !seen[pair[0]];
+            seen[pair[0]] = true;
+        }
+        System.out.println(ok ? "TEST PASSED: All-pairs exchange on rank " + rank
+                : "TEST FAILED: All-pairs exchange on rank " + rank);
+
+        MPI.barrier();
+
+        // 2. Ping-pong latency between ranks 0 and 1
+        int iterations = 1000;
+        byte[] ball = new byte[8];
+        if (rank == 0) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                MPI.send(1, ball);
+                MPI.receive(ball, 0, ball.length);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Ping-pong latency: %.2f us%n", elapsed / 1000.0 / iterations / 2);
+        } else if (rank == 1) {
+            for (int i = 0; i < iterations; i++) {
+                MPI.receive(ball, 0, ball.length);
+                MPI.send(0, ball);
+            }
+        }
+
+        MPI.finalize_mpi();
+    }
+}
@@ -0,0 +1,121 @@
+package mpi;
+
+import java.io.*;
+import java.util.*;
+
+public class TestFileIO {
+    private static int rank;
+    private static boolean ok = true;
+
+    public static void main(String[] args) throws IOException {
+        MPI.init();
+        rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        String path = rank == 0 ? File.createTempFile("mpi-test", ".dat").getPath() : "";
+        path = MPI.bcast(0, path);
+        MPIFile file = MPIFile.open(path, MPIFile.MODE_RDWR | MPIFile.MODE_CREATE | MPIFile.MODE_DELETE_ON_CLOSE);
+
+        // 1. Each rank writes a large contiguous block of its own, which is mapped
+        int n = 200_000;
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = (long) rank << 32 | i;
+        }
+        long region = (long) n * Long.BYTES;
+        file.setView(rank * region);
+        file.writeAtAll(0, values, 0, n);
+        file.sync();
+        check(file.getSize() == size * region, "file size");
+        file.setView(0);
+        long[] all = new long[n * size];
+        check(file.readAt(0, all, 0, all.length) == all.length, "read count");
+        boolean blocks = true;
+        for (int i = 0; i < all.length; i++) {
+            blocks &= all[i] == ((long) (i / n) << 32 | i % n);
+        }
+        check(blocks, "contiguous blocks");
+
+        // 2. Interleaved small pieces, written and read collectively through the aggregators
+        long base = size * region;
+        int pieces = 5_000;
+        int[] mine = new int[2 * pieces];
+        for (int i = 0; i < mine.length; i++) {
+            mine[i] = rank * 1_000_000 + i;
+        }
+        file.setView(base + rank * 8, 8, 8 * size);
+        file.writeAtAll(0, mine, 0, mine.length);
+        file.sync();
+        int[] back = new int[mine.length];
+        check(file.readAtAll(0, back, 0, back.length) == back.length
+                && Arrays.equals(back, mine), "strided collective read");
+        file.setView(base);
+        int[] interleaved = new int[2 * pieces * size];
+        file.readAt(0, interleaved, 0, interleaved.length);
+        boolean strided = true;
+        for (int i = 0; i < interleaved.length; i++) {
+            int owner = i / 2 % size;
+            int index = i / (2 * size) * 2 + i % 2;
+            strided &= interleaved[i] == owner * 1_000_000 + index;
+        }
+        check(strided, "strided layout");
+
+        // 3. The same pattern written independently, without aggregation
+        MPI.barrier(); // Everyone has read the pattern above
+        file.setTwoPhase(false);
+        for (int i = 0; i < mine.length; i++) {
+            mine[i] = -mine[i];
+        }
+        file.setView(base + rank * 8, 8, 8 * size);
+        file.writeAt(0, mine, 0, mine.length);
+        file.sync();
+        check(file.readAtAll(0, back, 0, back.length) == back.length
+                && Arrays.equals(back, mine), "independent strided write");
+
+        // 4. Reads stop at the end of the file
+        MPI.barrier();
+        file.setView(0);
+        long end = file.getSize();
+        byte[] tail = new byte[16];
+        check(file.readAt(end - 5, tail, 0, tail.length) == 5, "short read");
+        check(file.readAtAll(end + 100, tail, 0, tail.length) == 0, "read past the end");
+        file.setSize(end - 4);
+        check(file.getSize() == end - 4, "truncate");
+        file.close();
+        MPI.barrier();
+        check(!new File(path).exists(), "delete on close");
+
+        // 5. Large blocks into a write-only file, which cannot be mapped
+        String other = rank == 0 ? File.createTempFile("mpi-test", ".dat").getPath() : "";
+        other = MPI.bcast(0, other);
+        MPIFile writeOnly = MPIFile.open(other, MPIFile.MODE_WRONLY | MPIFile.MODE_CREATE);
+        long[] large = new long[(2 << 20) / Long.BYTES];
+        Arrays.fill(large, rank + 1);
+        writeOnly.setView((long) rank * large.length * Long.BYTES);
+        writeOnly.writeAtAll(0, large, 0, large.length);
+        writeOnly.close();
+        MPIFile readBack = MPIFile.open(other, MPIFile.MODE_RDONLY);
+        long[] written = new long[large.length * size];
+        readBack.readAtAll(0, written, 0, written.length);
+        readBack.close();
+        check(written[rank * large.length] == rank + 1 && written[written.length - 1] == size, "write-only file");
+
+        // 6. An exclusive create of an existing file fails on every rank
+        try {
+            MPIFile.open(other, MPIFile.MODE_WRONLY | MPIFile.MODE_CREATE | MPIFile.MODE_EXCL).close();
+            check(false, "exclusive create");
+        } catch (UncheckedIOException e) {
+            // Expected: it exists
+        }
+        MPIFile.open(other, MPIFile.MODE_RDONLY | MPIFile.MODE_DELETE_ON_CLOSE).close();
+
+        System.out.println(ok ? "TEST PASSED: File I/O on rank " + rank : "TEST FAILED: File I/O on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank);
+        }
+        ok &= condition;
+    }
+}
@@ -0,0 +1,72 @@
+package mpi;
+
+public class TestMetrics {
+    private static int rank;
+    private static boolean ok = true;
+
+    private static final int MESSAGES = 10;
+    private static final int LENGTH = 1000;
+    private static final int QUEUED = 5;
+
+    public static void main(String[] args) {
+        MPI.init();
+        rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        int next = (rank + 1) % size;
+        int prev = (rank + size - 1) % size;
+
+        for (int i = 0; i < MESSAGES; i++) {
+            MPI.isend(next, 1, new byte[LENGTH], 0, LENGTH);
+        }
+        byte[] buf = new byte[LENGTH];
+        for (int i = 0; i < MESSAGES; i++) {
+            MPI.receive(prev, 1, buf, 0, LENGTH);
+        }
+        MPI.bcast(0, new int[100], 0, 100);
+
+        // Messages nobody is waiting for yet stay queued
+        if (rank == 0) {
+            for (int i = 0; i < QUEUED; i++) {
+                MPI.send(1, 2, "queued " + i);
+            }
+        }
+        MPI.barrier();
+        CommMetrics m = MPI.metrics();
+        if (rank == 1) {
+            check(m.getUnexpectedDepth() >= QUEUED && m.getUnexpectedMaxDepth() >= QUEUED, "unexpected depth");
+            for (int i = 0; i < QUEUED; i++) {
+                MPI.receive(0, 2);
+            }
+        }
+
+        check(m.getSentMessages(next) >= MESSAGES && m.getSentBytes(next) >= MESSAGES * LENGTH, "sent to next");
+        check(m.getReceivedMessages(prev) >= MESSAGES && m.getReceivedBytes(prev) >= MESSAGES * LENGTH,
+                "received from prev");
+        check(m.getTotalSentBytes() >= m.getSentBytes(next), "total sent");
+        check(m.getReceiveWait().getCount() == MESSAGES, "receive waits");
+        check(m.getBcastWait().getCount() == 1, "bcast waits");
+        check(m.getBarrierWait().getCount() == 1, "barrier waits");
+        check(m.getUnexpectedMessages() > 0, "unexpected count");
+
+        LatencyHistogram waits = m.getReceiveWait();
+        check(waits.getPercentileNanos(50) <= waits.getPercentileNanos(99)
+                && waits.getPercentileNanos(99) <= waits.getMaxNanos() && waits.getMaxNanos() > 0, "percentiles");
+        check(m.toJson().startsWith("{\"rank\":" + rank + ","), "JSON");
+
+        MPI.barrier();
+        MPI.resetMetrics();
+        check(MPI.metrics().getTotalSentMessages() == 0 && MPI.metrics().getReceiveWait().getCount() == 0,
+                "reset");
+        MPI.bcast(0, "reported"); // What mpiexec's summary should show
+
+        System.out.println(ok ? "TEST PASSED: Metrics on rank " + rank : "TEST FAILED: Metrics on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank + ": " + MPI.metrics());
+        }
+        ok &= condition;
+    }
+}
@@ -0,0 +1,88 @@
+package mpi;
+
+import java.util.concurrent.CompletableFuture;
+
+public class TestNonBlocking {
+    public static void main(String[] args) {
+        MPI.init();
+        int rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        int left = (rank + size - 1) % size;
+        int right = (rank + 1) % size;
+        boolean ok = true;
+
+        // Halo exchange on a ring: post both receives before anything is sent
+        int halo = 50_000;
+        double[] fromLeft = new double[halo];
+        double[] fromRight = new double[halo];
+        double[] edge = new double[halo];
+        for (int i = 0; i < halo; i++) {
+            edge[i] = rank * 1_000_000.0 + i;
+        }
+        Request[] exchange = {
+                MPI.irecv(left, 1, fromLeft, 0, halo),
+                MPI.irecv(right, 2, fromRight, 0, halo),
+        };
+        MPI.barrier();
+        Request toRight = MPI.isend(right, 1, edge, 0, halo);
+        Request toLeft = MPI.isend(left, 2, edge, 0, halo);
+
+        // Interior computation overlaps the transfers
+        double interior = 0;
+        for (int i = 0; i < 2_000_000; i++) {
+            interior += Math.sqrt(i);
+        }
+        ok &= interior > 0;
+
+        Request.waitAll(exchange);
+        Request.waitAll(toRight, toLeft);
+        ok &= exchange[0].test() && exchange[1].test();
+        for (int i = 0; i < halo; i++) {
+            ok &= fromLeft[i] == left * 1_000_000.0 + i && fromRight[i] == right * 1_000_000.0 + i;
+        }
+
+        // waitAny reports the one that can complete; the other finishes later
+        int[] early = new int[1];
+        int[] late = new int[1];
+        Request[] pending = {
+                MPI.irecv(left, 4, late, 0, 1),
+                MPI.irecv(left, 3, early, 0, 1),
+        };
+        MPI.send(right, 3, new int[] { 33 }, 0, 1);
+        ok &= Request.waitAny(pending) == 1 && early[0] == 33;
+        ok &= !pending[0].test();
+        MPI.barrier(); // Nobody sends tag 4 until every rank has checked
+        MPI.send(right, 4, new int[] { 44 }, 0, 1);
+        ok &= pending[0].waitFor().getTag() == 4 && late[0] == 44;
+
+        // CompletableFuture interop
+        long[] value = new long[1];
+        CompletableFuture<Integer> source = MPI.irecv(MPI.ANY_SOURCE, 5, value, 0, 1)
+                .toCompletableFuture()
+                .thenApply(Status::getSource);
+        MPI.isend(right, 5, new long[] { rank }, 0, 1).waitFor();
+        ok &= source.join() == left && value[0] == left;
+
+        // A blocking send queued behind an isend to the same rank arrives after it
+        byte[] big = new byte[1 << 20];
+        big[big.length - 1] = 7;
+        Request bigSend = MPI.isend(right, 6, big, 0, big.length);
+        MPI.send(right, 6, "after");
+        byte[] bigIn = new byte[big.length];
+        Status first = MPI.receive(left, 6, bigIn, 0, bigIn.length);
+        ok &= first.getLength() == big.length && bigIn[big.length - 1] == 7;
+        ok &= "after".equals(MPI.receive(left, 6));
+        bigSend.waitFor();
+
+        // A receive too small for its message fails its request
+        MPI.send(right, 8, new int[] { 1, 2 }, 0, 2);
+        try {
+            MPI.irecv(left, 8, new int[1], 0, 1).waitFor();
+            ok = false;
+        } catch (IllegalArgumentException expected) {
+        }
+
+        System.out.println(ok ? "TEST PASSED: Non-blocking" : "TEST FAILED: Non-blocking on rank " + rank);
+        MPI.finalize_mpi();
+    }
+}
@@ -0,0 +1,25 @@
+package mpi;
+
+public class TestOutput {
+    static final int LINES = 2000;
+
+    public static void main(String[] args) {
+        MPI.init();
+        int rank = MPI.comm_rank();
+
+        // Lines written in pieces must still come out whole, each with its own prefix
+        for (int i = 0; i < LINES; i++) {
+            System.out.print("Chatter ");
+            System.out.flush();
+            System.out.print(i + " from rank ");
+            System.out.flush();
+            System.out.println(rank);
+        }
+        System.err.println("Diagnostic from rank " + rank);
+        MPI.barrier();
+        System.out.println("TEST PASSED: Output on rank " + rank);
+        // No newline: must still be printed once the rank exits
+        System.out.print("Unterminated from rank " + rank);
+        MPI.finalize_mpi();
+    }
+}
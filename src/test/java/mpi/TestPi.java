@@ -27,31 +27,17 @@ public class TestPi {
         long end = System.currentTimeMillis();
         System.out.println("Rank " + rank + " finished in " + (end - start) + "ms. Hits: " + hits);
 
-        // 3. Aggregate results (Manual Reduce)
-        if (rank == 0) {
-            long totalHits = hits;
-
-            // Receive from all other ranks
-            for (int i = 1; i < size; i++) {
-                String msg = MPI.receive();
-                try {
-                    long remoteHits = Long.parseLong(msg);
-                    totalHits += remoteHits;
-                } catch (Exception e) {
-                    System.err.println("Rank 0: Error parsing message '" + msg + "'");
-                }
-            }
+        // 3. Aggregate results
+        long[] totalHits = { hits };
+        MPI.reduce(0, totalHits, Op.SUM);
 
-            double pi = 4.0 * totalHits / (iterations * size);
+        if (rank == 0) {
+            double pi = 4.0 * totalHits[0] / (iterations * size);
             System.out.println("-----------------------------------------");
-            System.out.println("Total Hits: " + totalHits + " / " + (iterations * size));
+            System.out.println("Total Hits: " + totalHits[0] + " / " + (iterations * size));
             System.out.println("Estimated Pi: " + pi);
             System.out.println("Java Math.PI: " + Math.PI);
             System.out.println("-----------------------------------------");
-
-        } else {
-            // Send local hits to Rank 0
-            MPI.send(0, String.valueOf(hits));
         }
 
         MPI.finalize_mpi();
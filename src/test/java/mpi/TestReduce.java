@@ -0,0 +1,110 @@
+package mpi;
+
+public class TestReduce {
+    // 2x2 matrix product over groups of 4 longs: associative but not commutative
+    static final Op MATMUL = new Op() {
+        @Override
+        public void apply(long[] in, int i, long[] io, int j, int n) {
+            for (int k = 0; k < n; k += 4) {
+                long a = in[i + k], b = in[i + k + 1], c = in[i + k + 2], d = in[i + k + 3];
+                long e = io[j + k], f = io[j + k + 1], g = io[j + k + 2], h = io[j + k + 3];
+                io[j + k] = a * e + b * g;
+                io[j + k + 1] = a * f + b * h;
+                io[j + k + 2] = c * e + d * g;
+                io[j + k + 3] = c * f + d * h;
+            }
+        }
+
+        @Override
+        public boolean commutative() {
+            return false;
+        }
+    };
+
+    public static void main(String[] args) {
+        MPI.init();
+        int rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        int root = size / 2;
+        boolean ok = true;
+
+        // 1. Short vectors: every builtin on a few elements
+        long[] sum = { rank, 1 };
+        MPI.allreduce(sum, Op.SUM);
+        ok &= sum[0] == (long) size * (size - 1) / 2 && sum[1] == size;
+
+        int[] minmax = { rank + 10, rank + 10 };
+        MPI.allreduce(minmax, 0, 1, Op.MIN);
+        MPI.allreduce(minmax, 1, 1, Op.MAX);
+        ok &= minmax[0] == 10 && minmax[1] == 10 + size - 1;
+
+        double[] prod = { 2.0 };
+        MPI.reduce(root, prod, Op.PROD);
+        ok &= rank != root || prod[0] == Math.pow(2, size);
+
+        int[] bits = { 1 << rank, ~(1 << rank) };
+        MPI.allreduce(bits, 0, 1, Op.BOR);
+        MPI.allreduce(bits, 1, 1, Op.BAND);
+        ok &= bits[0] == (1 << size) - 1 && bits[1] == ~((1 << size) - 1);
+
+        // (value, index) pairs: rank r holds value |r - 1| at index r
+        double[] loc = { Math.abs(rank - 1), rank, Math.abs(rank - 1), rank };
+        MPI.allreduce(loc, 0, 2, Op.MINLOC);
+        MPI.allreduce(loc, 2, 2, Op.MAXLOC);
+        double[] want = { Double.MAX_VALUE, -1, -Double.MAX_VALUE, -1 };
+        for (int r = 0; r < size; r++) {
+            if (Math.abs(r - 1) < want[0]) {
+                want[0] = Math.abs(r - 1);
+                want[1] = r;
+            }
+            if (Math.abs(r - 1) > want[2]) {
+                want[2] = Math.abs(r - 1);
+                want[3] = r;
+            }
+        }
+        ok &= java.util.Arrays.equals(want, loc);
+        try {
+            MPI.allreduce(loc, 0, 3, Op.MINLOC); // Half a pair
+            ok = false;
+        } catch (IllegalArgumentException e) {
+            // Expected, on every rank before anything is sent
+        }
+
+        // 2. Non-commutative user operator must combine in rank order
+        long[] m = { rank + 2, 1, 0, 1 };
+        long[] expected = { 2, 1, 0, 1 };
+        for (int r = 1; r < size; r++) {
+            long a = expected[0], b = expected[1];
+            expected[0] = a * (r + 2);
+            expected[1] = a + b;
+        }
+        long[] reduced = m.clone();
+        MPI.reduce(root, reduced, MATMUL);
+        ok &= rank != root || java.util.Arrays.equals(expected, reduced);
+        MPI.allreduce(m, MATMUL);
+        ok &= java.util.Arrays.equals(expected, m);
+
+        // 3. Long vectors take the reduce-scatter path
+        int n = 10_007;
+        double[] v = new double[n];
+        for (int i = 0; i < n; i++) {
+            v[i] = rank + i;
+        }
+        double[] input = v.clone();
+        MPI.reduce(root, v, Op.SUM);
+        for (int i = 0; i < n && ok; i++) {
+            ok &= rank == root ? v[i] == (double) size * (size - 1) / 2 + (double) size * i : v[i] == input[i];
+        }
+        long[] big = new long[n];
+        for (int i = 0; i < n; i++) {
+            big[i] = (i + rank) % size;
+        }
+        MPI.allreduce(big, Op.MAX);
+        for (int i = 0; i < n && ok; i++) {
+            ok &= big[i] == size - 1;
+        }
+
+        System.out.println(ok ? "TEST PASSED: Reduce on rank " + rank : "TEST FAILED: Reduce on rank " + rank);
+        MPI.finalize_mpi();
+    }
+}
@@ -0,0 +1,216 @@
+package mpi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+public class TestStream {
+    private static int rank;
+    private static int size;
+    private static boolean ok = true;
+
+    // Above the default 4 MB rendezvous threshold
+    private static final int BIG = 6 << 20;
+
+    public static void main(String[] args) throws IOException {
+        MPI.init();
+        rank = MPI.comm_rank();
+        size = MPI.comm_size();
+
+        ring();
+        if (size >= 2) {
+            streams();
+            files();
+            earlyClose();
+            truncation();
+            buffers();
+        }
+        if (size >= 3) {
+            failedSource();
+        }
+        MPI.barrier();
+
+        System.out.println(ok ? "TEST PASSED: Streaming on rank " + rank
+                : "TEST FAILED: Streaming on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    // Every rank sends a large message to the next one at once; only works if isend does not wait for the receiver
+    private static void ring() {
+        int next = (rank + 1) % size;
+        int prev = (rank + size - 1) % size;
+        int[] big = new int[BIG / Integer.BYTES];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = rank * 31 + i;
+        }
+        Request sent = MPI.isend(next, 1, big, 0, big.length);
+        Request after = MPI.isend(next, 1, new int[] { -rank }, 0, 1);
+
+        int[] got = new int[big.length];
+        Status status = MPI.receive(prev, 1, got, 0, got.length);
+        check(status.getCount() == got.length && status.getSource() == prev, "ring status");
+        for (int i = 0; i < got.length; i++) {
+            if (got[i] != prev * 31 + i) {
+                check(false, "ring payload at " + i);
+                break;
+            }
+        }
+        int[] small = new int[1];
+        MPI.receive(prev, 1, small, 0, 1);
+        check(small[0] == -prev, "small message overtook the stream");
+        Request.waitAll(sent, after);
+    }
+
+    private static void streams() throws IOException {
+        int count = BIG / Long.BYTES;
+        if (rank == 0) {
+            long[] data = new long[count];
+            for (int i = 0; i < count; i++) {
+                data[i] = i * 0x1_0000_0001L;
+            }
+            MPI.send(1, 2, data, 0, count);
+
+            byte[] bytes = new byte[BIG - 3];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) (i * 7);
+            }
+            MPI.send(1, 3, bytes);
+        } else if (rank == 1) {
+            try (MessageStream stream = MPI.receiveStream(0, 2)) {
+                check(stream.length() == (long) count * Long.BYTES && stream.getSource() == 0
+                        && stream.getTag() == 2, "stream header");
+                DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+                for (int i = 0; i < count; i++) {
+                    if (in.readLong() != i * 0x1_0000_0001L) {
+                        check(false, "streamed long " + i);
+                        break;
+                    }
+                }
+                check(in.read() == -1, "stream did not end");
+            }
+
+            byte[] bytes = MPI.receiveBytes(0, 3);
+            check(bytes.length == BIG - 3, "receiveBytes length");
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != (byte) (i * 7)) {
+                    check(false, "receiveBytes payload at " + i);
+                    break;
+                }
+            }
+        }
+    }
+
+    // File to file, through a channel on both ends
+    private static void files() throws IOException {
+        long length = 10L << 20 | 5;
+        Path path = Files.createTempFile("mpi-stream-" + rank, ".bin");
+        try {
+            if (rank == 0) {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+                    for (long i = 0; i < length; i++) {
+                        out.write((int) (i % 251));
+                    }
+                }
+                try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                    MPI.send(1, 4, file, length);
+                }
+            } else if (rank == 1) {
+                try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    check(MPI.receive(0, 4, file, 100) == length, "file receive length");
+                }
+                check(Files.size(path) == length + 100, "file size");
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+                    in.skipNBytes(100);
+                    for (long i = 0; i < length; i++) {
+                        if (in.read() != i % 251) {
+                            check(false, "file byte " + i);
+                            break;
+                        }
+                    }
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    // Closing a stream early must release the sender
+    private static void earlyClose() throws IOException {
+        if (rank == 0) {
+            MPI.send(1, 5, new byte[BIG]);
+            MPI.send(1, 5, new byte[2 * BIG]);
+            MPI.send(1, 6, "after");
+        } else if (rank == 1) {
+            MessageStream first = MPI.receiveStream(0, 5);
+            first.close();
+            try (MessageStream second = MPI.receiveStream(0, 5)) {
+                byte[] head = new byte[1000];
+                check(second.read(head) > 0, "read before close");
+            }
+            check("after".equals(MPI.receive(0, 6)), "message after closed streams");
+        }
+    }
+
+    private static void truncation() {
+        if (rank == 0) {
+            MPI.send(1, 7, new double[BIG / Double.BYTES], 0, BIG / Double.BYTES);
+            MPI.send(1, 8, "recovered");
+        } else if (rank == 1) {
+            try {
+                MPI.receive(0, 7, new double[10], 0, 10);
+                check(false, "truncated stream accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+            check("recovered".equals(MPI.receive(0, 8)), "message after truncated stream");
+        }
+    }
+
+    private static void buffers() {
+        if (rank == 0) {
+            ByteBuffer data = ByteBuffer.allocateDirect(BIG + 16);
+            for (int i = 0; i < data.capacity(); i++) {
+                data.put(i, (byte) (i ^ (i >> 8)));
+            }
+            data.position(16);
+            MPI.send(1, 9, data);
+            check(data.position() == 16, "send moved the buffer");
+        } else if (rank == 1) {
+            ByteBuffer buf = ByteBuffer.allocate(BIG + 8);
+            buf.position(8);
+            Request request = MPI.irecv(0, 9, buf);
+            check(request.waitFor().getLength() == BIG && buf.position() == BIG + 8, "buffer receive position");
+            for (int i = 0; i < BIG; i++) {
+                int j = i + 16;
+                if (buf.get(8 + i) != (byte) (j ^ (j >> 8))) {
+                    check(false, "buffer byte " + i);
+                    break;
+                }
+            }
+        }
+    }
+
+    // A source that runs dry fails both ends
+    private static void failedSource() {
+        if (rank == 2) {
+            try {
+                MPI.send(1, 10, new ByteArrayInputStream(new byte[BIG]), 2L * BIG);
+                check(false, "short source accepted");
+            } catch (IOException expected) {
+            }
+        } else if (rank == 1) {
+            try (MessageStream stream = MPI.receiveStream(2, 10)) {
+                stream.transferTo(OutputStream.nullOutputStream());
+                check(false, "aborted stream read to the end");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank);
+        }
+        ok &= condition;
+    }
+}
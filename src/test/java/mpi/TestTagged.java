@@ -0,0 +1,65 @@
+package mpi;
+
+public class TestTagged {
+    public static void main(String[] args) {
+        MPI.init();
+        int rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+
+        if (size < 3) {
+            System.out.println("Need 3 ranks");
+            MPI.finalize_mpi();
+            return;
+        }
+
+        int n = 300;
+        boolean ok = true;
+
+        // A user message followed by collective traffic: wildcards must not match the latter
+        if (rank == 0) {
+            MPI.send(1, 3, "hello");
+        } else if (rank == 1) {
+            ok &= "hello".equals(MPI.receive(MPI.ANY_SOURCE, MPI.ANY_TAG));
+        }
+        ok &= "x".equals(MPI.bcast(0, "x"));
+
+        if (rank == 1) {
+            MPI.send(0, 5, "a1");
+            MPI.send(0, 7, "b1");
+            MPI.send(0, 5, "a2");
+            for (int i = 0; i < n; i++) {
+                MPI.send(0, 10 + i % 3, new int[] { i }, 0, 1);
+            }
+        } else if (rank == 2) {
+            MPI.send(0, 7, "c1");
+            MPI.send(0, 9, new int[] { 2, 3 }, 0, 2);
+        } else if (rank == 0) {
+            // A later tag overtakes an earlier one from the same sender
+            ok &= "b1".equals(MPI.receive(1, 7));
+            ok &= "a1".equals(MPI.receive(1, 5));
+            ok &= "a2".equals(MPI.receive(MPI.ANY_SOURCE, 5));
+
+            Status probed = MPI.probe(2, MPI.ANY_TAG);
+            ok &= probed.getSource() == 2 && probed.getTag() == 7 && probed.getLength() == 2;
+            ok &= "c1".equals(MPI.receive(2, 7));
+
+            int[] pair = new int[4];
+            Status st = MPI.receive(MPI.ANY_SOURCE, 9, pair, 0, pair.length);
+            ok &= st.getSource() == 2 && st.getTag() == 9 && st.getCount() == 2 && st.getLength() == 8;
+            ok &= pair[0] == 2 && pair[1] == 3;
+
+            // Drain by exact key, highest tag first: order holds within each (source, tag)
+            int[] one = new int[1];
+            for (int tag = 12; tag >= 10; tag--) {
+                for (int i = tag - 10; i < n; i += 3) {
+                    MPI.receive(1, tag, one, 0, 1);
+                    ok &= one[0] == i;
+                }
+            }
+            ok &= MPI.iprobe(MPI.ANY_SOURCE, MPI.ANY_TAG) == null;
+        }
+
+        System.out.println(ok ? "TEST PASSED: Tagged receive" : "TEST FAILED: Tagged receive on rank " + rank);
+        MPI.finalize_mpi();
+    }
+}
@@ -0,0 +1,119 @@
+package mpi;
+
+import java.util.*;
+
+// Run with ranks in blocks on several nodes (e.g. -processes 2 PORT1 3 PORT2 2)
+public class TestTopology {
+    private static int rank;
+    private static boolean ok = true;
+
+    public static void main(String[] args) {
+        MPI.init();
+        rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        Communicator world = MPI.COMM_WORLD;
+
+        // 1. The node map: blocks of consecutive ranks
+        int nodes = 1;
+        for (int r = 1; r < size; r++) {
+            check(world.node(r) == world.node(r - 1) || world.node(r) == world.node(r - 1) + 1, "node map");
+            nodes += world.node(r) != world.node(r - 1) ? 1 : 0;
+        }
+        check(world.node(0) == 0 && nodes > 1, "several nodes");
+
+        // 2. Every root, short and long vectors
+        for (int root = 0; root < size; root++) {
+            for (int n : new int[] { 3, 20_000 }) {
+                long[] values = new long[n];
+                for (int i = 0; i < n; i++) {
+                    values[i] = rank == root ? i * 7L + root : -1;
+                }
+                MPI.bcast(root, values, 0, n);
+                boolean bcast = true;
+                for (int i = 0; i < n; i++) {
+                    bcast &= values[i] == i * 7L + root;
+                }
+                check(bcast, "bcast from " + root);
+
+                String text = MPI.bcast(root, rank == root ? "from " + root + " " + "x".repeat(n) : null);
+                check(text.equals("from " + root + " " + "x".repeat(n)), "bcast of a string from " + root);
+
+                int[] sum = new int[n];
+                Arrays.fill(sum, rank + 1);
+                MPI.reduce(root, sum, 0, n, Op.SUM);
+                check(rank != root || sum[n - 1] == size * (size + 1) / 2, "reduce to " + root);
+
+                double[] max = new double[n];
+                Arrays.fill(max, rank == root ? -1 : rank);
+                MPI.allreduce(max, 0, n, Op.MAX);
+                check(max[0] == (root == size - 1 ? size - 2 : size - 1) && max[n - 1] == max[0], "allreduce");
+            }
+        }
+
+        // 3. Non-commutative operators keep rank order
+        long[] matrix = { 1, 1, 0, 1 }; // [[1, 1], [0, 1]]^size = [[1, size], [0, 1]]
+        MPI.allreduce(matrix, 0, 4, TestReduce.MATMUL);
+        check(matrix[1] == size, "non-commutative allreduce");
+
+        // 4. A communicator across the nodes, in another order
+        Communicator odd = world.split(rank % 2, size - rank);
+        long[] ranks = { rank };
+        MPI.allreduce(odd, ranks, Op.SUM);
+        long want = 0;
+        for (int r = rank % 2; r < size; r += 2) {
+            want += r;
+        }
+        check(ranks[0] == want, "allreduce on a split communicator");
+        for (BarrierAlgorithm algorithm : BarrierAlgorithm.values()) {
+            MPI.barrier(odd, algorithm);
+        }
+
+        // A duplicate gets a message space of its own, not one of the node groups', even when its
+        // agreement is what first builds them
+        Communicator fresh = world.split(0, rank);
+        Communicator copy = fresh.dup();
+        Topology groups = fresh.topology();
+        check(copy.context != groups.local.context && (groups.leaders == null
+                || copy.context != groups.leaders.context), "dup context " + copy.context);
+        long[] one = { 1 };
+        MPI.allreduce(copy, one, Op.SUM);
+        check(one[0] == size, "allreduce on a duplicate");
+
+        // 5. Only node leaders talk across nodes: nodes - 1 messages per bcast
+        int rounds = 20;
+        long before = sentToOtherNodes(world);
+        for (int i = 0; i < rounds; i++) {
+            MPI.bcast(size - 1, new int[] { i }, 0, 1);
+        }
+        long[] crossed = { sentToOtherNodes(world) - before };
+        before = sentToOtherNodes(world);
+        MPI.barrier(BarrierAlgorithm.HIERARCHICAL);
+        long[] barrierCrossed = { sentToOtherNodes(world) - before };
+        MPI.allreduce(crossed, Op.SUM);
+        MPI.allreduce(barrierCrossed, Op.SUM);
+        check(crossed[0] == (long) rounds * (nodes - 1), "messages between nodes: " + crossed[0]);
+        // Leaders' dissemination rounds: ceil(log2 nodes) each
+        check(barrierCrossed[0] == nodes * (long) (32 - Integer.numberOfLeadingZeros(nodes - 1)),
+                "barrier messages between nodes: " + barrierCrossed[0]);
+
+        System.out.println(ok ? "TEST PASSED: Topology on rank " + rank : "TEST FAILED: Topology on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static long sentToOtherNodes(Communicator world) {
+        long sent = 0;
+        for (int r = 0; r < world.size(); r++) {
+            if (world.node(r) != world.node(rank)) {
+                sent += MPI.metrics().getSentMessages(r);
+            }
+        }
+        return sent;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank);
+        }
+        ok &= condition;
+    }
+}
@@ -0,0 +1,19 @@
+package mpi;
+
+public class TestWarm {
+    public static void main(String[] args) {
+        // A warm JVM gets its launch environment as system properties
+        boolean warm = System.getProperty("MPI_RANK") != null;
+        MPI.init();
+        int rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+
+        int[] sum = { rank };
+        MPI.allreduce(sum, Op.SUM);
+        boolean ok = sum[0] == size * (size - 1) / 2;
+
+        System.out.println((ok ? "TEST PASSED: Launch on rank " : "TEST FAILED: Launch on rank ") + rank
+                + (warm ? " (warm)" : " (cold)"));
+        MPI.finalize_mpi();
+    }
+}
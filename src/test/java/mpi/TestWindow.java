@@ -0,0 +1,142 @@
+package mpi;
+
+import java.nio.*;
+
+public class TestWindow {
+    private static int rank;
+    private static boolean ok = true;
+
+    public static void main(String[] args) {
+        MPI.init();
+        rank = MPI.comm_rank();
+        int size = MPI.comm_size();
+        int next = (rank + 1) % size;
+        int prev = (rank + size - 1) % size;
+        // [0, 64) one int per rank, [64, 80) sums, [128] ticket counter, [136] spin lock, [144] guarded counter
+        Window win = Window.allocate(1024);
+
+        // 1. Puts into every rank between fences
+        win.fence();
+        for (int target = 0; target < size; target++) {
+            win.put(target, rank * Integer.BYTES, new int[] { rank * 10 }, 0, 1);
+        }
+        win.fence();
+        boolean puts = true;
+        for (int r = 0; r < size; r++) {
+            puts &= win.memory().getInt(r * Integer.BYTES) == r * 10;
+        }
+        check(puts, "put");
+
+        // 2. Gets of what the previous fence completed
+        int[] got = new int[size];
+        win.get(next, 0, got, 0, size);
+        boolean gets = true;
+        for (int r = 0; r < size; r++) {
+            gets &= got[r] == r * 10;
+        }
+        check(gets, "get");
+        win.fence();
+
+        // 3. Concurrent accumulates are not lost
+        int rounds = 300;
+        for (int i = 0; i < rounds; i++) {
+            win.accumulate(0, 64, new long[] { 1, rank }, 0, 2, Op.SUM);
+        }
+        win.accumulate(0, 80, new double[] { rank + 0.5 }, 0, 1, Op.MAX);
+        win.fence();
+        if (rank == 0) {
+            ByteBuffer memory = win.memory();
+            check(memory.getLong(64) == (long) size * rounds
+                    && memory.getLong(72) == (long) rounds * size * (size - 1) / 2, "accumulate");
+            check(memory.getDouble(80) == size - 0.5, "accumulate max");
+        }
+        try {
+            win.accumulate(size - 1 - rank, 80, new double[] { 1 }, 0, 1, Op.BAND);
+            check(false, "bitwise accumulate of doubles");
+        } catch (UnsupportedOperationException e) {
+            // Expected at the origin, wherever the target is
+        }
+
+        // 4. Fetch-and-add hands out every ticket exactly once
+        long tickets = 0;
+        for (int i = 0; i < rounds; i++) {
+            tickets += win.fetchAndAdd(0, 128, 1);
+        }
+        long[] total = { tickets };
+        MPI.allreduce(total, Op.SUM);
+        long issued = (long) size * rounds;
+        check(total[0] == issued * (issued - 1) / 2, "fetch-and-add tickets");
+        win.fence();
+        if (rank == 0) {
+            check(win.memory().getLong(128) == issued, "fetch-and-add counter");
+        }
+
+        // 5. A spin lock made of compare-and-swap guards a read-modify-write
+        int owner = 1 % size;
+        long[] counter = new long[1];
+        for (int i = 0; i < rounds / 3; i++) {
+            while (win.compareAndSwap(owner, 136, 0, rank + 1) != 0) {
+                Thread.onSpinWait();
+            }
+            win.get(owner, 144, counter, 0, 1);
+            counter[0]++;
+            win.put(owner, 144, counter, 0, 1);
+            win.flush(owner); // The update lands before the lock is seen free
+            check(win.compareAndSwap(owner, 136, rank + 1, 0) == rank + 1, "spin lock release");
+        }
+        win.fence();
+        win.get(owner, 144, counter, 0, 1);
+        check(counter[0] == (long) size * (rounds / 3), "compare-and-swap lock");
+
+        // 6. Exclusive and shared lock epochs on the last rank's window
+        int last = size - 1;
+        win.fence();
+        for (int i = 0; i < rounds / 3; i++) {
+            win.lock(last);
+            win.get(last, 152, counter, 0, 1);
+            counter[0]++;
+            win.put(last, 152, counter, 0, 1);
+            win.unlock(last);
+        }
+        MPI.barrier();
+        win.lockShared(last);
+        win.get(last, 152, counter, 0, 1);
+        win.unlock(last);
+        check(counter[0] == (long) size * (rounds / 3), "lock epochs");
+        try {
+            win.unlock(last); // Others may still hold it shared, but not on this rank's behalf
+            check(false, "unlock without a lock");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        win.free();
+
+        // 7. A window over existing heap memory, on a communicator of its own
+        Communicator comm = MPI.COMM_WORLD.dup();
+        ByteBuffer heap = ByteBuffer.allocate(64);
+        try (Window mine = Window.create(comm, heap)) {
+            mine.fence();
+            mine.put(next, 8, new byte[] { 1, 2, (byte) rank }, 0, 3);
+            mine.accumulate(next, 16, new int[] { 7 }, 0, 1, Op.BOR);
+            mine.fence();
+            check(heap.get(8) == 1 && heap.get(10) == (byte) prev && heap.getInt(16) == 7, "heap window");
+            check(mine.size(next) == 64, "window size");
+            try {
+                mine.fetchAndAdd(next, 60, 1);
+                check(false, "bounds check");
+            } catch (IndexOutOfBoundsException e) {
+                // Expected: 8 bytes at 60 overrun a 64-byte window
+            }
+        }
+
+        System.out.println(ok ? "TEST PASSED: Windows on rank " + rank : "TEST FAILED: Windows on rank " + rank);
+        MPI.finalize_mpi();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition && ok) {
+            System.out.println("Mismatch in " + what + " on rank " + rank);
+        }
+        ok &= condition;
+    }
+}